@@ -0,0 +1,44 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.data;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.room.ColumnInfo;
+import androidx.room.Entity;
+import androidx.room.Fts4;
+
+/**
+ * Full-text index row for an address book entry, so labels can be searched by word prefix.
+ */
+@Fts4
+@Entity(tableName = "address_book_fts")
+public class AddressBookSearchEntry {
+    @NonNull
+    @ColumnInfo(name = "address")
+    public String address;
+
+    @Nullable
+    @ColumnInfo(name = "label")
+    public String label;
+
+    public AddressBookSearchEntry(@NonNull final String address, @Nullable final String label) {
+        this.address = address;
+        this.label = label;
+    }
+}
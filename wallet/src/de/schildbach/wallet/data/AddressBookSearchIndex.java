@@ -0,0 +1,99 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.data;
+
+import android.database.Cursor;
+import androidx.annotation.NonNull;
+import androidx.room.InvalidationTracker;
+import androidx.room.RoomDatabase;
+import androidx.sqlite.db.SupportSQLiteDatabase;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Keeps the full-text index of address book labels in the {@link WalletDatabase} in step with the address book, which
+ * lives in its own database. Any change to the address book table, by whatever code path, compares the address book
+ * against the index and writes only the entries that differ. Rows are read through the address book's own connection.
+ */
+public final class AddressBookSearchIndex extends InvalidationTracker.Observer {
+    private static final String SOURCE_TABLE = "address_book";
+
+    private final RoomDatabase addressBook;
+    private final SearchDao searchDao;
+
+    private static final Logger log = LoggerFactory.getLogger(AddressBookSearchIndex.class);
+
+    public AddressBookSearchIndex(final RoomDatabase addressBook, final SearchDao searchDao) {
+        super(SOURCE_TABLE);
+        this.addressBook = checkNotNull(addressBook);
+        this.searchDao = checkNotNull(searchDao);
+    }
+
+    @Override
+    public void onInvalidated(@NonNull final Set<String> tables) {
+        update();
+    }
+
+    /** Brings the index in line with the address book. Must not be called on the main thread. */
+    public void update() {
+        try {
+            final Map<String, String> labels = new HashMap<>();
+            try (final Cursor cursor = addressBook.getOpenHelper().getReadableDatabase()
+                    .query("SELECT address, label FROM " + SOURCE_TABLE)) {
+                while (cursor.moveToNext())
+                    labels.put(cursor.getString(0), cursor.getString(1));
+            }
+            update(labels, searchDao);
+        } catch (final RuntimeException x) {
+            log.warn("could not index address book", x);
+        }
+    }
+
+    /**
+     * Writes the entries of the index that differ from the given labels, and deletes those without a label.
+     *
+     * @return number of entries written or deleted
+     */
+    public static int update(final Map<String, String> labels, final SearchDao searchDao) {
+        final Map<String, String> indexed = new HashMap<>();
+        for (final AddressBookSearchEntry entry : searchDao.getAddressBookEntries())
+            indexed.put(entry.address, entry.label);
+        final List<AddressBookSearchEntry> changed = new ArrayList<>();
+        for (final Map.Entry<String, String> label : labels.entrySet())
+            if (!indexed.containsKey(label.getKey()) || !Objects.equals(indexed.get(label.getKey()), label.getValue()))
+                changed.add(new AddressBookSearchEntry(label.getKey(), label.getValue()));
+        final List<String> removed = new ArrayList<>();
+        for (final String address : indexed.keySet())
+            if (!labels.containsKey(address))
+                removed.add(address);
+        if (changed.isEmpty() && removed.isEmpty())
+            return 0;
+        searchDao.updateAddressBookEntries(changed, removed);
+        log.debug("indexed {} changed and {} removed address book entries", changed.size(), removed.size());
+        return changed.size() + removed.size();
+    }
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.data;
+
+import com.google.common.collect.ImmutableMap;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.crypto.DeterministicKey;
+import org.bitcoinj.utils.ExchangeRate;
+import org.bitcoinj.utils.Fiat;
+import org.bitcoinj.wallet.DeterministicUpgradeRequiredException;
+import org.bitcoinj.wallet.Wallet;
+import org.bitcoinj.wallet.Wallet.BalanceType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.EnumMap;
+import java.util.Map;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Small summary of a wallet: balance per {@link BalanceType}, number of unspent outputs, last seen block and the
+ * exchange rate at the time. Persisted next to the wallet, so the balance can be shown before the full wallet is
+ * loaded.
+ *
+ * <p>The wallet hash covers the wallet's keys, last seen block and transaction count. Once the real wallet is loaded,
+ * a snapshot that doesn't {@link #matches(Wallet)} it is stale and should be dropped.
+ */
+public final class BalanceSnapshot {
+    private static final int FILE_MAGIC = 0x42534e50; // "BSNP"
+    private static final int FILE_VERSION = 1;
+
+    public final Sha256Hash walletHash;
+    private final ImmutableMap<BalanceType, Coin> balances;
+    public final int utxoCount;
+    @Nullable
+    public final Sha256Hash lastBlockHash;
+    public final int lastBlockHeight;
+    public final long lastBlockTime;
+    @Nullable
+    public final ExchangeRate exchangeRate;
+    public final long createdAt;
+
+    private static final Logger log = LoggerFactory.getLogger(BalanceSnapshot.class);
+
+    public BalanceSnapshot(final Sha256Hash walletHash, final Map<BalanceType, Coin> balances, final int utxoCount,
+            @Nullable final Sha256Hash lastBlockHash, final int lastBlockHeight, final long lastBlockTime,
+            @Nullable final ExchangeRate exchangeRate, final long createdAt) {
+        this.walletHash = checkNotNull(walletHash);
+        this.balances = ImmutableMap.copyOf(balances);
+        this.utxoCount = utxoCount;
+        this.lastBlockHash = lastBlockHash;
+        this.lastBlockHeight = lastBlockHeight;
+        this.lastBlockTime = lastBlockTime;
+        this.exchangeRate = exchangeRate;
+        this.createdAt = createdAt;
+    }
+
+    /** Takes a snapshot of the wallet. This walks all unspent outputs, so better not do it on the main thread. */
+    public static BalanceSnapshot of(final Wallet wallet, @Nullable final ExchangeRate exchangeRate, final long now) {
+        final Map<BalanceType, Coin> balances = new EnumMap<>(BalanceType.class);
+        for (final BalanceType type : BalanceType.values())
+            balances.put(type, wallet.getBalance(type));
+        final Sha256Hash lastBlockHash = wallet.getLastBlockSeenHash();
+        return new BalanceSnapshot(walletHashOf(wallet), balances, wallet.getUnspents().size(), lastBlockHash,
+                wallet.getLastBlockSeenHeight(), wallet.getLastBlockSeenTimeSecs() * 1000, exchangeRate, now);
+    }
+
+    public static Sha256Hash walletHashOf(final Wallet wallet) {
+        final MessageDigest digest = Sha256Hash.newDigest();
+        DeterministicKey watchingKey = null;
+        try {
+            watchingKey = wallet.getWatchingKey();
+        } catch (final IllegalStateException | DeterministicUpgradeRequiredException x) {
+            // no deterministic key chain
+        }
+        if (watchingKey != null) {
+            digest.update(watchingKey.getPubKey());
+            digest.update(watchingKey.getChainCode());
+        }
+        for (final ECKey key : wallet.getImportedKeys())
+            digest.update(key.getPubKey());
+        final Sha256Hash lastBlockHash = wallet.getLastBlockSeenHash();
+        if (lastBlockHash != null)
+            digest.update(lastBlockHash.getBytes());
+        digest.update(ByteBuffer.allocate(4).putInt(wallet.getTransactions(true).size()).array());
+        return Sha256Hash.wrap(digest.digest());
+    }
+
+    public boolean matches(final Wallet wallet) {
+        return walletHash.equals(walletHashOf(wallet));
+    }
+
+    public Coin getBalance(final BalanceType type) {
+        final Coin balance = balances.get(type);
+        return balance != null ? balance : Coin.ZERO;
+    }
+
+    /**
+     * Writes the snapshot to a temporary file, syncs it and renames it over the target, so readers see either the
+     * old or the new snapshot.
+     */
+    public void write(final File file) throws IOException {
+        final File tempFile = new File(file.getParentFile(), file.getName() + ".tmp");
+        final FileOutputStream fos = new FileOutputStream(tempFile);
+        try (final DataOutputStream os = new DataOutputStream(new BufferedOutputStream(fos))) {
+            os.writeInt(FILE_MAGIC);
+            os.writeInt(FILE_VERSION);
+            os.write(walletHash.getBytes());
+            os.writeByte(balances.size());
+            for (final Map.Entry<BalanceType, Coin> entry : balances.entrySet()) {
+                os.writeUTF(entry.getKey().name());
+                os.writeLong(entry.getValue().value);
+            }
+            os.writeInt(utxoCount);
+            os.writeBoolean(lastBlockHash != null);
+            if (lastBlockHash != null)
+                os.write(lastBlockHash.getBytes());
+            os.writeInt(lastBlockHeight);
+            os.writeLong(lastBlockTime);
+            os.writeBoolean(exchangeRate != null);
+            if (exchangeRate != null) {
+                os.writeLong(exchangeRate.coin.value);
+                os.writeUTF(exchangeRate.fiat.currencyCode);
+                os.writeLong(exchangeRate.fiat.value);
+            }
+            os.writeLong(createdAt);
+            os.flush();
+            fos.getFD().sync();
+        }
+        if (!tempFile.renameTo(file))
+            throw new IOException("cannot rename " + tempFile + " to " + file);
+    }
+
+    /** @return the snapshot, or {@code null} if there is none or it cannot be read */
+    @Nullable
+    public static BalanceSnapshot read(final File file) {
+        try (final DataInputStream is = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (is.readInt() != FILE_MAGIC || is.readInt() != FILE_VERSION)
+                throw new IOException("unknown format");
+            final byte[] hash = new byte[Sha256Hash.LENGTH];
+            is.readFully(hash);
+            final Map<BalanceType, Coin> balances = new EnumMap<>(BalanceType.class);
+            final int numBalances = is.readUnsignedByte();
+            for (int i = 0; i < numBalances; i++) {
+                final String type = is.readUTF();
+                final long value = is.readLong();
+                try {
+                    balances.put(BalanceType.valueOf(type), Coin.valueOf(value));
+                } catch (final IllegalArgumentException x) {
+                    // balance type from a different bitcoinj version
+                }
+            }
+            final int utxoCount = is.readInt();
+            Sha256Hash lastBlockHash = null;
+            if (is.readBoolean()) {
+                final byte[] blockHash = new byte[Sha256Hash.LENGTH];
+                is.readFully(blockHash);
+                lastBlockHash = Sha256Hash.wrap(blockHash);
+            }
+            final int lastBlockHeight = is.readInt();
+            final long lastBlockTime = is.readLong();
+            ExchangeRate exchangeRate = null;
+            if (is.readBoolean()) {
+                final Coin coin = Coin.valueOf(is.readLong());
+                final String currencyCode = is.readUTF();
+                exchangeRate = new ExchangeRate(coin, Fiat.valueOf(currencyCode, is.readLong()));
+            }
+            final long createdAt = is.readLong();
+            return new BalanceSnapshot(Sha256Hash.wrap(hash), balances, utxoCount, lastBlockHash, lastBlockHeight,
+                    lastBlockTime, exchangeRate, createdAt);
+        } catch (final FileNotFoundException x) {
+            return null;
+        } catch (final IOException | RuntimeException x) {
+            log.info("problem reading balance snapshot " + file + ", ignoring", x);
+            return null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "balance " + getBalance(BalanceType.ESTIMATED).toFriendlyString() + ", " + utxoCount
+                + " unspent outputs, block " + lastBlockHeight;
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.data;
+
+import org.bitcoinj.utils.ExchangeRate;
+import org.bitcoinj.utils.Threading;
+import org.bitcoinj.wallet.Wallet;
+import org.bitcoinj.wallet.listeners.WalletChangeEventListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * Keeps the {@link BalanceSnapshot} file of a wallet up to date. Wallet changes are coalesced and written on a
+ * background executor, at most every {@link #COALESCE_MS}.
+ */
+public class BalanceSnapshotWriter implements WalletChangeEventListener {
+    public static final long COALESCE_MS = 500;
+
+    private final File file;
+    private final ScheduledExecutorService executor;
+    private final AtomicBoolean writeScheduled = new AtomicBoolean();
+    @Nullable
+    private volatile Wallet wallet;
+    @Nullable
+    private volatile ExchangeRate exchangeRate;
+
+    private static final Logger log = LoggerFactory.getLogger(BalanceSnapshotWriter.class);
+
+    public BalanceSnapshotWriter(final File file, final ScheduledExecutorService executor) {
+        this.file = checkNotNull(file);
+        this.executor = checkNotNull(executor);
+    }
+
+    /**
+     * Starts following a freshly loaded wallet. A snapshot that doesn't match the wallet is dropped, and a fresh one
+     * is written either way.
+     */
+    public void start(final Wallet wallet) {
+        checkState(this.wallet == null, "already started");
+        final BalanceSnapshot existing = BalanceSnapshot.read(file);
+        if (existing != null && !existing.matches(wallet)) {
+            log.info("dropping stale balance snapshot: {}", existing);
+            if (!file.delete())
+                log.warn("cannot delete {}", file);
+        }
+        this.wallet = wallet;
+        if (existing != null && existing.exchangeRate != null && exchangeRate == null)
+            exchangeRate = existing.exchangeRate;
+        wallet.addChangeEventListener(Threading.SAME_THREAD, this);
+        scheduleWrite(0);
+    }
+
+    public void stop() {
+        final Wallet wallet = this.wallet;
+        if (wallet != null)
+            wallet.removeChangeEventListener(this);
+        this.wallet = null;
+    }
+
+    public void setExchangeRate(@Nullable final ExchangeRate exchangeRate) {
+        this.exchangeRate = exchangeRate;
+        if (wallet != null)
+            scheduleWrite(COALESCE_MS);
+    }
+
+    @Override
+    public void onWalletChanged(final Wallet wallet) {
+        scheduleWrite(COALESCE_MS);
+    }
+
+    private void scheduleWrite(final long delayMs) {
+        if (writeScheduled.compareAndSet(false, true))
+            executor.schedule(this::write, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    private void write() {
+        writeScheduled.set(false);
+        final Wallet wallet = this.wallet;
+        if (wallet == null)
+            return;
+        final long start = System.currentTimeMillis();
+        final BalanceSnapshot snapshot = BalanceSnapshot.of(wallet, exchangeRate, start);
+        try {
+            snapshot.write(file);
+            log.debug("wrote {}, took {} ms", snapshot, System.currentTimeMillis() - start);
+        } catch (final IOException x) {
+            log.warn("problem writing balance snapshot " + file, x);
+        }
+    }
+}
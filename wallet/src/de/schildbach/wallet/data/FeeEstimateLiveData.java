@@ -0,0 +1,53 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.data;
+
+import androidx.lifecycle.LiveData;
+import de.schildbach.wallet.ui.send.FeeCategory;
+import org.bitcoinj.core.Coin;
+
+import java.util.Map;
+
+/**
+ * Fee rates per category from a {@link FeeEstimator}, available right away and updated as blocks come in. It has the
+ * same shape as {@link DynamicFeeLiveData}. Until {@link FeeEstimator#isLearned()}, its values are the floors.
+ */
+public class FeeEstimateLiveData extends LiveData<Map<FeeCategory, Coin>> implements FeeEstimator.Listener {
+    private final FeeEstimator estimator;
+
+    public FeeEstimateLiveData(final FeeEstimator estimator) {
+        super(estimator.getEstimates());
+        this.estimator = estimator;
+    }
+
+    @Override
+    protected void onActive() {
+        estimator.addListener(this);
+        setValue(estimator.getEstimates());
+    }
+
+    @Override
+    protected void onInactive() {
+        estimator.removeListener(this);
+    }
+
+    @Override
+    public void onEstimatesChanged(final Map<FeeCategory, Coin> estimates) {
+        postValue(estimates);
+    }
+}
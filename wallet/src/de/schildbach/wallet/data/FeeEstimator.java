@@ -0,0 +1,263 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.data;
+
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableMap;
+import de.schildbach.wallet.ui.send.FeeCategory;
+import org.bitcoinj.core.Coin;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Estimates fee rates per {@link FeeCategory} from the mempool, instead of a static table.
+ *
+ * <p>A Bloom-filtered connection only relays our own transactions, so the mempool is sampled from a server that sees
+ * all of it, as the fee histogram of {@link de.schildbach.wallet.service.electrum.ElectrumFeeFeed}. Each category has
+ * a confirmation target in blocks, and its estimate is the rate of the transaction that would just fit into that many
+ * blocks if they were mined from the top of the mempool now. The floors, normally from {@code fees.txt}, are used
+ * until a histogram arrives and are never undercut, so estimates are available right away and offline. The last
+ * histogram can be persisted across restarts.
+ *
+ * <p>Thread-safe.
+ */
+public class FeeEstimator {
+    public interface Listener {
+        void onEstimatesChanged(Map<FeeCategory, Coin> estimates);
+    }
+
+    private static final int FILE_MAGIC = 0x46454553; // "FEES"
+    private static final int FILE_VERSION = 2;
+    /** confirmation targets in blocks of about a minute, for ECONOMIC, NORMAL and PRIORITY */
+    private static final int[] TARGETS = { 20, 5, 2 };
+    /** maximum block size, in bytes */
+    public static final long BLOCK_SIZE = 1000000;
+    /** a persisted histogram older than this says nothing about the mempool anymore */
+    public static final long MAX_AGE_MS = TimeUnit.HOURS.toMillis(6);
+
+    private final Map<FeeCategory, Coin> floors;
+    /** size in bytes per fee rate in satoshis per 1000 bytes, highest rate first */
+    private SortedMap<Long, Long> histogram = null;
+    private long histogramTime = 0;
+    private final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<>();
+    private Map<FeeCategory, Coin> estimates;
+
+    private static final Logger log = LoggerFactory.getLogger(FeeEstimator.class);
+
+    /**
+     * @param floors
+     *            minimum fee rate per category, in satoshis per 1000 bytes
+     */
+    public FeeEstimator(final Map<FeeCategory, Coin> floors) {
+        for (final FeeCategory category : FeeCategory.values())
+            checkArgument(floors.containsKey(category), "missing floor for %s", category);
+        this.floors = ImmutableMap.copyOf(floors);
+        this.estimates = computeEstimates();
+    }
+
+    /** Parses the {@code CATEGORY=rate} lines of {@code fees.txt}. */
+    public static Map<FeeCategory, Coin> readFloors(final InputStream is) throws IOException {
+        final Map<FeeCategory, Coin> floors = new EnumMap<>(FeeCategory.class);
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(is, StandardCharsets.UTF_8));
+        for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+            line = line.trim();
+            if (line.isEmpty() || line.charAt(0) == '#')
+                continue;
+            final List<String> fields = Splitter.on('=').trimResults().splitToList(line);
+            if (fields.size() != 2)
+                throw new IOException("cannot parse: " + line);
+            try {
+                floors.put(FeeCategory.valueOf(fields.get(0)), Coin.valueOf(Long.parseLong(fields.get(1))));
+            } catch (final IllegalArgumentException x) {
+                throw new IOException("cannot parse: " + line, x);
+            }
+        }
+        return floors;
+    }
+
+    public void addListener(final Listener listener) {
+        listeners.add(checkNotNull(listener));
+    }
+
+    public void removeListener(final Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Replaces the mempool histogram.
+     *
+     * @param histogram
+     *            size in bytes of the mempool transactions per fee rate, in satoshis per 1000 bytes, in any order
+     * @param now
+     *            when the histogram was taken
+     */
+    public void onMempoolHistogram(final Map<Long, Long> histogram, final long now) {
+        final SortedMap<Long, Long> sorted = new TreeMap<>(Collections.<Long> reverseOrder());
+        sorted.putAll(histogram);
+        final Map<FeeCategory, Coin> changed;
+        synchronized (this) {
+            this.histogram = sorted;
+            this.histogramTime = now;
+            final Map<FeeCategory, Coin> estimates = computeEstimates();
+            changed = estimates.equals(this.estimates) ? null : estimates;
+            this.estimates = estimates;
+        }
+        if (changed != null) {
+            log.info("fee estimates changed: {}", changed);
+            for (final Listener listener : listeners)
+                listener.onEstimatesChanged(changed);
+        }
+    }
+
+    /** @return the fee rate per category, in satoshis per 1000 bytes */
+    public synchronized Map<FeeCategory, Coin> getEstimates() {
+        return estimates;
+    }
+
+    public synchronized Coin getFeeRate(final FeeCategory category) {
+        return estimates.get(category);
+    }
+
+    /** @return true if the estimates are from a mempool histogram, rather than the floors */
+    public synchronized boolean isLearned() {
+        return histogram != null;
+    }
+
+    /**
+     * Suggests the fee for replacing a transaction (RBF): enough for the category, and more than the old fee by at
+     * least the economic rate for the replacement's size, so that peers relay it.
+     */
+    public Coin suggestReplacementFee(final int size, final Coin oldFee, final FeeCategory category) {
+        final Coin target = feeFor(getFeeRate(category), size);
+        final Coin minimum = oldFee.add(feeFor(floors.get(FeeCategory.ECONOMIC), size));
+        return target.isGreaterThan(minimum) ? target : minimum;
+    }
+
+    /**
+     * Suggests the fee for a child transaction paying for its parent (CPFP), so that both together reach the rate of
+     * the category. The child alone never pays less than the economic floor.
+     */
+    public Coin suggestChildFee(final int parentSize, final Coin parentFee, final int childSize,
+            final FeeCategory category) {
+        final Coin total = feeFor(getFeeRate(category), parentSize + childSize).subtract(parentFee);
+        final Coin minimum = feeFor(floors.get(FeeCategory.ECONOMIC), childSize);
+        return total.isGreaterThan(minimum) ? total : minimum;
+    }
+
+    private static Coin feeFor(final Coin rate, final int size) {
+        return Coin.valueOf((rate.value * size + 999) / 1000);
+    }
+
+    private Map<FeeCategory, Coin> computeEstimates() {
+        final Map<FeeCategory, Coin> estimates = new EnumMap<>(FeeCategory.class);
+        long previous = 0;
+        final FeeCategory[] categories = { FeeCategory.ECONOMIC, FeeCategory.NORMAL, FeeCategory.PRIORITY };
+        for (int c = 0; c < categories.length; c++) {
+            final long estimate = histogram != null ? rateAtDepth(histogram, TARGETS[c] * BLOCK_SIZE) : 0;
+            // faster categories never cost less than slower ones
+            final long rate = Math.max(Math.max(estimate, floors.get(categories[c]).value), previous);
+            estimates.put(categories[c], Coin.valueOf(rate));
+            previous = rate;
+        }
+        return ImmutableMap.copyOf(estimates);
+    }
+
+    /** @return the rate at which the mempool, highest rate first, fills the given size, or 0 if it doesn't */
+    private static long rateAtDepth(final SortedMap<Long, Long> histogram, final long depth) {
+        long size = 0;
+        for (final Map.Entry<Long, Long> entry : histogram.entrySet()) {
+            size += entry.getValue();
+            if (size >= depth)
+                return entry.getKey();
+        }
+        return 0;
+    }
+
+    /** Writes the histogram atomically, see {@link BalanceSnapshot#write(File)}. */
+    public void write(final File file) throws IOException {
+        final File tempFile = new File(file.getParentFile(), file.getName() + ".tmp");
+        final FileOutputStream fos = new FileOutputStream(tempFile);
+        try (final DataOutputStream os = new DataOutputStream(new BufferedOutputStream(fos))) {
+            os.writeInt(FILE_MAGIC);
+            os.writeInt(FILE_VERSION);
+            synchronized (this) {
+                os.writeLong(histogramTime);
+                os.writeInt(histogram != null ? histogram.size() : -1);
+                if (histogram != null) {
+                    for (final Map.Entry<Long, Long> entry : histogram.entrySet()) {
+                        os.writeLong(entry.getKey());
+                        os.writeLong(entry.getValue());
+                    }
+                }
+            }
+            os.flush();
+            fos.getFD().sync();
+        }
+        if (!tempFile.renameTo(file))
+            throw new IOException("cannot rename " + tempFile + " to " + file);
+    }
+
+    /**
+     * Restores the histogram of an earlier run, unless it is older than {@link #MAX_AGE_MS}. A missing, stale or
+     * unreadable file leaves the floors in place.
+     */
+    public void read(final File file, final long now) {
+        try (final DataInputStream is = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (is.readInt() != FILE_MAGIC || is.readInt() != FILE_VERSION)
+                throw new IOException("unknown format");
+            final long time = is.readLong();
+            final int size = is.readInt();
+            if (size < 0 || now - time > MAX_AGE_MS)
+                return;
+            final Map<Long, Long> histogram = new HashMap<>(size);
+            for (int i = 0; i < size; i++)
+                histogram.put(is.readLong(), is.readLong());
+            onMempoolHistogram(histogram, time);
+        } catch (final FileNotFoundException x) {
+            // first run
+        } catch (final IOException | RuntimeException x) {
+            log.info("problem reading fee histogram " + file + ", ignoring", x);
+        }
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.data;
+
+import androidx.room.Dao;
+import androidx.room.Insert;
+import androidx.room.Query;
+import androidx.room.Transaction;
+
+import javax.annotation.Nullable;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Full-text search over address book labels. Queries are FTS4 MATCH expressions, as built by
+ * {@link #prefixQuery(String)}.
+ */
+@Dao
+public abstract class SearchDao {
+    @Insert
+    protected abstract void insertAddressBookEntry(AddressBookSearchEntry entry);
+
+    @Query("DELETE FROM address_book_fts WHERE address = :address")
+    public abstract void deleteAddressBookEntry(String address);
+
+    @Transaction
+    public void putAddressBookEntry(final AddressBookSearchEntry entry) {
+        deleteAddressBookEntry(entry.address);
+        insertAddressBookEntry(entry);
+    }
+
+    /** Applies changes to the address book index in one transaction. */
+    @Transaction
+    public void updateAddressBookEntries(final List<AddressBookSearchEntry> changed, final List<String> removed) {
+        for (final String address : removed)
+            deleteAddressBookEntry(address);
+        for (final AddressBookSearchEntry entry : changed)
+            putAddressBookEntry(entry);
+    }
+
+    @Query("SELECT address, label FROM address_book_fts")
+    public abstract List<AddressBookSearchEntry> getAddressBookEntries();
+
+    @Query("SELECT address, label FROM address_book_fts WHERE address_book_fts MATCH :query LIMIT :limit")
+    public abstract List<AddressBookSearchEntry> searchAddressBook(String query, int limit);
+
+    /**
+     * Turns what the user typed into a query matching rows that contain words starting with each of the typed words.
+     * Anything but letters and digits separates words, so the result is always a valid expression.
+     *
+     * @return the query, or null if nothing searchable was typed
+     */
+    public static @Nullable String prefixQuery(final String input) {
+        final StringBuilder query = new StringBuilder();
+        for (final String word : input.split("[^\\p{L}\\p{Nd}]+")) {
+            if (word.isEmpty())
+                continue;
+            if (query.length() > 0)
+                query.append(' ');
+            query.append(word.toLowerCase(Locale.ROOT)).append('*'); // lower case, so OR isn't an operator
+        }
+        return query.length() > 0 ? query.toString() : null;
+    }
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.data;
+
+import org.bitcoinj.core.Sha256Hash;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static com.google.common.base.Preconditions.checkElementIndex;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Time-ordered index of wallet transaction IDs, built once and then patched in place.
+ *
+ * <p>Entries are kept oldest first in parallel arrays, so the common case of a new transaction is an append, and a
+ * confirmation that doesn't change the time is just a change notification. Positions exposed to callers are display
+ * positions, newest first, as in the transaction list. Lookup of a transaction's position is a binary search via its
+ * remembered time.
+ *
+ * <p>Not thread-safe; confine to one thread or synchronize on the instance.
+ */
+public final class TransactionIndex {
+    public interface Listener {
+        void onInserted(int position);
+
+        void onRemoved(int position);
+
+        void onMoved(int fromPosition, int toPosition);
+
+        void onChanged(int position);
+
+        void onReset();
+    }
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private long[] times = new long[INITIAL_CAPACITY];
+    private Sha256Hash[] ids = new Sha256Hash[INITIAL_CAPACITY];
+    private int size = 0;
+    private final Map<Sha256Hash, Long> timeById = new HashMap<>();
+    private final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    public void addListener(final Listener listener) {
+        listeners.add(checkNotNull(listener));
+    }
+
+    public void removeListener(final Listener listener) {
+        listeners.remove(listener);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean contains(final Sha256Hash id) {
+        return timeById.containsKey(id);
+    }
+
+    /** @return the transaction ID at a display position, newest first */
+    public Sha256Hash get(final int position) {
+        checkElementIndex(position, size);
+        return ids[size - 1 - position];
+    }
+
+    /** @return the time of the transaction at a display position, newest first */
+    public long getTime(final int position) {
+        checkElementIndex(position, size);
+        return times[size - 1 - position];
+    }
+
+    /** @return the display position of a transaction, or -1 if not indexed */
+    public int indexOf(final Sha256Hash id) {
+        final Long time = timeById.get(id);
+        if (time == null)
+            return -1;
+        final int slot = search(time, id);
+        return slot >= 0 ? size - 1 - slot : -1;
+    }
+
+    /**
+     * Replaces the whole content, for the initial build or after a reorganize.
+     */
+    public void reset(final Map<Sha256Hash, Long> transactions) {
+        final int capacity = Math.max(INITIAL_CAPACITY, Integer.highestOneBit(transactions.size()) * 2);
+        final List<Map.Entry<Sha256Hash, Long>> entries = new ArrayList<>(transactions.entrySet());
+        Collections.sort(entries, (a, b) -> compare(a.getValue(), a.getKey(), b.getValue(), b.getKey()));
+        times = new long[capacity];
+        ids = new Sha256Hash[capacity];
+        timeById.clear();
+        size = entries.size();
+        for (int i = 0; i < size; i++) {
+            times[i] = entries.get(i).getValue();
+            ids[i] = entries.get(i).getKey();
+            timeById.put(ids[i], times[i]);
+        }
+        for (final Listener listener : listeners)
+            listener.onReset();
+    }
+
+    /**
+     * Adds a transaction, moves it if its time changed, or otherwise reports it as changed.
+     *
+     * @return the display position after the update
+     */
+    public int put(final Sha256Hash id, final long time) {
+        final Long oldTime = timeById.get(id);
+        if (oldTime != null && oldTime == time) {
+            final int position = size - 1 - search(time, id);
+            for (final Listener listener : listeners)
+                listener.onChanged(position);
+            return position;
+        }
+
+        int oldPosition = -1;
+        if (oldTime != null) {
+            final int slot = search(oldTime, id);
+            oldPosition = size - 1 - slot;
+            removeSlot(slot);
+        }
+        final int slot = -search(time, id) - 1;
+        insertSlot(slot, id, time);
+        timeById.put(id, time);
+        final int position = size - 1 - slot;
+
+        for (final Listener listener : listeners) {
+            if (oldPosition >= 0 && oldPosition != position)
+                listener.onMoved(oldPosition, position);
+            else if (oldPosition >= 0)
+                listener.onChanged(position);
+            else
+                listener.onInserted(position);
+        }
+        return position;
+    }
+
+    /** @return the former display position, or -1 if not indexed */
+    public int remove(final Sha256Hash id) {
+        final Long time = timeById.remove(id);
+        if (time == null)
+            return -1;
+        final int slot = search(time, id);
+        final int position = size - 1 - slot;
+        removeSlot(slot);
+        for (final Listener listener : listeners)
+            listener.onRemoved(position);
+        return position;
+    }
+
+    @Nullable
+    public Long timeOf(final Sha256Hash id) {
+        return timeById.get(id);
+    }
+
+    private void insertSlot(final int slot, final Sha256Hash id, final long time) {
+        if (size == ids.length) {
+            times = Arrays.copyOf(times, size * 2);
+            ids = Arrays.copyOf(ids, size * 2);
+        }
+        System.arraycopy(times, slot, times, slot + 1, size - slot);
+        System.arraycopy(ids, slot, ids, slot + 1, size - slot);
+        times[slot] = time;
+        ids[slot] = id;
+        size++;
+    }
+
+    private void removeSlot(final int slot) {
+        System.arraycopy(times, slot + 1, times, slot, size - slot - 1);
+        System.arraycopy(ids, slot + 1, ids, slot, size - slot - 1);
+        size--;
+        ids[size] = null;
+    }
+
+    /** Binary search over the array slots, with the same contract as {@link Arrays#binarySearch(long[], long)}. */
+    private int search(final long time, final Sha256Hash id) {
+        int low = 0;
+        int high = size - 1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            final int cmp = compare(times[mid], ids[mid], time, id);
+            if (cmp < 0)
+                low = mid + 1;
+            else if (cmp > 0)
+                high = mid - 1;
+            else
+                return mid;
+        }
+        return -(low + 1);
+    }
+
+    private static int compare(final long timeA, final Sha256Hash idA, final long timeB, final Sha256Hash idB) {
+        final int cmp = Long.compare(timeA, timeB);
+        return cmp != 0 ? cmp : idA.compareTo(idB);
+    }
+}
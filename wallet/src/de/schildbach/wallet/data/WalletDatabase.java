@@ -0,0 +1,63 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.data;
+
+import android.content.Context;
+import androidx.room.Database;
+import androidx.room.Room;
+import androidx.room.RoomDatabase;
+import de.schildbach.wallet.addressbook.AddressBookDatabase;
+import de.schildbach.wallet.service.broadcast.BroadcastQueueDao;
+import de.schildbach.wallet.service.broadcast.QueuedBroadcast;
+
+/**
+ * The one database for wallet metadata, in WAL mode, for features that would otherwise each need a database file.
+ *
+ * <p>The address book still lives in its own database, but its labels are searched here. The full-text index is kept
+ * current by an {@link AddressBookSearchIndex} observing the address book table, and brought up to date once per
+ * process, as the address book may have changed while this database was closed.
+ */
+@Database(entities = { QueuedBroadcast.class, AddressBookSearchEntry.class }, version = 1, exportSchema = false)
+public abstract class WalletDatabase extends RoomDatabase {
+    public abstract BroadcastQueueDao broadcastQueueDao();
+
+    public abstract SearchDao searchDao();
+
+    private static final String DATABASE_NAME = "wallet";
+
+    private static volatile WalletDatabase INSTANCE;
+
+    public static WalletDatabase getDatabase(final Context context) {
+        if (INSTANCE == null) {
+            synchronized (WalletDatabase.class) {
+                if (INSTANCE == null) {
+                    final Context appContext = context.getApplicationContext();
+                    final WalletDatabase database = Room.databaseBuilder(appContext, WalletDatabase.class,
+                            DATABASE_NAME).setJournalMode(JournalMode.WRITE_AHEAD_LOGGING).build();
+                    final AddressBookDatabase addressBook = AddressBookDatabase.getDatabase(appContext);
+                    final AddressBookSearchIndex index = new AddressBookSearchIndex(addressBook,
+                            database.searchDao());
+                    addressBook.getInvalidationTracker().addObserver(index);
+                    database.getQueryExecutor().execute(index::update);
+                    INSTANCE = database;
+                }
+            }
+        }
+        return INSTANCE;
+    }
+}
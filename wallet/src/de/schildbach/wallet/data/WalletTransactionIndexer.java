@@ -0,0 +1,183 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.data;
+
+import com.google.common.base.Predicate;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionConfidence;
+import org.bitcoinj.core.listeners.TransactionConfidenceEventListener;
+import org.bitcoinj.utils.Threading;
+import org.bitcoinj.wallet.Wallet;
+import org.bitcoinj.wallet.listeners.WalletCoinsReceivedEventListener;
+import org.bitcoinj.wallet.listeners.WalletCoinsSentEventListener;
+import org.bitcoinj.wallet.listeners.WalletReorganizeEventListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Keeps a {@link TransactionIndex} in step with a wallet, instead of rebuilding the transaction list whenever the
+ * wallet changes.
+ *
+ * <p>Wallet events are collected per transaction and applied in batches at most every {@link #COALESCE_MS}. Confidence
+ * changes of transactions buried deeper than the given depth limit are ignored, as their row doesn't change anymore;
+ * this keeps a new block from touching every row of a long history. A reorganize rebuilds the index.
+ *
+ * <p>The index is only touched on the given executor, typically the main thread, so readers on that thread don't need
+ * any locking.
+ */
+public class WalletTransactionIndexer implements WalletCoinsReceivedEventListener, WalletCoinsSentEventListener,
+        TransactionConfidenceEventListener, WalletReorganizeEventListener {
+    public static final long COALESCE_MS = 200;
+
+    private final Wallet wallet;
+    private final TransactionIndex index;
+    private final Predicate<Transaction> filter;
+    private final int depthLimit;
+    private final Executor indexExecutor;
+    private final ScheduledExecutorService scheduler;
+
+    private final Map<Sha256Hash, Transaction> pending = new LinkedHashMap<>();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private boolean rebuildPending = false;
+
+    private static final Logger log = LoggerFactory.getLogger(WalletTransactionIndexer.class);
+
+    /**
+     * @param filter
+     *            decides which transactions belong into the index, for example only received ones
+     * @param depthLimit
+     *            confirmations beyond which a row is considered final
+     * @param indexExecutor
+     *            the thread the index is confined to
+     * @param scheduler
+     *            used to delay batches
+     */
+    public WalletTransactionIndexer(final Wallet wallet, final TransactionIndex index,
+            final Predicate<Transaction> filter, final int depthLimit, final Executor indexExecutor,
+            final ScheduledExecutorService scheduler) {
+        this.wallet = checkNotNull(wallet);
+        this.index = checkNotNull(index);
+        this.filter = checkNotNull(filter);
+        this.depthLimit = depthLimit;
+        this.indexExecutor = checkNotNull(indexExecutor);
+        this.scheduler = checkNotNull(scheduler);
+    }
+
+    /** Builds the index from the wallet and starts following it. Call from the index thread. */
+    public void start() {
+        wallet.addCoinsReceivedEventListener(Threading.SAME_THREAD, this);
+        wallet.addCoinsSentEventListener(Threading.SAME_THREAD, this);
+        wallet.addTransactionConfidenceEventListener(Threading.SAME_THREAD, this);
+        wallet.addReorganizeEventListener(Threading.SAME_THREAD, this);
+        rebuild();
+    }
+
+    public void stop() {
+        wallet.removeCoinsReceivedEventListener(this);
+        wallet.removeCoinsSentEventListener(this);
+        wallet.removeTransactionConfidenceEventListener(this);
+        wallet.removeReorganizeEventListener(this);
+    }
+
+    private void rebuild() {
+        final long start = System.currentTimeMillis();
+        final Map<Sha256Hash, Long> transactions = new HashMap<>();
+        for (final Transaction tx : wallet.getTransactions(true))
+            if (filter.apply(tx))
+                transactions.put(tx.getTxId(), tx.getUpdateTime().getTime());
+        index.reset(transactions);
+        log.info("indexed {} transactions, took {} ms", transactions.size(), System.currentTimeMillis() - start);
+    }
+
+    @Override
+    public void onCoinsReceived(final Wallet wallet, final Transaction tx, final Coin prevBalance,
+            final Coin newBalance) {
+        enqueue(tx);
+    }
+
+    @Override
+    public void onCoinsSent(final Wallet wallet, final Transaction tx, final Coin prevBalance, final Coin newBalance) {
+        enqueue(tx);
+    }
+
+    @Override
+    public void onTransactionConfidenceChanged(final Wallet wallet, final Transaction tx) {
+        final TransactionConfidence confidence = tx.getConfidence();
+        if (confidence.getConfidenceType() == TransactionConfidence.ConfidenceType.BUILDING
+                && confidence.getDepthInBlocks() > depthLimit)
+            return;
+        enqueue(tx);
+    }
+
+    @Override
+    public void onReorganize(final Wallet wallet) {
+        synchronized (pending) {
+            rebuildPending = true;
+            pending.clear();
+        }
+        scheduleFlush();
+    }
+
+    private void enqueue(final Transaction tx) {
+        synchronized (pending) {
+            if (rebuildPending)
+                return;
+            pending.put(tx.getTxId(), tx);
+        }
+        scheduleFlush();
+    }
+
+    private void scheduleFlush() {
+        if (flushScheduled.compareAndSet(false, true))
+            scheduler.schedule(() -> indexExecutor.execute(this::flush), COALESCE_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private void flush() {
+        flushScheduled.set(false);
+        final Map<Sha256Hash, Transaction> batch;
+        final boolean rebuild;
+        synchronized (pending) {
+            batch = new LinkedHashMap<>(pending);
+            pending.clear();
+            rebuild = rebuildPending;
+            rebuildPending = false;
+        }
+        if (rebuild) {
+            rebuild();
+            return;
+        }
+        for (final Transaction tx : batch.values()) {
+            if (filter.apply(tx))
+                index.put(tx.getTxId(), tx.getUpdateTime().getTime());
+            else
+                index.remove(tx.getTxId());
+        }
+    }
+}
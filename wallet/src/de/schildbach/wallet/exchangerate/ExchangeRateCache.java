@@ -0,0 +1,260 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.exchangerate;
+
+import com.google.common.base.Objects;
+import com.google.common.collect.ImmutableMap;
+import okhttp3.Call;
+import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.Buffer;
+import okio.ForwardingSource;
+import okio.Okio;
+import org.bitcoinj.utils.Fiat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * In-memory exchange rates with stale-while-revalidate: readers always get the current rates at once, and a read
+ * finding them older than the maximum age starts a single background revalidation.
+ *
+ * <p>Revalidation is a conditional request ({@code If-None-Match}, {@code If-Modified-Since}), so an unchanged feed
+ * costs a {@code 304} without a body. A changed feed is parsed by {@link ExchangeRateStreamParser} and only rates that
+ * actually changed or disappeared are handed to the {@link Store}, in one call meant to be one database transaction.
+ * The validators are stored along with the rates, so that the first revalidation after a restart can be conditional
+ * as well.
+ *
+ * <p>After a failed revalidation, reads don't start another one for {@link #RETRY_DELAY_MS}, doubling with each
+ * failure in a row up to {@link #MAX_RETRY_DELAY_MS}, so an unreachable feed isn't hit on every read.
+ */
+public class ExchangeRateCache {
+    public interface Store {
+        /**
+         * Writes changed rates, deletes removed ones and replaces the validators of the feed, in one transaction.
+         */
+        void write(Map<String, Fiat> changed, Set<String> removed, @Nullable String etag,
+                @Nullable String lastModified);
+    }
+
+    public interface Listener {
+        void onRatesChanged(Map<String, Fiat> rates);
+    }
+
+    public static final class Stats {
+        public final AtomicLong requests = new AtomicLong();
+        public final AtomicLong notModified = new AtomicLong();
+        public final AtomicLong failures = new AtomicLong();
+        public final AtomicLong bytesParsed = new AtomicLong();
+        public final AtomicLong ratesWritten = new AtomicLong();
+
+        @Override
+        public String toString() {
+            return requests + " requests (" + notModified + " not modified, " + failures + " failed), "
+                    + bytesParsed + " bytes parsed, " + ratesWritten + " rates written";
+        }
+    }
+
+    public static final long RETRY_DELAY_MS = 60 * 1000L;
+    public static final long MAX_RETRY_DELAY_MS = 60 * 60 * 1000L;
+
+    private final OkHttpClient client;
+    private final HttpUrl url;
+    private final Executor executor;
+    private final Store store;
+    private final long maxAgeMs;
+    private final AtomicBoolean revalidating = new AtomicBoolean();
+    private final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<>();
+    private final Stats stats = new Stats();
+
+    private volatile Map<String, Fiat> rates = ImmutableMap.of();
+    private volatile long validatedAt = 0;
+    private volatile long retryAt = 0;
+    private int failuresInRow = 0;
+    @Nullable
+    private String etag;
+    @Nullable
+    private String lastModified;
+
+    private static final Logger log = LoggerFactory.getLogger(ExchangeRateCache.class);
+
+    /**
+     * @param executor
+     *            runs revalidations
+     * @param store
+     *            persists changes, typically to {@code ExchangeRatesDatabase}
+     * @param maxAgeMs
+     *            how long rates are served without revalidating
+     */
+    public ExchangeRateCache(final OkHttpClient client, final HttpUrl url, final Executor executor, final Store store,
+            final long maxAgeMs) {
+        this.client = checkNotNull(client);
+        this.url = checkNotNull(url);
+        this.executor = checkNotNull(executor);
+        this.store = checkNotNull(store);
+        this.maxAgeMs = maxAgeMs;
+    }
+
+    /**
+     * Seeds the cache from the database at startup. The rates count as stale, so the first read revalidates, with the
+     * validators that were stored with them.
+     */
+    public synchronized void init(final Map<String, Fiat> persisted, @Nullable final String etag,
+            @Nullable final String lastModified) {
+        rates = ImmutableMap.copyOf(persisted);
+        this.etag = etag;
+        this.lastModified = lastModified;
+    }
+
+    public void addListener(final Listener listener) {
+        listeners.add(checkNotNull(listener));
+    }
+
+    public void removeListener(final Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /** @return the current rates by currency code, revalidating in the background if they are stale */
+    public Map<String, Fiat> getRates() {
+        final Map<String, Fiat> current = rates;
+        maybeRevalidate();
+        return current;
+    }
+
+    @Nullable
+    public Fiat getRate(final String currencyCode) {
+        return getRates().get(currencyCode);
+    }
+
+    public boolean isStale() {
+        return System.currentTimeMillis() - validatedAt > maxAgeMs;
+    }
+
+    public Stats getStats() {
+        return stats;
+    }
+
+    private void maybeRevalidate() {
+        if (isStale() && System.currentTimeMillis() >= retryAt && revalidating.compareAndSet(false, true)) {
+            executor.execute(() -> {
+                try {
+                    revalidate();
+                } catch (final IOException x) {
+                    log.info("problem revalidating exchange rates from {}: {}", url, x.getMessage());
+                } finally {
+                    revalidating.set(false);
+                }
+            });
+        }
+    }
+
+    /**
+     * Revalidates now, on the calling thread.
+     *
+     * @return true if rates changed
+     */
+    public synchronized boolean revalidate() throws IOException {
+        final Request.Builder request = new Request.Builder().url(url);
+        if (etag != null)
+            request.header("If-None-Match", etag);
+        if (lastModified != null)
+            request.header("If-Modified-Since", lastModified);
+        stats.requests.incrementAndGet();
+        final Call call = client.newCall(request.build());
+        try (final Response response = call.execute()) {
+            if (response.code() == 304) {
+                stats.notModified.incrementAndGet();
+                succeeded();
+                return false;
+            }
+            if (!response.isSuccessful())
+                throw new IOException("HTTP " + response.code() + " " + response.message());
+            final ResponseBody body = checkNotNull(response.body());
+            final Map<String, Fiat> newRates = ExchangeRateStreamParser.parse(Okio.buffer(new ForwardingSource(
+                    body.source()) {
+                @Override
+                public long read(final Buffer sink, final long byteCount) throws IOException {
+                    final long read = super.read(sink, byteCount);
+                    if (read > 0)
+                        stats.bytesParsed.addAndGet(read);
+                    return read;
+                }
+            }));
+            return apply(newRates, response.header("ETag"), response.header("Last-Modified"));
+        } catch (final IOException | RuntimeException x) {
+            stats.failures.incrementAndGet();
+            retryAt = System.currentTimeMillis() + retryDelay(failuresInRow++);
+            throw x;
+        }
+    }
+
+    private void succeeded() {
+        validatedAt = System.currentTimeMillis();
+        retryAt = 0;
+        failuresInRow = 0;
+    }
+
+    private static long retryDelay(final int previousFailures) {
+        long delay = RETRY_DELAY_MS;
+        for (int i = 0; i < previousFailures && delay < MAX_RETRY_DELAY_MS; i++)
+            delay *= 2;
+        return Math.min(delay, MAX_RETRY_DELAY_MS);
+    }
+
+    private boolean apply(final Map<String, Fiat> newRates, @Nullable final String newEtag,
+            @Nullable final String newLastModified) {
+        final Map<String, Fiat> oldRates = rates;
+        final Map<String, Fiat> changed = new HashMap<>();
+        for (final Map.Entry<String, Fiat> entry : newRates.entrySet())
+            if (!entry.getValue().equals(oldRates.get(entry.getKey())))
+                changed.put(entry.getKey(), entry.getValue());
+        final Set<String> removed = new HashSet<>(oldRates.keySet());
+        removed.removeAll(newRates.keySet());
+
+        final boolean validatorsChanged = !Objects.equal(etag, newEtag) || !Objects.equal(lastModified,
+                newLastModified);
+        if (!changed.isEmpty() || !removed.isEmpty() || validatorsChanged)
+            store.write(changed, removed, newEtag, newLastModified);
+        etag = newEtag;
+        lastModified = newLastModified;
+        succeeded();
+        if (changed.isEmpty() && removed.isEmpty())
+            return false;
+        stats.ratesWritten.addAndGet(changed.size() + removed.size());
+        rates = ImmutableMap.copyOf(newRates);
+        log.info("{} exchange rates changed, {} removed", changed.size(), removed.size());
+        for (final Listener listener : listeners)
+            listener.onRatesChanged(rates);
+        return true;
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.exchangerate;
+
+import com.squareup.moshi.JsonReader;
+import okio.BufferedSource;
+import org.bitcoinj.utils.Fiat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Reads the fiat rates of a CoinGecko {@code exchange_rates} response straight off the stream, without building an
+ * object tree. Names and units are skipped; values are taken as their literal text, so they are not rounded through
+ * a {@code double}.
+ */
+public final class ExchangeRateStreamParser {
+    private static final JsonReader.Options RATE_FIELDS = JsonReader.Options.of("value", "type");
+
+    private static final Logger log = LoggerFactory.getLogger(ExchangeRateStreamParser.class);
+
+    private ExchangeRateStreamParser() {
+    }
+
+    /** @return fiat rates by currency code */
+    public static Map<String, Fiat> parse(final BufferedSource source) throws IOException {
+        final Map<String, Fiat> rates = new TreeMap<>();
+        final JsonReader reader = JsonReader.of(source);
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (!"rates".equals(reader.nextName())) {
+                reader.skipValue();
+                continue;
+            }
+            reader.beginObject();
+            while (reader.hasNext()) {
+                final String code = reader.nextName().toUpperCase(Locale.US);
+                String value = null;
+                String type = null;
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    switch (reader.selectName(RATE_FIELDS)) {
+                    case 0:
+                        value = reader.nextString();
+                        break;
+                    case 1:
+                        type = reader.nextString();
+                        break;
+                    default:
+                        reader.skipName();
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+                if (!"fiat".equals(type) || value == null)
+                    continue;
+                try {
+                    final Fiat rate = Fiat.parseFiatInexact(code, value);
+                    if (rate.signum() > 0)
+                        rates.put(code, rate);
+                } catch (final IllegalArgumentException | ArithmeticException x) {
+                    log.warn("problem parsing {} exchange rate: {}", code, x.getMessage());
+                }
+            }
+            reader.endObject();
+        }
+        reader.endObject();
+        return rates;
+    }
+}
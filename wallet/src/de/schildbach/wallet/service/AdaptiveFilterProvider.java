@@ -0,0 +1,346 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.service;
+
+import org.bitcoinj.core.BloomFilter;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.PeerFilterProvider;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.utils.Threading;
+import org.bitcoinj.wallet.Wallet;
+import org.bitcoinj.wallet.listeners.KeyChainEventListener;
+import org.bitcoinj.wallet.listeners.ScriptsChangeEventListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.net.InetSocketAddress;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Wraps the wallet's {@link PeerFilterProvider} so that the peer group resends its bloom filter far less often.
+ *
+ * <ul>
+ * <li>The element count reported to the filter merger includes headroom, so the filter size only changes once the
+ * wallet outgrows it.</li>
+ * <li>The filter of the wrapped provider is cached. New keys and scripts are batched and reach the peers in one resend
+ * after {@code batchDelayMs}. Once {@link #attach(Wallet)}ed, the provider notices them itself; otherwise report them
+ * via {@link #onElementsChanged()}.</li>
+ * <li>Peers update their copy of the filter with matched outpoints, so its false-positive rate creeps up. The rate
+ * is measured from filtered blocks, see {@link #onFilteredBlock(InetSocketAddress, int, int, int, long)}, and the
+ * filter is recalculated and force-sent only once it goes over the target.</li>
+ * </ul>
+ *
+ * <p>The {@link Refresher} is typically {@code PeerGroup.recalculateFastCatchupAndFilter()}.
+ */
+public class AdaptiveFilterProvider implements PeerFilterProvider, KeyChainEventListener,
+        ScriptsChangeEventListener {
+    public interface Refresher {
+        /**
+         * @param force
+         *            send the filter even if it did not change, to reset what peers added to their copy
+         */
+        void refresh(boolean force);
+    }
+
+    public static final class PeerStats {
+        public final long blocks;
+        public final long transactions;
+        public final long matched;
+        public final long falsePositives;
+        public final long bytesReceived;
+
+        private PeerStats(final long blocks, final long transactions, final long matched, final long falsePositives,
+                final long bytesReceived) {
+            this.blocks = blocks;
+            this.transactions = transactions;
+            this.matched = matched;
+            this.falsePositives = falsePositives;
+            this.bytesReceived = bytesReceived;
+        }
+
+        public double getFalsePositiveRate() {
+            return transactions > 0 ? (double) falsePositives / transactions : 0;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%d blocks, %d/%d transactions matched, fp rate %.5f, %d bytes", blocks,
+                    matched, transactions, getFalsePositiveRate(), bytesReceived);
+        }
+    }
+
+    public static final class Stats {
+        public final int capacity;
+        public final int filterBytes;
+        public final int changesReported;
+        public final int resends;
+        public final int forcedResends;
+        public final int resizes;
+        /** since the last resend, across peers */
+        public final double falsePositiveRate;
+
+        private Stats(final int capacity, final int filterBytes, final int changesReported, final int resends,
+                final int forcedResends, final int resizes, final double falsePositiveRate) {
+            this.capacity = capacity;
+            this.filterBytes = filterBytes;
+            this.changesReported = changesReported;
+            this.resends = resends;
+            this.forcedResends = forcedResends;
+            this.resizes = resizes;
+            this.falsePositiveRate = falsePositiveRate;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US,
+                    "capacity %d, %d bytes, %d changes in %d resends (%d forced, %d resizes), fp rate %.5f", capacity,
+                    filterBytes, changesReported, resends, forcedResends, resizes, falsePositiveRate);
+        }
+    }
+
+    private static final class PeerCounters {
+        long blocks, transactions, matched, falsePositives, bytesReceived;
+    }
+
+    public static final double DEFAULT_HEADROOM = 1.5;
+    public static final long DEFAULT_BATCH_DELAY_MS = TimeUnit.SECONDS.toMillis(2);
+    public static final int DEFAULT_MIN_SAMPLE_TRANSACTIONS = 5000;
+
+    private final PeerFilterProvider delegate;
+    private final Refresher refresher;
+    private final ScheduledExecutorService scheduler;
+    private final double headroom;
+    private final long batchDelayMs;
+    private final double targetFalsePositiveRate;
+    private final int minSampleTransactions;
+
+    private int capacity = 0;
+    private boolean stale = true;
+    @Nullable
+    private BloomFilter cachedFilter;
+    private int cachedSize;
+    private double cachedFpRate;
+    private long cachedTweak;
+    @Nullable
+    private ScheduledFuture<?> pendingFlush;
+
+    private long sampleTransactions, sampleFalsePositives;
+    private final Map<InetSocketAddress, PeerCounters> peers = new LinkedHashMap<>();
+    private int changesReported, resends, forcedResends, resizes;
+
+    private static final Logger log = LoggerFactory.getLogger(AdaptiveFilterProvider.class);
+
+    /**
+     * @param headroom
+     *            how much larger than the current element count the filter is sized, at least 1
+     * @param targetFalsePositiveRate
+     *            the measured rate above which the filter is resent
+     * @param minSampleTransactions
+     *            how many block transactions to see before trusting the measured rate
+     */
+    public AdaptiveFilterProvider(final PeerFilterProvider delegate, final Refresher refresher,
+            final ScheduledExecutorService scheduler, final double headroom, final long batchDelayMs,
+            final double targetFalsePositiveRate, final int minSampleTransactions) {
+        checkArgument(headroom >= 1);
+        checkArgument(batchDelayMs >= 0);
+        checkArgument(targetFalsePositiveRate > 0 && targetFalsePositiveRate < 1);
+        this.delegate = checkNotNull(delegate);
+        this.refresher = checkNotNull(refresher);
+        this.scheduler = checkNotNull(scheduler);
+        this.headroom = headroom;
+        this.batchDelayMs = batchDelayMs;
+        this.targetFalsePositiveRate = targetFalsePositiveRate;
+        this.minSampleTransactions = minSampleTransactions;
+    }
+
+    /** Listens for new keys and watched scripts of the wallet, which is usually the wrapped provider. */
+    public void attach(final Wallet wallet) {
+        wallet.addKeyChainEventListener(Threading.SAME_THREAD, this);
+        wallet.addScriptChangeEventListener(Threading.SAME_THREAD, this);
+    }
+
+    public void detach(final Wallet wallet) {
+        wallet.removeKeyChainEventListener(this);
+        wallet.removeScriptChangeEventListener(this);
+    }
+
+    @Override
+    public void onKeysAdded(final List<ECKey> keys) {
+        onElementsChanged();
+    }
+
+    @Override
+    public void onScriptsChanged(final Wallet wallet, final List<Script> scripts, final boolean isAddingScripts) {
+        onElementsChanged();
+    }
+
+    /** Call when the wrapped provider gained keys or scripts. Changes within the batch delay are sent together. */
+    public synchronized void onElementsChanged() {
+        changesReported++;
+        if (pendingFlush == null)
+            pendingFlush = scheduler.schedule(this::flush, batchDelayMs, TimeUnit.MILLISECONDS);
+    }
+
+    /** Sends pending changes right away. */
+    public void flush() {
+        synchronized (this) {
+            if (pendingFlush != null) {
+                pendingFlush.cancel(false);
+                pendingFlush = null;
+            }
+            stale = true;
+            resends++;
+        }
+        refresher.refresh(false);
+    }
+
+    /**
+     * Records a filtered block received from a peer.
+     *
+     * @param transactions
+     *            all transactions in the block, see {@link org.bitcoinj.core.FilteredBlock#getTransactionCount()}
+     * @param matched
+     *            transactions the peer sent because they matched the filter
+     * @param relevant
+     *            of those, the ones the wallet actually cares about
+     * @param bytes
+     *            size of the filtered block and the transactions sent with it
+     */
+    public void onFilteredBlock(final InetSocketAddress peer, final int transactions, final int matched,
+            final int relevant, final long bytes) {
+        checkArgument(relevant <= matched && matched <= transactions);
+        final boolean resend;
+        synchronized (this) {
+            PeerCounters counters = peers.get(peer);
+            if (counters == null) {
+                counters = new PeerCounters();
+                peers.put(peer, counters);
+            }
+            counters.blocks++;
+            counters.transactions += transactions;
+            counters.matched += matched;
+            counters.falsePositives += matched - relevant;
+            counters.bytesReceived += bytes;
+            sampleTransactions += transactions;
+            sampleFalsePositives += matched - relevant;
+            resend = sampleTransactions >= minSampleTransactions
+                    && sampleFalsePositives > sampleTransactions * targetFalsePositiveRate;
+            if (resend) {
+                log.info("measured false-positive rate {} over {} transactions, resending filter",
+                        (double) sampleFalsePositives / sampleTransactions, sampleTransactions);
+                stale = true;
+                resends++;
+                forcedResends++;
+            }
+        }
+        if (resend)
+            refresher.refresh(true);
+    }
+
+    /** Records other traffic from a peer, such as unconfirmed transactions matching the filter. */
+    public synchronized void onBytesReceived(final InetSocketAddress peer, final long bytes) {
+        PeerCounters counters = peers.get(peer);
+        if (counters == null) {
+            counters = new PeerCounters();
+            peers.put(peer, counters);
+        }
+        counters.bytesReceived += bytes;
+    }
+
+    public synchronized void removePeer(final InetSocketAddress peer) {
+        peers.remove(peer);
+    }
+
+    public synchronized Map<InetSocketAddress, PeerStats> getPeerStats() {
+        final Map<InetSocketAddress, PeerStats> stats = new LinkedHashMap<>();
+        for (final Map.Entry<InetSocketAddress, PeerCounters> entry : peers.entrySet()) {
+            final PeerCounters c = entry.getValue();
+            stats.put(entry.getKey(),
+                    new PeerStats(c.blocks, c.transactions, c.matched, c.falsePositives, c.bytesReceived));
+        }
+        return stats;
+    }
+
+    public synchronized Stats getStats() {
+        return new Stats(capacity, cachedFilter != null ? cachedFilter.bitcoinSerialize().length : 0,
+                changesReported, resends, forcedResends, resizes,
+                sampleTransactions > 0 ? (double) sampleFalsePositives / sampleTransactions : 0);
+    }
+
+    @Override
+    public long getEarliestKeyCreationTime() {
+        return delegate.getEarliestKeyCreationTime();
+    }
+
+    @Override
+    public void beginBloomFilterCalculation() {
+        delegate.beginBloomFilterCalculation();
+    }
+
+    @Override
+    public synchronized int getBloomFilterElementCount() {
+        if (stale || capacity == 0) {
+            final int count = delegate.getBloomFilterElementCount();
+            if (count > capacity) {
+                if (capacity > 0)
+                    resizes++;
+                capacity = Math.max(1, (int) Math.ceil(count * headroom));
+                log.info("bloom filter sized for {} elements, {} in use", capacity, count);
+            }
+        }
+        return capacity;
+    }
+
+    @Override
+    public synchronized BloomFilter getBloomFilter(final int size, final double falsePositiveRate, final long tweak) {
+        if (stale || cachedFilter == null || cachedSize != size || cachedFpRate != falsePositiveRate
+                || cachedTweak != tweak) {
+            cachedFilter = delegate.getBloomFilter(size, falsePositiveRate, tweak);
+            cachedSize = size;
+            cachedFpRate = falsePositiveRate;
+            cachedTweak = tweak;
+            stale = false;
+            sampleTransactions = 0;
+            sampleFalsePositives = 0;
+        }
+        // the merger merges into the filter it gets, so hand out a copy
+        final BloomFilter copy = new BloomFilter(size, falsePositiveRate, tweak, cachedFilter.getUpdateFlag());
+        copy.merge(cachedFilter);
+        return copy;
+    }
+
+    @Override
+    public boolean isRequiringUpdateAllBloomFilter() {
+        return delegate.isRequiringUpdateAllBloomFilter();
+    }
+
+    @Override
+    public void endBloomFilterCalculation() {
+        delegate.endBloomFilterCalculation();
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.service;
+
+import org.bitcoinj.core.AbstractBlockChain;
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.PrunedException;
+import org.bitcoinj.core.VerificationException;
+import org.bitcoinj.wallet.Wallet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Feeds the headers joined by a {@link HeaderSyncEngine} into the block chain, which does the full header
+ * verification (difficulty, AuxPoW) just as for headers from the download peer. Headers the chain refuses are
+ * reported back to the engine, which fetches them again from another peer.
+ *
+ * <p>Headers are added without their transactions, which is only safe for blocks before the wallet's earliest key.
+ * The engine must therefore be planned with {@link HeaderSyncEngine#fastCatchupTimeSecs(Wallet)} of the wallet.
+ */
+public class ChainHeaderSink implements HeaderSyncEngine.Listener {
+    private final AbstractBlockChain blockChain;
+    private final Runnable onComplete;
+
+    private static final Logger log = LoggerFactory.getLogger(ChainHeaderSink.class);
+
+    public ChainHeaderSink(final AbstractBlockChain blockChain, final Runnable onComplete) {
+        this.blockChain = checkNotNull(blockChain);
+        this.onComplete = checkNotNull(onComplete);
+    }
+
+    @Override
+    public void onHeadersJoined(final int startHeight, final List<Block> headers) throws VerificationException {
+        try {
+            for (final Block header : headers)
+                if (!blockChain.add(header))
+                    throw new VerificationException("header " + header.getHash() + " does not connect to the chain");
+        } catch (final PrunedException x) {
+            throw new VerificationException(x);
+        }
+        log.debug("joined {} headers after height {}, chain height now {}", headers.size(), startHeight,
+                blockChain.getBestChainHeight());
+    }
+
+    @Override
+    public void onSyncComplete(final int height) {
+        log.info("header sync reached its last checkpoint at height {}", height);
+        onComplete.run();
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.service;
+
+import com.google.common.io.BaseEncoding;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.StoredBlock;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Reads the height, hash and time of each checkpoint, which is all the {@link HeaderSyncEngine} needs.
+ */
+public final class CheckpointAnchors {
+    private static final String TEXTUAL_MAGIC = "TXT CHECKPOINTS 1";
+
+    private CheckpointAnchors() {
+    }
+
+    /**
+     * Reads the textual checkpoints format as bundled in {@code assets/checkpoints.txt}. An empty file yields no
+     * anchors.
+     */
+    public static List<HeaderSyncEngine.Anchor> readTextual(final NetworkParameters params,
+            final BufferedReader reader) throws IOException {
+        final List<HeaderSyncEngine.Anchor> anchors = new ArrayList<>();
+        final String magic = reader.readLine();
+        if (magic == null || magic.trim().isEmpty())
+            return anchors;
+        if (!TEXTUAL_MAGIC.equals(magic))
+            throw new IOException("unexpected magic: " + magic);
+        final int numSignatures = Integer.parseInt(reader.readLine().trim());
+        for (int i = 0; i < numSignatures; i++)
+            reader.readLine();
+        final int numCheckpoints = Integer.parseInt(reader.readLine().trim());
+        final ByteBuffer buffer = ByteBuffer.allocate(StoredBlock.COMPACT_SERIALIZED_SIZE);
+        for (int i = 0; i < numCheckpoints; i++) {
+            final byte[] bytes = BaseEncoding.base64().decode(reader.readLine().trim());
+            buffer.clear();
+            buffer.put(bytes, 0, StoredBlock.COMPACT_SERIALIZED_SIZE);
+            buffer.flip();
+            final StoredBlock block = StoredBlock.deserializeCompact(params, buffer);
+            anchors.add(new HeaderSyncEngine.Anchor(block.getHeight(), block.getHeader().getHash(),
+                    block.getHeader().getTimeSeconds()));
+        }
+        sort(anchors);
+        return anchors;
+    }
+
+    /**
+     * Reads the {@code TIMESTAMP=HEIGHT:HASH:...} format of {@code assets/checkpoints-custom.txt}. The time is the
+     * block time field, or the leading timestamp for lines that don't have one.
+     */
+    public static List<HeaderSyncEngine.Anchor> readCustom(final BufferedReader reader) throws IOException {
+        final List<HeaderSyncEngine.Anchor> anchors = new ArrayList<>();
+        String line;
+        while ((line = reader.readLine()) != null) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#"))
+                continue;
+            final int equals = line.indexOf('=');
+            if (equals < 0)
+                continue;
+            final String[] fields = line.substring(equals + 1).split(":");
+            if (fields.length < 2)
+                continue;
+            final long time = Long.parseLong(fields.length > 5 ? fields[5] : line.substring(0, equals));
+            anchors.add(new HeaderSyncEngine.Anchor(Integer.parseInt(fields[0]), Sha256Hash.wrap(fields[1]), time));
+        }
+        sort(anchors);
+        return anchors;
+    }
+
+    private static void sort(final List<HeaderSyncEngine.Anchor> anchors) {
+        Collections.sort(anchors, (a, b) -> Integer.compare(a.height, b.height));
+    }
+}
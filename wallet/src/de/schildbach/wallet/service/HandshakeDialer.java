@@ -0,0 +1,373 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.service;
+
+import org.bitcoinj.core.Message;
+import org.bitcoinj.core.MessageSerializer;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.PeerAddress;
+import org.bitcoinj.core.PeerGroup;
+import org.bitcoinj.core.ProtocolException;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.VersionAck;
+import org.bitcoinj.core.VersionMessage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Races version/verack handshakes against many candidates at once on a single selector, in the spirit of "happy
+ * eyeballs": attempts start staggered, up to a concurrency limit, the first ones to complete the handshake win, and
+ * everything still in flight is closed as soon as enough winners are found. A blackholed address therefore costs one
+ * slot for at most the timeout, instead of holding up the whole connect phase.
+ *
+ * <p>Channels can't be handed over to a {@link PeerGroup}, which dials its peers itself. Every channel is therefore
+ * closed by the time {@link #dial(List, int, int)} returns, winners right after their handshake. What the race yields
+ * is the winners ordered by handshake latency, which {@link #addTo(PeerGroup, List)} hands to the peer group to dial
+ * first. It skips the dead and slow candidates, at the cost of a second handshake with each winner.
+ */
+public class HandshakeDialer {
+    private static final int HEADER_LENGTH = 4 + 12 + 4 + 4;
+    private static final int READ_BUFFER_SIZE = 4096;
+    private static final int MAX_PAYLOAD_LENGTH = READ_BUFFER_SIZE - HEADER_LENGTH;
+
+    /** Counters over all {@link #dial(List, int, int)} calls of this dialer. */
+    public static final class Stats {
+        public final AtomicLong attempts = new AtomicLong();
+        public final AtomicLong wins = new AtomicLong();
+        public final AtomicLong timeouts = new AtomicLong();
+        public final AtomicLong failures = new AtomicLong();
+        public final AtomicLong cancelled = new AtomicLong();
+
+        @Override
+        public String toString() {
+            return "attempts=" + attempts + " wins=" + wins + " timeouts=" + timeouts + " failures=" + failures
+                    + " cancelled=" + cancelled;
+        }
+    }
+
+    /** A completed handshake. Its channel is closed already. */
+    public static final class Handshake {
+        public final InetSocketAddress address;
+        public final VersionMessage peerVersion;
+        public final long rttMs;
+
+        private Handshake(final InetSocketAddress address, final VersionMessage peerVersion, final long rttMs) {
+            this.address = address;
+            this.peerVersion = peerVersion;
+            this.rttMs = rttMs;
+        }
+
+        @Override
+        public String toString() {
+            return address + " (" + rttMs + "ms, " + peerVersion.subVer + ")";
+        }
+    }
+
+    private static final class Attempt {
+        final InetSocketAddress address;
+        final SocketChannel channel;
+        final long startedAt;
+        final ByteBuffer in = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        final Deque<ByteBuffer> out = new ArrayDeque<>();
+        VersionMessage peerVersion;
+        boolean gotVerack;
+
+        Attempt(final InetSocketAddress address, final SocketChannel channel, final long startedAt) {
+            this.address = address;
+            this.channel = channel;
+            this.startedAt = startedAt;
+        }
+    }
+
+    private final NetworkParameters params;
+    private final MessageSerializer serializer;
+    private final int concurrency;
+    private final long staggerMs;
+    private final long timeoutMs;
+    @Nullable
+    private final PeerScoreTable scores;
+    private final Stats stats = new Stats();
+
+    private static final Logger log = LoggerFactory.getLogger(HandshakeDialer.class);
+
+    /**
+     * @param concurrency
+     *            maximum number of handshakes in flight
+     * @param staggerMs
+     *            delay between starting two attempts, unless an attempt fails early
+     * @param timeoutMs
+     *            time an attempt may take from connect to verack
+     * @param scores
+     *            optional table to record outcomes into
+     */
+    public HandshakeDialer(final NetworkParameters params, final int concurrency, final long staggerMs,
+            final long timeoutMs, @Nullable final PeerScoreTable scores) {
+        checkArgument(concurrency > 0);
+        this.params = checkNotNull(params);
+        this.serializer = params.getDefaultSerializer();
+        this.concurrency = concurrency;
+        this.staggerMs = staggerMs;
+        this.timeoutMs = timeoutMs;
+        this.scores = scores;
+    }
+
+    public Stats getStats() {
+        return stats;
+    }
+
+    /**
+     * Dials the candidates in the given order until {@code wanted} handshakes completed or all candidates are used up.
+     * Blocks the calling thread.
+     *
+     * @return completed handshakes, fastest first
+     */
+    public List<Handshake> dial(final List<InetSocketAddress> candidates, final int wanted, final int bestHeight)
+            throws IOException {
+        final List<Handshake> winners = new ArrayList<>(wanted);
+        final long attemptsBefore = stats.attempts.get();
+        final Deque<InetSocketAddress> pending = new ArrayDeque<>(candidates);
+        final List<Attempt> active = new ArrayList<>(concurrency);
+        final byte[] versionBytes = serialize(new VersionMessage(params, bestHeight));
+        final byte[] verackBytes = serialize(new VersionAck());
+
+        try (final Selector selector = Selector.open()) {
+            long nextStartAt = System.currentTimeMillis();
+            while (winners.size() < wanted && (!pending.isEmpty() || !active.isEmpty())) {
+                long now = System.currentTimeMillis();
+
+                if (!pending.isEmpty() && active.size() < concurrency && now >= nextStartAt) {
+                    final Attempt attempt = start(selector, pending.poll(), versionBytes, now);
+                    if (attempt != null) {
+                        active.add(attempt);
+                        nextStartAt = now + staggerMs;
+                    } else {
+                        nextStartAt = now; // failed right away, don't wait for the stagger
+                    }
+                    continue;
+                }
+
+                long wait = Long.MAX_VALUE;
+                if (!pending.isEmpty() && active.size() < concurrency)
+                    wait = nextStartAt - now;
+                for (final Attempt attempt : active)
+                    wait = Math.min(wait, attempt.startedAt + timeoutMs - now);
+                selector.select(Math.max(wait, 1));
+
+                now = System.currentTimeMillis();
+                for (final Iterator<SelectionKey> i = selector.selectedKeys().iterator(); i.hasNext();) {
+                    final SelectionKey key = i.next();
+                    i.remove();
+                    final Attempt attempt = (Attempt) key.attachment();
+                    if (!key.isValid())
+                        continue;
+                    try {
+                        if (key.isConnectable() && attempt.channel.finishConnect())
+                            key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                        if (key.isValid() && key.isWritable())
+                            write(key, attempt);
+                        if (key.isValid() && key.isReadable() && read(attempt, verackBytes) && !attempt.out.isEmpty())
+                            write(key, attempt);
+                        if (attempt.peerVersion != null && attempt.gotVerack && attempt.out.isEmpty()) {
+                            key.cancel();
+                            active.remove(attempt);
+                            winners.add(win(attempt, now));
+                            if (winners.size() >= wanted)
+                                break;
+                        }
+                    } catch (final IOException | ProtocolException x) {
+                        log.debug("handshake with {} failed: {}", attempt.address, x.getMessage());
+                        active.remove(attempt);
+                        fail(attempt, now);
+                        stats.failures.incrementAndGet();
+                        nextStartAt = now;
+                    }
+                }
+
+                for (final Iterator<Attempt> i = active.iterator(); i.hasNext();) {
+                    final Attempt attempt = i.next();
+                    if (now - attempt.startedAt >= timeoutMs) {
+                        log.debug("handshake with {} timed out", attempt.address);
+                        i.remove();
+                        fail(attempt, now);
+                        stats.timeouts.incrementAndGet();
+                        nextStartAt = now;
+                    }
+                }
+            }
+
+            for (final Attempt attempt : active) {
+                stats.cancelled.incrementAndGet();
+                closeQuietly(attempt.channel);
+            }
+        }
+        // staggered starts mean completion order isn't quite latency order
+        Collections.sort(winners, (a, b) -> Long.compare(a.rttMs, b.rttMs));
+        log.info("dialed {} of {} candidates, {} won; totals so far: {}", stats.attempts.get() - attemptsBefore,
+                candidates.size(), winners.size(), stats);
+        return winners;
+    }
+
+    /**
+     * Hands the winners of {@link #dial(List, int, int)} to a peer group, ranked in the given order and ahead of any
+     * other address it knows. The peer group dials lower priorities first, and its connection limit is restored, as
+     * every added address would raise it by one.
+     */
+    public void addTo(final PeerGroup peerGroup, final List<Handshake> winners) {
+        final int maxConnections = peerGroup.getMaxConnections();
+        for (int i = 0; i < winners.size(); i++)
+            peerGroup.addAddress(new PeerAddress(params, winners.get(i).address), Integer.MIN_VALUE + i);
+        peerGroup.setMaxConnections(maxConnections);
+        log.info("handed {} handshake winners to peer group", winners.size());
+    }
+
+    @Nullable
+    private Attempt start(final Selector selector, final InetSocketAddress address, final byte[] versionBytes,
+            final long now) {
+        stats.attempts.incrementAndGet();
+        SocketChannel channel = null;
+        try {
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            final Attempt attempt = new Attempt(address, channel, now);
+            attempt.out.add(ByteBuffer.wrap(versionBytes));
+            if (channel.connect(address))
+                channel.register(selector, SelectionKey.OP_READ | SelectionKey.OP_WRITE, attempt);
+            else
+                channel.register(selector, SelectionKey.OP_CONNECT, attempt);
+            return attempt;
+        } catch (final IOException x) {
+            log.debug("cannot connect to {}: {}", address, x.getMessage());
+            stats.failures.incrementAndGet();
+            if (channel != null)
+                closeQuietly(channel);
+            if (scores != null)
+                scores.recordFailure(address, now);
+            return null;
+        }
+    }
+
+    private void write(final SelectionKey key, final Attempt attempt) throws IOException {
+        while (!attempt.out.isEmpty()) {
+            final ByteBuffer buffer = attempt.out.peek();
+            attempt.channel.write(buffer);
+            if (buffer.hasRemaining())
+                return;
+            attempt.out.poll();
+        }
+        key.interestOps(SelectionKey.OP_READ);
+    }
+
+    /** @return true if any complete message was processed */
+    private boolean read(final Attempt attempt, final byte[] verackBytes) throws IOException, ProtocolException {
+        if (attempt.channel.read(attempt.in) < 0)
+            throw new IOException("connection closed by peer");
+        attempt.in.flip();
+        boolean processed = false;
+        try {
+            while (attempt.in.remaining() >= HEADER_LENGTH && !(attempt.peerVersion != null && attempt.gotVerack)) {
+                final int start = attempt.in.position();
+                final long magic = attempt.in.getInt(start) & 0xffffffffL;
+                if (magic != params.getPacketMagic())
+                    throw new IOException("wrong magic " + Long.toHexString(magic));
+                final String command = command(attempt.in, start + 4);
+                final int length = attempt.in.duplicate().order(ByteOrder.LITTLE_ENDIAN).getInt(start + 16);
+                if (length < 0 || length > MAX_PAYLOAD_LENGTH)
+                    throw new IOException("unexpected payload length " + length + " for " + command);
+                if (attempt.in.remaining() < HEADER_LENGTH + length)
+                    break;
+                final byte[] payload = new byte[length];
+                attempt.in.position(start + HEADER_LENGTH);
+                attempt.in.get(payload);
+                final byte[] hash = Sha256Hash.hashTwice(payload);
+                for (int i = 0; i < 4; i++)
+                    if (attempt.in.get(start + 20 + i) != hash[i])
+                        throw new IOException("checksum mismatch for " + command);
+                processed = true;
+                if ("version".equals(command)) {
+                    attempt.peerVersion = new VersionMessage(params, payload);
+                    attempt.out.add(ByteBuffer.wrap(verackBytes));
+                } else if ("verack".equals(command)) {
+                    attempt.gotVerack = true;
+                }
+            }
+        } finally {
+            attempt.in.compact();
+        }
+        return processed;
+    }
+
+    private Handshake win(final Attempt attempt, final long now) {
+        final long rttMs = now - attempt.startedAt;
+        stats.wins.incrementAndGet();
+        closeQuietly(attempt.channel);
+        if (scores != null)
+            scores.recordSuccess(attempt.address, attempt.peerVersion.localServices, rttMs, now);
+        return new Handshake(attempt.address, attempt.peerVersion, rttMs);
+    }
+
+    private void fail(final Attempt attempt, final long now) {
+        closeQuietly(attempt.channel);
+        if (scores != null)
+            scores.recordFailure(attempt.address, now);
+    }
+
+    private static String command(final ByteBuffer buffer, final int offset) {
+        int length = 0;
+        while (length < 12 && buffer.get(offset + length) != 0)
+            length++;
+        final byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++)
+            bytes[i] = buffer.get(offset + i);
+        return new String(bytes, StandardCharsets.US_ASCII);
+    }
+
+    private byte[] serialize(final Message message) throws IOException {
+        final ByteArrayOutputStream os = new ByteArrayOutputStream();
+        serializer.serialize(message, os);
+        return os.toByteArray();
+    }
+
+    private static void closeQuietly(final SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (final IOException x) {
+            // swallow
+        }
+    }
+}
@@ -0,0 +1,479 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.service;
+
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.PeerGroup;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.VerificationException;
+import org.bitcoinj.wallet.Wallet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Downloads the block headers between a chain head and the known checkpoints from several peers at once.
+ *
+ * <p>The range is split into segments at checkpoint boundaries. Each segment is fetched by one source at a time, is
+ * checked for linkage and must end exactly at the checkpoint hash. The segment that continues the chain is streamed
+ * to the {@link Listener} batch by batch, so the listener can feed it into the block chain as if it came from a single
+ * download peer. Segments further ahead are fetched in parallel by the other sources and held in memory until they
+ * are next, up to a total number of headers; sources working ahead pause when that is reached. Headers past the last
+ * checkpoint are not covered and are left to the regular chain download.
+ *
+ * <p>Only headers are fetched, so the sync must stop before the first block that could hold a wallet transaction.
+ * Checkpoints newer than the fast catch-up time are skipped, just like {@link PeerGroup} stops downloading headers
+ * only at {@link PeerGroup#setFastCatchupTimeSecs(long)}. The regular chain download takes over from the last
+ * checkpoint before it, fetching filtered blocks.
+ *
+ * <p>A source sending headers that don't connect is dropped from its segment, which continues from the last header
+ * that did. A segment that misses its checkpoint is started over, as it is not known where it went wrong. Headers the
+ * listener rejects are fetched again from another source.
+ */
+public class HeaderSyncEngine {
+    public static final int MAX_HEADERS_PER_MESSAGE = 2000;
+    public static final long DEFAULT_STALL_TIMEOUT_MS = TimeUnit.SECONDS.toMillis(20);
+    /** about 16 MB of AuxPoW headers */
+    public static final int DEFAULT_MAX_BUFFERED_HEADERS = 50 * MAX_HEADERS_PER_MESSAGE;
+    /** allowance for clock skew and block time variance, as {@link PeerGroup} applies to the earliest key time */
+    public static final long FAST_CATCHUP_MARGIN_SECS = TimeUnit.DAYS.toSeconds(7);
+
+    public static final class Anchor {
+        public final int height;
+        public final Sha256Hash hash;
+        /** block time in seconds */
+        public final long time;
+
+        public Anchor(final int height, final Sha256Hash hash, final long time) {
+            this.height = height;
+            this.hash = checkNotNull(hash);
+            this.time = time;
+        }
+
+        @Override
+        public String toString() {
+            return height + "/" + hash;
+        }
+    }
+
+    public interface HeaderSource {
+        String getId();
+
+        /** Asks for the headers following {@code locator}, up to and including {@code stopHash}. */
+        void requestHeaders(Sha256Hash locator, Sha256Hash stopHash);
+    }
+
+    public interface Listener {
+        /**
+         * Called in chain order, never concurrently, with headers following the one at {@code startHeight}.
+         *
+         * @throws VerificationException
+         *             if the headers are invalid; the source is penalised and they are fetched again
+         */
+        void onHeadersJoined(int startHeight, List<Block> headers) throws VerificationException;
+
+        /** Called once after the last segment has been joined, or right away if there was nothing to sync. */
+        void onSyncComplete(int height);
+    }
+
+    private static final class Segment {
+        final int index;
+        final int startHeight;
+        final Sha256Hash startHash;
+        final int endHeight;
+        final Sha256Hash endHash;
+        final Set<HeaderSource> rejectedBy = new HashSet<>();
+        /** batches received while the segment can't be joined yet */
+        final List<Delivery> buffered = new ArrayList<>();
+        int tipHeight;
+        Sha256Hash tipHash;
+        HeaderSource source;
+        long lastProgressAt;
+        boolean streaming;
+        boolean complete;
+
+        Segment(final int index, final Anchor start, final Anchor end) {
+            this.index = index;
+            this.startHeight = start.height;
+            this.startHash = start.hash;
+            this.endHeight = end.height;
+            this.endHash = end.hash;
+            this.tipHeight = start.height;
+            this.tipHash = start.hash;
+        }
+
+        @Override
+        public String toString() {
+            return "segment " + index + " [" + startHeight + ".." + endHeight + "]";
+        }
+    }
+
+    private static final class Delivery {
+        final Segment segment;
+        final HeaderSource source;
+        final int startHeight;
+        final Sha256Hash startHash;
+        final List<Block> headers;
+
+        Delivery(final Segment segment, final HeaderSource source, final int startHeight, final Sha256Hash startHash,
+                final List<Block> headers) {
+            this.segment = segment;
+            this.source = source;
+            this.startHeight = startHeight;
+            this.startHash = startHash;
+            this.headers = headers;
+        }
+    }
+
+    private final List<Segment> segments = new ArrayList<>();
+    private final Map<HeaderSource, Segment> assignments = new HashMap<>();
+    private final Set<HeaderSource> idleSources = new LinkedHashSet<>();
+    private final ConcurrentLinkedQueue<Delivery> deliveries = new ConcurrentLinkedQueue<>();
+    private final Object deliveryLock = new Object();
+    private final Listener listener;
+    private final HeaderSyncStats stats;
+    private final int maxBufferedHeaders;
+    private final long stallTimeoutMs;
+    private final int endHeight;
+    private int joinIndex = 0;
+    private int bufferedHeaders = 0;
+    private boolean completeDelivered = false;
+
+    private static final Logger log = LoggerFactory.getLogger(HeaderSyncEngine.class);
+
+    /**
+     * @return the time up to which only headers are needed for the wallet, its earliest key time minus
+     *         {@link #FAST_CATCHUP_MARGIN_SECS}
+     */
+    public static long fastCatchupTimeSecs(final Wallet wallet) {
+        final long earliestKeyTime = wallet.getEarliestKeyCreationTime();
+        return earliestKeyTime == Long.MAX_VALUE ? Long.MAX_VALUE : earliestKeyTime - FAST_CATCHUP_MARGIN_SECS;
+    }
+
+    /**
+     * @param chainHead
+     *            height and hash of the current chain head, where the first segment starts
+     * @param checkpoints
+     *            known checkpoints in ascending height order; those at or below the chain head are skipped
+     * @param fastCatchupTimeSecs
+     *            checkpoints from after this time, and everything following them, are skipped; see
+     *            {@link #fastCatchupTimeSecs(Wallet)}
+     * @param maxBufferedHeaders
+     *            how many headers of segments that can't be joined yet may be held in memory at once
+     */
+    public HeaderSyncEngine(final Anchor chainHead, final List<Anchor> checkpoints, final long fastCatchupTimeSecs,
+            final int maxBufferedHeaders, final long stallTimeoutMs, final Listener listener,
+            final HeaderSyncStats stats) {
+        checkArgument(maxBufferedHeaders > 0);
+        this.listener = checkNotNull(listener);
+        this.stats = checkNotNull(stats);
+        this.maxBufferedHeaders = maxBufferedHeaders;
+        this.stallTimeoutMs = stallTimeoutMs;
+
+        Anchor previous = chainHead;
+        for (final Anchor checkpoint : checkpoints) {
+            if (checkpoint.time > fastCatchupTimeSecs)
+                break;
+            if (checkpoint.height <= previous.height)
+                continue;
+            segments.add(new Segment(segments.size(), previous, checkpoint));
+            previous = checkpoint;
+        }
+        this.endHeight = previous.height;
+        if (!segments.isEmpty())
+            segments.get(0).streaming = true;
+        log.info("planned {} header segments from {} to {}", segments.size(), chainHead, previous);
+    }
+
+    public synchronized int getNumSegments() {
+        return segments.size();
+    }
+
+    public synchronized boolean isComplete() {
+        return joinIndex == segments.size();
+    }
+
+    public synchronized int getBufferedHeaders() {
+        return bufferedHeaders;
+    }
+
+    public void addSource(final HeaderSource source) {
+        final List<Runnable> requests;
+        synchronized (this) {
+            if (assignments.containsKey(source) || !idleSources.add(source))
+                return;
+            requests = assignWork(System.currentTimeMillis());
+        }
+        run(requests);
+        deliverJoined();
+    }
+
+    /** Removes a source, for example because its peer disconnected. Progress on its segment is kept. */
+    public void removeSource(final HeaderSource source) {
+        final List<Runnable> requests;
+        synchronized (this) {
+            idleSources.remove(source);
+            final Segment segment = assignments.remove(source);
+            if (segment == null)
+                return;
+            segment.source = null;
+            requests = assignWork(System.currentTimeMillis());
+        }
+        run(requests);
+    }
+
+    /**
+     * Feeds a batch of headers that arrived from a source.
+     *
+     * @return false if the source had no outstanding request, in which case the headers were not consumed
+     */
+    public boolean onHeaders(final HeaderSource source, final List<Block> headers, final int messageBytes) {
+        final List<Runnable> requests = new ArrayList<>();
+        synchronized (this) {
+            final Segment segment = assignments.get(source);
+            if (segment == null)
+                return false;
+            stats.onHeaders(source.getId(), headers.size(), messageBytes);
+            final long now = System.currentTimeMillis();
+            segment.lastProgressAt = now;
+
+            final int startHeight = segment.tipHeight;
+            final Sha256Hash startHash = segment.tipHash;
+            final List<Block> accepted = new ArrayList<>(headers.size());
+            String disconnect = null, missedCheckpoint = null;
+            boolean reachedCheckpoint = false;
+            for (final Block header : headers) {
+                if (!header.getPrevBlockHash().equals(segment.tipHash)) {
+                    disconnect = "header " + header.getHash() + " does not connect";
+                    break;
+                }
+                final int height = segment.tipHeight + 1;
+                final boolean isEndHash = header.getHash().equals(segment.endHash);
+                if (isEndHash != (height == segment.endHeight)) {
+                    missedCheckpoint = isEndHash ? "checkpoint reached at height " + height
+                            : "checkpoint " + segment.endHash + " missed";
+                    break;
+                }
+                accepted.add(header);
+                segment.tipHeight = height;
+                segment.tipHash = header.getHash();
+                if (isEndHash) {
+                    reachedCheckpoint = true;
+                    break;
+                }
+            }
+
+            if (missedCheckpoint != null) {
+                reject(segment, source, missedCheckpoint, true);
+            } else {
+                if (!accepted.isEmpty()) {
+                    final Delivery delivery = new Delivery(segment, source, startHeight, startHash, accepted);
+                    if (segment.streaming) {
+                        deliveries.add(delivery);
+                    } else {
+                        segment.buffered.add(delivery);
+                        bufferedHeaders += accepted.size();
+                    }
+                }
+                if (disconnect != null)
+                    reject(segment, source, disconnect, false);
+                else if (reachedCheckpoint)
+                    complete(segment, source);
+                else if (headers.size() < MAX_HEADERS_PER_MESSAGE)
+                    // source has run out of headers before the checkpoint
+                    reject(segment, source, "short batch of " + headers.size() + " headers", false);
+                else if (!segment.streaming && bufferedHeaders >= maxBufferedHeaders)
+                    release(segment, source); // until the segment is next, or memory is freed
+                else
+                    requests.add(request(source, segment));
+            }
+            requests.addAll(assignWork(now));
+        }
+        run(requests);
+        deliverJoined();
+        return true;
+    }
+
+    /**
+     * Detects sources that have not delivered for the stall timeout. Such sources are dropped and their segment is
+     * handed to another source, continuing from where it stopped. Meant to be called periodically.
+     */
+    public void checkStalls(final long now) {
+        final List<Runnable> requests;
+        synchronized (this) {
+            for (final Iterator<Map.Entry<HeaderSource, Segment>> i = assignments.entrySet().iterator(); i
+                    .hasNext();) {
+                final Map.Entry<HeaderSource, Segment> entry = i.next();
+                final HeaderSource source = entry.getKey();
+                final Segment segment = entry.getValue();
+                if (now - segment.lastProgressAt > stallTimeoutMs) {
+                    log.info("{} stalled on {}, reassigning", source.getId(), segment);
+                    stats.onStall(source.getId());
+                    segment.source = null;
+                    segment.rejectedBy.add(source);
+                    i.remove();
+                }
+            }
+            requests = assignWork(now);
+        }
+        run(requests);
+    }
+
+    private void complete(final Segment segment, final HeaderSource source) {
+        log.debug("{} completed {}", source.getId(), segment);
+        segment.complete = true;
+        release(segment, source);
+
+        while (joinIndex < segments.size() && segments.get(joinIndex).complete) {
+            joinIndex++;
+            if (joinIndex < segments.size())
+                startStreaming(segments.get(joinIndex));
+        }
+    }
+
+    private void startStreaming(final Segment segment) {
+        segment.streaming = true;
+        for (final Delivery delivery : segment.buffered) {
+            deliveries.add(delivery);
+            bufferedHeaders -= delivery.headers.size();
+        }
+        segment.buffered.clear();
+    }
+
+    private void reject(final Segment segment, final HeaderSource source, final String reason,
+            final boolean startOver) {
+        log.info("{} failed {}: {}", source.getId(), segment, reason);
+        stats.onRejected(source.getId());
+        segment.rejectedBy.add(source);
+        release(segment, source);
+        if (startOver)
+            restart(segment, segment.startHeight, segment.startHash);
+    }
+
+    private void release(final Segment segment, final HeaderSource source) {
+        segment.source = null;
+        assignments.remove(source);
+        idleSources.add(source);
+    }
+
+    private void restart(final Segment segment, final int height, final Sha256Hash hash) {
+        segment.tipHeight = height;
+        segment.tipHash = hash;
+        segment.complete = false;
+        for (final Delivery delivery : segment.buffered)
+            bufferedHeaders -= delivery.headers.size();
+        segment.buffered.clear();
+        if (segment.source != null)
+            release(segment, segment.source);
+    }
+
+    /** The listener rejected a delivery: fetch it again, and everything after it that was already handed over. */
+    private synchronized List<Runnable> rewind(final Delivery failed, final VerificationException x) {
+        final Segment segment = failed.segment;
+        log.info("{} delivered invalid headers after height {} for {}", failed.source.getId(), failed.startHeight,
+                segment, x);
+        deliveries.clear();
+        for (int i = segment.index + 1; i < segments.size(); i++) {
+            final Segment later = segments.get(i);
+            if (later.streaming) {
+                later.streaming = false;
+                restart(later, later.startHeight, later.startHash);
+            }
+        }
+        restart(segment, failed.startHeight, failed.startHash);
+        segment.streaming = true;
+        stats.onRejected(failed.source.getId());
+        segment.rejectedBy.add(failed.source);
+        joinIndex = segment.index;
+        return assignWork(System.currentTimeMillis());
+    }
+
+    private Runnable request(final HeaderSource source, final Segment segment) {
+        final Sha256Hash tipHash = segment.tipHash;
+        final Sha256Hash endHash = segment.endHash;
+        return () -> source.requestHeaders(tipHash, endHash);
+    }
+
+    private List<Runnable> assignWork(final long now) {
+        final List<Runnable> requests = new ArrayList<>();
+        for (final Iterator<HeaderSource> i = idleSources.iterator(); i.hasNext();) {
+            final HeaderSource source = i.next();
+            final Segment segment = nextUnassigned(source);
+            if (segment == null)
+                continue;
+            i.remove();
+            segment.source = source;
+            segment.lastProgressAt = now;
+            assignments.put(source, segment);
+            log.debug("assigning {} to {}", segment, source.getId());
+            requests.add(request(source, segment));
+        }
+        return requests;
+    }
+
+    private Segment nextUnassigned(final HeaderSource source) {
+        Segment fallback = null;
+        for (int i = joinIndex; i < segments.size(); i++) {
+            final Segment segment = segments.get(i);
+            if (segment.complete || segment.source != null)
+                continue;
+            if (!segment.streaming && bufferedHeaders >= maxBufferedHeaders)
+                continue;
+            if (!segment.rejectedBy.contains(source))
+                return segment;
+            if (fallback == null && segment.rejectedBy.containsAll(idleSources))
+                fallback = segment; // every idle source failed it before, so let them retry
+        }
+        return fallback;
+    }
+
+    private void run(final List<Runnable> requests) {
+        for (final Runnable request : requests)
+            request.run();
+    }
+
+    private void deliverJoined() {
+        synchronized (deliveryLock) {
+            Delivery delivery;
+            while ((delivery = deliveries.poll()) != null) {
+                try {
+                    listener.onHeadersJoined(delivery.startHeight, delivery.headers);
+                } catch (final VerificationException x) {
+                    run(rewind(delivery, x));
+                }
+            }
+            if (!completeDelivered && isComplete() && deliveries.isEmpty()) {
+                completeDelivered = true;
+                listener.onSyncComplete(endHeight);
+            }
+        }
+    }
+}
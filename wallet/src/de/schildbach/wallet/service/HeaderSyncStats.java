@@ -0,0 +1,127 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.service;
+
+import com.google.common.collect.ImmutableMap;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters for the header sync, safe to update from network threads and to read from the UI.
+ */
+public final class HeaderSyncStats {
+    private final long startedAt;
+    private final AtomicLong headers = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private final ConcurrentMap<String, AtomicInteger> stalls = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, AtomicInteger> rejects = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, AtomicLong> headersPerPeer = new ConcurrentHashMap<>();
+
+    public HeaderSyncStats() {
+        this(System.currentTimeMillis());
+    }
+
+    public HeaderSyncStats(final long startedAt) {
+        this.startedAt = startedAt;
+    }
+
+    public void onHeaders(final String peer, final int numHeaders, final int numBytes) {
+        headers.addAndGet(numHeaders);
+        bytes.addAndGet(numBytes);
+        AtomicLong count = headersPerPeer.get(peer);
+        if (count == null) {
+            final AtomicLong newCount = new AtomicLong();
+            count = headersPerPeer.putIfAbsent(peer, newCount);
+            if (count == null)
+                count = newCount;
+        }
+        count.addAndGet(numHeaders);
+    }
+
+    public void onStall(final String peer) {
+        increment(stalls, peer);
+    }
+
+    public void onRejected(final String peer) {
+        increment(rejects, peer);
+    }
+
+    private static void increment(final ConcurrentMap<String, AtomicInteger> counts, final String peer) {
+        AtomicInteger count = counts.get(peer);
+        if (count == null) {
+            final AtomicInteger newCount = new AtomicInteger();
+            count = counts.putIfAbsent(peer, newCount);
+            if (count == null)
+                count = newCount;
+        }
+        count.incrementAndGet();
+    }
+
+    public Snapshot snapshot() {
+        return snapshot(System.currentTimeMillis());
+    }
+
+    public Snapshot snapshot(final long now) {
+        final double seconds = Math.max(now - startedAt, 1) / 1000.0;
+        final long headers = this.headers.get();
+        final long bytes = this.bytes.get();
+        final ImmutableMap.Builder<String, Integer> stallsPerPeer = ImmutableMap.builder();
+        for (final Map.Entry<String, AtomicInteger> entry : stalls.entrySet())
+            stallsPerPeer.put(entry.getKey(), entry.getValue().get());
+        final ImmutableMap.Builder<String, Integer> rejectsPerPeer = ImmutableMap.builder();
+        for (final Map.Entry<String, AtomicInteger> entry : rejects.entrySet())
+            rejectsPerPeer.put(entry.getKey(), entry.getValue().get());
+        final ImmutableMap.Builder<String, Long> headersPerPeer = ImmutableMap.builder();
+        for (final Map.Entry<String, AtomicLong> entry : this.headersPerPeer.entrySet())
+            headersPerPeer.put(entry.getKey(), entry.getValue().get());
+        return new Snapshot(headers, bytes, headers / seconds, bytes / seconds, headersPerPeer.build(),
+                stallsPerPeer.build(), rejectsPerPeer.build());
+    }
+
+    public static final class Snapshot {
+        public final long headers;
+        public final long bytes;
+        public final double headersPerSecond;
+        public final double bytesPerSecond;
+        public final Map<String, Long> headersPerPeer;
+        public final Map<String, Integer> stallsPerPeer;
+        public final Map<String, Integer> rejectsPerPeer;
+
+        private Snapshot(final long headers, final long bytes, final double headersPerSecond,
+                final double bytesPerSecond, final Map<String, Long> headersPerPeer,
+                final Map<String, Integer> stallsPerPeer, final Map<String, Integer> rejectsPerPeer) {
+            this.headers = headers;
+            this.bytes = bytes;
+            this.headersPerSecond = headersPerSecond;
+            this.bytesPerSecond = bytesPerSecond;
+            this.headersPerPeer = headersPerPeer;
+            this.stallsPerPeer = stallsPerPeer;
+            this.rejectsPerPeer = rejectsPerPeer;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d headers, %.0f headers/s, %.0f bytes/s, stalls: %s", headers, headersPerSecond,
+                    bytesPerSecond, stallsPerPeer);
+        }
+    }
+}
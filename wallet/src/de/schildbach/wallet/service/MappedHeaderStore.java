@@ -0,0 +1,440 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.service;
+
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.core.Utils;
+import org.bitcoinj.store.BlockStore;
+import org.bitcoinj.store.BlockStoreException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * A {@link BlockStore} keeping the most recent headers as fixed-size records in a memory-mapped file.
+ *
+ * <p>The record for a height lives at slot {@code height % capacity}, so lookup by height is a single offset
+ * computation. Each record carries the block hash next to the compact {@link StoredBlock} serialization, which lets
+ * callers like the block monitor read hash, time and height straight from the mapping without building
+ * {@link StoredBlock} objects. Lookup by hash goes through a small open-addressing index from a 64 bit hash prefix to
+ * the height, rebuilt from the file on open.
+ *
+ * <p>Blocks displaced from a slot, for example by a side chain, are kept in a bounded in-memory map so that reorgs can
+ * still walk back through them. When the chain head is set, slots along the new best chain are restored. Lookups by
+ * height only see the best chain up to the head: after a reorg to a chain with fewer blocks, the old chain's records
+ * above the new head are still found by hash, but not by height.
+ */
+public class MappedHeaderStore implements BlockStore {
+    public static final int DEFAULT_CAPACITY = 10000;
+
+    private static final int MAGIC = 0x44484452; // "DHDR"
+    private static final int VERSION = 1;
+    private static final int FILE_PROLOGUE_BYTES = 64;
+    private static final int OFFSET_CAPACITY = 8;
+    private static final int OFFSET_CHAIN_HEAD_HEIGHT = 12;
+    private static final int OFFSET_CHAIN_HEAD_HASH = 16;
+
+    public static final int RECORD_SIZE = 128;
+    private static final int RECORD_OFFSET_HASH = 0;
+    private static final int RECORD_OFFSET_COMPACT = 32;
+    // compact serialization is chain work (12 bytes), height (4 bytes), then the 80 byte header
+    private static final int RECORD_OFFSET_HEIGHT = RECORD_OFFSET_COMPACT + 12;
+    private static final int RECORD_OFFSET_HEADER = RECORD_OFFSET_COMPACT + 16;
+    private static final int RECORD_OFFSET_VERSION = RECORD_OFFSET_HEADER;
+    private static final int RECORD_OFFSET_PREV_HASH = RECORD_OFFSET_HEADER + 4;
+    private static final int RECORD_OFFSET_TIME = RECORD_OFFSET_HEADER + 68;
+    private static final int RECORD_OFFSET_DIFFICULTY = RECORD_OFFSET_HEADER + 72;
+
+    private static final int MAX_DISPLACED = 256;
+    private static final int NO_HEIGHT = -1;
+
+    private final NetworkParameters params;
+    private final int capacity;
+    private final RandomAccessFile randomAccessFile;
+    private final MappedByteBuffer buffer;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    // open addressing, keyed by the first 8 bytes of the hash
+    private final long[] indexKeys;
+    private final int[] indexHeights;
+    private int lowestDisplacedHeight = Integer.MAX_VALUE;
+
+    private final Map<Sha256Hash, StoredBlock> displaced = new LinkedHashMap<Sha256Hash, StoredBlock>(16, 0.75f,
+            true) {
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<Sha256Hash, StoredBlock> eldest) {
+            return size() > MAX_DISPLACED;
+        }
+    };
+
+    private static final Logger log = LoggerFactory.getLogger(MappedHeaderStore.class);
+
+    public MappedHeaderStore(final NetworkParameters params, final File file) throws BlockStoreException {
+        this(params, file, DEFAULT_CAPACITY);
+    }
+
+    public MappedHeaderStore(final NetworkParameters params, final File file, final int capacity)
+            throws BlockStoreException {
+        checkArgument(capacity > 0);
+        this.params = checkNotNull(params);
+        this.capacity = capacity;
+        this.indexKeys = new long[Integer.highestOneBit(capacity) * 4];
+        this.indexHeights = new int[indexKeys.length];
+        Arrays.fill(indexHeights, NO_HEIGHT);
+
+        final boolean exists = file.exists();
+        try {
+            randomAccessFile = new RandomAccessFile(file, "rw");
+        } catch (final IOException x) {
+            throw new BlockStoreException(x);
+        }
+        try {
+            final long fileSize = FILE_PROLOGUE_BYTES + (long) capacity * RECORD_SIZE;
+            if (exists && randomAccessFile.length() != fileSize)
+                throw new BlockStoreException("unexpected size of " + file + ": " + file.length());
+            randomAccessFile.setLength(fileSize);
+            buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, fileSize);
+
+            if (exists && buffer.getInt(0) == MAGIC) {
+                if (buffer.getInt(4) != VERSION || buffer.getInt(OFFSET_CAPACITY) != capacity)
+                    throw new BlockStoreException("incompatible header store: " + file);
+                rebuildIndex();
+            } else {
+                initNewStore();
+            }
+        } catch (final IOException x) {
+            closeQuietly(randomAccessFile);
+            throw new BlockStoreException(x);
+        } catch (final BlockStoreException | RuntimeException x) {
+            closeQuietly(randomAccessFile);
+            throw x;
+        }
+    }
+
+    private void initNewStore() throws BlockStoreException {
+        for (int i = 0; i < capacity; i++)
+            buffer.putInt(recordOffset(i) + RECORD_OFFSET_HEIGHT, NO_HEIGHT);
+        final StoredBlock genesis = new StoredBlock(params.getGenesisBlock().cloneAsHeader(),
+                params.getGenesisBlock().getWork(), 0);
+        writeRecord(genesis);
+        writeChainHead(genesis);
+        buffer.putInt(4, VERSION);
+        buffer.putInt(OFFSET_CAPACITY, capacity);
+        buffer.putInt(0, MAGIC);
+        buffer.force();
+    }
+
+    private void rebuildIndex() {
+        int numRecords = 0;
+        for (int slot = 0; slot < capacity; slot++) {
+            final int offset = recordOffset(slot);
+            final int height = buffer.getInt(offset + RECORD_OFFSET_HEIGHT);
+            if (height != NO_HEIGHT) {
+                indexPut(buffer.getLong(offset + RECORD_OFFSET_HASH), height);
+                numRecords++;
+            }
+        }
+        log.info("opened header store with {} records, chain head at {}", numRecords, getChainHeadHeight());
+    }
+
+    @Override
+    public void put(final StoredBlock block) throws BlockStoreException {
+        lock.writeLock().lock();
+        try {
+            writeRecord(block);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    @Nullable
+    public StoredBlock get(final Sha256Hash hash) throws BlockStoreException {
+        lock.readLock().lock();
+        try {
+            final int height = indexGet(hash);
+            if (height != NO_HEIGHT)
+                return readRecord(recordOffset(height % capacity));
+        } finally {
+            lock.readLock().unlock();
+        }
+        lock.writeLock().lock();
+        try {
+            return displaced.get(hash);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public StoredBlock getChainHead() throws BlockStoreException {
+        lock.readLock().lock();
+        try {
+            final StoredBlock head = getByHeight(buffer.getInt(OFFSET_CHAIN_HEAD_HEIGHT));
+            if (head == null)
+                throw new BlockStoreException("chain head not in store");
+            return head;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void setChainHead(final StoredBlock chainHead) throws BlockStoreException {
+        lock.writeLock().lock();
+        try {
+            // make sure the slots along the new best chain hold the best chain's blocks, down to the lowest slot
+            // that was overwritten by a competing block since the last call; restoring may in turn displace blocks
+            // of the old chain, which the next call will then walk
+            writeRecord(chainHead);
+            StoredBlock block = chainHead;
+            final int lowest = Math.max(lowestDisplacedHeight, chainHead.getHeight() - capacity + 1);
+            lowestDisplacedHeight = Integer.MAX_VALUE;
+            while (block != null && block.getHeight() > lowest) {
+                final Sha256Hash prevHash = block.getHeader().getPrevBlockHash();
+                final int prevHeight = block.getHeight() - 1;
+                if (holds(prevHeight) && prevHash.equals(readHash(recordOffset(prevHeight % capacity)))) {
+                    block = readRecord(recordOffset(prevHeight % capacity));
+                } else {
+                    block = displaced.remove(prevHash);
+                    if (block != null)
+                        writeRecord(block);
+                }
+            }
+            writeChainHead(chainHead);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void close() throws BlockStoreException {
+        lock.writeLock().lock();
+        try {
+            buffer.force();
+            randomAccessFile.close();
+        } catch (final IOException x) {
+            throw new BlockStoreException(x);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public NetworkParameters getParams() {
+        return params;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public int getChainHeadHeight() {
+        return buffer.getInt(OFFSET_CHAIN_HEAD_HEIGHT);
+    }
+
+    /** @return true if the record for this height on the best chain is currently held by the store */
+    public boolean contains(final int height) {
+        return height <= buffer.getInt(OFFSET_CHAIN_HEAD_HEIGHT) && holds(height);
+    }
+
+    /** @return true if the slot for this height holds a record of this height, on whatever chain */
+    private boolean holds(final int height) {
+        return height >= 0 && buffer.getInt(recordOffset(height % capacity) + RECORD_OFFSET_HEIGHT) == height;
+    }
+
+    @Nullable
+    public StoredBlock getByHeight(final int height) {
+        if (!contains(height))
+            return null;
+        return readRecord(recordOffset(height % capacity));
+    }
+
+    /** Reads the hash for a height without deserializing the header. */
+    @Nullable
+    public Sha256Hash getHash(final int height) {
+        if (!contains(height))
+            return null;
+        return readHash(recordOffset(height % capacity));
+    }
+
+    /** Reads the previous block hash for a height without deserializing the header. */
+    @Nullable
+    public Sha256Hash getPrevHash(final int height) {
+        if (!contains(height))
+            return null;
+        final byte[] bytes = new byte[32];
+        absoluteGet(recordOffset(height % capacity) + RECORD_OFFSET_PREV_HASH, bytes);
+        return Sha256Hash.wrapReversed(bytes);
+    }
+
+    /** Reads the block time in seconds for a height without deserializing the header, or -1 if not held. */
+    public long getTimeSeconds(final int height) {
+        if (!contains(height))
+            return -1;
+        return Utils.readUint32(readRaw(height, RECORD_OFFSET_TIME, 4), 0);
+    }
+
+    /** Reads the compact difficulty target for a height without deserializing the header, or -1 if not held. */
+    public long getDifficultyTarget(final int height) {
+        if (!contains(height))
+            return -1;
+        return Utils.readUint32(readRaw(height, RECORD_OFFSET_DIFFICULTY, 4), 0);
+    }
+
+    /** Reads the block version for a height without deserializing the header, or -1 if not held. */
+    public long getVersion(final int height) {
+        if (!contains(height))
+            return -1;
+        return Utils.readUint32(readRaw(height, RECORD_OFFSET_VERSION, 4), 0);
+    }
+
+    private byte[] readRaw(final int height, final int fieldOffset, final int length) {
+        final byte[] bytes = new byte[length];
+        absoluteGet(recordOffset(height % capacity) + fieldOffset, bytes);
+        return bytes;
+    }
+
+    private void writeRecord(final StoredBlock block) {
+        final int height = block.getHeight();
+        final int offset = recordOffset(height % capacity);
+        final Sha256Hash hash = block.getHeader().getHash();
+
+        final int previousHeight = buffer.getInt(offset + RECORD_OFFSET_HEIGHT);
+        if (previousHeight != NO_HEIGHT) {
+            final Sha256Hash previousHash = readHash(offset);
+            if (previousHash.equals(hash))
+                return;
+            indexRemove(buffer.getLong(offset + RECORD_OFFSET_HASH), previousHeight);
+            if (previousHeight == height) {
+                displaced.put(previousHash, readRecord(offset));
+                lowestDisplacedHeight = Math.min(lowestDisplacedHeight, height);
+            }
+        }
+
+        final ByteBuffer compact = ByteBuffer.allocate(StoredBlock.COMPACT_SERIALIZED_SIZE);
+        block.serializeCompact(compact);
+        absolutePut(offset + RECORD_OFFSET_HASH, hash.getBytes());
+        absolutePut(offset + RECORD_OFFSET_COMPACT, compact.array());
+        indexPut(buffer.getLong(offset + RECORD_OFFSET_HASH), height);
+        displaced.remove(hash);
+    }
+
+    private StoredBlock readRecord(final int offset) {
+        final byte[] compact = new byte[StoredBlock.COMPACT_SERIALIZED_SIZE];
+        absoluteGet(offset + RECORD_OFFSET_COMPACT, compact);
+        return StoredBlock.deserializeCompact(params, ByteBuffer.wrap(compact));
+    }
+
+    private Sha256Hash readHash(final int offset) {
+        final byte[] bytes = new byte[32];
+        absoluteGet(offset + RECORD_OFFSET_HASH, bytes);
+        return Sha256Hash.wrap(bytes);
+    }
+
+    private void writeChainHead(final StoredBlock chainHead) {
+        buffer.putInt(OFFSET_CHAIN_HEAD_HEIGHT, chainHead.getHeight());
+        absolutePut(OFFSET_CHAIN_HEAD_HASH, chainHead.getHeader().getHash().getBytes());
+    }
+
+    private int recordOffset(final int slot) {
+        return FILE_PROLOGUE_BYTES + slot * RECORD_SIZE;
+    }
+
+    // absolute bulk operations, so concurrent readers never touch the buffer position
+    private void absoluteGet(final int offset, final byte[] dst) {
+        for (int i = 0; i < dst.length; i++)
+            dst[i] = buffer.get(offset + i);
+    }
+
+    private void absolutePut(final int offset, final byte[] src) {
+        for (int i = 0; i < src.length; i++)
+            buffer.put(offset + i, src[i]);
+    }
+
+    private int indexGet(final Sha256Hash hash) {
+        final long key = ByteBuffer.wrap(hash.getBytes()).getLong();
+        final int mask = indexKeys.length - 1;
+        for (int i = mix(key) & mask;; i = (i + 1) & mask) {
+            final int height = indexHeights[i];
+            if (height == NO_HEIGHT)
+                return NO_HEIGHT;
+            // verify the full hash, the key is only a prefix
+            if (indexKeys[i] == key && hash.equals(readHash(recordOffset(height % capacity))))
+                return height;
+        }
+    }
+
+    private void indexPut(final long key, final int height) {
+        final int mask = indexKeys.length - 1;
+        int i = mix(key) & mask;
+        while (indexHeights[i] != NO_HEIGHT)
+            i = (i + 1) & mask;
+        indexKeys[i] = key;
+        indexHeights[i] = height;
+    }
+
+    private void indexRemove(final long key, final int height) {
+        final int mask = indexKeys.length - 1;
+        int i = mix(key) & mask;
+        while (indexHeights[i] != NO_HEIGHT) {
+            if (indexKeys[i] == key && indexHeights[i] == height)
+                break;
+            i = (i + 1) & mask;
+        }
+        if (indexHeights[i] == NO_HEIGHT)
+            return;
+        indexHeights[i] = NO_HEIGHT;
+        // re-insert the rest of the cluster, so lookups don't stop early at the hole
+        for (i = (i + 1) & mask; indexHeights[i] != NO_HEIGHT; i = (i + 1) & mask) {
+            final long k = indexKeys[i];
+            final int h = indexHeights[i];
+            indexHeights[i] = NO_HEIGHT;
+            indexPut(k, h);
+        }
+    }
+
+    private static void closeQuietly(final RandomAccessFile file) {
+        try {
+            file.close();
+        } catch (final IOException x) {
+            // swallow
+        }
+    }
+
+    private static int mix(final long key) {
+        final long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.service;
+
+import org.bitcoinj.core.BlockLocator;
+import org.bitcoinj.core.GetHeadersMessage;
+import org.bitcoinj.core.HeadersMessage;
+import org.bitcoinj.core.Message;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Peer;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.listeners.PeerDisconnectedEventListener;
+import org.bitcoinj.core.listeners.PreMessageReceivedEventListener;
+import org.bitcoinj.utils.Threading;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Connects a bitcoinj {@link Peer} to a {@link HeaderSyncEngine}. While a request is outstanding, the peer's
+ * {@code headers} reply is consumed here and never reaches the peer's own chain download, so this should be attached
+ * to peers other than the download peer, or while the chain download is paused.
+ */
+public final class PeerHeaderSource implements HeaderSyncEngine.HeaderSource {
+    private final Peer peer;
+    private final NetworkParameters params;
+    private final HeaderSyncEngine engine;
+    private volatile boolean requestPending = false;
+
+    private final PreMessageReceivedEventListener messageListener = new PreMessageReceivedEventListener() {
+        @Override
+        public Message onPreMessageReceived(final Peer peer, final Message m) {
+            if (requestPending && m instanceof HeadersMessage) {
+                requestPending = false;
+                if (engine.onHeaders(PeerHeaderSource.this, ((HeadersMessage) m).getBlockHeaders(),
+                        m.getMessageSize()))
+                    return null;
+            }
+            return m;
+        }
+    };
+
+    private final PeerDisconnectedEventListener disconnectListener = (peer, peerCount) -> detach();
+
+    public PeerHeaderSource(final Peer peer, final NetworkParameters params, final HeaderSyncEngine engine) {
+        this.peer = checkNotNull(peer);
+        this.params = checkNotNull(params);
+        this.engine = checkNotNull(engine);
+    }
+
+    public void attach() {
+        peer.addPreMessageReceivedEventListener(Threading.SAME_THREAD, messageListener);
+        peer.addDisconnectedEventListener(Threading.SAME_THREAD, disconnectListener);
+        engine.addSource(this);
+    }
+
+    public void detach() {
+        engine.removeSource(this);
+        peer.removePreMessageReceivedEventListener(messageListener);
+        peer.removeDisconnectedEventListener(disconnectListener);
+        requestPending = false;
+    }
+
+    @Override
+    public String getId() {
+        return peer.getAddress().toString();
+    }
+
+    @Override
+    public void requestHeaders(final Sha256Hash locator, final Sha256Hash stopHash) {
+        requestPending = true;
+        peer.sendMessage(new GetHeadersMessage(params, new BlockLocator().add(locator), stopHash));
+    }
+
+    @Override
+    public String toString() {
+        return getId();
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.service;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import org.bitcoinj.core.Peer;
+import org.bitcoinj.core.PeerGroup;
+import org.bitcoinj.core.VersionMessage;
+import org.bitcoinj.core.listeners.PeerConnectedEventListener;
+import org.bitcoinj.core.listeners.PeerDisconnectedEventListener;
+import org.bitcoinj.utils.Threading;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Feeds the connection outcomes of a {@link PeerGroup} into a {@link PeerScoreTable}.
+ *
+ * <p>{@link PeerGroup} registers its disconnect listeners on a peer as it starts dialing it, so a disconnect of a peer
+ * that never completed the handshake is a failed connect or handshake, and counts as a failure. So does a peer that
+ * drops within {@link #MIN_GOOD_UPTIME_MS} of connecting.
+ *
+ * <p>{@link PeerGroup} doesn't say when it started dialing, so the round trip time is measured with a ping right after
+ * the handshake and recorded when the pong arrives.
+ */
+public class PeerScoreRecorder implements PeerConnectedEventListener, PeerDisconnectedEventListener {
+    public static final long MIN_GOOD_UPTIME_MS = TimeUnit.SECONDS.toMillis(30);
+
+    private final PeerScoreTable table;
+    private final Map<Peer, Long> connectedAt = new ConcurrentHashMap<>();
+
+    private static final Logger log = LoggerFactory.getLogger(PeerScoreRecorder.class);
+
+    public PeerScoreRecorder(final PeerScoreTable table) {
+        this.table = checkNotNull(table);
+    }
+
+    public void attach(final PeerGroup peerGroup) {
+        peerGroup.addConnectedEventListener(Threading.SAME_THREAD, this);
+        peerGroup.addDisconnectedEventListener(Threading.SAME_THREAD, this);
+    }
+
+    public void detach(final PeerGroup peerGroup) {
+        peerGroup.removeConnectedEventListener(this);
+        peerGroup.removeDisconnectedEventListener(this);
+        connectedAt.clear();
+    }
+
+    @Override
+    public void onPeerConnected(final Peer peer, final int peerCount) {
+        final long now = System.currentTimeMillis();
+        connectedAt.put(peer, now);
+        final VersionMessage version = peer.getPeerVersionMessage();
+        final InetSocketAddress address = address(peer);
+        table.recordSuccess(address, version != null ? version.localServices : 0, -1, now);
+        if (version != null && version.isPingPongSupported()) {
+            try {
+                Futures.addCallback(peer.ping(), new FutureCallback<Long>() {
+                    @Override
+                    public void onSuccess(final Long rttMs) {
+                        table.recordRtt(address, rttMs);
+                    }
+
+                    @Override
+                    public void onFailure(final Throwable t) {
+                        // disconnected before the pong, which the disconnect accounts for
+                    }
+                }, Threading.SAME_THREAD);
+            } catch (final RuntimeException x) {
+                log.info("cannot ping {}", address, x); // for example not connected anymore
+            }
+        }
+    }
+
+    @Override
+    public void onPeerDisconnected(final Peer peer, final int peerCount) {
+        final long now = System.currentTimeMillis();
+        final Long since = connectedAt.remove(peer);
+        if (since == null || now - since < MIN_GOOD_UPTIME_MS)
+            table.recordFailure(address(peer), now);
+    }
+
+    private static InetSocketAddress address(final Peer peer) {
+        return peer.getAddress().getSocketAddress();
+    }
+}
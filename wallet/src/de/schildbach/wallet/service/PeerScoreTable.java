@@ -0,0 +1,320 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.service;
+
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.PeerAddress;
+import org.bitcoinj.core.PeerGroup;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Remembers how well peers performed across restarts, so that connecting can start with the best candidates instead
+ * of rediscovering peers in random order.
+ *
+ * <p>For every peer the table keeps the handshake round trip time as a moving average, success and failure counts,
+ * the last time it was seen and its service bits. Counts decay with a half-life, so a peer that was reliable weeks ago
+ * doesn't outrank one that works today. Entries not seen within {@link #EXPIRY_MS} are dropped, and the lowest scored
+ * entries are evicted once the table is full.
+ */
+public class PeerScoreTable {
+    public static final int DEFAULT_MAX_ENTRIES = 1000;
+    public static final long HALF_LIFE_MS = TimeUnit.DAYS.toMillis(3);
+    public static final long EXPIRY_MS = TimeUnit.DAYS.toMillis(30);
+
+    private static final int FILE_MAGIC = 0x50534354; // "PSCT"
+    private static final int FILE_VERSION = 1;
+    private static final double RTT_SMOOTHING = 0.3;
+    private static final double RTT_REFERENCE_MS = 250;
+
+    public static final class Entry {
+        public final InetSocketAddress address;
+        private long services;
+        private double successes;
+        private double failures;
+        private long rttMs = -1;
+        private long lastSeen;
+        private long lastDecay;
+
+        private Entry(final InetSocketAddress address, final long now) {
+            this.address = address;
+            this.lastSeen = now;
+            this.lastDecay = now;
+        }
+
+        public long getServices() {
+            return services;
+        }
+
+        public double getSuccesses() {
+            return successes;
+        }
+
+        public double getFailures() {
+            return failures;
+        }
+
+        /** @return smoothed handshake round trip time, or -1 if never measured */
+        public long getRttMs() {
+            return rttMs;
+        }
+
+        public long getLastSeen() {
+            return lastSeen;
+        }
+
+        private void decay(final long now) {
+            final long elapsed = now - lastDecay;
+            if (elapsed <= 0)
+                return;
+            final double factor = Math.pow(0.5, (double) elapsed / HALF_LIFE_MS);
+            successes *= factor;
+            failures *= factor;
+            lastDecay = now;
+        }
+
+        private double score(final long now) {
+            decay(now);
+            final double reliability = (successes + 1) / (successes + failures + 2);
+            final double latency = rttMs < 0 ? 0.5 : 1 / (1 + rttMs / RTT_REFERENCE_MS);
+            final double freshness = Math.exp(-(double) Math.max(now - lastSeen, 0) / EXPIRY_MS);
+            return reliability * latency * (0.5 + 0.5 * freshness);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s rtt=%dms ok=%.1f fail=%.1f", address, rttMs, successes, failures);
+        }
+    }
+
+    private final Map<InetSocketAddress, Entry> entries = new HashMap<>();
+    private final int maxEntries;
+
+    private static final Logger log = LoggerFactory.getLogger(PeerScoreTable.class);
+
+    public PeerScoreTable() {
+        this(DEFAULT_MAX_ENTRIES);
+    }
+
+    public PeerScoreTable(final int maxEntries) {
+        checkArgument(maxEntries > 0);
+        this.maxEntries = maxEntries;
+    }
+
+    /** Notes a peer from discovery or an {@code addr} message, without any judgement on its quality. */
+    public synchronized void recordSeen(final InetSocketAddress address, final long services, final long now) {
+        final Entry entry = entry(address, now);
+        entry.services = services;
+        entry.lastSeen = now;
+    }
+
+    /**
+     * Notes a completed handshake.
+     *
+     * @param rttMs
+     *            handshake round trip time, or a negative value if not known
+     */
+    public synchronized void recordSuccess(final InetSocketAddress address, final long services, final long rttMs,
+            final long now) {
+        final Entry entry = entry(address, now);
+        entry.decay(now);
+        entry.successes++;
+        entry.services = services;
+        entry.lastSeen = now;
+        if (rttMs >= 0 && entry.rttMs >= 0)
+            entry.rttMs = Math.round(RTT_SMOOTHING * rttMs + (1 - RTT_SMOOTHING) * entry.rttMs);
+        else if (rttMs >= 0)
+            entry.rttMs = rttMs;
+    }
+
+    /** Notes a round trip time measured after the handshake, for example with a ping. */
+    public synchronized void recordRtt(final InetSocketAddress address, final long rttMs) {
+        final Entry entry = entries.get(address);
+        if (entry == null || rttMs < 0)
+            return;
+        if (entry.rttMs >= 0)
+            entry.rttMs = Math.round(RTT_SMOOTHING * rttMs + (1 - RTT_SMOOTHING) * entry.rttMs);
+        else
+            entry.rttMs = rttMs;
+    }
+
+    /** Notes a connect or handshake that failed or timed out. */
+    public synchronized void recordFailure(final InetSocketAddress address, final long now) {
+        final Entry entry = entry(address, now);
+        entry.decay(now);
+        entry.failures++;
+    }
+
+    @Nullable
+    public synchronized Entry get(final InetSocketAddress address) {
+        return entries.get(address);
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized double score(final InetSocketAddress address, final long now) {
+        final Entry entry = entries.get(address);
+        return entry != null ? entry.score(now) : 0;
+    }
+
+    /**
+     * @return up to {@code max} addresses, best score first, optionally restricted to peers announcing all of the
+     *         given service bits
+     */
+    public synchronized List<InetSocketAddress> best(final int max, final long requiredServices, final long now) {
+        final List<Entry> candidates = new ArrayList<>(entries.size());
+        for (final Entry entry : entries.values())
+            if ((entry.services & requiredServices) == requiredServices)
+                candidates.add(entry);
+        final Map<Entry, Double> scores = new HashMap<>(candidates.size());
+        for (final Entry entry : candidates)
+            scores.put(entry, entry.score(now));
+        Collections.sort(candidates, (a, b) -> Double.compare(scores.get(b), scores.get(a)));
+        final List<InetSocketAddress> best = new ArrayList<>(Math.min(max, candidates.size()));
+        for (final Entry entry : candidates) {
+            if (best.size() >= max)
+                break;
+            best.add(entry.address);
+        }
+        return best;
+    }
+
+    /**
+     * Hands the best peers to a peer group, ranked so that it tries them before discovered ones. The peer group dials
+     * lower priorities first, discovered addresses get priority 0, and every added address would raise its connection
+     * limit by one, so the limit is restored afterwards.
+     */
+    public void addBestTo(final PeerGroup peerGroup, final NetworkParameters params, final int max,
+            final long requiredServices, final long now) {
+        final List<InetSocketAddress> best = best(max, requiredServices, now);
+        final int maxConnections = peerGroup.getMaxConnections();
+        for (int i = 0; i < best.size(); i++)
+            peerGroup.addAddress(new PeerAddress(params, best.get(i)), i - best.size());
+        peerGroup.setMaxConnections(maxConnections);
+        log.info("handed {} scored peers to peer group", best.size());
+    }
+
+    /** Drops expired entries and evicts the worst ones above the size limit. */
+    public synchronized void prune(final long now) {
+        for (final Iterator<Entry> i = entries.values().iterator(); i.hasNext();) {
+            final Entry entry = i.next();
+            if (now - entry.lastSeen > EXPIRY_MS)
+                i.remove();
+        }
+        if (entries.size() > maxEntries) {
+            final List<Entry> sorted = new ArrayList<>(entries.values());
+            final Map<Entry, Double> scores = new HashMap<>(sorted.size());
+            for (final Entry entry : sorted)
+                scores.put(entry, entry.score(now));
+            Collections.sort(sorted, (a, b) -> Double.compare(scores.get(a), scores.get(b)));
+            for (final Entry entry : sorted.subList(0, entries.size() - maxEntries))
+                entries.remove(entry.address);
+        }
+    }
+
+    private Entry entry(final InetSocketAddress address, final long now) {
+        checkNotNull(address);
+        Entry entry = entries.get(address);
+        if (entry == null) {
+            if (entries.size() >= maxEntries)
+                prune(now);
+            entry = new Entry(address, now);
+            entries.put(address, entry);
+        }
+        return entry;
+    }
+
+    public synchronized void save(final File file, final long now) throws IOException {
+        prune(now);
+        final File tempFile = new File(file.getParentFile(), file.getName() + ".tmp");
+        try (final DataOutputStream os = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+            os.writeInt(FILE_MAGIC);
+            os.writeInt(FILE_VERSION);
+            os.writeInt(entries.size());
+            for (final Entry entry : entries.values()) {
+                entry.decay(now);
+                final byte[] addr = entry.address.getAddress().getAddress();
+                os.writeByte(addr.length);
+                os.write(addr);
+                os.writeShort(entry.address.getPort());
+                os.writeLong(entry.services);
+                os.writeDouble(entry.successes);
+                os.writeDouble(entry.failures);
+                os.writeLong(entry.rttMs);
+                os.writeLong(entry.lastSeen);
+            }
+        }
+        if (!tempFile.renameTo(file))
+            throw new IOException("cannot rename " + tempFile + " to " + file);
+    }
+
+    public static PeerScoreTable load(final File file, final int maxEntries, final long now) {
+        final PeerScoreTable table = new PeerScoreTable(maxEntries);
+        try (final DataInputStream is = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (is.readInt() != FILE_MAGIC || is.readInt() != FILE_VERSION)
+                throw new IOException("unknown format");
+            final int size = is.readInt();
+            for (int i = 0; i < size; i++) {
+                final byte[] addr = new byte[is.readUnsignedByte()];
+                is.readFully(addr);
+                final int port = is.readUnsignedShort();
+                final Entry entry = new Entry(new InetSocketAddress(InetAddress.getByAddress(addr), port), now);
+                entry.services = is.readLong();
+                entry.successes = is.readDouble();
+                entry.failures = is.readDouble();
+                entry.rttMs = is.readLong();
+                entry.lastSeen = is.readLong();
+                table.entries.put(entry.address, entry);
+            }
+            table.prune(now);
+            log.info("loaded {} scored peers from {}", table.entries.size(), file);
+        } catch (final FileNotFoundException x) {
+            // first start
+        } catch (final IOException x) {
+            log.info("problem loading " + file + ", starting over", x);
+            table.entries.clear();
+        }
+        return table;
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * Append-only journal of wallet transactions recorded since the last full wallet save.
+ *
+ * <p>The journal carries the generation of the wallet save it follows; entries of any other generation are stale and
+ * ignored on reading. Each entry is checksummed, so a torn write at the tail after a crash just ends the journal.
+ */
+public final class WalletJournal implements Closeable {
+    private static final int FILE_MAGIC = 0x574a524e; // "WJRN"
+    private static final int FILE_VERSION = 1;
+    private static final int MAX_ENTRY_SIZE = 1024 * 1024;
+
+    public static final class Entry {
+        public final byte[] tx;
+        public final long updateTime;
+        @Nullable
+        public final String memo;
+
+        public Entry(final byte[] tx, final long updateTime, @Nullable final String memo) {
+            this.tx = checkNotNull(tx);
+            this.updateTime = updateTime;
+            this.memo = memo;
+        }
+    }
+
+    private final File file;
+    @Nullable
+    private FileOutputStream os;
+
+    private static final Logger log = LoggerFactory.getLogger(WalletJournal.class);
+
+    public WalletJournal(final File file) {
+        this.file = checkNotNull(file);
+    }
+
+    /** Replaces the journal by an empty one following the given wallet save generation. */
+    public void reset(final long generation) throws IOException {
+        close();
+        final File tempFile = new File(file.getParentFile(), file.getName() + ".tmp");
+        final FileOutputStream fos = new FileOutputStream(tempFile);
+        try (final DataOutputStream dos = new DataOutputStream(fos)) {
+            dos.writeInt(FILE_MAGIC);
+            dos.writeInt(FILE_VERSION);
+            dos.writeLong(generation);
+            dos.flush();
+            fos.getFD().sync();
+        }
+        if (!tempFile.renameTo(file))
+            throw new IOException("cannot rename " + tempFile + " to " + file);
+        os = new FileOutputStream(file, true);
+    }
+
+    /**
+     * Appends entries with a single sync.
+     *
+     * @return the number of bytes written
+     */
+    public long append(final Collection<Entry> entries) throws IOException {
+        checkState(os != null, "journal not reset");
+        final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        final DataOutputStream dos = new DataOutputStream(buffer);
+        final ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        final DataOutputStream pos = new DataOutputStream(payload);
+        final CRC32 crc = new CRC32();
+        for (final Entry entry : entries) {
+            payload.reset();
+            pos.writeLong(entry.updateTime);
+            pos.writeBoolean(entry.memo != null);
+            if (entry.memo != null)
+                pos.writeUTF(entry.memo);
+            pos.writeInt(entry.tx.length);
+            pos.write(entry.tx);
+            crc.reset();
+            crc.update(payload.toByteArray());
+            dos.writeInt(payload.size());
+            payload.writeTo(dos);
+            dos.writeInt((int) crc.getValue());
+        }
+        buffer.writeTo(os);
+        os.getFD().sync();
+        return buffer.size();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (os != null) {
+            os.close();
+            os = null;
+        }
+    }
+
+    /**
+     * @return the intact entries following the given generation, or an empty list if the journal is missing or
+     *         belongs to another generation
+     */
+    public static List<Entry> read(final File file, final long generation) {
+        final List<Entry> entries = new ArrayList<>();
+        try (final DataInputStream is = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (is.readInt() != FILE_MAGIC || is.readInt() != FILE_VERSION)
+                throw new IOException("unknown format");
+            final long journalGeneration = is.readLong();
+            if (journalGeneration != generation) {
+                log.info("ignoring journal of generation {}, wallet is at {}", journalGeneration, generation);
+                return entries;
+            }
+            final CRC32 crc = new CRC32();
+            while (true) {
+                final int size;
+                try {
+                    size = is.readInt();
+                } catch (final EOFException x) {
+                    break;
+                }
+                if (size < 0 || size > MAX_ENTRY_SIZE)
+                    throw new IOException("bad entry size: " + size);
+                final byte[] payload = new byte[size];
+                is.readFully(payload);
+                crc.reset();
+                crc.update(payload);
+                if (is.readInt() != (int) crc.getValue())
+                    throw new IOException("bad checksum");
+                final DataInputStream pis = new DataInputStream(new ByteArrayInputStream(payload));
+                final long updateTime = pis.readLong();
+                final String memo = pis.readBoolean() ? pis.readUTF() : null;
+                final byte[] tx = new byte[pis.readInt()];
+                pis.readFully(tx);
+                entries.add(new Entry(tx, updateTime, memo));
+            }
+        } catch (final FileNotFoundException x) {
+            // no journal yet
+        } catch (final IOException x) {
+            log.info("journal " + file + " ends after " + entries.size() + " intact entries", x);
+        }
+        return entries;
+    }
+}
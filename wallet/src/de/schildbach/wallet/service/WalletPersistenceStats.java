@@ -0,0 +1,125 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.service;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Counters for wallet persistence: full saves, journal appends, bytes written within the last hour and save latency
+ * percentiles over the most recent saves.
+ */
+public final class WalletPersistenceStats {
+    private static final int LATENCY_SAMPLES = 256;
+    private static final long MINUTE_MS = TimeUnit.MINUTES.toMillis(1);
+
+    private long saves = 0;
+    private long journalAppends = 0;
+    private long changes = 0;
+    private long bytes = 0;
+    private final long[] bytesPerMinute = new long[60];
+    private final long[] minuteOfBucket = new long[60];
+    private final long[] latencies = new long[LATENCY_SAMPLES];
+    private int numLatencies = 0;
+    private int nextLatency = 0;
+
+    public synchronized void onChange() {
+        changes++;
+    }
+
+    public synchronized void onSave(final long bytes, final long latencyMs, final long now) {
+        saves++;
+        addBytes(bytes, now);
+        latencies[nextLatency] = latencyMs;
+        nextLatency = (nextLatency + 1) % LATENCY_SAMPLES;
+        numLatencies = Math.min(numLatencies + 1, LATENCY_SAMPLES);
+    }
+
+    public synchronized void onJournalAppend(final long bytes, final long now) {
+        journalAppends++;
+        addBytes(bytes, now);
+    }
+
+    private void addBytes(final long bytes, final long now) {
+        this.bytes += bytes;
+        final long minute = now / MINUTE_MS;
+        final int bucket = (int) (minute % bytesPerMinute.length);
+        if (minuteOfBucket[bucket] != minute) {
+            minuteOfBucket[bucket] = minute;
+            bytesPerMinute[bucket] = 0;
+        }
+        bytesPerMinute[bucket] += bytes;
+    }
+
+    public Snapshot snapshot() {
+        return snapshot(System.currentTimeMillis());
+    }
+
+    public synchronized Snapshot snapshot(final long now) {
+        final long minute = now / MINUTE_MS;
+        long bytesLastHour = 0;
+        for (int i = 0; i < bytesPerMinute.length; i++)
+            if (minute - minuteOfBucket[i] < bytesPerMinute.length)
+                bytesLastHour += bytesPerMinute[i];
+        final long[] sorted = Arrays.copyOf(latencies, numLatencies);
+        Arrays.sort(sorted);
+        return new Snapshot(saves, journalAppends, changes, bytes, bytesLastHour, percentile(sorted, 50),
+                percentile(sorted, 90), percentile(sorted, 99));
+    }
+
+    private static long percentile(final long[] sorted, final int percentile) {
+        if (sorted.length == 0)
+            return 0;
+        return sorted[Math.min(sorted.length - 1, sorted.length * percentile / 100)];
+    }
+
+    public static final class Snapshot {
+        public final long saves;
+        public final long journalAppends;
+        /** wallet changes seen, each of which would have been a full save without coalescing */
+        public final long changes;
+        public final long bytes;
+        public final long bytesLastHour;
+        public final long saveLatencyP50Ms;
+        public final long saveLatencyP90Ms;
+        public final long saveLatencyP99Ms;
+
+        private Snapshot(final long saves, final long journalAppends, final long changes, final long bytes,
+                final long bytesLastHour, final long saveLatencyP50Ms, final long saveLatencyP90Ms,
+                final long saveLatencyP99Ms) {
+            this.saves = saves;
+            this.journalAppends = journalAppends;
+            this.changes = changes;
+            this.bytes = bytes;
+            this.bytesLastHour = bytesLastHour;
+            this.saveLatencyP50Ms = saveLatencyP50Ms;
+            this.saveLatencyP90Ms = saveLatencyP90Ms;
+            this.saveLatencyP99Ms = saveLatencyP99Ms;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US,
+                    "%d saves for %d changes, %d journal appends, %d bytes in last hour, save latency p50/p90/p99 "
+                            + "%d/%d/%d ms",
+                    saves, changes, journalAppends, bytesLastHour, saveLatencyP50Ms, saveLatencyP90Ms,
+                    saveLatencyP99Ms);
+        }
+    }
+}
@@ -0,0 +1,270 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.service;
+
+import com.google.common.primitives.Longs;
+import com.google.protobuf.ByteString;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionConfidence.ConfidenceType;
+import org.bitcoinj.core.VerificationException;
+import org.bitcoinj.core.listeners.TransactionConfidenceEventListener;
+import org.bitcoinj.utils.Threading;
+import org.bitcoinj.wallet.Wallet;
+import org.bitcoinj.wallet.listeners.WalletChangeEventListener;
+import org.bitcoinj.wallet.listeners.WalletCoinsReceivedEventListener;
+import org.bitcoinj.wallet.listeners.WalletCoinsSentEventListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Write-behind persistence for a wallet, replacing a full save on every change.
+ *
+ * <p>Changes are merged into one full save at most {@code coalesceMs} after the first unsaved change. Only one save
+ * is ever outstanding, so the background writer is bounded no matter how busy the wallet is. What cannot be recovered
+ * from the block chain, namely pending transactions, is appended to a {@link WalletJournal} right away, with a single
+ * sync per batch. Confirmed transactions need no journal: if the wallet file lags behind the block chain after a
+ * crash, bitcoinj rolls back the SPV block store to the wallet height and the blocks are downloaded again.
+ *
+ * <p>Each full save increments a generation number kept in a wallet tag, and starts a new journal for it. On start,
+ * the journal of the loaded generation is replayed.
+ */
+public class WalletPersister implements WalletChangeEventListener, WalletCoinsReceivedEventListener,
+        WalletCoinsSentEventListener, TransactionConfidenceEventListener {
+    public static final String GENERATION_TAG = "de.schildbach.wallet.persister.generation";
+    public static final long DEFAULT_COALESCE_MS = TimeUnit.SECONDS.toMillis(5);
+
+    private final Wallet wallet;
+    private final File walletFile;
+    private final File journalFile;
+    private final WalletJournal journal;
+    private final ScheduledExecutorService executor;
+    private final long coalesceMs;
+    private final WalletPersistenceStats stats;
+
+    // guarded by this
+    private final Map<Sha256Hash, WalletJournal.Entry> journalQueue = new LinkedHashMap<>();
+    private final Set<Sha256Hash> journaled = new HashSet<>();
+    private boolean appendScheduled = false;
+    private boolean saveScheduled = false;
+
+    // confined to the executor
+    private long generation;
+
+    private static final Logger log = LoggerFactory.getLogger(WalletPersister.class);
+
+    /**
+     * @param executor
+     *            single-threaded, does all file I/O
+     */
+    public WalletPersister(final Wallet wallet, final File walletFile, final File journalFile,
+            final ScheduledExecutorService executor, final long coalesceMs, final WalletPersistenceStats stats) {
+        checkArgument(coalesceMs >= 0);
+        this.wallet = checkNotNull(wallet);
+        this.walletFile = checkNotNull(walletFile);
+        this.journalFile = checkNotNull(journalFile);
+        this.journal = new WalletJournal(journalFile);
+        this.executor = checkNotNull(executor);
+        this.coalesceMs = coalesceMs;
+        this.stats = checkNotNull(stats);
+    }
+
+    /**
+     * Replays the journal into the freshly loaded wallet, saves it and starts following it. Blocks until the
+     * first save is done.
+     *
+     * @return the number of transactions recovered from the journal
+     */
+    public int start() throws IOException {
+        final int recovered = replay(wallet, WalletJournal.read(journalFile, generationOf(wallet)));
+        if (recovered > 0)
+            log.info("recovered {} transactions from journal", recovered);
+        generation = generationOf(wallet);
+        runOnExecutor(this::save);
+        wallet.addChangeEventListener(Threading.SAME_THREAD, this);
+        wallet.addCoinsReceivedEventListener(Threading.SAME_THREAD, this);
+        wallet.addCoinsSentEventListener(Threading.SAME_THREAD, this);
+        wallet.addTransactionConfidenceEventListener(Threading.SAME_THREAD, this);
+        return recovered;
+    }
+
+    /** Stops following the wallet and saves it one last time. Blocks until saved. */
+    public void stop() throws IOException {
+        wallet.removeChangeEventListener(this);
+        wallet.removeCoinsReceivedEventListener(this);
+        wallet.removeCoinsSentEventListener(this);
+        wallet.removeTransactionConfidenceEventListener(this);
+        runOnExecutor(() -> {
+            save();
+            journal.close();
+        });
+    }
+
+    public WalletPersistenceStats getStats() {
+        return stats;
+    }
+
+    public static long generationOf(final Wallet wallet) {
+        final ByteString tag = wallet.maybeGetTag(GENERATION_TAG);
+        return tag != null && tag.size() == Longs.BYTES ? Longs.fromByteArray(tag.toByteArray()) : 0;
+    }
+
+    /** @return the number of transactions added to the wallet */
+    public static int replay(final Wallet wallet, final List<WalletJournal.Entry> entries) {
+        final NetworkParameters params = wallet.getParams();
+        int recovered = 0;
+        for (final WalletJournal.Entry entry : entries) {
+            try {
+                final Transaction tx = params.getDefaultSerializer().makeTransaction(entry.tx);
+                if (wallet.getTransaction(tx.getTxId()) != null || !wallet.isPendingTransactionRelevant(tx))
+                    continue;
+                tx.setUpdateTime(new Date(entry.updateTime));
+                tx.setMemo(entry.memo);
+                wallet.receivePending(tx, null);
+                recovered++;
+            } catch (final VerificationException x) {
+                log.info("skipping journal entry", x);
+            }
+        }
+        return recovered;
+    }
+
+    @Override
+    public void onWalletChanged(final Wallet wallet) {
+        stats.onChange();
+        synchronized (this) {
+            if (saveScheduled)
+                return;
+            saveScheduled = true;
+        }
+        executor.schedule(this::saveQuietly, coalesceMs, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void onCoinsReceived(final Wallet wallet, final Transaction tx, final Coin prevBalance,
+            final Coin newBalance) {
+        maybeJournal(tx);
+    }
+
+    @Override
+    public void onCoinsSent(final Wallet wallet, final Transaction tx, final Coin prevBalance, final Coin newBalance) {
+        maybeJournal(tx);
+    }
+
+    @Override
+    public void onTransactionConfidenceChanged(final Wallet wallet, final Transaction tx) {
+        maybeJournal(tx);
+    }
+
+    private void maybeJournal(final Transaction tx) {
+        if (tx.getConfidence().getConfidenceType() != ConfidenceType.PENDING)
+            return;
+        final Sha256Hash txId = tx.getTxId();
+        synchronized (this) {
+            if (!journaled.add(txId))
+                return;
+            journalQueue.put(txId, new WalletJournal.Entry(tx.unsafeBitcoinSerialize(),
+                    tx.getUpdateTime().getTime(), tx.getMemo()));
+            if (appendScheduled)
+                return;
+            appendScheduled = true;
+        }
+        executor.execute(this::appendJournal);
+    }
+
+    private void appendJournal() {
+        final List<WalletJournal.Entry> entries;
+        synchronized (this) {
+            entries = new ArrayList<>(journalQueue.values());
+            journalQueue.clear();
+            appendScheduled = false;
+        }
+        if (entries.isEmpty())
+            return;
+        try {
+            final long bytes = journal.append(entries);
+            stats.onJournalAppend(bytes, System.currentTimeMillis());
+        } catch (final IOException x) {
+            log.warn("problem appending to journal, saving wallet instead", x);
+            saveQuietly();
+        }
+    }
+
+    private void saveQuietly() {
+        try {
+            save();
+        } catch (final IOException x) {
+            log.error("problem saving wallet " + walletFile, x);
+        }
+    }
+
+    private void save() throws IOException {
+        synchronized (this) {
+            saveScheduled = false;
+            journaled.clear();
+        }
+        final long start = System.currentTimeMillis();
+        generation++;
+        wallet.setTag(GENERATION_TAG, ByteString.copyFrom(Longs.toByteArray(generation)));
+        final File tempFile = new File(walletFile.getParentFile(), walletFile.getName() + ".tmp");
+        wallet.saveToFile(tempFile, walletFile);
+        journal.reset(generation);
+        final long now = System.currentTimeMillis();
+        stats.onSave(walletFile.length(), now - start, now);
+        log.debug("saved wallet generation {}, took {} ms", generation, now - start);
+    }
+
+    private interface IoRunnable {
+        void run() throws IOException;
+    }
+
+    private void runOnExecutor(final IoRunnable runnable) throws IOException {
+        try {
+            executor.submit(() -> {
+                runnable.run();
+                return null;
+            }).get();
+        } catch (final InterruptedException x) {
+            Thread.currentThread().interrupt();
+            throw new IOException(x);
+        } catch (final ExecutionException x) {
+            final Throwable cause = x.getCause();
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            throw new RuntimeException(cause);
+        }
+    }
+}
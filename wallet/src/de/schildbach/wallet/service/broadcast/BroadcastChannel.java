@@ -0,0 +1,35 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.service.broadcast;
+
+import org.bitcoinj.core.Transaction;
+
+import java.io.IOException;
+
+/**
+ * Somewhere a transaction can be sent to: a connected peer, or a backend like an Electrum server.
+ */
+public interface BroadcastChannel {
+    /** @return a name that stays the same across reconnects, for example the peer address */
+    String getName();
+
+    /** @return true for peers, which may announce the transaction back to us */
+    boolean isPeer();
+
+    void send(Transaction tx) throws IOException;
+}
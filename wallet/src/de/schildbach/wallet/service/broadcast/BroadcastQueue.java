@@ -0,0 +1,369 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.service.broadcast;
+
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Durable queue of outgoing transactions, retried with exponential backoff until they propagate and confirm.
+ *
+ * <p>Every attempt sends the transaction to a few peers that don't have it yet, preferring ones never tried, and to
+ * all backend channels. Peers that requested the transaction via getdata or announced it via inv are known to have it
+ * and are skipped. An inv from a peer it was never sent to means the network relayed it: the transaction counts as
+ * propagated and is only re-sent at the maximum backoff, until {@link #onConfirmed(Sha256Hash)} removes it.
+ *
+ * <p>Entries are persisted via {@link BroadcastQueueDao}, so the queue survives restarts. Only one wakeup is ever
+ * scheduled, for the earliest due entry.
+ */
+public class BroadcastQueue {
+    public interface ChannelSource {
+        /** @return the channels currently available, for example connected peers and configured backends */
+        List<BroadcastChannel> getChannels();
+    }
+
+    public interface Listener {
+        void onPropagated(Sha256Hash txId, long latencyMs);
+    }
+
+    private static final class Entry {
+        final QueuedBroadcast row;
+        final Transaction tx;
+        final Set<String> sentTo = new LinkedHashSet<>();
+        /** peers that were sent, requested or announced the transaction */
+        final Set<String> haveIt = new LinkedHashSet<>();
+
+        Entry(final QueuedBroadcast row, final Transaction tx) {
+            this.row = row;
+            this.tx = tx;
+            if (!row.sentTo.isEmpty())
+                sentTo.addAll(Arrays.asList(row.sentTo.split(" ")));
+            haveIt.addAll(sentTo);
+        }
+    }
+
+    public static final long DEFAULT_INITIAL_DELAY_MS = TimeUnit.SECONDS.toMillis(5);
+    public static final long DEFAULT_MAX_DELAY_MS = TimeUnit.MINUTES.toMillis(30);
+    public static final int DEFAULT_FAN_OUT = 3;
+
+    private final BroadcastQueueDao dao;
+    private final NetworkParameters params;
+    private final ChannelSource channels;
+    private final long initialDelayMs;
+    private final long maxDelayMs;
+    private final int fanOut;
+    private final Map<Sha256Hash, Entry> entries = new HashMap<>();
+    private final BroadcastQueueStats stats = new BroadcastQueueStats();
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    @Nullable
+    private ScheduledExecutorService scheduler;
+    @Nullable
+    private ScheduledFuture<?> wakeup;
+    private long wakeupAt = Long.MAX_VALUE;
+    private boolean loaded = false;
+
+    private static final Logger log = LoggerFactory.getLogger(BroadcastQueue.class);
+
+    /**
+     * @param fanOut
+     *            how many peers to send to per attempt
+     */
+    public BroadcastQueue(final BroadcastQueueDao dao, final NetworkParameters params, final ChannelSource channels,
+            final long initialDelayMs, final long maxDelayMs, final int fanOut) {
+        checkArgument(initialDelayMs > 0 && maxDelayMs >= initialDelayMs);
+        checkArgument(fanOut > 0);
+        this.dao = checkNotNull(dao);
+        this.params = checkNotNull(params);
+        this.channels = checkNotNull(channels);
+        this.initialDelayMs = initialDelayMs;
+        this.maxDelayMs = maxDelayMs;
+        this.fanOut = fanOut;
+    }
+
+    public void addListener(final Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(final Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Loads the persisted queue. Must be called before anything else, on a background thread. Loading again does
+     * nothing, so that what happened in memory since isn't overwritten.
+     */
+    public synchronized void load() {
+        if (loaded)
+            return;
+        for (final QueuedBroadcast row : dao.getAll()) {
+            final Transaction tx = new Transaction(params, row.tx);
+            if (!entries.containsKey(tx.getTxId()))
+                entries.put(tx.getTxId(), new Entry(row, tx));
+        }
+        loaded = true;
+        log.info("loaded {} queued broadcasts", entries.size());
+    }
+
+    /** Loads the persisted queue, if not done yet, and from then on processes due entries on the scheduler. */
+    public synchronized void start(final ScheduledExecutorService scheduler) {
+        load();
+        this.scheduler = checkNotNull(scheduler);
+        reschedule();
+    }
+
+    public synchronized void stop() {
+        if (wakeup != null)
+            wakeup.cancel(false);
+        wakeup = null;
+        wakeupAt = Long.MAX_VALUE;
+        scheduler = null;
+    }
+
+    /**
+     * Queues a transaction for broadcast, due right away. Does nothing if it is already queued. Doesn't throw if the
+     * entry can't be persisted: callers have usually committed the transaction already, and the entry is broadcast
+     * from memory and written again with its next attempt.
+     */
+    public synchronized void enqueue(final Transaction tx, final long now) {
+        final Sha256Hash txId = tx.getTxId();
+        if (entries.containsKey(txId))
+            return;
+        final Entry entry = new Entry(new QueuedBroadcast(txId.toString(), tx.unsafeBitcoinSerialize(), now), tx);
+        entries.put(txId, entry);
+        try {
+            dao.insertOrUpdate(entry.row);
+        } catch (final RuntimeException x) {
+            log.warn("problem persisting queued broadcast of {}, keeping it in memory", txId, x);
+        }
+        stats.onEnqueued();
+        reschedule();
+    }
+
+    /** A peer requested the transaction, so it got it from us. */
+    public synchronized void onGetData(final String channel, final Sha256Hash txId) {
+        final Entry entry = entries.get(txId);
+        if (entry != null && entry.sentTo.add(channel)) {
+            entry.haveIt.add(channel);
+            persist(entry);
+        }
+    }
+
+    /** A peer announced the transaction. If we never sent it there, the network relayed it. */
+    public void onInv(final String channel, final Sha256Hash txId, final long now) {
+        final long latency;
+        synchronized (this) {
+            final Entry entry = entries.get(txId);
+            if (entry == null)
+                return;
+            entry.haveIt.add(channel);
+            if (entry.sentTo.contains(channel) || entry.row.state == QueuedBroadcast.STATE_PROPAGATED)
+                return;
+            entry.row.state = QueuedBroadcast.STATE_PROPAGATED;
+            entry.row.propagatedAt = now;
+            entry.row.nextAttemptAt = now + maxDelayMs;
+            latency = now - entry.row.enqueuedAt;
+            persist(entry);
+            stats.onPropagated(latency);
+            reschedule();
+            log.info("{} propagated after {} ms, echoed by {}", txId, latency, channel);
+        }
+        for (final Listener listener : listeners)
+            listener.onPropagated(txId, latency);
+    }
+
+    /** The transaction made it into a block, or was otherwise settled; stop broadcasting it. */
+    public synchronized void onConfirmed(final Sha256Hash txId) {
+        if (entries.remove(txId) != null) {
+            dao.delete(txId.toString());
+            stats.onConfirmed();
+            reschedule();
+        }
+    }
+
+    /**
+     * Sends all entries that are due.
+     *
+     * @return when the next entry is due, or {@link Long#MAX_VALUE} if the queue is empty
+     */
+    public long processDue(final long now) {
+        final List<Entry> due = new ArrayList<>();
+        final Map<Entry, List<BroadcastChannel>> targets = new HashMap<>();
+        final List<BroadcastChannel> available = channels.getChannels();
+        synchronized (this) {
+            for (final Entry entry : entries.values())
+                if (entry.row.nextAttemptAt <= now)
+                    due.add(entry);
+            for (final Entry entry : due) {
+                final List<BroadcastChannel> selected = select(entry, available);
+                targets.put(entry, selected);
+                for (final BroadcastChannel channel : selected)
+                    if (channel.isPeer()) {
+                        entry.sentTo.add(channel.getName());
+                        entry.haveIt.add(channel.getName());
+                    }
+                entry.row.attempts++;
+                entry.row.nextAttemptAt = now + (entry.row.state == QueuedBroadcast.STATE_PROPAGATED ? maxDelayMs
+                        : backoff(entry.row.attempts));
+                entry.row.lastError = null;
+                stats.onAttempt(selected.size());
+            }
+        }
+        for (final Entry entry : due) {
+            for (final BroadcastChannel channel : targets.get(entry)) {
+                try {
+                    channel.send(entry.tx);
+                } catch (final IOException | RuntimeException x) {
+                    log.info("sending {} to {} failed: {}", entry.tx.getTxId(), channel.getName(), x.getMessage());
+                    stats.onSendFailure();
+                    synchronized (this) {
+                        entry.row.lastError = channel.getName() + ": " + x.getMessage();
+                    }
+                }
+            }
+        }
+        synchronized (this) {
+            for (final Entry entry : due)
+                if (entries.containsKey(entry.tx.getTxId()))
+                    persist(entry);
+            reschedule();
+            return nextDue();
+        }
+    }
+
+    private List<BroadcastChannel> select(final Entry entry, final List<BroadcastChannel> available) {
+        final boolean pending = entry.row.state == QueuedBroadcast.STATE_PENDING;
+        final List<BroadcastChannel> selected = new ArrayList<>();
+        final List<BroadcastChannel> fresh = new ArrayList<>();
+        final List<BroadcastChannel> retries = new ArrayList<>();
+        for (final BroadcastChannel channel : available) {
+            if (!channel.isPeer()) {
+                if (pending)
+                    selected.add(channel);
+            } else if (!entry.haveIt.contains(channel.getName())) {
+                fresh.add(channel);
+            } else if (entry.sentTo.contains(channel.getName())) {
+                retries.add(channel);
+            } // else it announced the transaction to us
+        }
+        final int numPeers = Math.min(fanOut, fresh.size());
+        selected.addAll(fresh.subList(0, numPeers));
+        // every peer was tried and none relayed it yet; try some of them again, rotating
+        if (pending)
+            for (int i = 0; numPeers + i < fanOut && i < retries.size(); i++)
+                selected.add(retries.get((entry.row.attempts + i) % retries.size()));
+        return selected;
+    }
+
+    private long backoff(final int attempts) {
+        final int shift = Math.min(attempts - 1, 30);
+        return Math.min(initialDelayMs << shift, maxDelayMs);
+    }
+
+    private void persist(final Entry entry) {
+        final StringBuilder sentTo = new StringBuilder();
+        for (final String channel : entry.sentTo) {
+            if (sentTo.length() > 0)
+                sentTo.append(' ');
+            sentTo.append(channel);
+        }
+        entry.row.sentTo = sentTo.toString();
+        dao.insertOrUpdate(entry.row);
+    }
+
+    private long nextDue() {
+        long next = Long.MAX_VALUE;
+        for (final Entry entry : entries.values())
+            next = Math.min(next, entry.row.nextAttemptAt);
+        return next;
+    }
+
+    private void reschedule() {
+        reschedule(Long.MIN_VALUE);
+    }
+
+    /** Schedules the wakeup for the next due entry, but not before the given time. */
+    private void reschedule(final long notBefore) {
+        if (scheduler == null)
+            return;
+        final long nextDue = nextDue();
+        final long next = nextDue != Long.MAX_VALUE ? Math.max(nextDue, notBefore) : Long.MAX_VALUE;
+        if (next == wakeupAt)
+            return;
+        if (wakeup != null)
+            wakeup.cancel(false);
+        wakeupAt = next;
+        wakeup = next == Long.MAX_VALUE ? null
+                : scheduler.schedule(this::wakeUp, Math.max(0, next - System.currentTimeMillis()),
+                        TimeUnit.MILLISECONDS);
+    }
+
+    /** Runs on the scheduler, so it must not throw: that would end the wakeups for good. */
+    private void wakeUp() {
+        synchronized (this) {
+            wakeup = null;
+            wakeupAt = Long.MAX_VALUE;
+        }
+        final long now = System.currentTimeMillis();
+        long notBefore = Long.MIN_VALUE;
+        try {
+            processDue(now);
+        } catch (final RuntimeException x) {
+            log.warn("processing queued broadcasts failed, retrying in {} ms", initialDelayMs, x);
+            notBefore = now + initialDelayMs; // what failed is probably still due
+        } finally {
+            synchronized (this) {
+                reschedule(notBefore);
+            }
+        }
+    }
+
+    @Nullable
+    public synchronized QueuedBroadcast get(final Sha256Hash txId) {
+        final Entry entry = entries.get(txId);
+        return entry != null ? entry.row : null;
+    }
+
+    public synchronized int getDepth() {
+        return entries.size();
+    }
+
+    public synchronized BroadcastQueueStats.Snapshot getStats() {
+        return stats.snapshot(entries.size());
+    }
+}
@@ -0,0 +1,41 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.service.broadcast;
+
+import androidx.lifecycle.LiveData;
+import androidx.room.Dao;
+import androidx.room.Insert;
+import androidx.room.OnConflictStrategy;
+import androidx.room.Query;
+
+import java.util.List;
+
+@Dao
+public interface BroadcastQueueDao {
+    @Insert(onConflict = OnConflictStrategy.REPLACE)
+    void insertOrUpdate(QueuedBroadcast entry);
+
+    @Query("DELETE FROM broadcast_queue WHERE tx_id = :txId")
+    void delete(String txId);
+
+    @Query("SELECT * FROM broadcast_queue ORDER BY next_attempt_at")
+    List<QueuedBroadcast> getAll();
+
+    @Query("SELECT COUNT(*) FROM broadcast_queue")
+    LiveData<Integer> observeDepth();
+}
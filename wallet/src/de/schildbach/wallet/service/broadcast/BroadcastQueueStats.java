@@ -0,0 +1,110 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.service.broadcast;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Counters for the broadcast queue, with time-to-first-propagation percentiles over the most recent transactions.
+ */
+public final class BroadcastQueueStats {
+    private static final int LATENCY_SAMPLES = 256;
+
+    private long enqueued = 0;
+    private long attempts = 0;
+    private long sends = 0;
+    private long sendFailures = 0;
+    private long propagated = 0;
+    private long confirmed = 0;
+    private final long[] latencies = new long[LATENCY_SAMPLES];
+    private int numLatencies = 0;
+    private int nextLatency = 0;
+
+    synchronized void onEnqueued() {
+        enqueued++;
+    }
+
+    synchronized void onAttempt(final int numSends) {
+        attempts++;
+        sends += numSends;
+    }
+
+    synchronized void onSendFailure() {
+        sendFailures++;
+    }
+
+    synchronized void onPropagated(final long latencyMs) {
+        propagated++;
+        latencies[nextLatency] = latencyMs;
+        nextLatency = (nextLatency + 1) % LATENCY_SAMPLES;
+        numLatencies = Math.min(numLatencies + 1, LATENCY_SAMPLES);
+    }
+
+    synchronized void onConfirmed() {
+        confirmed++;
+    }
+
+    public synchronized Snapshot snapshot(final int depth) {
+        final long[] sorted = Arrays.copyOf(latencies, numLatencies);
+        Arrays.sort(sorted);
+        return new Snapshot(depth, enqueued, attempts, sends, sendFailures, propagated, confirmed,
+                percentile(sorted, 50), percentile(sorted, 95));
+    }
+
+    private static long percentile(final long[] sorted, final int percentile) {
+        if (sorted.length == 0)
+            return 0;
+        return sorted[Math.min(sorted.length - 1, sorted.length * percentile / 100)];
+    }
+
+    public static final class Snapshot {
+        public final int depth;
+        public final long enqueued;
+        public final long attempts;
+        public final long sends;
+        public final long sendFailures;
+        public final long propagated;
+        public final long confirmed;
+        public final long propagationP50Ms;
+        public final long propagationP95Ms;
+
+        private Snapshot(final int depth, final long enqueued, final long attempts, final long sends,
+                final long sendFailures, final long propagated, final long confirmed, final long propagationP50Ms,
+                final long propagationP95Ms) {
+            this.depth = depth;
+            this.enqueued = enqueued;
+            this.attempts = attempts;
+            this.sends = sends;
+            this.sendFailures = sendFailures;
+            this.propagated = propagated;
+            this.confirmed = confirmed;
+            this.propagationP50Ms = propagationP50Ms;
+            this.propagationP95Ms = propagationP95Ms;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US,
+                    "depth %d (%d enqueued, %d propagated, %d confirmed), %d sends in %d attempts (%d failed), "
+                            + "time to propagation p50/p95 %d/%d ms",
+                    depth, enqueued, propagated, confirmed, sends, attempts, sendFailures, propagationP50Ms,
+                    propagationP95Ms);
+        }
+    }
+}
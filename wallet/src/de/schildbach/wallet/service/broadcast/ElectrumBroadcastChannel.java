@@ -0,0 +1,55 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.service.broadcast;
+
+import de.schildbach.wallet.service.electrum.ElectrumClient;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.Utils;
+
+import java.io.IOException;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Broadcasts through an Electrum server. Errors, for example a transaction the server's node rejected, surface as
+ * {@link de.schildbach.wallet.service.electrum.ElectrumException}.
+ */
+public class ElectrumBroadcastChannel implements BroadcastChannel {
+    private final ElectrumClient client;
+    private final String name;
+
+    public ElectrumBroadcastChannel(final ElectrumClient client, final String name) {
+        this.client = checkNotNull(client);
+        this.name = checkNotNull(name);
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public boolean isPeer() {
+        return false;
+    }
+
+    @Override
+    public void send(final Transaction tx) throws IOException {
+        client.call("blockchain.transaction.broadcast", Utils.HEX.encode(tx.unsafeBitcoinSerialize()));
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.service.broadcast;
+
+import com.google.common.collect.ImmutableList;
+import org.bitcoinj.core.GetDataMessage;
+import org.bitcoinj.core.InventoryItem;
+import org.bitcoinj.core.InventoryMessage;
+import org.bitcoinj.core.ListMessage;
+import org.bitcoinj.core.Message;
+import org.bitcoinj.core.Peer;
+import org.bitcoinj.core.PeerGroup;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.listeners.PreMessageReceivedEventListener;
+import org.bitcoinj.utils.Threading;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Connects a {@link BroadcastQueue} to a peer group: every connected peer is a channel, and inv and getdata messages
+ * from peers are forwarded to the queue for deduplication and echo detection.
+ */
+public class PeerGroupBroadcastChannels implements BroadcastQueue.ChannelSource, PreMessageReceivedEventListener {
+    private final PeerGroup peerGroup;
+    private final List<BroadcastChannel> backends;
+    @Nullable
+    private volatile BroadcastQueue queue;
+
+    /**
+     * @param backends
+     *            additional channels used while a transaction is not propagated yet, for example Electrum servers
+     */
+    public PeerGroupBroadcastChannels(final PeerGroup peerGroup, final List<BroadcastChannel> backends) {
+        this.peerGroup = checkNotNull(peerGroup);
+        this.backends = ImmutableList.copyOf(backends);
+    }
+
+    public void attach(final BroadcastQueue queue) {
+        this.queue = checkNotNull(queue);
+        peerGroup.addPreMessageReceivedEventListener(Threading.SAME_THREAD, this);
+    }
+
+    public void detach() {
+        peerGroup.removePreMessageReceivedEventListener(this);
+        queue = null;
+    }
+
+    private static String nameOf(final Peer peer) {
+        return peer.getAddress().toSocketAddress().toString();
+    }
+
+    @Override
+    public List<BroadcastChannel> getChannels() {
+        final List<BroadcastChannel> channels = new ArrayList<>();
+        for (final Peer peer : peerGroup.getConnectedPeers()) {
+            final String name = nameOf(peer);
+            channels.add(new BroadcastChannel() {
+                @Override
+                public String getName() {
+                    return name;
+                }
+
+                @Override
+                public boolean isPeer() {
+                    return true;
+                }
+
+                @Override
+                public void send(final Transaction tx) {
+                    peer.sendMessage(tx);
+                }
+            });
+        }
+        channels.addAll(backends);
+        return channels;
+    }
+
+    @Override
+    public Message onPreMessageReceived(final Peer peer, final Message m) {
+        final BroadcastQueue queue = this.queue;
+        if (queue != null && (m instanceof InventoryMessage || m instanceof GetDataMessage)) {
+            final long now = System.currentTimeMillis();
+            for (final InventoryItem item : ((ListMessage) m).getItems()) {
+                if (item.type != InventoryItem.Type.TRANSACTION && item.type != InventoryItem.Type.WITNESS_TRANSACTION)
+                    continue;
+                if (m instanceof InventoryMessage)
+                    queue.onInv(nameOf(peer), item.hash, now);
+                else
+                    queue.onGetData(nameOf(peer), item.hash);
+            }
+        }
+        return m;
+    }
+}
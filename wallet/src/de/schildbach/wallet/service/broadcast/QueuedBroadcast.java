@@ -0,0 +1,83 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.service.broadcast;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.room.ColumnInfo;
+import androidx.room.Entity;
+import androidx.room.Index;
+import androidx.room.PrimaryKey;
+
+/**
+ * A transaction waiting in the {@link BroadcastQueue}, with its retry state.
+ */
+@Entity(tableName = "broadcast_queue", indices = { @Index("next_attempt_at") })
+public class QueuedBroadcast {
+    public static final int STATE_PENDING = 0;
+    /** seen coming back from a peer it was not sent to */
+    public static final int STATE_PROPAGATED = 1;
+
+    @PrimaryKey
+    @NonNull
+    @ColumnInfo(name = "tx_id")
+    public String txId;
+
+    @NonNull
+    @ColumnInfo(name = "tx")
+    public byte[] tx;
+
+    @ColumnInfo(name = "state")
+    public int state;
+
+    @ColumnInfo(name = "enqueued_at")
+    public long enqueuedAt;
+
+    @ColumnInfo(name = "attempts")
+    public int attempts;
+
+    @ColumnInfo(name = "next_attempt_at")
+    public long nextAttemptAt;
+
+    /** channels the transaction was sent to or requested by, separated by spaces */
+    @NonNull
+    @ColumnInfo(name = "sent_to")
+    public String sentTo;
+
+    @ColumnInfo(name = "propagated_at")
+    public long propagatedAt;
+
+    @Nullable
+    @ColumnInfo(name = "last_error")
+    public String lastError;
+
+    public QueuedBroadcast(@NonNull final String txId, @NonNull final byte[] tx, final long enqueuedAt) {
+        this.txId = txId;
+        this.tx = tx;
+        this.state = STATE_PENDING;
+        this.enqueuedAt = enqueuedAt;
+        this.attempts = 0;
+        this.nextAttemptAt = enqueuedAt;
+        this.sentTo = "";
+    }
+
+    @Override
+    public String toString() {
+        return txId + (state == STATE_PROPAGATED ? " propagated" : " pending") + ", " + attempts + " attempts";
+    }
+}
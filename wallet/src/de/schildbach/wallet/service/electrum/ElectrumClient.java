@@ -0,0 +1,430 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.service.electrum;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.script.Script;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import javax.net.SocketFactory;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Electrum protocol client over a small pool of persistent connections.
+ *
+ * <p>Queries for many script hashes, such as the history of all wallet addresses during a restore, are split into
+ * JSON-RPC batches that are spread over the pool and all sent before waiting for the first answer, so the whole query
+ * takes about one round trip per batch per connection instead of one per address. Subscriptions stay on the
+ * connection they were made on and are renewed when that connection is replaced. Whatever changed while the connection
+ * was down is then passed to the listeners, as the server only notifies about changes from the renewal on.
+ *
+ * <p>Every new connection starts with {@code server.version}, as the protocol asks. Connecting happens outside of the
+ * client's lock, so a slow or unreachable server doesn't hold up queries on the other connections.
+ *
+ * <p>Thread-safe.
+ */
+public class ElectrumClient implements ElectrumConnection.NotificationListener {
+    public interface Listener {
+        /** A subscribed script hash changed status, for example because a transaction to it was seen. */
+        void onScriptHashStatus(String scriptHash, @Nullable String status);
+
+        void onNewHeader(int height);
+    }
+
+    public static final class HistoryItem {
+        public final Sha256Hash txId;
+        /** 0 or -1 for mempool transactions */
+        public final int height;
+
+        public HistoryItem(final Sha256Hash txId, final int height) {
+            this.txId = txId;
+            this.height = height;
+        }
+
+        @Override
+        public String toString() {
+            return txId + "@" + height;
+        }
+    }
+
+    public static final class Utxo {
+        public final Sha256Hash txId;
+        public final int index;
+        public final long value;
+        public final int height;
+
+        public Utxo(final Sha256Hash txId, final int index, final long value, final int height) {
+            this.txId = txId;
+            this.index = index;
+            this.value = value;
+            this.height = height;
+        }
+    }
+
+    public static final int BATCH_SIZE = 100;
+    private static final String CLIENT_NAME = "dogecoin-wallet";
+    private static final String PROTOCOL_VERSION = "1.4";
+
+    private final List<InetSocketAddress> servers;
+    private final SocketFactory socketFactory;
+    private final long timeoutMs;
+    private final ElectrumConnection[] pool;
+    private final List<Set<String>> subscriptions = new ArrayList<>();
+    /** last known status per subscribed script hash */
+    private final Map<String, String> statuses = new HashMap<>();
+    /** slot of the connection subscribed to headers, or -1 */
+    private int headersSlot = -1;
+    private int height = -1;
+    private final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<>();
+    private int nextServer = 0;
+    private int nextSlot = 0;
+
+    private static final Logger log = LoggerFactory.getLogger(ElectrumClient.class);
+
+    /**
+     * @param servers
+     *            tried in order when (re)connecting, for example from {@code electrum-servers.txt}
+     * @param socketFactory
+     *            plain or TLS sockets
+     * @param poolSize
+     *            persistent connections to keep
+     * @param timeoutMs
+     *            for connecting and for each query
+     */
+    public ElectrumClient(final List<InetSocketAddress> servers, final SocketFactory socketFactory,
+            final int poolSize, final long timeoutMs) {
+        checkArgument(!servers.isEmpty(), "no servers");
+        checkArgument(poolSize > 0);
+        this.servers = new ArrayList<>(servers);
+        this.socketFactory = checkNotNull(socketFactory);
+        this.timeoutMs = timeoutMs;
+        this.pool = new ElectrumConnection[poolSize];
+        for (int i = 0; i < poolSize; i++)
+            subscriptions.add(new HashSet<String>());
+    }
+
+    /** @return the script hash Electrum indexes an output script by: its SHA-256, byte-reversed, as hex */
+    public static String scriptHash(final Script script) {
+        return Sha256Hash.wrapReversed(Sha256Hash.hash(script.getProgram())).toString();
+    }
+
+    public void addListener(final Listener listener) {
+        listeners.add(checkNotNull(listener));
+    }
+
+    public void removeListener(final Listener listener) {
+        listeners.remove(listener);
+    }
+
+    public Object call(final String method, final Object... params) throws IOException {
+        return await(connection(nextSlot()).call(method, params));
+    }
+
+    /** @return the history of each script hash, in the order given */
+    public Map<String, List<HistoryItem>> getHistories(final List<String> scriptHashes) throws IOException {
+        final List<Object> results = query("blockchain.scripthash.get_history", scriptHashes);
+        final Map<String, List<HistoryItem>> histories = new LinkedHashMap<>();
+        for (int i = 0; i < scriptHashes.size(); i++) {
+            final List<HistoryItem> history = new ArrayList<>();
+            for (final Map<String, Object> item : asListOfMaps(results.get(i)))
+                history.add(new HistoryItem(Sha256Hash.wrap((String) item.get("tx_hash")),
+                        ((Number) item.get("height")).intValue()));
+            histories.put(scriptHashes.get(i), history);
+        }
+        return histories;
+    }
+
+    /** @return the unspent outputs of each script hash, in the order given */
+    public Map<String, List<Utxo>> listUnspent(final List<String> scriptHashes) throws IOException {
+        final List<Object> results = query("blockchain.scripthash.listunspent", scriptHashes);
+        final Map<String, List<Utxo>> unspents = new LinkedHashMap<>();
+        for (int i = 0; i < scriptHashes.size(); i++) {
+            final List<Utxo> utxos = new ArrayList<>();
+            for (final Map<String, Object> item : asListOfMaps(results.get(i)))
+                utxos.add(new Utxo(Sha256Hash.wrap((String) item.get("tx_hash")),
+                        ((Number) item.get("tx_pos")).intValue(), ((Number) item.get("value")).longValue(),
+                        ((Number) item.get("height")).intValue()));
+            unspents.put(scriptHashes.get(i), utxos);
+        }
+        return unspents;
+    }
+
+    /**
+     * Asks for the server's view of the mempool, which unlike a Bloom-filtered peer covers everyone's transactions.
+     *
+     * @return size in bytes of the mempool transactions per fee rate, in satoshis per 1000 bytes, highest rate first
+     */
+    public Map<Long, Long> getFeeHistogram() throws IOException {
+        final Object result = call("mempool.get_fee_histogram");
+        if (!(result instanceof List))
+            throw new IOException("unexpected result: " + result);
+        final Map<Long, Long> histogram = new LinkedHashMap<>();
+        for (final Object item : (List<?>) result) {
+            if (!(item instanceof List) || ((List<?>) item).size() != 2)
+                throw new IOException("unexpected result: " + result);
+            final List<?> bin = (List<?>) item;
+            if (!(bin.get(0) instanceof Number) || !(bin.get(1) instanceof Number))
+                throw new IOException("unexpected result: " + result);
+            // rates are per virtual byte
+            final long rate = Math.round(((Number) bin.get(0)).doubleValue() * 1000);
+            final long size = ((Number) bin.get(1)).longValue();
+            final Long previous = histogram.get(rate);
+            histogram.put(rate, previous != null ? previous + size : size);
+        }
+        return histogram;
+    }
+
+    /**
+     * Subscribes to status changes of script hashes, batched like the queries.
+     *
+     * @return the current status of each script hash, null for one without history
+     */
+    public Map<String, String> subscribe(final List<String> scriptHashes) throws IOException {
+        final List<Object> results = query("blockchain.scripthash.subscribe", scriptHashes);
+        final Map<String, String> statuses = new LinkedHashMap<>();
+        for (int i = 0; i < scriptHashes.size(); i++)
+            statuses.put(scriptHashes.get(i), (String) results.get(i));
+        synchronized (this) {
+            this.statuses.putAll(statuses);
+        }
+        return statuses;
+    }
+
+    /** Subscribes to new chain tips. @return the current height */
+    public int subscribeHeaders() throws IOException {
+        final int slot = nextSlot();
+        final Object result = await(connection(slot).call("blockchain.headers.subscribe"));
+        final int height = heightOf(result);
+        if (height < 0)
+            throw new IOException("unexpected result: " + result);
+        synchronized (this) {
+            headersSlot = slot;
+            this.height = height;
+        }
+        return height;
+    }
+
+    /**
+     * Runs one method with a single script hash parameter for many script hashes: batches of {@link #BATCH_SIZE} go
+     * out round-robin over the pool, all before waiting for any result.
+     */
+    private List<Object> query(final String method, final List<String> scriptHashes) throws IOException {
+        final boolean subscribe = method.endsWith(".subscribe");
+        final List<ListenableFuture<Object>> futures = new ArrayList<>(scriptHashes.size());
+        for (int from = 0; from < scriptHashes.size(); from += BATCH_SIZE) {
+            final List<String> chunk = scriptHashes.subList(from, Math.min(from + BATCH_SIZE,
+                    scriptHashes.size()));
+            final List<ElectrumConnection.Request> requests = new ArrayList<>(chunk.size());
+            for (final String scriptHash : chunk)
+                requests.add(new ElectrumConnection.Request(method, scriptHash));
+            final int slot = nextSlot();
+            final ElectrumConnection connection = connection(slot);
+            if (subscribe) {
+                synchronized (this) {
+                    subscriptions.get(slot).addAll(chunk);
+                }
+            }
+            futures.addAll(connection.batch(requests));
+        }
+        final List<Object> results = new ArrayList<>(futures.size());
+        for (final ListenableFuture<Object> future : futures)
+            results.add(await(future));
+        return results;
+    }
+
+    private synchronized int nextSlot() {
+        final int slot = nextSlot;
+        nextSlot = (nextSlot + 1) % pool.length;
+        return slot;
+    }
+
+    /** @return an open connection for the slot, connecting and renewing its subscriptions if needed */
+    private ElectrumConnection connection(final int slot) throws IOException {
+        synchronized (this) {
+            if (pool[slot] != null && pool[slot].isOpen())
+                return pool[slot];
+        }
+        final ElectrumConnection connection = connect();
+        final List<String> resubscribe;
+        final boolean renewHeaders;
+        synchronized (this) {
+            if (pool[slot] != null && pool[slot].isOpen()) {
+                connection.close(); // another thread was quicker
+                return pool[slot];
+            }
+            pool[slot] = connection;
+            resubscribe = new ArrayList<>(subscriptions.get(slot));
+            renewHeaders = headersSlot == slot;
+        }
+        if (!resubscribe.isEmpty()) {
+            final List<ElectrumConnection.Request> requests = new ArrayList<>(resubscribe.size());
+            for (final String scriptHash : resubscribe)
+                requests.add(new ElectrumConnection.Request("blockchain.scripthash.subscribe", scriptHash));
+            final List<ListenableFuture<Object>> futures = connection.batch(requests);
+            for (int i = 0; i < futures.size(); i++) {
+                final String scriptHash = resubscribe.get(i);
+                final ListenableFuture<Object> future = futures.get(i);
+                future.addListener(() -> {
+                    final Object status = resultOf(future);
+                    if (status == null || status instanceof String)
+                        onStatus(scriptHash, (String) status);
+                }, MoreExecutors.directExecutor());
+            }
+            log.info("renewed {} subscriptions on {}", resubscribe.size(), connection);
+        }
+        if (renewHeaders) {
+            final ListenableFuture<Object> future = connection.call("blockchain.headers.subscribe");
+            future.addListener(() -> onHeight(heightOf(resultOf(future))), MoreExecutors.directExecutor());
+        }
+        return connection;
+    }
+
+    /** Tries the servers in turn, starting with the one after the last tried. */
+    private ElectrumConnection connect() throws IOException {
+        IOException lastException = null;
+        for (int i = 0; i < servers.size(); i++) {
+            final InetSocketAddress server;
+            synchronized (this) {
+                server = servers.get(nextServer);
+                nextServer = (nextServer + 1) % servers.size();
+            }
+            ElectrumConnection connection = null;
+            try {
+                connection = new ElectrumConnection(server, socketFactory, (int) timeoutMs, this);
+                await(connection.call("server.version", CLIENT_NAME, PROTOCOL_VERSION));
+                return connection;
+            } catch (final IOException x) {
+                log.info("cannot connect to electrum server {}: {}", server, x.getMessage());
+                if (connection != null)
+                    connection.close();
+                lastException = x;
+            }
+        }
+        throw checkNotNull(lastException);
+    }
+
+    private Object await(final ListenableFuture<Object> future) throws IOException {
+        try {
+            return future.get(timeoutMs, TimeUnit.MILLISECONDS);
+        } catch (final InterruptedException x) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted", x);
+        } catch (final ExecutionException x) {
+            if (x.getCause() instanceof IOException)
+                throw (IOException) x.getCause();
+            throw new IOException(x.getCause());
+        } catch (final TimeoutException x) {
+            throw new IOException("timed out after " + timeoutMs + " ms", x);
+        }
+    }
+
+    /** @return the result of a completed future, or null if it failed */
+    @Nullable
+    private static Object resultOf(final ListenableFuture<Object> future) {
+        try {
+            return Futures.getDone(future);
+        } catch (final ExecutionException x) {
+            log.info("renewing subscription failed: {}", x.getCause().getMessage());
+            return null;
+        }
+    }
+
+    /** @return the height of a header, or -1 if there is none */
+    private static int heightOf(@Nullable final Object header) {
+        final Object height = header instanceof Map ? ((Map<?, ?>) header).get("height") : null;
+        return height instanceof Number ? ((Number) height).intValue() : -1;
+    }
+
+    /** Passes a status on to the listeners, unless it is the one they know. */
+    private void onStatus(final String scriptHash, @Nullable final String status) {
+        synchronized (this) {
+            if (statuses.containsKey(scriptHash) && Objects.equals(statuses.get(scriptHash), status))
+                return;
+            statuses.put(scriptHash, status);
+        }
+        for (final Listener listener : listeners)
+            listener.onScriptHashStatus(scriptHash, status);
+    }
+
+    private void onHeight(final int height) {
+        synchronized (this) {
+            if (height < 0 || height == this.height)
+                return;
+            this.height = height;
+        }
+        for (final Listener listener : listeners)
+            listener.onNewHeader(height);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<Map<String, Object>> asListOfMaps(@Nullable final Object result) throws IOException {
+        if (!(result instanceof List))
+            throw new IOException("unexpected result: " + result);
+        for (final Object item : (List<?>) result)
+            if (!(item instanceof Map))
+                throw new IOException("unexpected result: " + result);
+        return (List<Map<String, Object>>) result;
+    }
+
+    @Override
+    public void onNotification(final ElectrumConnection connection, final String method, final List<Object> params) {
+        if ("blockchain.scripthash.subscribe".equals(method) && params.size() >= 2) {
+            onStatus((String) params.get(0), (String) params.get(1));
+        } else if ("blockchain.headers.subscribe".equals(method) && !params.isEmpty()) {
+            onHeight(heightOf(params.get(0)));
+        }
+    }
+
+    public synchronized void close() {
+        for (int i = 0; i < pool.length; i++) {
+            if (pool[i] != null)
+                pool[i].close();
+            pool[i] = null;
+        }
+    }
+
+    /** @return the number of open connections */
+    public synchronized int getNumConnections() {
+        int num = 0;
+        for (final ElectrumConnection connection : pool)
+            if (connection != null && connection.isOpen())
+                num++;
+        return num;
+    }
+}
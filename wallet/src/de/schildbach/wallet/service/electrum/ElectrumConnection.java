@@ -0,0 +1,290 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.service.electrum;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.squareup.moshi.JsonAdapter;
+import com.squareup.moshi.JsonReader;
+import com.squareup.moshi.JsonWriter;
+import com.squareup.moshi.Moshi;
+import okio.Buffer;
+import okio.BufferedSink;
+import okio.BufferedSource;
+import okio.Okio;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import javax.net.SocketFactory;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * One persistent connection to an Electrum server, speaking newline-delimited JSON-RPC.
+ *
+ * <p>Any number of requests may be outstanding; responses are matched by ID as they come in, so requests are
+ * pipelined. Several requests can also go out as one JSON-RPC batch, in a single line and usually a single TCP
+ * segment. Notifications for subscriptions are passed to a {@link NotificationListener} on the reader thread.
+ *
+ * <p>A connection that has been silent for the timeout is pinged, and closed if it stays silent for another timeout,
+ * so a server that went away without closing the connection is noticed. Integers in responses are read as
+ * {@link Long}, so that amounts stay exact.
+ */
+public class ElectrumConnection {
+    public interface NotificationListener {
+        void onNotification(ElectrumConnection connection, String method, List<Object> params);
+    }
+
+    public static final class Request {
+        public final String method;
+        public final List<Object> params;
+
+        public Request(final String method, final Object... params) {
+            this.method = checkNotNull(method);
+            this.params = Arrays.asList(params);
+        }
+    }
+
+    private static final JsonAdapter<Object> ADAPTER = new Moshi.Builder().build().adapter(Object.class);
+
+    private final InetSocketAddress address;
+    private final Socket socket;
+    private final BufferedSource in;
+    private final BufferedSink out;
+    private final NotificationListener listener;
+    private final Map<Long, SettableFuture<Object>> pending = new ConcurrentHashMap<>();
+    private final AtomicLong nextId = new AtomicLong();
+    private final Thread readerThread;
+    private volatile boolean open = true;
+    private boolean pinged = false; // only touched by the reader thread
+
+    private static final Logger log = LoggerFactory.getLogger(ElectrumConnection.class);
+
+    /**
+     * @param timeoutMs
+     *            for connecting, and how long the connection may be silent before the server is pinged
+     */
+    public ElectrumConnection(final InetSocketAddress address, final SocketFactory socketFactory,
+            final int timeoutMs, final NotificationListener listener) throws IOException {
+        this.address = checkNotNull(address);
+        this.listener = checkNotNull(listener);
+        this.socket = socketFactory.createSocket();
+        try {
+            socket.setTcpNoDelay(true);
+            socket.setKeepAlive(true);
+            socket.connect(address, timeoutMs);
+            socket.setSoTimeout(timeoutMs);
+            this.in = Okio.buffer(Okio.source(socket));
+            this.out = Okio.buffer(Okio.sink(socket));
+        } catch (final IOException x) {
+            socket.close();
+            throw x;
+        }
+        this.readerThread = new Thread(this::read, "electrum-" + address.getHostString());
+        readerThread.setDaemon(true);
+        readerThread.start();
+    }
+
+    public InetSocketAddress getAddress() {
+        return address;
+    }
+
+    public boolean isOpen() {
+        return open;
+    }
+
+    public int getNumPending() {
+        return pending.size();
+    }
+
+    public ListenableFuture<Object> call(final String method, final Object... params) {
+        return batch(Arrays.asList(new Request(method, params))).get(0);
+    }
+
+    /** Sends the requests as one JSON-RPC batch; a single request is sent as such. */
+    public List<ListenableFuture<Object>> batch(final List<Request> requests) {
+        checkArgument(!requests.isEmpty());
+        final List<ListenableFuture<Object>> futures = new ArrayList<>(requests.size());
+        final Buffer line = new Buffer();
+        final JsonWriter writer = JsonWriter.of(line);
+        try {
+            if (requests.size() > 1)
+                writer.beginArray();
+            for (final Request request : requests) {
+                final long id = nextId.incrementAndGet();
+                final SettableFuture<Object> future = SettableFuture.create();
+                pending.put(id, future);
+                futures.add(future);
+                writer.beginObject();
+                writer.name("jsonrpc").value("2.0");
+                writer.name("id").value(id);
+                writer.name("method").value(request.method);
+                writer.name("params");
+                ADAPTER.toJson(writer, request.params);
+                writer.endObject();
+            }
+            if (requests.size() > 1)
+                writer.endArray();
+            writer.flush();
+            line.writeByte('\n');
+            synchronized (out) {
+                if (!open)
+                    throw new IOException("connection closed");
+                out.writeAll(line);
+                out.flush();
+            }
+        } catch (final IOException x) {
+            fail(x);
+        }
+        return futures;
+    }
+
+    public void close() {
+        fail(new IOException("connection closed"));
+    }
+
+    private void read() {
+        try {
+            while (open) {
+                final String line;
+                try {
+                    line = in.readUtf8LineStrict();
+                } catch (final SocketTimeoutException x) {
+                    if (pinged)
+                        throw new IOException("no answer to ping", x);
+                    pinged = true;
+                    call("server.ping");
+                    continue;
+                }
+                pinged = false;
+                if (line.isEmpty())
+                    continue;
+                final Object message = readValue(JsonReader.of(new Buffer().writeUtf8(line)));
+                if (message instanceof List) {
+                    for (final Object item : (List<?>) message)
+                        dispatch(item);
+                } else {
+                    dispatch(message);
+                }
+            }
+        } catch (final IOException | RuntimeException x) {
+            if (open)
+                log.info("electrum connection to {} failed: {}", address, x.toString());
+            fail(x instanceof IOException ? (IOException) x : new IOException(x));
+        }
+    }
+
+    /** Like Moshi's adapter for {@link Object}, except that integers become {@link Long} rather than {@link Double}. */
+    @Nullable
+    static Object readValue(final JsonReader reader) throws IOException {
+        switch (reader.peek()) {
+        case BEGIN_ARRAY:
+            final List<Object> list = new ArrayList<>();
+            reader.beginArray();
+            while (reader.hasNext())
+                list.add(readValue(reader));
+            reader.endArray();
+            return list;
+        case BEGIN_OBJECT:
+            final Map<String, Object> map = new LinkedHashMap<>();
+            reader.beginObject();
+            while (reader.hasNext())
+                map.put(reader.nextName(), readValue(reader));
+            reader.endObject();
+            return map;
+        case STRING:
+            return reader.nextString();
+        case NUMBER:
+            final String number = reader.nextString();
+            try {
+                return Long.parseLong(number);
+            } catch (final NumberFormatException x) {
+                return Double.parseDouble(number);
+            }
+        case BOOLEAN:
+            return reader.nextBoolean();
+        case NULL:
+            return reader.nextNull();
+        default:
+            throw new IOException("unexpected " + reader.peek() + " at " + reader.getPath());
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void dispatch(@Nullable final Object item) {
+        if (!(item instanceof Map))
+            return;
+        final Map<String, Object> message = (Map<String, Object>) item;
+        final Object id = message.get("id");
+        if (id == null) {
+            final Object method = message.get("method");
+            final Object params = message.get("params");
+            if (method instanceof String)
+                listener.onNotification(this, (String) method,
+                        params instanceof List ? (List<Object>) params : new ArrayList<>());
+            return;
+        }
+        final SettableFuture<Object> future = pending.remove(((Number) id).longValue());
+        if (future == null)
+            return;
+        final Object error = message.get("error");
+        if (error != null) {
+            if (error instanceof Map) {
+                final Map<String, Object> e = (Map<String, Object>) error;
+                final Object code = e.get("code");
+                future.setException(new ElectrumException(code instanceof Number ? ((Number) code).intValue() : 0,
+                        String.valueOf(e.get("message"))));
+            } else {
+                future.setException(new ElectrumException(0, error.toString()));
+            }
+        } else {
+            future.set(message.get("result"));
+        }
+    }
+
+    private void fail(final IOException x) {
+        open = false;
+        try {
+            socket.close();
+        } catch (final IOException ignore) {
+        }
+        for (final Iterator<SettableFuture<Object>> i = pending.values().iterator(); i.hasNext();) {
+            i.next().setException(x);
+            i.remove();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "electrum " + address + (open ? "" : " (closed)");
+    }
+}
@@ -0,0 +1,34 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.service.electrum;
+
+import java.io.IOException;
+
+/**
+ * An error response from an Electrum server.
+ */
+public class ElectrumException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    public final int code;
+
+    public ElectrumException(final int code, final String message) {
+        super(message + " (" + code + ")");
+        this.code = code;
+    }
+}
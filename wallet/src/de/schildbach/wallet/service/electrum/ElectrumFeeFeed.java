@@ -0,0 +1,81 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.service.electrum;
+
+import de.schildbach.wallet.data.FeeEstimator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Feeds a {@link FeeEstimator} with the mempool fee histogram of an Electrum server, once on start and again with
+ * every new block, as that is when the mempool changes most.
+ *
+ * <p>Queries run on the given executor, never on the thread delivering the server's notifications, which would wait
+ * for its own answer.
+ */
+public class ElectrumFeeFeed implements ElectrumClient.Listener {
+    private final ElectrumClient client;
+    private final FeeEstimator estimator;
+    private final Executor executor;
+
+    private static final Logger log = LoggerFactory.getLogger(ElectrumFeeFeed.class);
+
+    public ElectrumFeeFeed(final ElectrumClient client, final FeeEstimator estimator, final Executor executor) {
+        this.client = checkNotNull(client);
+        this.estimator = checkNotNull(estimator);
+        this.executor = checkNotNull(executor);
+    }
+
+    /** Starts following new blocks, which needs {@link ElectrumClient#subscribeHeaders()}, and refreshes right away. */
+    public void start() {
+        client.addListener(this);
+        executor.execute(this::refresh);
+    }
+
+    public void stop() {
+        client.removeListener(this);
+    }
+
+    /** Fetches the histogram and hands it to the estimator. Blocks the calling thread. */
+    public void refresh() {
+        try {
+            final Map<Long, Long> histogram = client.getFeeHistogram();
+            estimator.onMempoolHistogram(histogram, System.currentTimeMillis());
+            log.debug("mempool fee histogram of {} bins", histogram.size());
+        } catch (final IOException x) {
+            log.info("cannot get mempool fee histogram: {}", x.getMessage());
+        }
+    }
+
+    @Override
+    public void onNewHeader(final int height) {
+        executor.execute(this::refresh);
+    }
+
+    @Override
+    public void onScriptHashStatus(final String scriptHash, @Nullable final String status) {
+        // not interested
+    }
+}
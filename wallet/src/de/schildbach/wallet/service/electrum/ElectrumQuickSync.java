@@ -0,0 +1,98 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.service.electrum;
+
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.script.Script;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Finds out which of a wallet's scripts were used and what they hold, with a handful of batched Electrum queries, so
+ * restore and balance refresh can show results before SPV sync has caught up.
+ */
+public class ElectrumQuickSync {
+    public static final class Result {
+        /** scripts with any history, in the order given */
+        public final List<Script> usedScripts;
+        public final Set<Sha256Hash> txIds;
+        public final Coin confirmed;
+        public final Coin unconfirmed;
+
+        private Result(final List<Script> usedScripts, final Set<Sha256Hash> txIds, final Coin confirmed,
+                final Coin unconfirmed) {
+            this.usedScripts = usedScripts;
+            this.txIds = txIds;
+            this.confirmed = confirmed;
+            this.unconfirmed = unconfirmed;
+        }
+
+        @Override
+        public String toString() {
+            return usedScripts.size() + " used scripts, " + txIds.size() + " transactions, "
+                    + confirmed.toFriendlyString() + " confirmed, " + unconfirmed.toFriendlyString() + " unconfirmed";
+        }
+    }
+
+    private final ElectrumClient client;
+
+    public ElectrumQuickSync(final ElectrumClient client) {
+        this.client = checkNotNull(client);
+    }
+
+    public Result scan(final List<Script> scripts) throws IOException {
+        final List<String> scriptHashes = new ArrayList<>(scripts.size());
+        for (final Script script : scripts)
+            scriptHashes.add(ElectrumClient.scriptHash(script));
+
+        final Map<String, List<ElectrumClient.HistoryItem>> histories = client.getHistories(scriptHashes);
+        final List<Script> usedScripts = new ArrayList<>();
+        final List<String> usedHashes = new ArrayList<>();
+        final Set<Sha256Hash> txIds = new LinkedHashSet<>();
+        for (int i = 0; i < scripts.size(); i++) {
+            final List<ElectrumClient.HistoryItem> history = histories.get(scriptHashes.get(i));
+            if (history == null || history.isEmpty())
+                continue;
+            usedScripts.add(scripts.get(i));
+            usedHashes.add(scriptHashes.get(i));
+            for (final ElectrumClient.HistoryItem item : history)
+                txIds.add(item.txId);
+        }
+
+        long confirmed = 0, unconfirmed = 0;
+        if (!usedHashes.isEmpty()) {
+            for (final List<ElectrumClient.Utxo> utxos : client.listUnspent(usedHashes).values()) {
+                for (final ElectrumClient.Utxo utxo : utxos) {
+                    if (utxo.height > 0)
+                        confirmed += utxo.value;
+                    else
+                        unconfirmed += utxo.value;
+                }
+            }
+        }
+        return new Result(usedScripts, txIds, Coin.valueOf(confirmed), Coin.valueOf(unconfirmed));
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.service.http;
+
+import com.google.common.collect.ImmutableMap;
+import com.squareup.moshi.JsonAdapter;
+import com.squareup.moshi.JsonDataException;
+import com.squareup.moshi.JsonReader;
+import com.squareup.moshi.JsonWriter;
+import com.squareup.moshi.Moshi;
+import okio.Buffer;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * Runs several requests in one round trip, for example creating or checking many invoices at once. The request body
+ * is a JSON array of {@code {"method":..,"path":..,"body":..}} objects; the response is an array of
+ * {@code {"status":..,"body":..}} in the same order. Sub-requests are handled by the given handler, typically the
+ * router, on the current worker; event streams are not available to them.
+ */
+public class BatchHandler implements HttpServer.Handler {
+    public static final int DEFAULT_MAX_REQUESTS = 100;
+
+    private final HttpServer.Handler target;
+    private final int maxRequests;
+    private final JsonAdapter<Object> valueAdapter = new Moshi.Builder().build().adapter(Object.class);
+
+    public BatchHandler(final HttpServer.Handler target, final int maxRequests) {
+        checkArgument(maxRequests > 0);
+        this.target = checkNotNull(target);
+        this.maxRequests = maxRequests;
+    }
+
+    @Override
+    public void handle(final HttpRequest request, final HttpServer.Responder responder) throws Exception {
+        final List<HttpRequest> requests;
+        try {
+            requests = parse(request);
+        } catch (final IOException | JsonDataException | IllegalArgumentException x) {
+            responder.respond(HttpResponse.text(400, "bad batch: " + x.getMessage() + "\n"));
+            return;
+        }
+        if (requests.size() > maxRequests) {
+            responder.respond(HttpResponse.text(413, "at most " + maxRequests + " requests per batch\n"));
+            return;
+        }
+
+        final HttpResponse[] responses = new HttpResponse[requests.size()];
+        final AtomicInteger remaining = new AtomicInteger(requests.size());
+        if (requests.isEmpty()) {
+            responder.respond(HttpResponse.json(200, "[]"));
+            return;
+        }
+        for (int i = 0; i < requests.size(); i++) {
+            final int index = i;
+            final HttpServer.Responder collector = new HttpServer.Responder() {
+                private boolean responded = false;
+
+                @Override
+                public synchronized void respond(final HttpResponse response) {
+                    checkState(!responded, "already responded");
+                    responded = true;
+                    responses[index] = response;
+                    if (remaining.decrementAndGet() == 0)
+                        responder.respond(combine(responses));
+                }
+
+                @Override
+                public HttpServer.EventStream startEventStream() {
+                    throw new UnsupportedOperationException("no event streams in batches");
+                }
+
+                @Override
+                public boolean isOpen() {
+                    return responder.isOpen();
+                }
+            };
+            try {
+                target.handle(requests.get(i), collector);
+            } catch (final Exception x) {
+                collector.respond(HttpResponse.text(500, String.valueOf(x.getMessage())));
+            }
+        }
+    }
+
+    private List<HttpRequest> parse(final HttpRequest request) throws IOException {
+        final JsonReader reader = JsonReader.of(new Buffer().write(request.body));
+        final List<HttpRequest> requests = new ArrayList<>();
+        reader.beginArray();
+        while (reader.hasNext()) {
+            String method = "GET";
+            String path = null;
+            byte[] body = new byte[0];
+            reader.beginObject();
+            while (reader.hasNext()) {
+                final String name = reader.nextName();
+                if ("method".equals(name))
+                    method = reader.nextString();
+                else if ("path".equals(name))
+                    path = reader.nextString();
+                else if ("body".equals(name))
+                    body = valueAdapter.toJson(reader.readJsonValue()).getBytes(StandardCharsets.UTF_8);
+                else
+                    reader.skipValue();
+            }
+            reader.endObject();
+            if (path == null || !path.startsWith("/"))
+                throw new IllegalArgumentException("missing path");
+            requests.add(HttpRequest.of(method, path, ImmutableMap.of("content-type", HttpResponse.JSON), body));
+        }
+        reader.endArray();
+        return requests;
+    }
+
+    private static HttpResponse combine(final HttpResponse[] responses) {
+        try {
+            final Buffer buffer = new Buffer();
+            final JsonWriter writer = JsonWriter.of(buffer);
+            writer.beginArray();
+            for (final HttpResponse response : responses) {
+                writer.beginObject();
+                writer.name("status").value(response.status);
+                writer.name("body");
+                if (response.isJson() && response.body.length > 0)
+                    writer.value(new Buffer().write(response.body));
+                else
+                    writer.value(new String(response.body, StandardCharsets.UTF_8));
+                writer.endObject();
+            }
+            writer.endArray();
+            writer.close();
+            return HttpResponse.json(200, buffer.readByteArray());
+        } catch (final IOException x) {
+            throw new RuntimeException(x); // cannot happen with an in-memory buffer
+        }
+    }
+}
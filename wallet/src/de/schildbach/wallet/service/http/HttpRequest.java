@@ -0,0 +1,90 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.service.http;
+
+import com.google.common.collect.ImmutableMap;
+
+import javax.annotation.Nullable;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * A parsed HTTP request. Header names are lower case.
+ */
+public final class HttpRequest {
+    public final String method;
+    public final String path;
+    public final Map<String, String> query;
+    public final Map<String, String> headers;
+    public final byte[] body;
+
+    public HttpRequest(final String method, final String path, final Map<String, String> query,
+            final Map<String, String> headers, final byte[] body) {
+        this.method = checkNotNull(method);
+        this.path = checkNotNull(path);
+        this.query = ImmutableMap.copyOf(query);
+        this.headers = ImmutableMap.copyOf(headers);
+        this.body = checkNotNull(body);
+    }
+
+    /** Splits a request target into path and query. */
+    static HttpRequest of(final String method, final String target, final Map<String, String> headers,
+            final byte[] body) {
+        final int q = target.indexOf('?');
+        final String path = decode(q >= 0 ? target.substring(0, q) : target);
+        final Map<String, String> query = new LinkedHashMap<>();
+        if (q >= 0) {
+            for (final String param : target.substring(q + 1).split("&")) {
+                if (param.isEmpty())
+                    continue;
+                final int eq = param.indexOf('=');
+                query.put(decode(eq >= 0 ? param.substring(0, eq) : param),
+                        eq >= 0 ? decode(param.substring(eq + 1)) : "");
+            }
+        }
+        return new HttpRequest(method, path, query, headers, body);
+    }
+
+    @Nullable
+    public String header(final String name) {
+        return headers.get(name.toLowerCase(Locale.US));
+    }
+
+    public String bodyAsString() {
+        return new String(body, StandardCharsets.UTF_8);
+    }
+
+    private static String decode(final String s) {
+        try {
+            return URLDecoder.decode(s, "UTF-8");
+        } catch (final UnsupportedEncodingException | IllegalArgumentException x) {
+            return s;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return method + " " + path;
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.service.http;
+
+import com.google.common.collect.ImmutableMap;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * An HTTP response with a complete body.
+ */
+public final class HttpResponse {
+    public static final String JSON = "application/json; charset=utf-8";
+    public static final String TEXT = "text/plain; charset=utf-8";
+
+    public final int status;
+    public final String contentType;
+    public final Map<String, String> headers;
+    public final byte[] body;
+
+    public HttpResponse(final int status, final String contentType, final Map<String, String> headers,
+            final byte[] body) {
+        this.status = status;
+        this.contentType = checkNotNull(contentType);
+        this.headers = ImmutableMap.copyOf(headers);
+        this.body = checkNotNull(body);
+    }
+
+    public static HttpResponse json(final int status, final String json) {
+        return new HttpResponse(status, JSON, ImmutableMap.<String, String> of(),
+                json.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public static HttpResponse json(final int status, final byte[] json) {
+        return new HttpResponse(status, JSON, ImmutableMap.<String, String> of(), json);
+    }
+
+    public static HttpResponse text(final int status, final String text) {
+        return new HttpResponse(status, TEXT, ImmutableMap.<String, String> of(),
+                text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public static HttpResponse error(final int status) {
+        return text(status, reason(status) + "\n");
+    }
+
+    public boolean isJson() {
+        return contentType.startsWith("application/json");
+    }
+
+    public static String reason(final int status) {
+        switch (status) {
+        case 200:
+            return "OK";
+        case 201:
+            return "Created";
+        case 204:
+            return "No Content";
+        case 400:
+            return "Bad Request";
+        case 404:
+            return "Not Found";
+        case 405:
+            return "Method Not Allowed";
+        case 408:
+            return "Request Timeout";
+        case 411:
+            return "Length Required";
+        case 413:
+            return "Payload Too Large";
+        case 500:
+            return "Internal Server Error";
+        case 501:
+            return "Not Implemented";
+        case 503:
+            return "Service Unavailable";
+        default:
+            return "Status " + status;
+        }
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.service.http;
+
+import javax.annotation.Nullable;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Dispatches requests by method and path. A path ending in {@code /*} matches everything below it; the longest
+ * matching prefix wins. Routes are meant to be added before the server starts.
+ */
+public class HttpRouter implements HttpServer.Handler {
+    private final Map<String, Map<String, HttpServer.Handler>> exact = new HashMap<>();
+    private final Map<String, Map<String, HttpServer.Handler>> prefixes = new LinkedHashMap<>();
+
+    public HttpRouter add(final String method, final String path, final HttpServer.Handler handler) {
+        checkArgument(path.startsWith("/"), "path must be absolute: %s", path);
+        checkNotNull(handler);
+        final Map<String, Map<String, HttpServer.Handler>> routes;
+        final String key;
+        if (path.endsWith("/*")) {
+            routes = prefixes;
+            key = path.substring(0, path.length() - 1);
+        } else {
+            routes = exact;
+            key = path;
+        }
+        Map<String, HttpServer.Handler> byMethod = routes.get(key);
+        if (byMethod == null) {
+            byMethod = new HashMap<>();
+            routes.put(key, byMethod);
+        }
+        byMethod.put(method, handler);
+        return this;
+    }
+
+    @Override
+    public void handle(final HttpRequest request, final HttpServer.Responder responder) throws Exception {
+        final Map<String, HttpServer.Handler> byMethod = find(request.path);
+        if (byMethod == null) {
+            responder.respond(HttpResponse.error(404));
+            return;
+        }
+        final HttpServer.Handler handler = byMethod.get(request.method);
+        if (handler == null) {
+            responder.respond(HttpResponse.error(405));
+            return;
+        }
+        handler.handle(request, responder);
+    }
+
+    @Nullable
+    private Map<String, HttpServer.Handler> find(final String path) {
+        final Map<String, HttpServer.Handler> byMethod = exact.get(path);
+        if (byMethod != null)
+            return byMethod;
+        Map<String, HttpServer.Handler> longest = null;
+        int longestLength = -1;
+        for (final Map.Entry<String, Map<String, HttpServer.Handler>> entry : prefixes.entrySet()) {
+            final String prefix = entry.getKey();
+            if (path.startsWith(prefix) && prefix.length() > longestLength) {
+                longest = entry.getValue();
+                longestLength = prefix.length();
+            }
+        }
+        return longest;
+    }
+
+    /** @return the part of the path below a {@code /*} route, for example the ID in {@code /invoice/ID} */
+    public static String tail(final HttpRequest request, final String route) {
+        checkArgument(route.endsWith("/*"));
+        final String prefix = route.substring(0, route.length() - 1);
+        return request.path.startsWith(prefix) ? request.path.substring(prefix.length()) : "";
+    }
+}
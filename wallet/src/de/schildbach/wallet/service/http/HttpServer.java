@@ -0,0 +1,541 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.service.http;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * Small HTTP/1.1 server on a single NIO selector thread. Connections are kept alive, and requests are handed to a
+ * bounded worker pool; when its queue is full, requests are answered with 503 right away instead of piling up.
+ *
+ * <p>Handlers answer through a {@link Responder}, which may be kept and used later from any thread. This is how
+ * long-polls wait for an event without occupying a worker, and how Server-Sent Events are streamed.
+ *
+ * <p>Request bodies need a {@code Content-Length}; chunked requests are not supported. Requests pipelined on one
+ * connection are handled one after another.
+ */
+public class HttpServer implements Closeable {
+    public interface Handler {
+        void handle(HttpRequest request, Responder responder) throws Exception;
+    }
+
+    public interface Responder {
+        /** Sends the response. Must be called at most once, from any thread. */
+        void respond(HttpResponse response);
+
+        /** Starts a {@code text/event-stream} response instead; the connection ends with the stream. */
+        EventStream startEventStream();
+
+        /** @return false once the client has disconnected */
+        boolean isOpen();
+    }
+
+    public interface EventStream {
+        /** @return false if the client is gone, so the stream can be dropped */
+        boolean send(@Nullable String event, String data);
+
+        void close();
+    }
+
+    public static final class Stats {
+        public final AtomicLong connections = new AtomicLong();
+        public final AtomicLong openConnections = new AtomicLong();
+        public final AtomicLong requests = new AtomicLong();
+        /** requests served on an already used connection */
+        public final AtomicLong keepAliveRequests = new AtomicLong();
+        public final AtomicLong rejected = new AtomicLong();
+
+        @Override
+        public String toString() {
+            return requests + " requests (" + keepAliveRequests + " on kept-alive connections, " + rejected
+                    + " rejected) over " + connections + " connections, " + openConnections + " open";
+        }
+    }
+
+    public static final int MAX_HEAD_SIZE = 16 * 1024;
+    public static final int MAX_BODY_SIZE = 1024 * 1024;
+    private static final long SELECT_TIMEOUT_MS = 1000;
+    private static final byte[] CONTINUE = "HTTP/1.1 100 Continue\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+
+    private final Handler handler;
+    private final ThreadPoolExecutor workers;
+    private final long idleTimeoutMs;
+    private final Selector selector;
+    private final ServerSocketChannel serverChannel;
+    private final Queue<Runnable> selectorTasks = new ConcurrentLinkedQueue<>();
+    private final Thread selectorThread;
+    private volatile boolean running = false;
+    private long lastIdleCheck = 0;
+    private final Stats stats = new Stats();
+
+    private static final Logger log = LoggerFactory.getLogger(HttpServer.class);
+
+    /**
+     * @param numWorkers
+     *            threads running handlers
+     * @param queueCapacity
+     *            requests waiting for a worker before new ones are rejected
+     * @param idleTimeoutMs
+     *            how long an idle kept-alive connection stays open
+     */
+    public HttpServer(final InetSocketAddress bindAddress, final Handler handler, final int numWorkers,
+            final int queueCapacity, final long idleTimeoutMs) throws IOException {
+        checkArgument(numWorkers > 0);
+        checkArgument(queueCapacity > 0);
+        this.handler = checkNotNull(handler);
+        this.idleTimeoutMs = idleTimeoutMs;
+        this.workers = new ThreadPoolExecutor(numWorkers, numWorkers, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(queueCapacity),
+                new ThreadFactoryBuilder().setNameFormat("http-worker-%d").setDaemon(true).build());
+        this.workers.allowCoreThreadTimeOut(true);
+        this.selector = Selector.open();
+        this.serverChannel = ServerSocketChannel.open();
+        serverChannel.configureBlocking(false);
+        serverChannel.socket().setReuseAddress(true);
+        serverChannel.socket().bind(bindAddress, 128);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        this.selectorThread = new Thread(this::run, "http-selector");
+        selectorThread.setDaemon(true);
+    }
+
+    public void start() {
+        checkState(!running);
+        running = true;
+        selectorThread.start();
+        log.info("http server listening on {}", serverChannel.socket().getLocalSocketAddress());
+    }
+
+    public int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    public Stats getStats() {
+        return stats;
+    }
+
+    @Override
+    public void close() throws IOException {
+        running = false;
+        selector.wakeup();
+        try {
+            selectorThread.join(5000);
+        } catch (final InterruptedException x) {
+            Thread.currentThread().interrupt();
+        }
+        workers.shutdownNow();
+    }
+
+    private void post(final Runnable task) {
+        selectorTasks.add(task);
+        selector.wakeup();
+    }
+
+    private void run() {
+        while (running) {
+            try {
+                selector.select(SELECT_TIMEOUT_MS);
+                Runnable task;
+                while ((task = selectorTasks.poll()) != null)
+                    task.run();
+                for (final Iterator<SelectionKey> i = selector.selectedKeys().iterator(); i.hasNext();) {
+                    final SelectionKey key = i.next();
+                    i.remove();
+                    if (key.isValid() && key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    final Connection connection = (Connection) key.attachment();
+                    try {
+                        if (key.isValid() && key.isReadable())
+                            connection.read();
+                        if (key.isValid() && key.isWritable())
+                            connection.write();
+                    } catch (final IOException | CancelledKeyException x) {
+                        connection.close();
+                    }
+                }
+                final long now = System.currentTimeMillis();
+                if (now - lastIdleCheck >= SELECT_TIMEOUT_MS) {
+                    lastIdleCheck = now;
+                    closeIdle(now);
+                }
+            } catch (final IOException x) {
+                log.warn("problem in http selector loop", x);
+            }
+        }
+        for (final SelectionKey key : selector.keys())
+            if (key.attachment() instanceof Connection)
+                ((Connection) key.attachment()).close();
+        try {
+            serverChannel.close();
+            selector.close();
+        } catch (final IOException x) {
+            log.info("problem closing http server", x);
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            final Connection connection = new Connection(channel);
+            connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+            stats.connections.incrementAndGet();
+            stats.openConnections.incrementAndGet();
+        }
+    }
+
+    private void closeIdle(final long now) {
+        for (final SelectionKey key : selector.keys()) {
+            if (!(key.attachment() instanceof Connection))
+                continue;
+            final Connection connection = (Connection) key.attachment();
+            if (!connection.busy && !connection.streaming && now - connection.lastActivity > idleTimeoutMs)
+                connection.close();
+        }
+    }
+
+    /** State of one client connection, confined to the selector thread except for {@link #open}. */
+    private final class Connection {
+        final SocketChannel channel;
+        SelectionKey key;
+        ByteBuffer in = ByteBuffer.allocate(4096);
+        final ArrayDeque<ByteBuffer> out = new ArrayDeque<>();
+        int scanFrom = 0;
+        boolean busy = false;
+        boolean streaming = false;
+        boolean closeAfterWrite = false;
+        boolean continueSent = false;
+        int numRequests = 0;
+        long lastActivity = System.currentTimeMillis();
+        volatile boolean open = true;
+
+        Connection(final SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        void read() throws IOException {
+            if (!in.hasRemaining()) {
+                if (busy || streaming) {
+                    key.interestOps(key.interestOps() & ~SelectionKey.OP_READ); // back-pressure
+                    return;
+                }
+                grow(in.capacity() * 2);
+            }
+            final int read = channel.read(in);
+            if (read < 0) {
+                close();
+                return;
+            }
+            lastActivity = System.currentTimeMillis();
+            if (!busy && !streaming)
+                processBuffered();
+        }
+
+        void processBuffered() {
+            try {
+                final HttpRequest request = parse();
+                if (request == null)
+                    return;
+                dispatch(request);
+            } catch (final BadRequest x) {
+                closeAfterWrite = true;
+                send(encode(HttpResponse.error(x.status), false));
+            }
+        }
+
+        private HttpRequest parse() throws BadRequest {
+            final byte[] buf = in.array();
+            final int length = in.position();
+            int headEnd = -1;
+            for (int i = Math.max(0, scanFrom - 3); i + 3 < length; i++) {
+                if (buf[i] == '\r' && buf[i + 1] == '\n' && buf[i + 2] == '\r' && buf[i + 3] == '\n') {
+                    headEnd = i + 4;
+                    break;
+                }
+            }
+            if (headEnd < 0) {
+                scanFrom = length;
+                if (length >= MAX_HEAD_SIZE)
+                    throw new BadRequest(413);
+                restoreReadInterest();
+                return null;
+            }
+
+            final String[] lines = new String(buf, 0, headEnd - 4, StandardCharsets.ISO_8859_1).split("\r\n");
+            final String[] requestLine = lines[0].split(" ");
+            if (requestLine.length != 3 || !requestLine[2].startsWith("HTTP/1."))
+                throw new BadRequest(400);
+            final Map<String, String> headers = new HashMap<>();
+            for (int i = 1; i < lines.length; i++) {
+                final int colon = lines[i].indexOf(':');
+                if (colon <= 0)
+                    throw new BadRequest(400);
+                headers.put(lines[i].substring(0, colon).trim().toLowerCase(Locale.US),
+                        lines[i].substring(colon + 1).trim());
+            }
+            if (headers.containsKey("transfer-encoding"))
+                throw new BadRequest(411);
+            int contentLength = 0;
+            final String contentLengthHeader = headers.get("content-length");
+            if (contentLengthHeader != null) {
+                try {
+                    contentLength = Integer.parseInt(contentLengthHeader);
+                } catch (final NumberFormatException x) {
+                    throw new BadRequest(400);
+                }
+                if (contentLength < 0)
+                    throw new BadRequest(400);
+                if (contentLength > MAX_BODY_SIZE)
+                    throw new BadRequest(413);
+            }
+            final int requestEnd = headEnd + contentLength;
+            if (length < requestEnd) {
+                if (in.capacity() < requestEnd)
+                    grow(requestEnd);
+                if (!continueSent && "100-continue".equalsIgnoreCase(headers.get("expect"))) {
+                    continueSent = true;
+                    send(ByteBuffer.wrap(CONTINUE));
+                }
+                restoreReadInterest();
+                return null;
+            }
+
+            final byte[] body = new byte[contentLength];
+            System.arraycopy(buf, headEnd, body, 0, contentLength);
+            in.flip();
+            in.position(requestEnd);
+            in.compact();
+            scanFrom = 0;
+            continueSent = false;
+
+            final String connectionHeader = headers.get("connection");
+            final boolean keepAlive = requestLine[2].equals("HTTP/1.1") ? !"close".equalsIgnoreCase(connectionHeader)
+                    : "keep-alive".equalsIgnoreCase(connectionHeader);
+            closeAfterWrite = !keepAlive;
+            return HttpRequest.of(requestLine[0], requestLine[1], headers, body);
+        }
+
+        private void grow(final int capacity) {
+            final ByteBuffer grown = ByteBuffer.allocate(Math.min(Math.max(capacity, in.capacity() * 2),
+                    MAX_HEAD_SIZE + MAX_BODY_SIZE));
+            in.flip();
+            grown.put(in);
+            in = grown;
+        }
+
+        private void restoreReadInterest() {
+            if (key.isValid() && (key.interestOps() & SelectionKey.OP_READ) == 0)
+                key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+        }
+
+        private void dispatch(final HttpRequest request) {
+            busy = true;
+            stats.requests.incrementAndGet();
+            if (numRequests++ > 0)
+                stats.keepAliveRequests.incrementAndGet();
+            final Exchange exchange = new Exchange(this, !closeAfterWrite);
+            try {
+                workers.execute(() -> {
+                    try {
+                        handler.handle(request, exchange);
+                    } catch (final Exception x) {
+                        log.warn("problem handling " + request, x);
+                        if (!exchange.responded.get())
+                            exchange.respond(HttpResponse.error(500));
+                    }
+                });
+            } catch (final RejectedExecutionException x) {
+                stats.rejected.incrementAndGet();
+                exchange.respond(HttpResponse.error(503));
+            }
+        }
+
+        /** Queues the bytes and, once this request is done, continues with the next buffered one. */
+        void finishRequest(final ByteBuffer response) {
+            busy = false;
+            send(response);
+            if (open && !closeAfterWrite && in.position() > 0)
+                processBuffered();
+            if (open && !busy)
+                restoreReadInterest();
+        }
+
+        void send(final ByteBuffer bytes) {
+            if (!open)
+                return;
+            out.add(bytes);
+            try {
+                write();
+            } catch (final IOException | CancelledKeyException x) {
+                close();
+            }
+        }
+
+        void write() throws IOException {
+            while (!out.isEmpty()) {
+                final ByteBuffer buffer = out.peek();
+                channel.write(buffer);
+                if (buffer.hasRemaining())
+                    break;
+                out.poll();
+            }
+            lastActivity = System.currentTimeMillis();
+            if (!out.isEmpty()) {
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+            } else if (closeAfterWrite && !busy && !streaming) {
+                close();
+            } else {
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            }
+        }
+
+        void close() {
+            if (!open)
+                return;
+            open = false;
+            stats.openConnections.decrementAndGet();
+            key.cancel();
+            try {
+                channel.close();
+            } catch (final IOException x) {
+                // ignore
+            }
+        }
+    }
+
+    private final class Exchange implements Responder, EventStream {
+        final Connection connection;
+        final boolean keepAlive;
+        final AtomicBoolean responded = new AtomicBoolean();
+
+        Exchange(final Connection connection, final boolean keepAlive) {
+            this.connection = connection;
+            this.keepAlive = keepAlive;
+        }
+
+        @Override
+        public void respond(final HttpResponse response) {
+            checkState(responded.compareAndSet(false, true), "already responded");
+            final ByteBuffer bytes = encode(response, keepAlive);
+            post(() -> connection.finishRequest(bytes));
+        }
+
+        @Override
+        public EventStream startEventStream() {
+            checkState(responded.compareAndSet(false, true), "already responded");
+            final ByteBuffer head = ByteBuffer.wrap(("HTTP/1.1 200 OK\r\nContent-Type: text/event-stream\r\n"
+                    + "Cache-Control: no-cache\r\nConnection: close\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+            post(() -> {
+                connection.streaming = true;
+                connection.closeAfterWrite = true;
+                connection.finishRequest(head);
+            });
+            return this;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return connection.open;
+        }
+
+        @Override
+        public boolean send(@Nullable final String event, final String data) {
+            if (!connection.open)
+                return false;
+            final StringBuilder message = new StringBuilder();
+            if (event != null)
+                message.append("event: ").append(event).append('\n');
+            for (final String line : data.split("\n", -1))
+                message.append("data: ").append(line).append('\n');
+            message.append('\n');
+            final ByteBuffer bytes = ByteBuffer.wrap(message.toString().getBytes(StandardCharsets.UTF_8));
+            post(() -> connection.send(bytes));
+            return true;
+        }
+
+        @Override
+        public void close() {
+            post(() -> {
+                connection.streaming = false;
+                if (connection.out.isEmpty())
+                    connection.close();
+            });
+        }
+    }
+
+    private static final class BadRequest extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        final int status;
+
+        BadRequest(final int status) {
+            super(HttpResponse.reason(status));
+            this.status = status;
+        }
+    }
+
+    static ByteBuffer encode(final HttpResponse response, final boolean keepAlive) {
+        final StringBuilder head = new StringBuilder(128);
+        head.append("HTTP/1.1 ").append(response.status).append(' ').append(HttpResponse.reason(response.status))
+                .append("\r\n");
+        head.append("Content-Type: ").append(response.contentType).append("\r\n");
+        head.append("Content-Length: ").append(response.body.length).append("\r\n");
+        head.append("Connection: ").append(keepAlive ? "keep-alive" : "close").append("\r\n");
+        for (final Map.Entry<String, String> header : response.headers.entrySet())
+            head.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+        head.append("\r\n");
+        final byte[] headBytes = head.toString().getBytes(StandardCharsets.ISO_8859_1);
+        final ByteBuffer buffer = ByteBuffer.allocate(headBytes.length + response.body.length);
+        buffer.put(headBytes).put(response.body);
+        buffer.flip();
+        return buffer;
+    }
+}
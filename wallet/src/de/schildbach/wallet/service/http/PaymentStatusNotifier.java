@@ -0,0 +1,224 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.service.http;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.primitives.Longs;
+
+import javax.annotation.Nullable;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Pushes payment status changes to point-of-sale clients, so they don't have to poll.
+ *
+ * <p>The latest status per key, for example a receiving address or invoice ID, is kept together with a version
+ * number. A long-poll request with {@code ?since=<version>} returns as soon as there is a newer status, or with
+ * {@code 204 No Content} after its timeout; an event stream gets every newer status as it is published. The version
+ * is passed back in the {@value #VERSION_HEADER} header and as the event name.
+ */
+public class PaymentStatusNotifier {
+    public static final String VERSION_HEADER = "X-Status-Version";
+    /** Subscribes an event stream to the statuses of all keys. */
+    public static final String ALL_KEYS = "*";
+
+    private final ScheduledExecutorService scheduler;
+    private final long maxTimeoutMs;
+    private final Map<String, Status> statuses;
+    private final Map<String, List<Waiter>> waiters = new HashMap<>();
+    private final Map<String, List<HttpServer.EventStream>> streams = new HashMap<>();
+    private long version = 0;
+
+    private static final class Status {
+        final long version;
+        final String json;
+
+        Status(final long version, final String json) {
+            this.version = version;
+            this.json = json;
+        }
+
+        HttpResponse toResponse() {
+            return new HttpResponse(200, HttpResponse.JSON,
+                    ImmutableMap.of(VERSION_HEADER, Long.toString(version)), json.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    private static final class Waiter {
+        final HttpServer.Responder responder;
+        ScheduledFuture<?> timeout;
+
+        Waiter(final HttpServer.Responder responder) {
+            this.responder = responder;
+        }
+    }
+
+    /**
+     * @param scheduler
+     *            used to expire long polls
+     * @param maxKeys
+     *            how many statuses to remember, least recently published are dropped first
+     * @param maxTimeoutMs
+     *            cap for the timeout a long-poll client may ask for
+     */
+    public PaymentStatusNotifier(final ScheduledExecutorService scheduler, final int maxKeys,
+            final long maxTimeoutMs) {
+        checkArgument(maxKeys > 0);
+        this.scheduler = checkNotNull(scheduler);
+        this.maxTimeoutMs = maxTimeoutMs;
+        this.statuses = new LinkedHashMap<String, Status>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<String, Status> eldest) {
+                return size() > maxKeys;
+            }
+        };
+    }
+
+    /**
+     * Stores a new status and hands it to everyone waiting for that key.
+     *
+     * @return the version of the status
+     */
+    public long publish(final String key, final String json) {
+        checkArgument(!ALL_KEYS.equals(key));
+        final Status status;
+        final List<Waiter> woken;
+        final List<HttpServer.EventStream> listening = new ArrayList<>();
+        synchronized (this) {
+            status = new Status(++version, checkNotNull(json));
+            statuses.put(key, status);
+            woken = waiters.remove(key);
+            collectStreams(key, listening);
+            collectStreams(ALL_KEYS, listening);
+        }
+        if (woken != null) {
+            for (final Waiter waiter : woken) {
+                waiter.timeout.cancel(false);
+                waiter.responder.respond(status.toResponse());
+            }
+        }
+        for (final HttpServer.EventStream stream : listening)
+            if (!stream.send(Long.toString(status.version), json))
+                removeStream(stream);
+        return status.version;
+    }
+
+    /** Answers with the status of a key once it is newer than {@code since}, or with 204 after the timeout. */
+    public void longPoll(final String key, final long since, final long timeoutMs,
+            final HttpServer.Responder responder) {
+        final Waiter waiter = new Waiter(responder);
+        final Status status;
+        synchronized (this) {
+            status = statuses.get(key);
+            if (status == null || status.version <= since) {
+                List<Waiter> list = waiters.get(key);
+                if (list == null) {
+                    list = new ArrayList<>(2);
+                    waiters.put(key, list);
+                }
+                list.add(waiter);
+                waiter.timeout = scheduler.schedule(() -> expire(key, waiter),
+                        Math.max(0, Math.min(timeoutMs, maxTimeoutMs)), TimeUnit.MILLISECONDS);
+                return;
+            }
+        }
+        responder.respond(status.toResponse());
+    }
+
+    /** Streams all statuses of a key, or of {@link #ALL_KEYS}, starting with the current one. */
+    public void stream(final String key, final HttpServer.Responder responder) {
+        final HttpServer.EventStream stream = responder.startEventStream();
+        final Status current;
+        synchronized (this) {
+            List<HttpServer.EventStream> list = streams.get(key);
+            if (list == null) {
+                list = new ArrayList<>(2);
+                streams.put(key, list);
+            }
+            list.add(stream);
+            current = statuses.get(key);
+        }
+        if (current != null)
+            stream.send(Long.toString(current.version), current.json);
+    }
+
+    /** Handler for {@code GET <route>/<key>?since=<version>&timeout=<ms>} on a {@code /*} route. */
+    public HttpServer.Handler longPollHandler(final String route) {
+        return (request, responder) -> {
+            final String key = HttpRouter.tail(request, route);
+            final Long since = parseLong(request.query.get("since"));
+            final Long timeout = parseLong(request.query.get("timeout"));
+            longPoll(key, since != null ? since : 0, timeout != null ? timeout : maxTimeoutMs, responder);
+        };
+    }
+
+    /** Handler for {@code GET <route>/<key>} on a {@code /*} route, answering with an event stream. */
+    public HttpServer.Handler eventStreamHandler(final String route) {
+        return (request, responder) -> stream(HttpRouter.tail(request, route), responder);
+    }
+
+    public synchronized int getNumWaiting() {
+        int num = 0;
+        for (final List<Waiter> list : waiters.values())
+            num += list.size();
+        for (final List<HttpServer.EventStream> list : streams.values())
+            num += list.size();
+        return num;
+    }
+
+    private void expire(final String key, final Waiter waiter) {
+        synchronized (this) {
+            final List<Waiter> list = waiters.get(key);
+            if (list == null || !list.remove(waiter))
+                return; // already answered
+            if (list.isEmpty())
+                waiters.remove(key);
+        }
+        waiter.responder.respond(HttpResponse.json(204, new byte[0]));
+    }
+
+    private void collectStreams(final String key, final List<HttpServer.EventStream> into) {
+        final List<HttpServer.EventStream> list = streams.get(key);
+        if (list != null)
+            into.addAll(list);
+    }
+
+    private synchronized void removeStream(final HttpServer.EventStream stream) {
+        for (final Iterator<List<HttpServer.EventStream>> i = streams.values().iterator(); i.hasNext();) {
+            final List<HttpServer.EventStream> list = i.next();
+            if (list.remove(stream) && list.isEmpty())
+                i.remove();
+        }
+    }
+
+    @Nullable
+    private static Long parseLong(@Nullable final String value) {
+        return value != null ? Longs.tryParse(value) : null;
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.service.http;
+
+import com.squareup.moshi.JsonWriter;
+import okio.Buffer;
+import org.bitcoinj.core.Address;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionConfidence;
+import org.bitcoinj.core.TransactionOutput;
+import org.bitcoinj.core.listeners.TransactionConfidenceEventListener;
+import org.bitcoinj.utils.Threading;
+import org.bitcoinj.wallet.Wallet;
+import org.bitcoinj.wallet.listeners.WalletCoinsReceivedEventListener;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Publishes the status of incoming payments per receiving address to a {@link PaymentStatusNotifier}.
+ *
+ * <p>Confidence events fire for every peer announcing a transaction; a status is only published when its type or its
+ * depth, up to {@link #FINAL_DEPTH}, actually changed.
+ */
+public class WalletPaymentStatusFeed implements WalletCoinsReceivedEventListener,
+        TransactionConfidenceEventListener {
+    public static final int FINAL_DEPTH = 6;
+    private static final int MAX_TRACKED = 1000;
+
+    private final Wallet wallet;
+    private final PaymentStatusNotifier notifier;
+    private final Map<Sha256Hash, String> lastState = new LinkedHashMap<Sha256Hash, String>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<Sha256Hash, String> eldest) {
+            return size() > MAX_TRACKED;
+        }
+    };
+
+    public WalletPaymentStatusFeed(final Wallet wallet, final PaymentStatusNotifier notifier) {
+        this.wallet = checkNotNull(wallet);
+        this.notifier = checkNotNull(notifier);
+    }
+
+    public void start() {
+        wallet.addCoinsReceivedEventListener(Threading.SAME_THREAD, this);
+        wallet.addTransactionConfidenceEventListener(Threading.SAME_THREAD, this);
+    }
+
+    public void stop() {
+        wallet.removeCoinsReceivedEventListener(this);
+        wallet.removeTransactionConfidenceEventListener(this);
+    }
+
+    @Override
+    public void onCoinsReceived(final Wallet wallet, final Transaction tx, final Coin prevBalance,
+            final Coin newBalance) {
+        update(tx);
+    }
+
+    @Override
+    public void onTransactionConfidenceChanged(final Wallet wallet, final Transaction tx) {
+        update(tx);
+    }
+
+    private void update(final Transaction tx) {
+        final TransactionConfidence confidence = tx.getConfidence();
+        final TransactionConfidence.ConfidenceType type = confidence.getConfidenceType();
+        final int depth = type == TransactionConfidence.ConfidenceType.BUILDING
+                ? Math.min(confidence.getDepthInBlocks(), FINAL_DEPTH) : 0;
+        final String state = type + "/" + depth;
+        synchronized (lastState) {
+            if (state.equals(lastState.put(tx.getTxId(), state)))
+                return;
+        }
+        for (final TransactionOutput output : tx.getOutputs()) {
+            if (!output.isMine(wallet))
+                continue;
+            final Address address = output.getScriptPubKey().getToAddress(wallet.getParams(), true);
+            notifier.publish(address.toString(), toJson(address, tx, output.getValue(), type, depth));
+        }
+    }
+
+    static String toJson(final Address address, final Transaction tx, final Coin value,
+            final TransactionConfidence.ConfidenceType type, final int depth) {
+        try {
+            final Buffer buffer = new Buffer();
+            final JsonWriter writer = JsonWriter.of(buffer);
+            writer.beginObject();
+            writer.name("address").value(address.toString());
+            writer.name("txid").value(tx.getTxId().toString());
+            writer.name("value").value(value.value);
+            writer.name("status").value(type == TransactionConfidence.ConfidenceType.BUILDING ? "confirmed"
+                    : type == TransactionConfidence.ConfidenceType.DEAD ? "dead" : "pending");
+            writer.name("confirmations").value(depth);
+            writer.endObject();
+            writer.close();
+            return buffer.readUtf8();
+        } catch (final IOException x) {
+            throw new RuntimeException(x); // cannot happen with an in-memory buffer
+        }
+    }
+}
@@ -0,0 +1,265 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.service.payout;
+
+import de.schildbach.wallet.service.broadcast.BroadcastQueue;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.InsufficientMoneyException;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionOutput;
+import org.bitcoinj.wallet.CoinSelection;
+import org.bitcoinj.wallet.CoinSelector;
+import org.bitcoinj.wallet.SendRequest;
+import org.bitcoinj.wallet.Wallet;
+import org.bouncycastle.crypto.params.KeyParameter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Pays a list of payees in as few transactions as fit the standard size limit, each with one output per payee, and
+ * hands them to the {@link BroadcastQueue}.
+ *
+ * <p>Payees are split into transactions of at most {@link #getMaxOutputsPerTx()} outputs, which leaves room for
+ * inputs. If a transaction still ends up too large, because it needs many small inputs, its payees are split in half
+ * and tried again. Transactions are committed to the wallet one after the other, and each may spend the change of the
+ * ones before, even though that change is still pending: the coin selector is wrapped so that it takes the outputs of
+ * this payout's own transactions first.
+ *
+ * <p>If a transaction can't be completed, for lack of funds or because a single payment would exceed the size limit,
+ * paying stops and the {@link Result} lists what was already committed, who is still unpaid and why. It doesn't throw,
+ * so a caller never has to guess which payees were paid.
+ */
+public class BatchPayout {
+    /** standard transaction size limit, in bytes */
+    public static final int MAX_TX_SIZE = Transaction.MAX_STANDARD_TX_SIZE;
+    /** part of {@link #MAX_TX_SIZE} planned for outputs; the rest is for inputs and change */
+    public static final int OUTPUT_BUDGET = MAX_TX_SIZE / 2;
+    /** size of a P2PKH output, in bytes */
+    private static final int OUTPUT_SIZE = 34;
+
+    public interface Listener {
+        /** Called on the paying thread after each transaction. */
+        void onProgress(int payeesPaid, int payeesTotal, int transactions);
+    }
+
+    public static final class Result {
+        public final List<Transaction> transactions;
+        public final List<Payee> unpaid;
+        public final Coin fee;
+        /**
+         * Why paying stopped, or null if everyone was paid. Either an {@link InsufficientMoneyException} or a
+         * {@link Wallet.CompletionException} such as {@link Wallet.ExceededMaxTransactionSize}.
+         */
+        @Nullable
+        public final Exception failure;
+
+        private Result(final List<Transaction> transactions, final List<Payee> unpaid, final Coin fee,
+                @Nullable final Exception failure) {
+            this.transactions = Collections.unmodifiableList(transactions);
+            this.unpaid = Collections.unmodifiableList(unpaid);
+            this.fee = fee;
+            this.failure = failure;
+        }
+
+        @Override
+        public String toString() {
+            return transactions.size() + " transactions, fee " + fee.toFriendlyString() + ", " + unpaid.size()
+                    + " unpaid" + (failure != null ? " (" + failure.getMessage() + ")" : "");
+        }
+    }
+
+    private final Wallet wallet;
+    private final BroadcastQueue broadcastQueue;
+    private final Coin feePerKb;
+    @Nullable
+    private final KeyParameter aesKey;
+    @Nullable
+    private final CoinSelector coinSelector;
+    private final int maxOutputsPerTx;
+
+    private static final Logger log = LoggerFactory.getLogger(BatchPayout.class);
+
+    /**
+     * @param coinSelector
+     *            selector to use, or null for the wallet's
+     */
+    public BatchPayout(final Wallet wallet, final BroadcastQueue broadcastQueue, final Coin feePerKb,
+            @Nullable final KeyParameter aesKey, @Nullable final CoinSelector coinSelector) {
+        this(wallet, broadcastQueue, feePerKb, aesKey, coinSelector, OUTPUT_BUDGET / OUTPUT_SIZE);
+    }
+
+    BatchPayout(final Wallet wallet, final BroadcastQueue broadcastQueue, final Coin feePerKb,
+            @Nullable final KeyParameter aesKey, @Nullable final CoinSelector coinSelector,
+            final int maxOutputsPerTx) {
+        checkArgument(maxOutputsPerTx > 0);
+        this.wallet = checkNotNull(wallet);
+        this.broadcastQueue = checkNotNull(broadcastQueue);
+        this.feePerKb = checkNotNull(feePerKb);
+        this.aesKey = aesKey;
+        this.coinSelector = coinSelector;
+        this.maxOutputsPerTx = maxOutputsPerTx;
+    }
+
+    public int getMaxOutputsPerTx() {
+        return maxOutputsPerTx;
+    }
+
+    /** @return the payees, split into transactions */
+    public List<List<Payee>> plan(final List<Payee> payees) {
+        final List<List<Payee>> batches = new ArrayList<>();
+        for (int from = 0; from < payees.size(); from += maxOutputsPerTx)
+            batches.add(payees.subList(from, Math.min(payees.size(), from + maxOutputsPerTx)));
+        return batches;
+    }
+
+    /** Pays on the executor, which should be a background thread. */
+    public Future<Result> submit(final ExecutorService executor, final List<Payee> payees,
+            @Nullable final Listener listener) {
+        return executor.submit(new Callable<Result>() {
+            @Override
+            public Result call() throws InsufficientMoneyException {
+                return pay(payees, listener);
+            }
+        });
+    }
+
+    /**
+     * Signs and queues the transactions. Don't call on the main thread.
+     *
+     * @throws InsufficientMoneyException
+     *             if the wallet can't even pay the payees without fees; nothing has been paid then
+     */
+    public Result pay(final List<Payee> payees, @Nullable final Listener listener)
+            throws InsufficientMoneyException {
+        checkArgument(!payees.isEmpty());
+        Coin total = Coin.ZERO;
+        for (final Payee payee : payees)
+            total = total.add(payee.amount);
+        final Coin available = wallet.getBalance(Wallet.BalanceType.AVAILABLE_SPENDABLE);
+        if (available.isLessThan(total))
+            throw new InsufficientMoneyException(total.subtract(available));
+
+        final List<Transaction> transactions = new ArrayList<>();
+        final ChainingCoinSelector selector = new ChainingCoinSelector(
+                coinSelector != null ? coinSelector : wallet.getCoinSelector());
+        final List<List<Payee>> pending = new ArrayList<>(plan(payees));
+        Coin fee = Coin.ZERO;
+        int paid = 0;
+        while (!pending.isEmpty()) {
+            final List<Payee> batch = pending.remove(0);
+            final Transaction tx;
+            try {
+                tx = sign(batch, selector);
+            } catch (final Wallet.ExceededMaxTransactionSize x) {
+                if (batch.size() > 1) {
+                    final int half = batch.size() / 2;
+                    pending.add(0, batch.subList(half, batch.size()));
+                    pending.add(0, batch.subList(0, half));
+                    log.info("transaction for {} payees too large, splitting", batch.size());
+                    continue;
+                }
+                return stopped(transactions, batch, pending, fee, paid, payees.size(), x);
+            } catch (final InsufficientMoneyException | Wallet.CompletionException x) {
+                return stopped(transactions, batch, pending, fee, paid, payees.size(), x);
+            }
+            wallet.commitTx(tx);
+            transactions.add(tx);
+            selector.chained.add(tx.getTxId());
+            broadcastQueue.enqueue(tx, System.currentTimeMillis());
+            fee = fee.add(tx.getFee());
+            paid += batch.size();
+            if (listener != null)
+                listener.onProgress(paid, payees.size(), transactions.size());
+        }
+        log.info("batch payout to {} payees in {} transactions, fee {}", payees.size(), transactions.size(),
+                fee.toFriendlyString());
+        return new Result(transactions, Collections.<Payee> emptyList(), fee, null);
+    }
+
+    private static Result stopped(final List<Transaction> transactions, final List<Payee> batch,
+            final List<List<Payee>> pending, final Coin fee, final int paid, final int total, final Exception x) {
+        final List<Payee> unpaid = new ArrayList<>(batch);
+        for (final List<Payee> rest : pending)
+            unpaid.addAll(rest);
+        log.info("batch payout stopped after {} of {} payees", paid, total, x);
+        return new Result(transactions, unpaid, fee, x);
+    }
+
+    private Transaction sign(final List<Payee> batch, final CoinSelector selector)
+            throws InsufficientMoneyException {
+        final Transaction tx = new Transaction(wallet.getParams());
+        for (final Payee payee : batch)
+            tx.addOutput(payee.amount, payee.address);
+        final SendRequest request = SendRequest.forTx(tx);
+        request.feePerKb = feePerKb;
+        request.aesKey = aesKey;
+        request.coinSelector = selector;
+        request.memo = batch.size() == 1 ? batch.get(0).label : null;
+        wallet.completeTx(request);
+        return request.tx;
+    }
+
+    /**
+     * Selects the change of transactions in {@link #chained} first, which selectors usually leave alone while it is
+     * pending, and the rest through the delegate.
+     */
+    private static final class ChainingCoinSelector implements CoinSelector {
+        private final CoinSelector delegate;
+        final Set<Sha256Hash> chained = new HashSet<>();
+
+        ChainingCoinSelector(final CoinSelector delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public CoinSelection select(final Coin target, final List<TransactionOutput> candidates) {
+            final List<TransactionOutput> gathered = new ArrayList<>();
+            final List<TransactionOutput> others = new ArrayList<>();
+            Coin value = Coin.ZERO;
+            for (final TransactionOutput output : candidates) {
+                final Transaction parent = output.getParentTransaction();
+                if (parent != null && chained.contains(parent.getTxId())) {
+                    gathered.add(output);
+                    value = value.add(output.getValue());
+                } else {
+                    others.add(output);
+                }
+            }
+            if (value.isLessThan(target)) {
+                final CoinSelection rest = delegate.select(target.subtract(value), others);
+                gathered.addAll(rest.gathered);
+                value = value.add(rest.valueGathered);
+            }
+            return new CoinSelection(value, gathered);
+        }
+    }
+}
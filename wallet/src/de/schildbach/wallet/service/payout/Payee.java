@@ -0,0 +1,49 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.service.payout;
+
+import org.bitcoinj.core.Address;
+import org.bitcoinj.core.Coin;
+
+import javax.annotation.Nullable;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * One recipient of a batch payout, as read from a line of the payout list.
+ */
+public final class Payee {
+    public final int line;
+    public final Address address;
+    public final Coin amount;
+    @Nullable
+    public final String label;
+
+    public Payee(final int line, final Address address, final Coin amount, @Nullable final String label) {
+        this.line = line;
+        this.address = checkNotNull(address);
+        this.amount = checkNotNull(amount);
+        this.label = label;
+    }
+
+    @Override
+    public String toString() {
+        return "line " + line + ": " + amount.toFriendlyString() + " to " + address
+                + (label != null ? " (" + label + ")" : "");
+    }
+}
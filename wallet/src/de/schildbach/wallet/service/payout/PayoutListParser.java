@@ -0,0 +1,178 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.service.payout;
+
+import com.google.common.math.LongMath;
+import org.bitcoinj.core.Address;
+import org.bitcoinj.core.AddressFormatException;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.TransactionOutput;
+import org.bitcoinj.uri.BitcoinURI;
+import org.bitcoinj.uri.BitcoinURIParseException;
+
+import javax.annotation.Nullable;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Reads a payout list line by line, validating every line in one pass. Each line is either a payment URI with an
+ * amount, like {@code dogecoin:D...?amount=1.5&label=Alice}, or a CSV row {@code address,amount[,label]} separated
+ * by commas, semicolons or tabs. Amounts are in coins. Empty lines and lines starting with {@code #} are skipped, as is
+ * a header row on the first line.
+ *
+ * <p>Invalid lines don't stop the parse; they are collected as {@link Problem}s, so the user can see them all at once.
+ */
+public class PayoutListParser {
+    public static final class Problem {
+        public final int line;
+        public final String message;
+
+        private Problem(final int line, final String message) {
+            this.line = line;
+            this.message = message;
+        }
+
+        @Override
+        public String toString() {
+            return "line " + line + ": " + message;
+        }
+    }
+
+    public static final class PayoutList {
+        public final List<Payee> payees;
+        public final List<Problem> problems;
+        public final Coin total;
+
+        private PayoutList(final List<Payee> payees, final List<Problem> problems, final Coin total) {
+            this.payees = Collections.unmodifiableList(payees);
+            this.problems = Collections.unmodifiableList(problems);
+            this.total = total;
+        }
+
+        public boolean isValid() {
+            return !payees.isEmpty() && problems.isEmpty();
+        }
+    }
+
+    private final NetworkParameters params;
+    private final String uriPrefix;
+
+    public PayoutListParser(final NetworkParameters params) {
+        this.params = checkNotNull(params);
+        this.uriPrefix = params.getUriScheme().toLowerCase(Locale.US) + ":";
+    }
+
+    public PayoutList parse(final Reader reader) throws IOException {
+        final BufferedReader lines = reader instanceof BufferedReader ? (BufferedReader) reader
+                : new BufferedReader(reader);
+        final List<Payee> payees = new ArrayList<>();
+        final List<Problem> problems = new ArrayList<>();
+        long total = 0;
+        int lineNumber = 0;
+        String line;
+        while ((line = lines.readLine()) != null) {
+            lineNumber++;
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#"))
+                continue;
+            try {
+                final Payee payee;
+                if (line.regionMatches(true, 0, uriPrefix, 0, uriPrefix.length()))
+                    payee = parseUri(lineNumber, line);
+                else
+                    payee = parseRow(lineNumber, line);
+                if (payee == null)
+                    continue;
+                if (payee.amount.signum() <= 0)
+                    throw new IllegalArgumentException("amount must be positive");
+                if (new TransactionOutput(params, null, payee.amount, payee.address).isDust())
+                    throw new IllegalArgumentException("amount " + payee.amount.toPlainString() + " is dust");
+                payees.add(payee);
+                total = LongMath.checkedAdd(total, payee.amount.value);
+            } catch (final IllegalArgumentException | ArithmeticException x) {
+                problems.add(new Problem(lineNumber, x.getMessage()));
+            }
+        }
+        return new PayoutList(payees, problems, Coin.valueOf(total));
+    }
+
+    private Payee parseUri(final int lineNumber, final String line) {
+        final BitcoinURI uri;
+        try {
+            uri = new BitcoinURI(params, line);
+        } catch (final BitcoinURIParseException x) {
+            throw new IllegalArgumentException(x.getMessage());
+        }
+        final Address address = uri.getAddress();
+        if (address == null)
+            throw new IllegalArgumentException("no address");
+        final Coin amount = uri.getAmount();
+        if (amount == null)
+            throw new IllegalArgumentException("no amount");
+        return new Payee(lineNumber, address, amount, uri.getLabel());
+    }
+
+    /** @return the payee, or null for a header row */
+    private @Nullable Payee parseRow(final int lineNumber, final String line) {
+        final String[] fields = line.split("[,;\t]", 3);
+        final String addressField = unquote(fields[0]);
+        final Address address;
+        try {
+            address = Address.fromString(params, addressField);
+        } catch (final AddressFormatException x) {
+            if (lineNumber == 1 && fields.length >= 2 && !looksLikeAmount(unquote(fields[1])))
+                return null; // header
+            throw new IllegalArgumentException("invalid address '" + addressField + "'");
+        }
+        if (fields.length < 2)
+            throw new IllegalArgumentException("no amount");
+        final String amountField = unquote(fields[1]);
+        final Coin amount;
+        try {
+            amount = Coin.parseCoin(amountField);
+        } catch (final IllegalArgumentException x) {
+            throw new IllegalArgumentException("invalid amount '" + amountField + "'");
+        }
+        final String label = fields.length > 2 ? unquote(fields[2]) : null;
+        return new Payee(lineNumber, address, amount, label != null && !label.isEmpty() ? label : null);
+    }
+
+    private static boolean looksLikeAmount(final String field) {
+        try {
+            Coin.parseCoin(field);
+            return true;
+        } catch (final IllegalArgumentException x) {
+            return false;
+        }
+    }
+
+    private static String unquote(String field) {
+        field = field.trim();
+        if (field.length() >= 2 && field.charAt(0) == '"' && field.charAt(field.length() - 1) == '"')
+            field = field.substring(1, field.length() - 1).replace("\"\"", "\"").trim();
+        return field;
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.service.pos;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Hashed timing wheel for deadlines. Adding and cancelling a timer take constant time; advancing only looks at the
+ * slots of the ticks that passed, rather than at every timer. Deadlines further away than one turn of the wheel just
+ * stay in their slot for more turns.
+ *
+ * <p>Timers never fire early, but up to one tick late. Not thread-safe.
+ */
+public final class ExpiryWheel<T> {
+    public static final class Timer<T> {
+        public final T item;
+        private final long tick;
+        private boolean cancelled = false;
+
+        private Timer(final T item, final long tick) {
+            this.item = item;
+            this.tick = tick;
+        }
+    }
+
+    private final long tickMs;
+    private final List<List<Timer<T>>> slots;
+    private long currentTick;
+    private int size = 0;
+
+    /**
+     * @param tickMs
+     *            resolution of the wheel
+     * @param numSlots
+     *            ticks per turn of the wheel
+     * @param now
+     *            start time
+     */
+    public ExpiryWheel(final long tickMs, final int numSlots, final long now) {
+        checkArgument(tickMs > 0);
+        checkArgument(numSlots > 0);
+        this.tickMs = tickMs;
+        this.slots = new ArrayList<>(numSlots);
+        for (int i = 0; i < numSlots; i++)
+            slots.add(new ArrayList<Timer<T>>(0));
+        this.currentTick = now / tickMs;
+    }
+
+    public Timer<T> add(final T item, final long deadline) {
+        final long tick = Math.max((deadline + tickMs - 1) / tickMs, currentTick + 1);
+        final Timer<T> timer = new Timer<>(checkNotNull(item), tick);
+        slots.get((int) (tick % slots.size())).add(timer);
+        size++;
+        return timer;
+    }
+
+    /** Cancels a timer; its slot entry is dropped the next time the slot comes around. */
+    public void cancel(final Timer<T> timer) {
+        if (!timer.cancelled) {
+            timer.cancelled = true;
+            size--;
+        }
+    }
+
+    /** @return the items whose deadline passed since the last call */
+    public List<T> advance(final long now) {
+        final long target = now / tickMs;
+        if (target <= currentTick)
+            return Collections.emptyList();
+        final List<T> expired = new ArrayList<>();
+        final long steps = Math.min(target - currentTick, slots.size());
+        for (long tick = currentTick + 1; tick <= currentTick + steps; tick++) {
+            for (final Iterator<Timer<T>> i = slots.get((int) (tick % slots.size())).iterator(); i.hasNext();) {
+                final Timer<T> timer = i.next();
+                if (timer.cancelled) {
+                    i.remove();
+                } else if (timer.tick <= target) {
+                    i.remove();
+                    timer.cancelled = true;
+                    size--;
+                    expired.add(timer.item);
+                }
+            }
+        }
+        currentTick = target;
+        return expired;
+    }
+
+    /** @return the number of pending timers */
+    public int size() {
+        return size;
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.service.pos;
+
+import org.bitcoinj.core.Address;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.script.ScriptBuilder;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * An open point-of-sale invoice: an amount expected on a receiving address until a deadline.
+ */
+public final class Invoice {
+    public final String id;
+    public final Address address;
+    public final Coin amount;
+    public final long createdAt;
+    public final long expiresAt;
+    private final Sha256Hash scriptHash;
+
+    public Invoice(final String id, final Address address, final Coin amount, final long createdAt,
+            final long expiresAt) {
+        checkArgument(amount.signum() > 0, "amount must be positive");
+        checkArgument(expiresAt > createdAt, "expires before creation");
+        this.id = checkNotNull(id);
+        this.address = checkNotNull(address);
+        this.amount = amount;
+        this.createdAt = createdAt;
+        this.expiresAt = expiresAt;
+        this.scriptHash = scriptHash(ScriptBuilder.createOutputScript(address).getProgram());
+    }
+
+    /** @return the hash of the output script paying this invoice, as used for matching */
+    public Sha256Hash getScriptHash() {
+        return scriptHash;
+    }
+
+    static Sha256Hash scriptHash(final byte[] scriptBytes) {
+        return Sha256Hash.of(scriptBytes);
+    }
+
+    @Override
+    public String toString() {
+        return "invoice " + id + ": " + amount.toFriendlyString() + " to " + address;
+    }
+}
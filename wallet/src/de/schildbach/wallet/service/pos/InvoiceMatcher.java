@@ -0,0 +1,198 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.service.pos;
+
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionOutput;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * Finds the open invoices a transaction pays.
+ *
+ * <p>Open invoices are indexed by the hash of the output script that pays them, so matching a transaction costs one
+ * hash and one lookup per output, no matter how many invoices are open. Payments are summed per invoice, counting
+ * each transaction once even if it is seen both in the mempool and in a block; a fully paid invoice is closed.
+ * Deadlines are kept in an {@link ExpiryWheel}.
+ *
+ * <p>Thread-safe.
+ */
+public class InvoiceMatcher {
+    public static final class Match {
+        public final Invoice invoice;
+        public final Sha256Hash txId;
+        /** the amount this transaction pays to the invoice */
+        public final Coin value;
+        /** the amount paid to the invoice so far, including this transaction */
+        public final Coin received;
+
+        private Match(final Invoice invoice, final Sha256Hash txId, final Coin value, final Coin received) {
+            this.invoice = invoice;
+            this.txId = txId;
+            this.value = value;
+            this.received = received;
+        }
+
+        public boolean isPaid() {
+            return received.compareTo(invoice.amount) >= 0;
+        }
+
+        @Override
+        public String toString() {
+            return invoice.id + " received " + value.toFriendlyString() + " in " + txId + ", "
+                    + received.toFriendlyString() + " of " + invoice.amount.toFriendlyString();
+        }
+    }
+
+    private static final class Entry {
+        final Invoice invoice;
+        final ExpiryWheel.Timer<Invoice> timer;
+        Coin received = Coin.ZERO;
+        final Set<Sha256Hash> txIds = new HashSet<>(2);
+
+        Entry(final Invoice invoice, final ExpiryWheel.Timer<Invoice> timer) {
+            this.invoice = invoice;
+            this.timer = timer;
+        }
+    }
+
+    private final Map<Sha256Hash, Entry> byScriptHash = new HashMap<>();
+    private final Map<String, Entry> byId = new HashMap<>();
+    private final ExpiryWheel<Invoice> wheel;
+    private final InvoiceMatcherStats stats = new InvoiceMatcherStats();
+
+    /**
+     * @param tickMs
+     *            expiry resolution
+     * @param numSlots
+     *            slots of the expiry wheel; a turn should cover the usual invoice lifetime
+     */
+    public InvoiceMatcher(final long tickMs, final int numSlots, final long now) {
+        this.wheel = new ExpiryWheel<>(tickMs, numSlots, now);
+    }
+
+    public synchronized void add(final Invoice invoice) {
+        checkArgument(!byId.containsKey(invoice.id), "duplicate invoice: %s", invoice.id);
+        checkArgument(!byScriptHash.containsKey(invoice.getScriptHash()), "address already awaits invoice: %s",
+                invoice.address);
+        final Entry entry = new Entry(invoice, wheel.add(invoice, invoice.expiresAt));
+        byScriptHash.put(invoice.getScriptHash(), entry);
+        byId.put(invoice.id, entry);
+        stats.onAdded();
+    }
+
+    /** Closes an invoice before it is paid or expires, for example when the sale is cancelled. */
+    @Nullable
+    public synchronized Invoice remove(final String id) {
+        final Entry entry = byId.get(id);
+        if (entry == null)
+            return null;
+        close(entry);
+        return entry.invoice;
+    }
+
+    @Nullable
+    public synchronized Invoice get(final String id) {
+        final Entry entry = byId.get(id);
+        return entry != null ? entry.invoice : null;
+    }
+
+    /** @return the amount received for an open invoice, or null if it isn't open */
+    @Nullable
+    public synchronized Coin getReceived(final String id) {
+        final Entry entry = byId.get(id);
+        return entry != null ? entry.received : null;
+    }
+
+    /** @return the payments to open invoices made by a transaction; fully paid invoices are closed */
+    public List<Match> match(final Transaction tx) {
+        final long start = System.nanoTime();
+        List<Match> matches = null;
+        synchronized (this) {
+            if (byScriptHash.isEmpty())
+                return Collections.emptyList();
+            final Sha256Hash txId = tx.getTxId();
+            for (final TransactionOutput output : tx.getOutputs()) {
+                final Entry entry = byScriptHash.get(Invoice.scriptHash(output.getScriptBytes()));
+                if (entry == null || entry.txIds.contains(txId) && !isOutputOf(matches, entry, txId))
+                    continue;
+                entry.txIds.add(txId);
+                entry.received = entry.received.add(output.getValue());
+                if (matches == null)
+                    matches = new ArrayList<>(1);
+                final Match match = new Match(entry.invoice, txId, output.getValue(), entry.received);
+                matches.add(match);
+                if (match.isPaid()) {
+                    close(entry);
+                    stats.onPaid();
+                }
+            }
+            stats.onTransaction(matches != null ? matches.size() : 0, System.nanoTime() - start);
+        }
+        return matches != null ? matches : Collections.<Match> emptyList();
+    }
+
+    /** @return the invoices that expired unpaid by now; they are closed */
+    public synchronized List<Invoice> expire(final long now) {
+        final List<Invoice> expired = wheel.advance(now);
+        for (final Invoice invoice : expired) {
+            final Entry entry = byId.remove(invoice.id);
+            byScriptHash.remove(invoice.getScriptHash());
+            checkState(entry != null && entry.invoice == invoice);
+        }
+        if (!expired.isEmpty())
+            stats.onExpired(expired.size());
+        return expired;
+    }
+
+    public synchronized int size() {
+        return byId.size();
+    }
+
+    public synchronized InvoiceMatcherStats.Snapshot getStats() {
+        return stats.snapshot(byId.size());
+    }
+
+    private void close(final Entry entry) {
+        byId.remove(entry.invoice.id);
+        byScriptHash.remove(entry.invoice.getScriptHash());
+        wheel.cancel(entry.timer);
+    }
+
+    /** A transaction may pay the same invoice in several outputs; those count, a second sighting doesn't. */
+    private static boolean isOutputOf(@Nullable final List<Match> matches, final Entry entry, final Sha256Hash txId) {
+        if (matches == null)
+            return false;
+        for (final Match match : matches)
+            if (match.invoice == entry.invoice && match.txId.equals(txId))
+                return true;
+        return false;
+    }
+}
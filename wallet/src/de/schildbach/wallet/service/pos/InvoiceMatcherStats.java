@@ -0,0 +1,103 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.service.pos;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Counters for invoice matching, with match latency percentiles over the most recent transactions.
+ */
+public final class InvoiceMatcherStats {
+    private static final int LATENCY_SAMPLES = 1024;
+
+    private long added = 0;
+    private long transactions = 0;
+    private long matchedOutputs = 0;
+    private long paid = 0;
+    private long expired = 0;
+    private final long[] latencies = new long[LATENCY_SAMPLES];
+    private int numLatencies = 0;
+    private int nextLatency = 0;
+
+    synchronized void onAdded() {
+        added++;
+    }
+
+    synchronized void onTransaction(final int matched, final long latencyNanos) {
+        transactions++;
+        matchedOutputs += matched;
+        latencies[nextLatency] = latencyNanos;
+        nextLatency = (nextLatency + 1) % LATENCY_SAMPLES;
+        numLatencies = Math.min(numLatencies + 1, LATENCY_SAMPLES);
+    }
+
+    synchronized void onPaid() {
+        paid++;
+    }
+
+    synchronized void onExpired(final int num) {
+        expired += num;
+    }
+
+    public synchronized Snapshot snapshot(final int openInvoices) {
+        final long[] sorted = Arrays.copyOf(latencies, numLatencies);
+        Arrays.sort(sorted);
+        return new Snapshot(openInvoices, added, transactions, matchedOutputs, paid, expired,
+                percentile(sorted, 50), percentile(sorted, 99));
+    }
+
+    private static long percentile(final long[] sorted, final int percentile) {
+        if (sorted.length == 0)
+            return 0;
+        return sorted[Math.min(sorted.length - 1, sorted.length * percentile / 100)];
+    }
+
+    public static final class Snapshot {
+        public final int openInvoices;
+        public final long added;
+        public final long transactions;
+        public final long matchedOutputs;
+        public final long paid;
+        public final long expired;
+        public final long matchLatencyP50Nanos;
+        public final long matchLatencyP99Nanos;
+
+        private Snapshot(final int openInvoices, final long added, final long transactions,
+                final long matchedOutputs, final long paid, final long expired, final long matchLatencyP50Nanos,
+                final long matchLatencyP99Nanos) {
+            this.openInvoices = openInvoices;
+            this.added = added;
+            this.transactions = transactions;
+            this.matchedOutputs = matchedOutputs;
+            this.paid = paid;
+            this.expired = expired;
+            this.matchLatencyP50Nanos = matchLatencyP50Nanos;
+            this.matchLatencyP99Nanos = matchLatencyP99Nanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US,
+                    "%d open invoices (%d added, %d paid, %d expired), %d outputs matched in %d transactions, "
+                            + "match latency p50/p99 %d/%d ns",
+                    openInvoices, added, paid, expired, matchedOutputs, transactions, matchLatencyP50Nanos,
+                    matchLatencyP99Nanos);
+        }
+    }
+}
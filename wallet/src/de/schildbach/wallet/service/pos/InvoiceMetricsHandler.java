@@ -0,0 +1,56 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.service.pos;
+
+import com.squareup.moshi.JsonWriter;
+import de.schildbach.wallet.service.http.HttpRequest;
+import de.schildbach.wallet.service.http.HttpResponse;
+import de.schildbach.wallet.service.http.HttpServer;
+import okio.Buffer;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Serves the {@link InvoiceMatcher} counters as JSON, for a {@code GET /metrics} route.
+ */
+public class InvoiceMetricsHandler implements HttpServer.Handler {
+    private final InvoiceMatcher matcher;
+
+    public InvoiceMetricsHandler(final InvoiceMatcher matcher) {
+        this.matcher = checkNotNull(matcher);
+    }
+
+    @Override
+    public void handle(final HttpRequest request, final HttpServer.Responder responder) throws Exception {
+        final InvoiceMatcherStats.Snapshot stats = matcher.getStats();
+        final Buffer buffer = new Buffer();
+        final JsonWriter writer = JsonWriter.of(buffer);
+        writer.beginObject();
+        writer.name("openInvoices").value(stats.openInvoices);
+        writer.name("added").value(stats.added);
+        writer.name("paid").value(stats.paid);
+        writer.name("expired").value(stats.expired);
+        writer.name("transactions").value(stats.transactions);
+        writer.name("matchedOutputs").value(stats.matchedOutputs);
+        writer.name("matchLatencyP50Nanos").value(stats.matchLatencyP50Nanos);
+        writer.name("matchLatencyP99Nanos").value(stats.matchLatencyP99Nanos);
+        writer.endObject();
+        writer.close();
+        responder.respond(HttpResponse.json(200, buffer.readByteArray()));
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.service.pos;
+
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.utils.Threading;
+import org.bitcoinj.wallet.Wallet;
+import org.bitcoinj.wallet.listeners.WalletCoinsReceivedEventListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * Feeds the transactions a wallet receives, from the mempool as well as from blocks, into an {@link InvoiceMatcher}
+ * and expires invoices once per tick.
+ */
+public class WalletInvoiceWatcher implements WalletCoinsReceivedEventListener {
+    public interface Listener {
+        void onPayment(InvoiceMatcher.Match match);
+
+        void onExpired(Invoice invoice);
+    }
+
+    private final Wallet wallet;
+    private final InvoiceMatcher matcher;
+    private final Listener listener;
+    private final ScheduledExecutorService scheduler;
+    private final long tickMs;
+    @Nullable
+    private ScheduledFuture<?> expiry;
+
+    private static final Logger log = LoggerFactory.getLogger(WalletInvoiceWatcher.class);
+
+    public WalletInvoiceWatcher(final Wallet wallet, final InvoiceMatcher matcher, final Listener listener,
+            final ScheduledExecutorService scheduler, final long tickMs) {
+        this.wallet = checkNotNull(wallet);
+        this.matcher = checkNotNull(matcher);
+        this.listener = checkNotNull(listener);
+        this.scheduler = checkNotNull(scheduler);
+        this.tickMs = tickMs;
+    }
+
+    public synchronized void start() {
+        checkState(expiry == null, "already started");
+        wallet.addCoinsReceivedEventListener(Threading.SAME_THREAD, this);
+        expiry = scheduler.scheduleAtFixedRate(this::expire, tickMs, tickMs, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stop() {
+        wallet.removeCoinsReceivedEventListener(this);
+        if (expiry != null) {
+            expiry.cancel(false);
+            expiry = null;
+        }
+    }
+
+    @Override
+    public void onCoinsReceived(final Wallet wallet, final Transaction tx, final Coin prevBalance,
+            final Coin newBalance) {
+        for (final InvoiceMatcher.Match match : matcher.match(tx)) {
+            log.info("{}", match);
+            listener.onPayment(match);
+        }
+    }
+
+    private void expire() {
+        try {
+            final List<Invoice> expired = matcher.expire(System.currentTimeMillis());
+            for (final Invoice invoice : expired) {
+                log.info("{} expired", invoice);
+                listener.onExpired(invoice);
+            }
+        } catch (final RuntimeException x) {
+            log.warn("problem expiring invoices", x); // keep the schedule alive
+        }
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.service.recurring;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.os.Build;
+
+/**
+ * {@link RecurringPaymentScheduler.Wakeup} as a single exact alarm. Falls back to an inexact alarm where exact ones
+ * are not permitted.
+ */
+public class AlarmWakeup implements RecurringPaymentScheduler.Wakeup {
+    private final AlarmManager alarmManager;
+    private final PendingIntent operation;
+
+    /**
+     * @param operation
+     *            what to fire, typically a broadcast to a receiver calling
+     *            {@link RecurringPaymentScheduler#onWakeup(long)}; the same intent each time, so setting the alarm
+     *            replaces the previous one
+     */
+    public AlarmWakeup(final Context context, final PendingIntent operation) {
+        this.alarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        this.operation = operation;
+    }
+
+    @Override
+    public void setAt(final long time) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S && !alarmManager.canScheduleExactAlarms())
+            alarmManager.setAndAllowWhileIdle(AlarmManager.RTC_WAKEUP, time, operation);
+        else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M)
+            alarmManager.setExactAndAllowWhileIdle(AlarmManager.RTC_WAKEUP, time, operation);
+        else
+            alarmManager.setExact(AlarmManager.RTC_WAKEUP, time, operation);
+    }
+
+    @Override
+    public void cancel() {
+        alarmManager.cancel(operation);
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.service.recurring;
+
+import org.bitcoinj.core.Coin;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Recurring payments ordered by next due time, in a min-heap, so finding what is due next costs the same for 5 or
+ * 5,000 payments.
+ *
+ * <p>Replaced and removed payments stay in the heap until they surface, and are skipped then. Persisted to a small
+ * file, so a wakeup doesn't have to load and check every row of the database.
+ */
+public class PaymentSchedule {
+    private static final int FILE_MAGIC = 0x52505351; // "RPSQ"
+    private static final int FILE_VERSION = 1;
+
+    private final PriorityQueue<ScheduledPayment> heap = new PriorityQueue<>(16, (a, b) -> {
+        final int byDue = Long.compare(a.nextDueAt, b.nextDueAt);
+        return byDue != 0 ? byDue : Long.compare(a.id, b.id);
+    });
+    private final Map<Long, ScheduledPayment> byId = new HashMap<>();
+
+    private static final Logger log = LoggerFactory.getLogger(PaymentSchedule.class);
+
+    /** Adds a payment, or replaces the one with the same id. */
+    public void put(final ScheduledPayment payment) {
+        byId.put(payment.id, payment);
+        heap.add(payment);
+        compactIfNeeded();
+    }
+
+    @Nullable
+    public ScheduledPayment remove(final long id) {
+        final ScheduledPayment removed = byId.remove(id);
+        compactIfNeeded();
+        return removed;
+    }
+
+    @Nullable
+    public ScheduledPayment get(final long id) {
+        return byId.get(id);
+    }
+
+    public int size() {
+        return byId.size();
+    }
+
+    /** @return the payment due next, or {@code null} if there are none */
+    @Nullable
+    public ScheduledPayment peek() {
+        dropStale();
+        return heap.peek();
+    }
+
+    /**
+     * Takes out the payments that are due. If any are, the ones due within {@code windowMs} after {@code now} are
+     * taken too, so they can go out in the same transaction.
+     */
+    public List<ScheduledPayment> pollDue(final long now, final long windowMs) {
+        final List<ScheduledPayment> due = new ArrayList<>();
+        final ScheduledPayment first = peek();
+        if (first == null || first.nextDueAt > now)
+            return due;
+        ScheduledPayment next;
+        while ((next = peek()) != null && next.nextDueAt <= now + windowMs) {
+            heap.poll();
+            byId.remove(next.id);
+            due.add(next);
+        }
+        return due;
+    }
+
+    private void dropStale() {
+        ScheduledPayment head;
+        while ((head = heap.peek()) != null && byId.get(head.id) != head)
+            heap.poll();
+    }
+
+    private void compactIfNeeded() {
+        if (heap.size() > 2 * byId.size() + 16) {
+            heap.clear();
+            heap.addAll(byId.values());
+        }
+    }
+
+    public void write(final File file) throws IOException {
+        final File tempFile = new File(file.getParentFile(), file.getName() + ".tmp");
+        final FileOutputStream fos = new FileOutputStream(tempFile);
+        try (final DataOutputStream os = new DataOutputStream(new BufferedOutputStream(fos))) {
+            os.writeInt(FILE_MAGIC);
+            os.writeInt(FILE_VERSION);
+            os.writeInt(byId.size());
+            for (final ScheduledPayment payment : byId.values()) {
+                os.writeLong(payment.id);
+                os.writeUTF(payment.address);
+                os.writeLong(payment.amount.value);
+                os.writeLong(payment.startAt);
+                os.writeLong(payment.intervalMs);
+                os.writeLong(payment.nextDueAt);
+                os.writeBoolean(payment.label != null);
+                if (payment.label != null)
+                    os.writeUTF(payment.label);
+            }
+            os.flush();
+            fos.getFD().sync();
+        }
+        if (!tempFile.renameTo(file))
+            throw new IOException("cannot rename " + tempFile + " to " + file);
+    }
+
+    /** @return the schedule, or {@code null} if there is none or it cannot be read */
+    @Nullable
+    public static PaymentSchedule read(final File file) {
+        try (final DataInputStream is = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (is.readInt() != FILE_MAGIC || is.readInt() != FILE_VERSION)
+                throw new IOException("unknown format");
+            final PaymentSchedule schedule = new PaymentSchedule();
+            final int size = is.readInt();
+            for (int i = 0; i < size; i++) {
+                final long id = is.readLong();
+                final String address = is.readUTF();
+                final Coin amount = Coin.valueOf(is.readLong());
+                final long startAt = is.readLong();
+                final long intervalMs = is.readLong();
+                final long nextDueAt = is.readLong();
+                final String label = is.readBoolean() ? is.readUTF() : null;
+                schedule.put(new ScheduledPayment(id, address, amount, startAt, intervalMs, nextDueAt, label));
+            }
+            return schedule;
+        } catch (final FileNotFoundException x) {
+            return null;
+        } catch (final IOException | RuntimeException x) {
+            log.info("problem reading payment schedule " + file + ", ignoring", x);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,243 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.service.recurring;
+
+import org.bitcoinj.core.InsufficientMoneyException;
+import org.bitcoinj.core.Transaction;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Locale;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Runs recurring payments when they are due, with exactly one wakeup armed: for the earliest due payment.
+ *
+ * <p>On a wakeup, every due payment plus those due within the batch window are paid together, in one transaction
+ * with an output per recipient, which saves fees compared to a transaction each. Paid payments move on to their next
+ * due time. If paying fails, for example for lack of funds, they are retried after the retry delay, which doubles
+ * with each failure in a row up to {@link #MAX_RETRY_DELAY_MS}.
+ *
+ * <p>A payment must never be made twice. The transaction is therefore completed first, then the advanced schedule is
+ * written, and only then is the transaction committed to the wallet. Anything that fails after the commit, such as
+ * queueing the broadcast, doesn't count as a failure: the payments are paid and the broadcast is retried by the queue.
+ * If the process dies between writing the schedule and the commit, that one payment is skipped rather than doubled.
+ *
+ * <p>Call {@link #onWakeup(long)} from the alarm receiver, on a background thread.
+ */
+public class RecurringPaymentScheduler {
+    public interface BatchPayer {
+        /** Builds and signs one transaction paying all of the payments, without committing it anywhere. */
+        Transaction complete(List<ScheduledPayment> payments) throws InsufficientMoneyException;
+
+        /**
+         * Commits the transaction to the wallet and queues it for broadcast.
+         *
+         * @return false if the wallet refused the transaction, so nothing was paid
+         */
+        boolean commit(Transaction tx);
+    }
+
+    public interface Wakeup {
+        /** Replaces any wakeup set before. */
+        void setAt(long time);
+
+        void cancel();
+    }
+
+    public static final class Stats {
+        public final int scheduled;
+        public final long wakeups;
+        public final long emptyWakeups;
+        public final long transactions;
+        public final long payments;
+        public final long failures;
+
+        private Stats(final int scheduled, final long wakeups, final long emptyWakeups, final long transactions,
+                final long payments, final long failures) {
+            this.scheduled = scheduled;
+            this.wakeups = wakeups;
+            this.emptyWakeups = emptyWakeups;
+            this.transactions = transactions;
+            this.payments = payments;
+            this.failures = failures;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US,
+                    "%d scheduled, %d wakeups (%d with nothing due), %d payments in %d transactions, %d failures",
+                    scheduled, wakeups, emptyWakeups, payments, transactions, failures);
+        }
+    }
+
+    /** retries after repeated failures are at least this far apart */
+    public static final long MAX_RETRY_DELAY_MS = 24 * 60 * 60 * 1000L;
+
+    private final PaymentSchedule schedule;
+    @Nullable
+    private final File file;
+    private final BatchPayer payer;
+    private final Wakeup wakeup;
+    private final long batchWindowMs;
+    private final long retryDelayMs;
+    private long armedAt = Long.MAX_VALUE;
+    private int failuresInRow = 0;
+    private long wakeups = 0, emptyWakeups = 0, transactions = 0, payments = 0, failures = 0;
+
+    private static final Logger log = LoggerFactory.getLogger(RecurringPaymentScheduler.class);
+
+    /**
+     * @param file
+     *            where the schedule is persisted, or {@code null} to keep it in memory only
+     * @param batchWindowMs
+     *            payments due this long after a due one are paid along with it
+     */
+    public RecurringPaymentScheduler(final PaymentSchedule schedule, @Nullable final File file,
+            final BatchPayer payer, final Wakeup wakeup, final long batchWindowMs, final long retryDelayMs) {
+        checkArgument(batchWindowMs >= 0);
+        checkArgument(retryDelayMs > 0);
+        this.schedule = checkNotNull(schedule);
+        this.file = file;
+        this.payer = checkNotNull(payer);
+        this.wakeup = checkNotNull(wakeup);
+        this.batchWindowMs = batchWindowMs;
+        this.retryDelayMs = retryDelayMs;
+    }
+
+    /** Arms the wakeup for what is already scheduled, for example after boot. */
+    public synchronized void start() {
+        armedAt = -1; // whatever was armed before is unknown
+        arm();
+    }
+
+    /** Adds or replaces a payment. */
+    public synchronized void put(final ScheduledPayment payment) {
+        schedule.put(payment);
+        persist();
+        arm();
+    }
+
+    public synchronized void remove(final long id) {
+        if (schedule.remove(id) != null) {
+            persist();
+            arm();
+        }
+    }
+
+    /** Pays what is due, then arms the wakeup for the next due payment. */
+    public synchronized void onWakeup(final long now) {
+        wakeups++;
+        armedAt = Long.MAX_VALUE; // the alarm that woke us is used up
+        final List<ScheduledPayment> due = schedule.pollDue(now, batchWindowMs);
+        if (due.isEmpty()) {
+            emptyWakeups++;
+            arm();
+            return;
+        }
+        // due payments are out of the schedule until put back below, whatever the payer does
+        final Transaction tx;
+        try {
+            tx = payer.complete(due);
+        } catch (final InsufficientMoneyException | RuntimeException x) {
+            log.info("paying {} recurring payments failed", due.size(), x);
+            retry(due, now);
+            return;
+        }
+
+        for (final ScheduledPayment payment : due)
+            schedule.put(payment.advancedPast(Math.max(now, payment.nextDueAt)));
+        if (file != null) {
+            try {
+                schedule.write(file);
+            } catch (final IOException x) {
+                log.warn("problem writing payment schedule " + file + ", not paying", x);
+                retry(due, now);
+                return;
+            }
+        }
+
+        boolean committed = true;
+        try {
+            committed = payer.commit(tx);
+        } catch (final RuntimeException x) {
+            // the transaction may well be in the wallet by now, so paying again could pay twice
+            log.warn("committing {} failed, counting its {} recurring payments as paid", tx.getTxId(), due.size(),
+                    x);
+        }
+        if (!committed) {
+            retry(due, now);
+            return;
+        }
+        transactions++;
+        payments += due.size();
+        failuresInRow = 0;
+        log.info("paid {} recurring payments in {}", due.size(), tx.getTxId());
+        arm();
+    }
+
+    private void retry(final List<ScheduledPayment> due, final long now) {
+        failures++;
+        final long delay = retryDelay(failuresInRow++);
+        log.info("retrying {} recurring payments in {} ms", due.size(), delay);
+        for (final ScheduledPayment payment : due)
+            schedule.put(payment.withNextDueAt(now + delay));
+        persist();
+        arm();
+    }
+
+    private long retryDelay(final int previousFailures) {
+        final long cap = Math.max(retryDelayMs, MAX_RETRY_DELAY_MS);
+        long delay = retryDelayMs;
+        for (int i = 0; i < previousFailures && delay < cap; i++)
+            delay *= 2;
+        return Math.min(delay, cap);
+    }
+
+    private void arm() {
+        final ScheduledPayment next = schedule.peek();
+        final long at = next != null ? next.nextDueAt : Long.MAX_VALUE;
+        if (at == armedAt)
+            return;
+        armedAt = at;
+        if (next != null)
+            wakeup.setAt(at);
+        else
+            wakeup.cancel();
+    }
+
+    private void persist() {
+        if (file == null)
+            return;
+        try {
+            schedule.write(file);
+        } catch (final IOException x) {
+            log.warn("problem writing payment schedule " + file, x);
+        }
+    }
+
+    public synchronized Stats getStats() {
+        return new Stats(schedule.size(), wakeups, emptyWakeups, transactions, payments, failures);
+    }
+}
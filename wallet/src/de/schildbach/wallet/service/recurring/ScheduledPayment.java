@@ -0,0 +1,76 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.service.recurring;
+
+import org.bitcoinj.core.Coin;
+
+import javax.annotation.Nullable;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * A recurring payment as seen by the {@link RecurringPaymentScheduler}: who gets how much, how often, and when next.
+ */
+public final class ScheduledPayment {
+    public final long id;
+    public final String address;
+    public final Coin amount;
+    /** the first due time; later ones are multiples of the interval from here */
+    public final long startAt;
+    public final long intervalMs;
+    public final long nextDueAt;
+    @Nullable
+    public final String label;
+
+    public ScheduledPayment(final long id, final String address, final Coin amount, final long startAt,
+            final long intervalMs, final long nextDueAt, @Nullable final String label) {
+        checkArgument(amount.signum() > 0, "amount must be positive");
+        checkArgument(intervalMs > 0, "interval must be positive");
+        this.id = id;
+        this.address = checkNotNull(address);
+        this.amount = amount;
+        this.startAt = startAt;
+        this.intervalMs = intervalMs;
+        this.nextDueAt = nextDueAt;
+        this.label = label;
+    }
+
+    public ScheduledPayment(final long id, final String address, final Coin amount, final long startAt,
+            final long intervalMs, @Nullable final String label) {
+        this(id, address, amount, startAt, intervalMs, startAt, label);
+    }
+
+    public ScheduledPayment withNextDueAt(final long nextDueAt) {
+        return new ScheduledPayment(id, address, amount, startAt, intervalMs, nextDueAt, label);
+    }
+
+    /**
+     * @return the same payment, due at the first scheduled time after {@code now}; periods missed while the device
+     *         was off are skipped rather than paid all at once
+     */
+    public ScheduledPayment advancedPast(final long now) {
+        final long periods = now < startAt ? 0 : (now - startAt) / intervalMs + 1;
+        return withNextDueAt(startAt + periods * intervalMs);
+    }
+
+    @Override
+    public String toString() {
+        return "#" + id + " " + amount.toFriendlyString() + " to " + address + " due " + nextDueAt;
+    }
+}
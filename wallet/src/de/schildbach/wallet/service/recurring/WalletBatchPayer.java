@@ -0,0 +1,89 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.service.recurring;
+
+import de.schildbach.wallet.service.broadcast.BroadcastQueue;
+import org.bitcoinj.core.Address;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.InsufficientMoneyException;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.VerificationException;
+import org.bitcoinj.wallet.SendRequest;
+import org.bitcoinj.wallet.Wallet;
+import org.bouncycastle.crypto.params.KeyParameter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Pays a batch of recurring payments from the wallet, in one transaction with an output per payment, and hands it to
+ * the {@link BroadcastQueue}. Completing and committing are separate steps, so the scheduler can persist the advanced
+ * schedule in between.
+ */
+public class WalletBatchPayer implements RecurringPaymentScheduler.BatchPayer {
+    private final Wallet wallet;
+    private final BroadcastQueue broadcastQueue;
+    private final Coin feePerKb;
+    @Nullable
+    private final KeyParameter aesKey;
+
+    private static final Logger log = LoggerFactory.getLogger(WalletBatchPayer.class);
+
+    public WalletBatchPayer(final Wallet wallet, final BroadcastQueue broadcastQueue, final Coin feePerKb,
+            @Nullable final KeyParameter aesKey) {
+        this.wallet = checkNotNull(wallet);
+        this.broadcastQueue = checkNotNull(broadcastQueue);
+        this.feePerKb = checkNotNull(feePerKb);
+        this.aesKey = aesKey;
+    }
+
+    public static Transaction buildTransaction(final Wallet wallet, final List<ScheduledPayment> payments) {
+        checkArgument(!payments.isEmpty());
+        final Transaction tx = new Transaction(wallet.getParams());
+        for (final ScheduledPayment payment : payments)
+            tx.addOutput(payment.amount, Address.fromString(wallet.getParams(), payment.address));
+        return tx;
+    }
+
+    @Override
+    public Transaction complete(final List<ScheduledPayment> payments) throws InsufficientMoneyException {
+        final SendRequest request = SendRequest.forTx(buildTransaction(wallet, payments));
+        request.feePerKb = feePerKb;
+        request.aesKey = aesKey;
+        request.memo = payments.size() == 1 ? payments.get(0).label : null;
+        wallet.completeTx(request);
+        return request.tx;
+    }
+
+    @Override
+    public boolean commit(final Transaction tx) {
+        try {
+            wallet.maybeCommitTx(tx);
+        } catch (final VerificationException x) {
+            log.info("wallet refused {}", tx.getTxId(), x);
+            return false;
+        }
+        broadcastQueue.enqueue(tx, System.currentTimeMillis());
+        return true;
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.service.swap;
+
+import org.bitcoinj.core.Utils;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.script.ScriptBuilder;
+import org.bitcoinj.script.ScriptChunk;
+import org.bitcoinj.script.ScriptException;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static org.bitcoinj.script.ScriptOpCodes.OP_CHECKLOCKTIMEVERIFY;
+import static org.bitcoinj.script.ScriptOpCodes.OP_CHECKSIG;
+import static org.bitcoinj.script.ScriptOpCodes.OP_DROP;
+import static org.bitcoinj.script.ScriptOpCodes.OP_DUP;
+import static org.bitcoinj.script.ScriptOpCodes.OP_ELSE;
+import static org.bitcoinj.script.ScriptOpCodes.OP_ENDIF;
+import static org.bitcoinj.script.ScriptOpCodes.OP_EQUALVERIFY;
+import static org.bitcoinj.script.ScriptOpCodes.OP_HASH160;
+import static org.bitcoinj.script.ScriptOpCodes.OP_IF;
+import static org.bitcoinj.script.ScriptOpCodes.OP_SHA256;
+
+/**
+ * A parsed hash time-locked contract redeem script:
+ *
+ * <pre>
+ * OP_IF
+ *     OP_SHA256 &lt;secret hash&gt; OP_EQUALVERIFY OP_DUP OP_HASH160 &lt;recipient hash&gt;
+ * OP_ELSE
+ *     &lt;lock time&gt; OP_CHECKLOCKTIMEVERIFY OP_DROP OP_DUP OP_HASH160 &lt;refund hash&gt;
+ * OP_ENDIF
+ * OP_EQUALVERIFY OP_CHECKSIG
+ * </pre>
+ */
+public final class HtlcScript {
+    /** lock times below this are block heights, others are seconds since the epoch */
+    public static final long LOCKTIME_THRESHOLD = 500000000L;
+
+    public final byte[] redeemScript;
+    public final byte[] secretHash;
+    public final byte[] recipientHash;
+    public final byte[] refundHash;
+    public final long lockTime;
+    /** hash160 of the redeem script, as used in the pay-to-script-hash output */
+    public final byte[] scriptHash;
+
+    private HtlcScript(final byte[] redeemScript, final byte[] secretHash, final byte[] recipientHash,
+            final byte[] refundHash, final long lockTime) {
+        this.redeemScript = redeemScript;
+        this.secretHash = secretHash;
+        this.recipientHash = recipientHash;
+        this.refundHash = refundHash;
+        this.lockTime = lockTime;
+        this.scriptHash = Utils.sha256hash160(redeemScript);
+    }
+
+    public boolean isLockTimeHeight() {
+        return lockTime < LOCKTIME_THRESHOLD;
+    }
+
+    public static byte[] build(final byte[] secretHash, final byte[] recipientHash, final byte[] refundHash,
+            final long lockTime) {
+        checkArgument(secretHash.length == 32);
+        checkArgument(recipientHash.length == 20 && refundHash.length == 20);
+        return new ScriptBuilder().op(OP_IF).op(OP_SHA256).data(secretHash).op(OP_EQUALVERIFY).op(OP_DUP)
+                .op(OP_HASH160).data(recipientHash).op(OP_ELSE).number(lockTime).op(OP_CHECKLOCKTIMEVERIFY)
+                .op(OP_DROP).op(OP_DUP).op(OP_HASH160).data(refundHash).op(OP_ENDIF).op(OP_EQUALVERIFY)
+                .op(OP_CHECKSIG).build().getProgram();
+    }
+
+    /** @throws IllegalArgumentException if the script is not an HTLC of the expected form */
+    public static HtlcScript parse(final byte[] redeemScript) {
+        final List<ScriptChunk> chunks;
+        try {
+            chunks = new Script(redeemScript).getChunks();
+        } catch (final ScriptException x) {
+            throw new IllegalArgumentException(x);
+        }
+        checkArgument(chunks.size() == 17, "not an HTLC");
+        final int[] opcodes = { OP_IF, OP_SHA256, -1, OP_EQUALVERIFY, OP_DUP, OP_HASH160, -1, OP_ELSE, -1,
+                OP_CHECKLOCKTIMEVERIFY, OP_DROP, OP_DUP, OP_HASH160, -1, OP_ENDIF, OP_EQUALVERIFY, OP_CHECKSIG };
+        for (int i = 0; i < opcodes.length; i++)
+            if (opcodes[i] >= 0)
+                checkArgument(chunks.get(i).equalsOpCode(opcodes[i]), "not an HTLC");
+        final byte[] secretHash = chunks.get(2).data;
+        final byte[] recipientHash = chunks.get(6).data;
+        final byte[] refundHash = chunks.get(13).data;
+        checkArgument(secretHash != null && secretHash.length == 32, "bad secret hash");
+        checkArgument(recipientHash != null && recipientHash.length == 20, "bad recipient hash");
+        checkArgument(refundHash != null && refundHash.length == 20, "bad refund hash");
+        final ScriptChunk lockTimeChunk = chunks.get(8);
+        final long lockTime;
+        if (lockTimeChunk.isOpCode() && lockTimeChunk.data == null)
+            lockTime = Script.decodeFromOpN(lockTimeChunk.opcode);
+        else
+            lockTime = new BigInteger(1, Utils.reverseBytes(lockTimeChunk.data)).longValue();
+        return new HtlcScript(Arrays.copyOf(redeemScript, redeemScript.length), secretHash, recipientHash,
+                refundHash, lockTime);
+    }
+}
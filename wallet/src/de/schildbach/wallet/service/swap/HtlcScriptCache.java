@@ -0,0 +1,65 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.service.swap;
+
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Least recently used cache of parsed {@link HtlcScript}s, so a swap's script is parsed once rather than on every
+ * status check.
+ */
+public class HtlcScriptCache {
+    private final Map<ByteBuffer, HtlcScript> cache;
+    private long hits = 0, misses = 0;
+
+    public HtlcScriptCache(final int maxEntries) {
+        checkArgument(maxEntries > 0);
+        this.cache = new LinkedHashMap<ByteBuffer, HtlcScript>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<ByteBuffer, HtlcScript> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /** @throws IllegalArgumentException if the script is not an HTLC */
+    public synchronized HtlcScript get(final byte[] redeemScript) {
+        final ByteBuffer key = ByteBuffer.wrap(redeemScript);
+        HtlcScript script = cache.get(key);
+        if (script != null) {
+            hits++;
+        } else {
+            misses++;
+            script = HtlcScript.parse(redeemScript);
+            cache.put(ByteBuffer.wrap(script.redeemScript), script);
+        }
+        return script;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.service.swap;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Where the {@link SwapMonitor} looks up the HTLC outputs of one chain, for example an Electrum server or a block
+ * explorer API.
+ */
+public interface SwapChainBackend {
+    final class ScriptStatus {
+        public static final ScriptStatus UNFUNDED = new ScriptStatus(0, 0, false, null);
+
+        /** total value paid to the script */
+        public final long fundedValue;
+        public final int confirmations;
+        public final boolean spent;
+        /** the secret, if the output was spent via the redeem branch */
+        @Nullable
+        public final byte[] preimage;
+
+        public ScriptStatus(final long fundedValue, final int confirmations, final boolean spent,
+                @Nullable final byte[] preimage) {
+            this.fundedValue = fundedValue;
+            this.confirmations = confirmations;
+            this.spent = spent;
+            this.preimage = preimage;
+        }
+    }
+
+    /**
+     * Looks up many scripts in one round trip.
+     *
+     * @param scriptHashes
+     *            hash160 of the redeem scripts
+     * @return the status of each script, in the same order
+     */
+    List<ScriptStatus> getStatus(List<byte[]> scriptHashes) throws IOException;
+}
@@ -0,0 +1,351 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.service.swap;
+
+import org.bitcoinj.core.Utils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * Watches atomic swaps across chains, doing work only for swaps that changed.
+ *
+ * <p>Per chain it keeps an index from HTLC script hash to swap, so activity reported for a script, for example an
+ * Electrum status notification or a bloom filter match, goes straight to its swap via
+ * {@link #onScriptActivity(String, byte[])}. Such swaps are marked dirty and looked up together in batched queries by
+ * {@link #poll(String)}. Refund lock times sit in priority queues, so a new tip only touches the swaps whose lock time
+ * it reached. Funded swaps waiting for confirmations are re-checked on every new tip until they have enough.
+ */
+public class SwapMonitor {
+    public enum State {
+        AWAITING_FUNDING, FUNDED, REFUNDABLE, REDEEMED, REFUNDED;
+
+        public boolean isFinal() {
+            return this == REDEEMED || this == REFUNDED;
+        }
+    }
+
+    public static final class Swap {
+        public final String id;
+        public final String chain;
+        public final HtlcScript script;
+        public final long expectedValue;
+        private State state;
+        private int confirmations;
+        @Nullable
+        private byte[] preimage;
+
+        private Swap(final String id, final String chain, final HtlcScript script, final long expectedValue,
+                final State state) {
+            this.id = id;
+            this.chain = chain;
+            this.script = script;
+            this.expectedValue = expectedValue;
+            this.state = state;
+        }
+
+        public State getState() {
+            return state;
+        }
+
+        public int getConfirmations() {
+            return confirmations;
+        }
+
+        @Nullable
+        public byte[] getPreimage() {
+            return preimage;
+        }
+
+        @Override
+        public String toString() {
+            return id + " on " + chain + ": " + state;
+        }
+    }
+
+    public interface Listener {
+        void onStateChanged(Swap swap, State previous);
+    }
+
+    public static final class Stats {
+        public final int openSwaps;
+        public final long polls;
+        public final long queries;
+        public final long scriptsQueried;
+        public final long transitions;
+        public final long scriptCacheHits;
+        public final long scriptCacheMisses;
+
+        private Stats(final int openSwaps, final long polls, final long queries, final long scriptsQueried,
+                final long transitions, final long scriptCacheHits, final long scriptCacheMisses) {
+            this.openSwaps = openSwaps;
+            this.polls = polls;
+            this.queries = queries;
+            this.scriptsQueried = scriptsQueried;
+            this.transitions = transitions;
+            this.scriptCacheHits = scriptCacheHits;
+            this.scriptCacheMisses = scriptCacheMisses;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US,
+                    "%d open swaps, %d scripts queried in %d queries over %d polls, %d transitions, "
+                            + "script cache %d hits/%d misses",
+                    openSwaps, scriptsQueried, queries, polls, transitions, scriptCacheHits, scriptCacheMisses);
+        }
+    }
+
+    private static final Comparator<Swap> BY_LOCK_TIME = (a, b) -> Long.compare(a.script.lockTime,
+            b.script.lockTime);
+
+    private static final class ChainState {
+        final SwapChainBackend backend;
+        final Map<ByteBuffer, Swap> byScriptHash = new HashMap<>();
+        final PriorityQueue<Swap> heightDeadlines = new PriorityQueue<>(16, BY_LOCK_TIME);
+        final PriorityQueue<Swap> timeDeadlines = new PriorityQueue<>(16, BY_LOCK_TIME);
+        final Set<Swap> dirty = new LinkedHashSet<>();
+        final Set<Swap> confirming = new LinkedHashSet<>();
+        int height = 0;
+        long time = 0;
+
+        ChainState(final SwapChainBackend backend) {
+            this.backend = backend;
+        }
+
+        boolean isLockTimeReached(final HtlcScript script) {
+            return script.isLockTimeHeight() ? height >= script.lockTime : time >= script.lockTime;
+        }
+    }
+
+    private final HtlcScriptCache scriptCache;
+    private final int maxBatch;
+    private final int requiredConfirmations;
+    private final Map<String, ChainState> chains = new HashMap<>();
+    private final Map<String, Swap> byId = new HashMap<>();
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private long polls = 0, queries = 0, scriptsQueried = 0, transitions = 0;
+
+    private static final Logger log = LoggerFactory.getLogger(SwapMonitor.class);
+
+    public SwapMonitor(final HtlcScriptCache scriptCache, final int maxBatch, final int requiredConfirmations) {
+        checkArgument(maxBatch > 0);
+        checkArgument(requiredConfirmations > 0);
+        this.scriptCache = checkNotNull(scriptCache);
+        this.maxBatch = maxBatch;
+        this.requiredConfirmations = requiredConfirmations;
+    }
+
+    public void addListener(final Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(final Listener listener) {
+        listeners.remove(listener);
+    }
+
+    public synchronized void addChain(final String chain, final SwapChainBackend backend) {
+        checkState(!chains.containsKey(chain), "chain already added: %s", chain);
+        chains.put(chain, new ChainState(checkNotNull(backend)));
+    }
+
+    /**
+     * Starts watching a swap. It is looked up with the next {@link #poll(String)}.
+     *
+     * @throws IllegalArgumentException
+     *             if the redeem script is not an HTLC
+     */
+    public synchronized Swap add(final String id, final String chain, final byte[] redeemScript,
+            final long expectedValue, final State state) {
+        checkArgument(!state.isFinal());
+        checkState(!byId.containsKey(id), "swap already added: %s", id);
+        final ChainState chainState = checkNotNull(chains.get(chain), "unknown chain: %s", chain);
+        final HtlcScript script = scriptCache.get(redeemScript);
+        final Swap swap = new Swap(id, chain, script, expectedValue, state);
+        byId.put(id, swap);
+        chainState.byScriptHash.put(ByteBuffer.wrap(script.scriptHash), swap);
+        (script.isLockTimeHeight() ? chainState.heightDeadlines : chainState.timeDeadlines).add(swap);
+        chainState.dirty.add(swap);
+        return swap;
+    }
+
+    public synchronized void remove(final String id) {
+        final Swap swap = byId.remove(id);
+        if (swap != null)
+            unindex(chains.get(swap.chain), swap);
+    }
+
+    private void unindex(final ChainState chainState, final Swap swap) {
+        chainState.byScriptHash.remove(ByteBuffer.wrap(swap.script.scriptHash));
+        chainState.dirty.remove(swap);
+        chainState.confirming.remove(swap);
+        // deadline queues are cleaned up lazily
+    }
+
+    @Nullable
+    public synchronized Swap get(final String id) {
+        return byId.get(id);
+    }
+
+    /** Something happened to a script, for example a transaction paying to or spending from it. */
+    public synchronized void onScriptActivity(final String chain, final byte[] scriptHash) {
+        final ChainState chainState = chains.get(chain);
+        if (chainState == null)
+            return;
+        final Swap swap = chainState.byScriptHash.get(ByteBuffer.wrap(scriptHash));
+        if (swap != null)
+            chainState.dirty.add(swap);
+    }
+
+    /**
+     * A chain has a new tip. Swaps whose lock time it reached become refundable, and swaps still gathering
+     * confirmations are marked for lookup.
+     *
+     * @param time
+     *            median time past of the tip, in seconds
+     */
+    public void onNewTip(final String chain, final int height, final long time) {
+        final List<Swap> changed = new ArrayList<>();
+        final List<State> previous = new ArrayList<>();
+        synchronized (this) {
+            final ChainState chainState = checkNotNull(chains.get(chain), "unknown chain: %s", chain);
+            chainState.height = height;
+            chainState.time = time;
+            chainState.dirty.addAll(chainState.confirming);
+            for (final PriorityQueue<Swap> deadlines : Arrays.asList(chainState.heightDeadlines,
+                    chainState.timeDeadlines)) {
+                while (!deadlines.isEmpty() && chainState.isLockTimeReached(deadlines.peek().script)) {
+                    final Swap swap = deadlines.poll();
+                    if (byId.get(swap.id) != swap)
+                        continue;
+                    if (swap.state == State.FUNDED) {
+                        previous.add(swap.state);
+                        swap.state = State.REFUNDABLE;
+                        changed.add(swap);
+                        transitions++;
+                    } else if (swap.state == State.AWAITING_FUNDING) {
+                        chainState.dirty.add(swap); // one last look, it might have been funded just now
+                    }
+                }
+            }
+        }
+        notify(changed, previous);
+    }
+
+    /** Looks up all swaps of a chain that may have changed, in batches. */
+    public void poll(final String chain) throws IOException {
+        final ChainState chainState;
+        final List<Swap> dirty;
+        synchronized (this) {
+            chainState = checkNotNull(chains.get(chain), "unknown chain: %s", chain);
+            dirty = new ArrayList<>(chainState.dirty);
+            chainState.dirty.clear();
+            polls++;
+        }
+        for (int from = 0; from < dirty.size(); from += maxBatch) {
+            final List<Swap> batch = dirty.subList(from, Math.min(from + maxBatch, dirty.size()));
+            final List<byte[]> scriptHashes = new ArrayList<>(batch.size());
+            for (final Swap swap : batch)
+                scriptHashes.add(swap.script.scriptHash);
+            final List<SwapChainBackend.ScriptStatus> statuses;
+            try {
+                statuses = chainState.backend.getStatus(scriptHashes);
+            } catch (final IOException x) {
+                synchronized (this) {
+                    // try again next time
+                    for (final Swap swap : dirty.subList(from, dirty.size()))
+                        if (byId.get(swap.id) == swap)
+                            chainState.dirty.add(swap);
+                }
+                throw x;
+            }
+            final List<Swap> changed = new ArrayList<>();
+            final List<State> previous = new ArrayList<>();
+            synchronized (this) {
+                queries++;
+                scriptsQueried += batch.size();
+                for (int i = 0; i < batch.size(); i++) {
+                    final Swap swap = batch.get(i);
+                    if (byId.get(swap.id) != swap)
+                        continue;
+                    final State before = swap.state;
+                    apply(chainState, swap, statuses.get(i));
+                    if (swap.state != before) {
+                        changed.add(swap);
+                        previous.add(before);
+                        transitions++;
+                    }
+                }
+            }
+            notify(changed, previous);
+        }
+    }
+
+    private void apply(final ChainState chainState, final Swap swap, final SwapChainBackend.ScriptStatus status) {
+        swap.confirmations = status.confirmations;
+        if (status.spent) {
+            if (status.preimage != null) {
+                swap.preimage = status.preimage;
+                swap.state = State.REDEEMED;
+                log.info("swap {} redeemed, secret {}", swap.id, Utils.HEX.encode(status.preimage));
+            } else {
+                swap.state = State.REFUNDED;
+            }
+            byId.remove(swap.id);
+            unindex(chainState, swap);
+        } else if (status.fundedValue >= swap.expectedValue) {
+            swap.state = chainState.isLockTimeReached(swap.script) ? State.REFUNDABLE : State.FUNDED;
+            if (status.confirmations < requiredConfirmations)
+                chainState.confirming.add(swap);
+            else
+                chainState.confirming.remove(swap);
+        } else {
+            swap.state = State.AWAITING_FUNDING;
+            chainState.confirming.remove(swap);
+        }
+    }
+
+    private void notify(final List<Swap> changed, final List<State> previous) {
+        for (int i = 0; i < changed.size(); i++)
+            for (final Listener listener : listeners)
+                listener.onStateChanged(changed.get(i), previous.get(i));
+    }
+
+    public synchronized Stats getStats() {
+        return new Stats(byId.size(), polls, queries, scriptsQueried, transitions, scriptCache.getHits(),
+                scriptCache.getMisses());
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.ui;
+
+import com.google.common.base.Function;
+import de.schildbach.wallet.data.TransactionIndex;
+import org.bitcoinj.core.Sha256Hash;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Serves the rows of the transaction list page by page from a {@link TransactionIndex}, mapping a page of
+ * transactions to row items only when it is first shown.
+ *
+ * <p>Pages are counted from the oldest transaction, so that a new transaction only ever invalidates the newest page;
+ * a changed transaction only re-maps its own row. Index changes are forwarded to a {@link TransactionIndex.Listener},
+ * typically an adapter translating them to {@code notifyItem*()} calls, so no list diff is needed.
+ *
+ * <p>Confined to the thread the index is confined to.
+ */
+public class TransactionPager<T> implements TransactionIndex.Listener {
+    private final TransactionIndex index;
+    private final Function<Sha256Hash, T> mapper;
+    private final int pageSize;
+    private final Map<Integer, Object[]> pages;
+    private final TransactionIndex.Listener forward;
+    private int numMapped = 0;
+
+    /**
+     * @param mapper
+     *            builds the row item for a transaction
+     * @param maxPages
+     *            how many pages of row items to keep
+     * @param forward
+     *            receives the index changes once the pages are updated
+     */
+    public TransactionPager(final TransactionIndex index, final Function<Sha256Hash, T> mapper, final int pageSize,
+            final int maxPages, final TransactionIndex.Listener forward) {
+        checkArgument(pageSize > 0);
+        checkArgument(maxPages > 0);
+        this.index = checkNotNull(index);
+        this.mapper = checkNotNull(mapper);
+        this.pageSize = pageSize;
+        this.forward = checkNotNull(forward);
+        this.pages = new LinkedHashMap<Integer, Object[]>(maxPages + 1, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<Integer, Object[]> eldest) {
+                return size() > maxPages;
+            }
+        };
+    }
+
+    public void attach() {
+        index.addListener(this);
+    }
+
+    public void detach() {
+        index.removeListener(this);
+        pages.clear();
+    }
+
+    public int getItemCount() {
+        return index.size();
+    }
+
+    /** @return the row item at a display position, newest first */
+    @SuppressWarnings("unchecked")
+    public T getItem(final int position) {
+        final int slot = index.size() - 1 - position;
+        final int page = slot / pageSize;
+        Object[] rows = pages.get(page);
+        if (rows == null) {
+            final int first = page * pageSize;
+            rows = new Object[Math.min(pageSize, index.size() - first)];
+            for (int i = 0; i < rows.length; i++)
+                rows[i] = map(index.size() - 1 - (first + i));
+            pages.put(page, rows);
+        }
+        return (T) rows[slot - page * pageSize];
+    }
+
+    /** @return how many row items were built so far, for measuring */
+    public int getNumMapped() {
+        return numMapped;
+    }
+
+    private T map(final int position) {
+        numMapped++;
+        return mapper.apply(index.get(position));
+    }
+
+    private void invalidateFromSlot(final int slot) {
+        final int firstPage = slot / pageSize;
+        for (final Iterator<Integer> i = pages.keySet().iterator(); i.hasNext();)
+            if (i.next() >= firstPage)
+                i.remove();
+    }
+
+    @Override
+    public void onInserted(final int position) {
+        invalidateFromSlot(index.size() - 1 - position);
+        forward.onInserted(position);
+    }
+
+    @Override
+    public void onRemoved(final int position) {
+        invalidateFromSlot(index.size() - position);
+        forward.onRemoved(position);
+    }
+
+    @Override
+    public void onMoved(final int fromPosition, final int toPosition) {
+        invalidateFromSlot(index.size() - 1 - Math.max(fromPosition, toPosition));
+        forward.onMoved(fromPosition, toPosition);
+    }
+
+    @Override
+    public void onChanged(final int position) {
+        final int slot = index.size() - 1 - position;
+        final int page = slot / pageSize;
+        final Object[] rows = pages.get(page);
+        if (rows != null)
+            rows[slot - page * pageSize] = map(position);
+        forward.onChanged(position);
+    }
+
+    @Override
+    public void onReset() {
+        pages.clear();
+        forward.onReset();
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.ui.monitor;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.text.format.DateUtils;
+import androidx.lifecycle.LiveData;
+import de.schildbach.wallet.service.HeaderSyncStats;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Samples {@link HeaderSyncStats} once a second while observed, for display in the network monitor.
+ */
+public class HeaderSyncLiveData extends LiveData<HeaderSyncStats.Snapshot> {
+    private final HeaderSyncStats stats;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+
+    private final Runnable sampler = new Runnable() {
+        @Override
+        public void run() {
+            setValue(stats.snapshot());
+            handler.postDelayed(this, DateUtils.SECOND_IN_MILLIS);
+        }
+    };
+
+    public HeaderSyncLiveData(final HeaderSyncStats stats) {
+        this.stats = checkNotNull(stats);
+    }
+
+    @Override
+    protected void onActive() {
+        sampler.run();
+    }
+
+    @Override
+    protected void onInactive() {
+        handler.removeCallbacks(sampler);
+    }
+}
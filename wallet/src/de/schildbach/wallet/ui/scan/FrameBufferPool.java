@@ -0,0 +1,72 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.ui.scan;
+
+import javax.annotation.Nullable;
+import java.util.ArrayDeque;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * A fixed number of preview frame buffers, all of the same size. Once all are handed out, {@link #acquire()} returns
+ * {@code null} and the frame has to be skipped, so the camera never causes allocations after warm-up.
+ */
+public final class FrameBufferPool implements FrameDecoder.Recycler {
+    private final int bufferSize;
+    private final int capacity;
+    private final ArrayDeque<byte[]> free;
+    private int allocated = 0;
+
+    public FrameBufferPool(final int bufferSize, final int capacity) {
+        checkArgument(bufferSize > 0);
+        checkArgument(capacity > 0);
+        this.bufferSize = bufferSize;
+        this.capacity = capacity;
+        this.free = new ArrayDeque<>(capacity);
+    }
+
+    /** @return the size of a YUV420 frame, like the camera delivers previews in NV21 */
+    public static int nv21Size(final int width, final int height) {
+        return width * height * 3 / 2;
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    public synchronized @Nullable byte[] acquire() {
+        final byte[] buffer = free.pollFirst();
+        if (buffer != null)
+            return buffer;
+        if (allocated < capacity) {
+            allocated++;
+            return new byte[bufferSize];
+        }
+        return null;
+    }
+
+    @Override
+    public synchronized void recycle(final byte[] buffer) {
+        checkArgument(buffer.length == bufferSize, "foreign buffer");
+        free.addFirst(buffer);
+    }
+
+    public synchronized int getAllocated() {
+        return allocated;
+    }
+}
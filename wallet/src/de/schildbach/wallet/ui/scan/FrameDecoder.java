@@ -0,0 +1,152 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.ui.scan;
+
+import com.google.zxing.BinaryBitmap;
+import com.google.zxing.DecodeHintType;
+import com.google.zxing.PlanarYUVLuminanceSource;
+import com.google.zxing.ReaderException;
+import com.google.zxing.Result;
+import com.google.zxing.common.HybridBinarizer;
+import com.google.zxing.qrcode.QRCodeReader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Decodes QR codes from camera preview frames, one frame at a time. Frames arriving while a decode is running are
+ * dropped right away, so the decoder never queues up behind the camera.
+ *
+ * <p>Each frame is first decoded in a centered square crop, where the viewfinder asks the user to hold the code,
+ * and only if nothing is found there in the full frame. The frame's buffer is handed back to the {@link Recycler}
+ * once it is no longer needed, so a {@link FrameBufferPool} or the camera's callback buffers can be reused.
+ */
+public class FrameDecoder {
+    public interface Recycler {
+        void recycle(byte[] buffer);
+    }
+
+    public interface Listener {
+        /** Called on the decode thread. */
+        void onResult(Result result);
+    }
+
+    private final Executor executor;
+    private final Recycler recycler;
+    private final Listener listener;
+    private final float cropFraction;
+    private final ScanStats stats = new ScanStats();
+    private final AtomicBoolean busy = new AtomicBoolean(false);
+    private final QRCodeReader reader = new QRCodeReader();
+    private final Map<DecodeHintType, Object> hints = new EnumMap<>(DecodeHintType.class);
+    private final Runnable decodeRunnable = new Runnable() {
+        @Override
+        public void run() {
+            decodePending();
+        }
+    };
+
+    // handed from offer() to the decode thread; guarded by busy
+    private byte[] pendingFrame;
+    private int pendingWidth, pendingHeight;
+
+    private static final Logger log = LoggerFactory.getLogger(FrameDecoder.class);
+
+    /**
+     * @param cropFraction
+     *            side of the centered crop, as a fraction of the shorter frame side
+     */
+    public FrameDecoder(final Executor executor, final Recycler recycler, final Listener listener,
+            final float cropFraction) {
+        checkArgument(cropFraction > 0 && cropFraction <= 1);
+        this.executor = checkNotNull(executor);
+        this.recycler = checkNotNull(recycler);
+        this.listener = checkNotNull(listener);
+        this.cropFraction = cropFraction;
+    }
+
+    /**
+     * Offers a preview frame in NV21 or another YUV420 format with the luminance plane first.
+     *
+     * @return true if the frame is being decoded, false if it was dropped and its buffer already recycled
+     */
+    public boolean offer(final byte[] frame, final int width, final int height) {
+        stats.onFrame(System.nanoTime());
+        if (!busy.compareAndSet(false, true)) {
+            stats.onDropped();
+            recycler.recycle(frame);
+            return false;
+        }
+        pendingFrame = frame;
+        pendingWidth = width;
+        pendingHeight = height;
+        executor.execute(decodeRunnable);
+        return true;
+    }
+
+    public boolean isBusy() {
+        return busy.get();
+    }
+
+    public ScanStats.Snapshot getStats() {
+        return stats.snapshot();
+    }
+
+    private void decodePending() {
+        final byte[] frame = pendingFrame;
+        final int width = pendingWidth, height = pendingHeight;
+        pendingFrame = null;
+        try {
+            final long start = System.nanoTime();
+            final int side = (int) (Math.min(width, height) * cropFraction);
+            Result result = decode(frame, width, height, (width - side) / 2, (height - side) / 2, side, side);
+            final boolean inCrop = result != null;
+            if (result == null && side < Math.min(width, height))
+                result = decode(frame, width, height, 0, 0, width, height);
+            stats.onDecoded(System.nanoTime() - start, inCrop, result != null);
+            if (result != null)
+                listener.onResult(result);
+        } catch (final RuntimeException x) {
+            log.info("problem decoding frame", x);
+        } finally {
+            recycler.recycle(frame);
+            busy.set(false);
+        }
+    }
+
+    private @Nullable Result decode(final byte[] frame, final int width, final int height, final int left,
+            final int top, final int cropWidth, final int cropHeight) {
+        final PlanarYUVLuminanceSource source = new PlanarYUVLuminanceSource(frame, width, height, left, top,
+                cropWidth, cropHeight, false);
+        try {
+            return reader.decode(new BinaryBitmap(new HybridBinarizer(source)), hints);
+        } catch (final ReaderException x) {
+            return null;
+        } finally {
+            reader.reset();
+        }
+    }
+}
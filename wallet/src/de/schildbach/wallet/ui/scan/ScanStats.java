@@ -0,0 +1,113 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.ui.scan;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Counters for the scan pipeline: frame rate in and out, dropped frames, and decode latency percentiles over the
+ * most recent decodes.
+ */
+public final class ScanStats {
+    private static final int LATENCY_SAMPLES = 256;
+
+    private long firstFrameNanos = 0;
+    private long lastFrameNanos = 0;
+    private long frames = 0;
+    private long dropped = 0;
+    private long decoded = 0;
+    private long foundInCrop = 0;
+    private long foundInFullFrame = 0;
+    private final long[] latencies = new long[LATENCY_SAMPLES];
+    private int numLatencies = 0;
+    private int nextLatency = 0;
+
+    synchronized void onFrame(final long nowNanos) {
+        if (frames == 0)
+            firstFrameNanos = nowNanos;
+        lastFrameNanos = nowNanos;
+        frames++;
+    }
+
+    synchronized void onDropped() {
+        dropped++;
+    }
+
+    synchronized void onDecoded(final long latencyNanos, final boolean inCrop, final boolean inFullFrame) {
+        decoded++;
+        if (inCrop)
+            foundInCrop++;
+        else if (inFullFrame)
+            foundInFullFrame++;
+        latencies[nextLatency] = latencyNanos;
+        nextLatency = (nextLatency + 1) % LATENCY_SAMPLES;
+        numLatencies = Math.min(numLatencies + 1, LATENCY_SAMPLES);
+    }
+
+    public synchronized Snapshot snapshot() {
+        final long[] sorted = Arrays.copyOf(latencies, numLatencies);
+        Arrays.sort(sorted);
+        final long elapsedNanos = lastFrameNanos - firstFrameNanos;
+        final float framesPerSecond = frames > 1 && elapsedNanos > 0 ? (frames - 1) * 1e9f / elapsedNanos : 0;
+        final float decodedPerSecond = frames > 1 && elapsedNanos > 0 ? decoded * 1e9f / elapsedNanos : 0;
+        return new Snapshot(frames, dropped, decoded, foundInCrop, foundInFullFrame, framesPerSecond,
+                decodedPerSecond, percentile(sorted, 50), percentile(sorted, 99));
+    }
+
+    private static long percentile(final long[] sorted, final int percentile) {
+        if (sorted.length == 0)
+            return 0;
+        return sorted[Math.min(sorted.length - 1, sorted.length * percentile / 100)];
+    }
+
+    public static final class Snapshot {
+        public final long frames;
+        public final long dropped;
+        public final long decoded;
+        public final long foundInCrop;
+        public final long foundInFullFrame;
+        public final float framesPerSecond;
+        public final float decodedPerSecond;
+        public final long decodeLatencyP50Nanos;
+        public final long decodeLatencyP99Nanos;
+
+        private Snapshot(final long frames, final long dropped, final long decoded, final long foundInCrop,
+                final long foundInFullFrame, final float framesPerSecond, final float decodedPerSecond,
+                final long decodeLatencyP50Nanos, final long decodeLatencyP99Nanos) {
+            this.frames = frames;
+            this.dropped = dropped;
+            this.decoded = decoded;
+            this.foundInCrop = foundInCrop;
+            this.foundInFullFrame = foundInFullFrame;
+            this.framesPerSecond = framesPerSecond;
+            this.decodedPerSecond = decodedPerSecond;
+            this.decodeLatencyP50Nanos = decodeLatencyP50Nanos;
+            this.decodeLatencyP99Nanos = decodeLatencyP99Nanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US,
+                    "%d frames at %.1f fps, %d dropped, %d decoded at %.1f/s (found %d in crop, %d in full frame), "
+                            + "decode latency p50/p99 %.1f/%.1f ms",
+                    frames, framesPerSecond, dropped, decoded, decodedPerSecond, foundInCrop, foundInFullFrame,
+                    decodeLatencyP50Nanos / 1e6, decodeLatencyP99Nanos / 1e6);
+        }
+    }
+}
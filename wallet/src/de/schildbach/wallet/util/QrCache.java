@@ -0,0 +1,158 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.util;
+
+import android.graphics.Bitmap;
+import com.google.zxing.BarcodeFormat;
+import com.google.zxing.EncodeHintType;
+import com.google.zxing.WriterException;
+import com.google.zxing.common.BitMatrix;
+import com.google.zxing.qrcode.QRCodeWriter;
+import com.google.zxing.qrcode.decoder.ErrorCorrectionLevel;
+
+import javax.annotation.Nullable;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Encoded QR codes by content and size, so screens showing the same code again, like the payment terminal cycling
+ * through open invoices, don't encode it again. Matrices are cached, and bitmaps once one was asked for.
+ */
+public class QrCache {
+    private static final class Key {
+        final String content;
+        final int size;
+
+        Key(final String content, final int size) {
+            this.content = content;
+            this.size = size;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o)
+                return true;
+            if (!(o instanceof Key))
+                return false;
+            final Key other = (Key) o;
+            return size == other.size && content.equals(other.content);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * content.hashCode() + size;
+        }
+    }
+
+    private static final class Entry {
+        final BitMatrix matrix;
+        @Nullable
+        Bitmap bitmap;
+
+        Entry(final BitMatrix matrix) {
+            this.matrix = matrix;
+        }
+    }
+
+    private final QRCodeWriter writer = new QRCodeWriter();
+    private final Map<EncodeHintType, Object> hints = new EnumMap<>(EncodeHintType.class);
+    private final Map<Key, Entry> entries;
+    private long hits = 0, misses = 0;
+
+    public QrCache(final int maxEntries) {
+        checkArgument(maxEntries > 0);
+        hints.put(EncodeHintType.MARGIN, 0);
+        hints.put(EncodeHintType.ERROR_CORRECTION, ErrorCorrectionLevel.H);
+        this.entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<Key, Entry> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * @param size
+     *            width and height in pixels, or 0 for one pixel per module
+     * @return the encoded code; don't modify it, it is shared
+     */
+    public synchronized BitMatrix matrix(final String content, final int size) {
+        return entry(content, size).matrix;
+    }
+
+    /**
+     * @param size
+     *            width and height in pixels, or 0 for one pixel per module
+     * @return the code as an alpha mask; don't modify or recycle it, it is shared
+     */
+    public synchronized Bitmap bitmap(final String content, final int size) {
+        final Entry entry = entry(content, size);
+        if (entry.bitmap == null)
+            entry.bitmap = toBitmap(entry.matrix);
+        return entry.bitmap;
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    private Entry entry(final String content, final int size) {
+        checkNotNull(content);
+        checkArgument(size >= 0);
+        final Key key = new Key(content, size);
+        Entry entry = entries.get(key);
+        if (entry != null) {
+            hits++;
+            return entry;
+        }
+        misses++;
+        try {
+            entry = new Entry(writer.encode(content, BarcodeFormat.QR_CODE, size, size, hints));
+        } catch (final WriterException x) {
+            throw new IllegalArgumentException(x);
+        }
+        entries.put(key, entry);
+        return entry;
+    }
+
+    private static Bitmap toBitmap(final BitMatrix matrix) {
+        final int width = matrix.getWidth();
+        final int height = matrix.getHeight();
+        final int[] pixels = new int[width * height];
+        for (int y = 0; y < height; y++) {
+            final int offset = y * width;
+            for (int x = 0; x < width; x++)
+                pixels[offset + x] = matrix.get(x, y) ? 0xff000000 : 0x00000000;
+        }
+        final Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ALPHA_8);
+        bitmap.setPixels(pixels, 0, width, 0, 0, width, height);
+        return bitmap;
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.util.coinselection;
+
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.TransactionOutput;
+import org.bitcoinj.wallet.CoinSelection;
+import org.bitcoinj.wallet.CoinSelector;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Selects coins by a depth-first branch-and-bound search for a set of outputs that pays the target without needing
+ * change, that is within the cost of creating and later spending a change output. If there is no such set within
+ * {@link #MAX_TRIES}, the largest outputs are taken first, which keeps the number of inputs low.
+ *
+ * <p>Outputs are valued net of the fee for spending them at the given fee rate; the target passed in by the wallet is
+ * expected to cover the rest of the transaction.
+ */
+public class BranchAndBoundCoinSelector implements CoinSelector {
+    public static final int MAX_TRIES = 100000;
+
+    public enum Strategy {
+        BRANCH_AND_BOUND, LARGEST_FIRST, INSUFFICIENT
+    }
+
+    public static final class Selection {
+        public final Strategy strategy;
+        public final List<TransactionOutput> outputs;
+        public final Coin value;
+        /** value above the target, net of input fees; goes to change or, if changeless, to the fee */
+        public final Coin excess;
+        public final int tries;
+
+        private Selection(final Strategy strategy, final List<TransactionOutput> outputs, final long value,
+                final long excess, final int tries) {
+            this.strategy = strategy;
+            this.outputs = outputs;
+            this.value = Coin.valueOf(value);
+            this.excess = Coin.valueOf(excess);
+            this.tries = tries;
+        }
+
+        @Override
+        public String toString() {
+            return strategy + ": " + outputs.size() + " inputs, " + value.toFriendlyString() + ", excess "
+                    + excess.toFriendlyString() + ", " + tries + " tries";
+        }
+    }
+
+    private final Coin feePerKb;
+    private final long costOfChange;
+    private final ExcludedOutputs excluded;
+
+    public BranchAndBoundCoinSelector(final Coin feePerKb, final ExcludedOutputs excluded) {
+        this.feePerKb = checkNotNull(feePerKb);
+        this.costOfChange = SpendableOutput.fee(feePerKb, SpendableOutput.OUTPUT_SIZE + SpendableOutput.INPUT_SIZE);
+        this.excluded = checkNotNull(excluded);
+    }
+
+    @Override
+    public CoinSelection select(final Coin target, final List<TransactionOutput> candidates) {
+        final Selection selection = selectDetailed(target, candidates);
+        return new CoinSelection(selection.value, selection.outputs);
+    }
+
+    public Selection selectDetailed(final Coin target, final List<TransactionOutput> candidates) {
+        final List<SpendableOutput> outputs = SpendableOutput.filter(candidates, feePerKb, excluded);
+        Collections.sort(outputs, (a, b) -> Long.compare(b.effectiveValue, a.effectiveValue));
+        final int n = outputs.size();
+        final long[] values = new long[n];
+        long available = 0;
+        for (int i = 0; i < n; i++) {
+            values[i] = outputs.get(i).effectiveValue;
+            available += values[i];
+        }
+        final long goal = target.value;
+        if (available < goal)
+            return new Selection(Strategy.INSUFFICIENT, Collections.<TransactionOutput> emptyList(), 0, 0, 0);
+
+        // depth-first search, always trying inclusion before omission
+        final int[] selected = new int[n];
+        int numSelected = 0;
+        int[] best = null;
+        long bestExcess = Long.MAX_VALUE;
+        long value = 0;
+        int tries = 0;
+        for (int index = 0; tries < MAX_TRIES; tries++, index++) {
+            boolean backtrack = false;
+            if (value + available < goal || value > goal + costOfChange) {
+                backtrack = true;
+            } else if (value >= goal) {
+                final long excess = value - goal;
+                if (excess < bestExcess || (excess == bestExcess && numSelected < best.length)) {
+                    best = Arrays.copyOf(selected, numSelected);
+                    bestExcess = excess;
+                    if (excess == 0)
+                        break;
+                }
+                backtrack = true;
+            }
+
+            if (backtrack) {
+                if (numSelected == 0)
+                    break; // searched everything
+                // put the omitted outputs back into the lookahead, then omit the last included one
+                for (index--; index > selected[numSelected - 1]; index--)
+                    available += values[index];
+                value -= values[index];
+                numSelected--;
+            } else {
+                available -= values[index];
+                // including an output equal in value to the omitted previous one would just repeat that branch
+                final boolean previousOmitted = index > 0
+                        && (numSelected == 0 || selected[numSelected - 1] != index - 1);
+                if (!previousOmitted || values[index] != values[index - 1]) {
+                    selected[numSelected++] = index;
+                    value += values[index];
+                }
+            }
+        }
+
+        if (best != null) {
+            final List<TransactionOutput> result = new ArrayList<>(best.length);
+            long total = 0;
+            for (final int i : best) {
+                result.add(outputs.get(i).output);
+                total += outputs.get(i).value;
+            }
+            return new Selection(Strategy.BRANCH_AND_BOUND, result, total, bestExcess, tries);
+        }
+
+        // fallback: largest first
+        final List<TransactionOutput> result = new ArrayList<>();
+        long effective = 0;
+        long total = 0;
+        for (final SpendableOutput output : outputs) {
+            if (effective >= goal)
+                break;
+            result.add(output.output);
+            effective += output.effectiveValue;
+            total += output.value;
+        }
+        return new Selection(Strategy.LARGEST_FIRST, result, total, effective - goal, tries);
+    }
+}
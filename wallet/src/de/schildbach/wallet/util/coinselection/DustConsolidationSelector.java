@@ -0,0 +1,111 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.util.coinselection;
+
+import org.bitcoinj.core.Address;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.TransactionOutput;
+import org.bitcoinj.wallet.CoinSelection;
+import org.bitcoinj.wallet.CoinSelector;
+import org.bitcoinj.wallet.SendRequest;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Gathers small outputs, smallest first, to be merged into one output of the wallet itself. Meant to run while fees
+ * are low, so that later payments need fewer inputs. Outputs that would cost more in fees than they are worth at the
+ * given fee rate are left alone.
+ */
+public class DustConsolidationSelector implements CoinSelector {
+    public static final int DEFAULT_MAX_INPUTS = 500;
+    public static final int DEFAULT_MIN_INPUTS = 20;
+
+    private final Coin threshold;
+    private final Coin feePerKb;
+    private final int minInputs;
+    private final int maxInputs;
+    private final ExcludedOutputs excluded;
+
+    /**
+     * @param threshold
+     *            outputs below this value are considered dust
+     * @param minInputs
+     *            fewer dust outputs than this aren't worth a consolidation
+     * @param maxInputs
+     *            limits the size of the consolidation transaction
+     */
+    public DustConsolidationSelector(final Coin threshold, final Coin feePerKb, final int minInputs,
+            final int maxInputs, final ExcludedOutputs excluded) {
+        checkArgument(minInputs >= 2);
+        checkArgument(maxInputs >= minInputs);
+        this.threshold = checkNotNull(threshold);
+        this.feePerKb = checkNotNull(feePerKb);
+        this.minInputs = minInputs;
+        this.maxInputs = maxInputs;
+        this.excluded = checkNotNull(excluded);
+    }
+
+    /** Ignores the target, as a consolidation spends whatever it gathers. */
+    @Override
+    public CoinSelection select(final Coin target, final List<TransactionOutput> candidates) {
+        final List<SpendableOutput> dust = dust(candidates);
+        if (dust.size() < minInputs)
+            return new CoinSelection(Coin.ZERO, Collections.<TransactionOutput> emptyList());
+        final List<TransactionOutput> gathered = new ArrayList<>(Math.min(dust.size(), maxInputs));
+        long value = 0;
+        for (final SpendableOutput output : dust) {
+            if (gathered.size() >= maxInputs)
+                break;
+            gathered.add(output.output);
+            value += output.value;
+        }
+        return new CoinSelection(Coin.valueOf(value), gathered);
+    }
+
+    /**
+     * @return if a consolidation is due, given the current fee rate
+     */
+    public boolean shouldConsolidate(final List<TransactionOutput> candidates, final Coin currentFeePerKb) {
+        return !currentFeePerKb.isGreaterThan(feePerKb) && dust(candidates).size() >= minInputs;
+    }
+
+    /**
+     * @return a request sending the gathered outputs, minus the fee, to the given own address
+     */
+    public SendRequest toSendRequest(final Address ownAddress) {
+        final SendRequest request = SendRequest.emptyWallet(ownAddress);
+        request.coinSelector = this;
+        request.feePerKb = feePerKb;
+        return request;
+    }
+
+    private List<SpendableOutput> dust(final List<TransactionOutput> candidates) {
+        final List<SpendableOutput> outputs = SpendableOutput.filter(candidates, feePerKb, excluded);
+        final List<SpendableOutput> dust = new ArrayList<>();
+        for (final SpendableOutput output : outputs)
+            if (output.value < threshold.value)
+                dust.add(output);
+        Collections.sort(dust, (a, b) -> Long.compare(a.value, b.value));
+        return dust;
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.util.coinselection;
+
+import org.bitcoinj.core.Address;
+import org.bitcoinj.core.AddressFormatException;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.TransactionOutput;
+import org.bitcoinj.script.ScriptBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Outputs paying to addresses the user excluded from spending, as listed by
+ * {@link de.schildbach.wallet.data.ExcludedAddress}. Matching compares output scripts, so no address needs to be
+ * derived per candidate output.
+ */
+public final class ExcludedOutputs {
+    public static final ExcludedOutputs NONE = new ExcludedOutputs(Collections.emptySet());
+
+    private final Set<ByteBuffer> scripts;
+
+    private static final Logger log = LoggerFactory.getLogger(ExcludedOutputs.class);
+
+    private ExcludedOutputs(final Set<ByteBuffer> scripts) {
+        this.scripts = scripts;
+    }
+
+    public static ExcludedOutputs of(final NetworkParameters params, final Collection<String> addresses) {
+        final Set<ByteBuffer> scripts = new HashSet<>(addresses.size());
+        for (final String address : addresses) {
+            try {
+                scripts.add(ByteBuffer.wrap(
+                        ScriptBuilder.createOutputScript(Address.fromString(params, address)).getProgram()));
+            } catch (final AddressFormatException x) {
+                log.info("ignoring invalid excluded address: {}", address);
+            }
+        }
+        return new ExcludedOutputs(scripts);
+    }
+
+    public boolean isExcluded(final TransactionOutput output) {
+        return !scripts.isEmpty() && scripts.contains(ByteBuffer.wrap(output.getScriptBytes()));
+    }
+
+    public int size() {
+        return scripts.size();
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.util.coinselection;
+
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionOutput;
+import org.bitcoinj.wallet.DefaultCoinSelector;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * A candidate output with its value net of the fee for spending it.
+ */
+final class SpendableOutput {
+    /** size of a P2PKH input with a compressed key, in bytes */
+    static final int INPUT_SIZE = 148;
+    /** size of a P2PKH output, in bytes */
+    static final int OUTPUT_SIZE = 34;
+
+    final TransactionOutput output;
+    final long value;
+    final long effectiveValue;
+
+    private SpendableOutput(final TransactionOutput output, final long value, final long effectiveValue) {
+        this.output = output;
+        this.value = value;
+        this.effectiveValue = effectiveValue;
+    }
+
+    static long fee(final Coin feePerKb, final int size) {
+        return feePerKb.value * size / 1000;
+    }
+
+    /**
+     * Keeps the outputs that are selectable by the same rules as bitcoinj's default selector, not excluded, and worth
+     * more than the fee of spending them.
+     */
+    static List<SpendableOutput> filter(final Collection<TransactionOutput> candidates, final Coin feePerKb,
+            final ExcludedOutputs excluded) {
+        final long inputFee = fee(feePerKb, INPUT_SIZE);
+        final List<SpendableOutput> outputs = new ArrayList<>(candidates.size());
+        for (final TransactionOutput output : candidates) {
+            final long value = output.getValue().value;
+            if (value <= inputFee)
+                continue;
+            final Transaction parent = output.getParentTransaction();
+            if (parent == null || !DefaultCoinSelector.isSelectable(parent))
+                continue;
+            if (excluded.isExcluded(output))
+                continue;
+            outputs.add(new SpendableOutput(output, value, value - inputFee));
+        }
+        return outputs;
+    }
+}
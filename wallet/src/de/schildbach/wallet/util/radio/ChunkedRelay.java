@@ -0,0 +1,345 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.util.radio;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Relays messages over a {@link RadioLink} in chunks that fit its frames, each with its own checksum, and resends only
+ * the chunks that didn't make it.
+ *
+ * <p>A data frame is a flags byte, the sender's session (2 bytes), the message id (2 bytes), chunk index and chunk
+ * count (a byte each), the payload and a CRC-16 over everything before it. The last frame of every burst asks for an
+ * acknowledgement, which the receiver answers with a bitmap of the chunks it has. Chunks missing from that bitmap are
+ * sent again right away, and a burst that isn't answered at all is sent again after a timeout. Corrupted frames are
+ * dropped like lost ones.
+ *
+ * <p>Message ids start at 0 for every instance, so the receiver tells messages apart by session and id. The session
+ * is picked at random, which keeps a restarted sender from having its new messages taken for ones already received.
+ * Partly received messages the sender stopped resending are dropped on {@link #poll(long)}.
+ *
+ * <p>Each end of the link has one instance, as both sides send and receive. Time is passed in, so the relay can run
+ * from whatever loop reads the link.
+ */
+public final class ChunkedRelay {
+    public interface Listener {
+        void onMessage(byte[] message);
+
+        void onDelivered(int messageId);
+
+        void onFailed(int messageId);
+    }
+
+    private static final int FLAG_ACK = 1, FLAG_ACK_REQUESTED = 2;
+    private static final int HEADER_SIZE = 7, ACK_HEADER_SIZE = 6, CRC_SIZE = 2;
+    private static final int MAX_CHUNKS = 255;
+    private static final int MAX_COMPLETED = 64;
+
+    private final RadioLink link;
+    private final long retransmitTimeoutMs;
+    private final int maxAttempts;
+    private final Listener listener;
+    private final int chunkSize;
+    private final int session;
+
+    private final Map<Integer, Outgoing> outgoing = new LinkedHashMap<>();
+    /** keyed by session and message id */
+    private final Map<Integer, Incoming> incoming = new HashMap<>();
+    private final Map<Integer, Integer> completed = new LinkedHashMap<Integer, Integer>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<Integer, Integer> eldest) {
+            return size() > MAX_COMPLETED;
+        }
+    };
+    private int nextMessageId = 0;
+
+    private long framesSent = 0, bytesSent = 0, framesCorrupt = 0;
+
+    private static final Logger log = LoggerFactory.getLogger(ChunkedRelay.class);
+
+    public ChunkedRelay(final RadioLink link, final long retransmitTimeoutMs, final int maxAttempts,
+            final Listener listener) {
+        this(link, retransmitTimeoutMs, maxAttempts, listener, new SecureRandom().nextInt() & 0xffff);
+    }
+
+    ChunkedRelay(final RadioLink link, final long retransmitTimeoutMs, final int maxAttempts, final Listener listener,
+            final int session) {
+        checkArgument(session >= 0 && session <= 0xffff);
+        this.link = checkNotNull(link);
+        checkArgument(link.getMtu() > HEADER_SIZE + CRC_SIZE, "MTU too small: %s", link.getMtu());
+        checkArgument(retransmitTimeoutMs > 0);
+        checkArgument(maxAttempts > 0);
+        this.retransmitTimeoutMs = retransmitTimeoutMs;
+        this.maxAttempts = maxAttempts;
+        this.listener = checkNotNull(listener);
+        this.chunkSize = link.getMtu() - HEADER_SIZE - CRC_SIZE;
+        this.session = session;
+    }
+
+    /** @return id of the message, as later passed to the listener */
+    public synchronized int send(final byte[] message, final long now) {
+        final int count = Math.max((message.length + chunkSize - 1) / chunkSize, 1);
+        checkArgument(count <= MAX_CHUNKS, "message too large: %s bytes", message.length);
+        final int messageId = nextMessageId;
+        nextMessageId = (nextMessageId + 1) & 0xffff;
+        final Outgoing out = new Outgoing(messageId, message, count);
+        outgoing.put(messageId, out);
+        transmitMissing(out, now);
+        return messageId;
+    }
+
+    /** Call for every frame read from the link. */
+    public synchronized void onFrame(final byte[] frame, final long now) {
+        if (frame.length < ACK_HEADER_SIZE + CRC_SIZE
+                || crc16(frame, 0, frame.length - CRC_SIZE) != readShort(frame, frame.length - CRC_SIZE)) {
+            framesCorrupt++;
+            return;
+        }
+        final int flags = frame[0] & 0xff;
+        final int frameSession = readShort(frame, 1);
+        final int messageId = readShort(frame, 3);
+        if ((flags & FLAG_ACK) != 0) {
+            if (frameSession == session)
+                onAck(frame, messageId, now);
+        } else if (frame.length >= HEADER_SIZE + CRC_SIZE) {
+            onData(frame, flags, frameSession, messageId, now);
+        } else
+            framesCorrupt++;
+    }
+
+    /**
+     * Call regularly, to resend bursts that weren't acknowledged in time and to drop incomplete messages nothing was
+     * received for in as long as the sender keeps trying.
+     */
+    public synchronized void poll(final long now) {
+        for (final Iterator<Incoming> i = incoming.values().iterator(); i.hasNext();) {
+            final Incoming in = i.next();
+            if (now - in.lastFrameAt > retransmitTimeoutMs * maxAttempts) {
+                log.info("dropping incomplete message, {}/{} chunks received", in.received.cardinality(),
+                        in.chunks.length);
+                i.remove();
+            }
+        }
+        for (final Iterator<Outgoing> i = outgoing.values().iterator(); i.hasNext();) {
+            final Outgoing out = i.next();
+            if (now < out.deadline)
+                continue;
+            if (out.attempts >= maxAttempts) {
+                i.remove();
+                fail(out);
+            } else {
+                transmitMissing(out, now);
+            }
+        }
+    }
+
+    public synchronized int getPendingCount() {
+        return outgoing.size();
+    }
+
+    public synchronized long getFramesSent() {
+        return framesSent;
+    }
+
+    public synchronized long getBytesSent() {
+        return bytesSent;
+    }
+
+    public synchronized long getFramesCorrupt() {
+        return framesCorrupt;
+    }
+
+    synchronized int getIncomingCount() {
+        return incoming.size();
+    }
+
+    private void onData(final byte[] frame, final int flags, final int senderSession, final int messageId,
+            final long now) {
+        final int index = frame[5] & 0xff;
+        final int count = frame[6] & 0xff;
+        if (count == 0 || index >= count) {
+            framesCorrupt++;
+            return;
+        }
+        final boolean ackRequested = (flags & FLAG_ACK_REQUESTED) != 0;
+        final int key = senderSession << 16 | messageId;
+        final Integer completedCount = completed.get(key);
+        if (completedCount != null) {
+            if (completedCount == count) {
+                // our acknowledgement got lost
+                if (ackRequested)
+                    transmitAck(senderSession, messageId, completedCount, null);
+                return;
+            }
+            completed.remove(key); // not the message we completed
+        }
+        Incoming in = incoming.get(key);
+        if (in == null || in.chunks.length != count) {
+            in = new Incoming(count);
+            incoming.put(key, in);
+        }
+        in.lastFrameAt = now;
+        if (!in.received.get(index)) {
+            in.chunks[index] = Arrays.copyOfRange(frame, HEADER_SIZE, frame.length - CRC_SIZE);
+            in.received.set(index);
+        }
+        if (in.received.cardinality() == count) {
+            incoming.remove(key);
+            completed.put(key, count);
+            transmitAck(senderSession, messageId, count, null);
+            listener.onMessage(in.assemble());
+        } else if (ackRequested) {
+            transmitAck(senderSession, messageId, count, in.received);
+        }
+    }
+
+    private void onAck(final byte[] frame, final int messageId, final long now) {
+        final Outgoing out = outgoing.get(messageId);
+        if (out == null)
+            return;
+        final int count = frame[5] & 0xff;
+        if (count != out.count || frame.length != ACK_HEADER_SIZE + (count + 7) / 8 + CRC_SIZE)
+            return;
+        for (int i = 0; i < count; i++)
+            if ((frame[ACK_HEADER_SIZE + i / 8] & (1 << (i % 8))) != 0)
+                out.acked.set(i);
+        if (out.acked.cardinality() == count) {
+            outgoing.remove(messageId);
+            listener.onDelivered(messageId);
+        } else if (out.attempts >= maxAttempts) {
+            outgoing.remove(messageId);
+            fail(out);
+        } else {
+            transmitMissing(out, now);
+        }
+    }
+
+    private void fail(final Outgoing out) {
+        log.info("giving up on message {} after {} attempts, {}/{} chunks acknowledged", out.messageId, out.attempts,
+                out.acked.cardinality(), out.count);
+        listener.onFailed(out.messageId);
+    }
+
+    private void transmitMissing(final Outgoing out, final long now) {
+        final int last = out.acked.previousClearBit(out.count - 1);
+        for (int i = out.acked.nextClearBit(0); i < out.count; i = out.acked.nextClearBit(i + 1)) {
+            final int from = i * chunkSize;
+            final int to = Math.min(from + chunkSize, out.message.length);
+            final byte[] frame = new byte[HEADER_SIZE + (to - from) + CRC_SIZE];
+            frame[0] = (byte) (i == last ? FLAG_ACK_REQUESTED : 0);
+            writeShort(frame, 1, session);
+            writeShort(frame, 3, out.messageId);
+            frame[5] = (byte) i;
+            frame[6] = (byte) out.count;
+            System.arraycopy(out.message, from, frame, HEADER_SIZE, to - from);
+            transmit(frame);
+        }
+        out.attempts++;
+        out.deadline = now + retransmitTimeoutMs;
+    }
+
+    private void transmitAck(final int senderSession, final int messageId, final int count,
+            final BitSet received) {
+        final byte[] frame = new byte[ACK_HEADER_SIZE + (count + 7) / 8 + CRC_SIZE];
+        frame[0] = FLAG_ACK;
+        writeShort(frame, 1, senderSession);
+        writeShort(frame, 3, messageId);
+        frame[5] = (byte) count;
+        for (int i = 0; i < count; i++)
+            if (received == null || received.get(i))
+                frame[ACK_HEADER_SIZE + i / 8] |= 1 << (i % 8);
+        transmit(frame);
+    }
+
+    private void transmit(final byte[] frame) {
+        writeShort(frame, frame.length - CRC_SIZE, crc16(frame, 0, frame.length - CRC_SIZE));
+        framesSent++;
+        bytesSent += frame.length;
+        link.transmit(frame);
+    }
+
+    /** CRC-16/CCITT-FALSE */
+    static int crc16(final byte[] bytes, final int offset, final int length) {
+        int crc = 0xffff;
+        for (int i = offset; i < offset + length; i++) {
+            crc ^= (bytes[i] & 0xff) << 8;
+            for (int bit = 0; bit < 8; bit++)
+                crc = (crc & 0x8000) != 0 ? (crc << 1) ^ 0x1021 : crc << 1;
+        }
+        return crc & 0xffff;
+    }
+
+    private static int readShort(final byte[] bytes, final int offset) {
+        return (bytes[offset] & 0xff) << 8 | (bytes[offset + 1] & 0xff);
+    }
+
+    private static void writeShort(final byte[] bytes, final int offset, final int value) {
+        bytes[offset] = (byte) (value >> 8);
+        bytes[offset + 1] = (byte) value;
+    }
+
+    private static final class Outgoing {
+        final int messageId;
+        final byte[] message;
+        final int count;
+        final BitSet acked = new BitSet();
+        int attempts = 0;
+        long deadline;
+
+        Outgoing(final int messageId, final byte[] message, final int count) {
+            this.messageId = messageId;
+            this.message = message;
+            this.count = count;
+        }
+    }
+
+    private static final class Incoming {
+        final byte[][] chunks;
+        final BitSet received = new BitSet();
+        long lastFrameAt;
+
+        Incoming(final int count) {
+            this.chunks = new byte[count][];
+        }
+
+        byte[] assemble() {
+            int length = 0;
+            for (final byte[] chunk : chunks)
+                length += chunk.length;
+            final byte[] message = new byte[length];
+            int offset = 0;
+            for (final byte[] chunk : chunks) {
+                System.arraycopy(chunk, 0, message, offset, chunk.length);
+                offset += chunk.length;
+            }
+            return message;
+        }
+    }
+}
@@ -0,0 +1,373 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.util.radio;
+
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.ProtocolException;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.SignatureDecodeException;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionInput;
+import org.bitcoinj.core.TransactionOutPoint;
+import org.bitcoinj.core.TransactionOutput;
+import org.bitcoinj.core.Utils;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.script.ScriptBuilder;
+import org.bitcoinj.script.ScriptChunk;
+import org.bitcoinj.script.ScriptException;
+import org.bitcoinj.script.ScriptPattern;
+
+import javax.annotation.Nullable;
+import java.io.ByteArrayOutputStream;
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Compact binary encoding of transactions and status messages for the radio link, where every byte on air counts.
+ *
+ * <p>Integers are LEB128 varints and amounts are compressed by their trailing decimal zeros first, so round amounts
+ * take a byte or two. Standard scripts are replaced by a template number and their payload: a P2PKH output is its
+ * 20-byte hash, a P2PKH input is the signature's r and s, its sighash byte and the x coordinate of the compressed key,
+ * whose parity is in the template number. Everything else is carried raw. Decoding gives back the transaction byte for
+ * byte, so it keeps its id.
+ */
+public final class CompactCodec {
+    public static final int TYPE_TRANSACTION = 1;
+    public static final int TYPE_STATUS = 2;
+
+    private static final int OUTPUT_RAW = 0, OUTPUT_P2PKH = 1, OUTPUT_P2SH = 2;
+    private static final int INPUT_RAW = 0, INPUT_P2PKH_EVEN = 1, INPUT_P2PKH_ODD = 2;
+    private static final long SEQUENCE_FINAL = TransactionInput.NO_SEQUENCE;
+
+    private CompactCodec() {
+    }
+
+    /** Radio node status, as polled by the wallet. */
+    public static final class Status {
+        public final long timeSecs;
+        public final int chainHeight;
+        public final int peers;
+        public final int pendingTransactions;
+        public final Coin balance;
+
+        public Status(final long timeSecs, final int chainHeight, final int peers, final int pendingTransactions,
+                final Coin balance) {
+            this.timeSecs = timeSecs;
+            this.chainHeight = chainHeight;
+            this.peers = peers;
+            this.pendingTransactions = pendingTransactions;
+            this.balance = checkNotNull(balance);
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o)
+                return true;
+            if (!(o instanceof Status))
+                return false;
+            final Status other = (Status) o;
+            return timeSecs == other.timeSecs && chainHeight == other.chainHeight && peers == other.peers
+                    && pendingTransactions == other.pendingTransactions && balance.equals(other.balance);
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(new long[] { timeSecs, chainHeight, peers, pendingTransactions, balance.value });
+        }
+
+        @Override
+        public String toString() {
+            return "height " + chainHeight + ", " + peers + " peers, " + pendingTransactions + " pending, balance "
+                    + balance.toFriendlyString();
+        }
+    }
+
+    public static int type(final byte[] message) {
+        if (message.length == 0)
+            throw new ProtocolException("empty message");
+        return message[0] & 0xff;
+    }
+
+    public static byte[] encode(final Transaction tx) {
+        final ByteArrayOutputStream os = new ByteArrayOutputStream(256);
+        os.write(TYPE_TRANSACTION);
+        writeVarInt(os, tx.getVersion());
+        final List<TransactionInput> inputs = tx.getInputs();
+        writeVarInt(os, inputs.size());
+        for (final TransactionInput input : inputs) {
+            final long sequence = input.getSequenceNumber();
+            final byte[] p2pkh = compressP2PKHInput(input.getScriptBytes());
+            final int template = p2pkh == null ? INPUT_RAW
+                    : (p2pkh[p2pkh.length - 33] == 0x02 ? INPUT_P2PKH_EVEN : INPUT_P2PKH_ODD);
+            writeVarInt(os, template << 1 | (sequence == SEQUENCE_FINAL ? 1 : 0));
+            os.write(input.getOutpoint().getHash().getReversedBytes(), 0, Sha256Hash.LENGTH);
+            writeVarInt(os, input.getOutpoint().getIndex());
+            if (p2pkh != null) {
+                // r, s, sighash byte, x coordinate of the key
+                os.write(p2pkh, 0, 65);
+                os.write(p2pkh, p2pkh.length - 32, 32);
+            } else {
+                writeBytes(os, input.getScriptBytes());
+            }
+            if (sequence != SEQUENCE_FINAL)
+                writeVarInt(os, sequence);
+        }
+        final List<TransactionOutput> outputs = tx.getOutputs();
+        writeVarInt(os, outputs.size());
+        for (final TransactionOutput output : outputs) {
+            writeVarInt(os, compressAmount(output.getValue().value));
+            final byte[] script = output.getScriptBytes();
+            Script parsed = null;
+            try {
+                parsed = new Script(script);
+            } catch (final ScriptException x) {
+                // carried raw
+            }
+            if (parsed != null && ScriptPattern.isP2PKH(parsed)) {
+                os.write(OUTPUT_P2PKH);
+                os.write(ScriptPattern.extractHashFromP2PKH(parsed), 0, 20);
+            } else if (parsed != null && ScriptPattern.isP2SH(parsed)) {
+                os.write(OUTPUT_P2SH);
+                os.write(ScriptPattern.extractHashFromP2SH(parsed), 0, 20);
+            } else {
+                os.write(OUTPUT_RAW);
+                writeBytes(os, script);
+            }
+        }
+        writeVarInt(os, tx.getLockTime());
+        return os.toByteArray();
+    }
+
+    public static Transaction decodeTransaction(final NetworkParameters params, final byte[] message) {
+        final Reader reader = new Reader(message);
+        if (reader.readByte() != TYPE_TRANSACTION)
+            throw new ProtocolException("not a transaction");
+        final Transaction tx = new Transaction(params);
+        tx.setVersion((int) reader.readVarInt());
+        final long numInputs = reader.readVarInt();
+        for (long i = 0; i < numInputs; i++) {
+            final int flags = (int) reader.readVarInt();
+            final int template = flags >> 1;
+            final Sha256Hash hash = Sha256Hash.wrapReversed(reader.readBytes(Sha256Hash.LENGTH));
+            final long index = reader.readVarInt();
+            final byte[] scriptBytes;
+            if (template == INPUT_P2PKH_EVEN || template == INPUT_P2PKH_ODD) {
+                final BigInteger r = new BigInteger(1, reader.readBytes(32));
+                final BigInteger s = new BigInteger(1, reader.readBytes(32));
+                final int sighash = reader.readByte();
+                final byte[] pubKey = new byte[33];
+                pubKey[0] = (byte) (template == INPUT_P2PKH_EVEN ? 0x02 : 0x03);
+                System.arraycopy(reader.readBytes(32), 0, pubKey, 1, 32);
+                final byte[] der = new ECKey.ECDSASignature(r, s).encodeToDER();
+                final byte[] signature = Arrays.copyOf(der, der.length + 1);
+                signature[der.length] = (byte) sighash;
+                scriptBytes = new ScriptBuilder().data(signature).data(pubKey).build().getProgram();
+            } else if (template == INPUT_RAW) {
+                scriptBytes = reader.readBytes();
+            } else {
+                throw new ProtocolException("unknown input template " + template);
+            }
+            final TransactionInput input = new TransactionInput(params, tx, scriptBytes,
+                    new TransactionOutPoint(params, index, hash));
+            input.setSequenceNumber((flags & 1) != 0 ? SEQUENCE_FINAL : reader.readVarInt());
+            tx.addInput(input);
+        }
+        final long numOutputs = reader.readVarInt();
+        for (long i = 0; i < numOutputs; i++) {
+            final Coin value = Coin.valueOf(decompressAmount(reader.readVarInt()));
+            final int template = reader.readByte();
+            final byte[] scriptBytes;
+            if (template == OUTPUT_P2PKH)
+                scriptBytes = ScriptBuilder.createP2PKHOutputScript(reader.readBytes(20)).getProgram();
+            else if (template == OUTPUT_P2SH)
+                scriptBytes = ScriptBuilder.createP2SHOutputScript(reader.readBytes(20)).getProgram();
+            else if (template == OUTPUT_RAW)
+                scriptBytes = reader.readBytes();
+            else
+                throw new ProtocolException("unknown output template " + template);
+            tx.addOutput(new TransactionOutput(params, tx, value, scriptBytes));
+        }
+        tx.setLockTime(reader.readVarInt());
+        reader.checkEnd();
+        return tx;
+    }
+
+    public static byte[] encode(final Status status) {
+        final ByteArrayOutputStream os = new ByteArrayOutputStream(16);
+        os.write(TYPE_STATUS);
+        writeVarInt(os, status.timeSecs);
+        writeVarInt(os, status.chainHeight);
+        writeVarInt(os, status.peers);
+        writeVarInt(os, status.pendingTransactions);
+        writeVarInt(os, compressAmount(status.balance.value));
+        return os.toByteArray();
+    }
+
+    public static Status decodeStatus(final byte[] message) {
+        final Reader reader = new Reader(message);
+        if (reader.readByte() != TYPE_STATUS)
+            throw new ProtocolException("not a status");
+        final Status status = new Status(reader.readVarInt(), (int) reader.readVarInt(), (int) reader.readVarInt(),
+                (int) reader.readVarInt(), Coin.valueOf(decompressAmount(reader.readVarInt())));
+        reader.checkEnd();
+        return status;
+    }
+
+    /**
+     * @return r (32 bytes), s (32 bytes), sighash byte and the compressed key (33 bytes), or null if the script isn't
+     *         a P2PKH input that can be rebuilt exactly from these
+     */
+    private static @Nullable byte[] compressP2PKHInput(final byte[] scriptBytes) {
+        final Script script;
+        try {
+            script = new Script(scriptBytes);
+        } catch (final ScriptException x) {
+            return null;
+        }
+        final List<ScriptChunk> chunks = script.getChunks();
+        if (chunks.size() != 2 || chunks.get(0).data == null || chunks.get(1).data == null)
+            return null;
+        final byte[] signature = chunks.get(0).data;
+        final byte[] pubKey = chunks.get(1).data;
+        if (pubKey.length != 33 || (pubKey[0] != 0x02 && pubKey[0] != 0x03) || signature.length < 9)
+            return null;
+        final ECKey.ECDSASignature sig;
+        try {
+            sig = ECKey.ECDSASignature.decodeFromDER(Arrays.copyOf(signature, signature.length - 1));
+        } catch (final SignatureDecodeException | RuntimeException x) {
+            return null;
+        }
+        if (sig.r.bitLength() > 256 || sig.s.bitLength() > 256)
+            return null;
+        final byte[] compressed = new byte[65 + 33];
+        System.arraycopy(Utils.bigIntegerToBytes(sig.r, 32), 0, compressed, 0, 32);
+        System.arraycopy(Utils.bigIntegerToBytes(sig.s, 32), 0, compressed, 32, 32);
+        compressed[64] = signature[signature.length - 1];
+        System.arraycopy(pubKey, 0, compressed, 65, 33);
+        // only if decoding gives back the very same script, for example not for non-minimal encodings
+        final byte[] der = sig.encodeToDER();
+        final byte[] rebuilt = Arrays.copyOf(der, der.length + 1);
+        rebuilt[der.length] = signature[signature.length - 1];
+        if (!Arrays.equals(new ScriptBuilder().data(rebuilt).data(pubKey).build().getProgram(), scriptBytes))
+            return null;
+        return compressed;
+    }
+
+    /** Amount compression as in Bitcoin Core: trailing decimal zeros go into the low digit. */
+    static long compressAmount(long n) {
+        if (n == 0)
+            return 0;
+        int e = 0;
+        while ((n % 10) == 0 && e < 9) {
+            n /= 10;
+            e++;
+        }
+        if (e < 9) {
+            final int d = (int) (n % 10);
+            n /= 10;
+            return 1 + (n * 9 + d - 1) * 10 + e;
+        } else {
+            return 1 + (n - 1) * 10 + 9;
+        }
+    }
+
+    static long decompressAmount(long x) {
+        if (x == 0)
+            return 0;
+        x--;
+        int e = (int) (x % 10);
+        x /= 10;
+        long n;
+        if (e < 9) {
+            final int d = (int) (x % 9) + 1;
+            x /= 9;
+            n = x * 10 + d;
+        } else {
+            n = x + 1;
+        }
+        while (e > 0) {
+            n *= 10;
+            e--;
+        }
+        return n;
+    }
+
+    static void writeVarInt(final ByteArrayOutputStream os, long value) {
+        while ((value & ~0x7fL) != 0) {
+            os.write((int) (value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        os.write((int) value);
+    }
+
+    private static void writeBytes(final ByteArrayOutputStream os, final byte[] bytes) {
+        writeVarInt(os, bytes.length);
+        os.write(bytes, 0, bytes.length);
+    }
+
+    private static final class Reader {
+        private final byte[] bytes;
+        private int cursor = 0;
+
+        Reader(final byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        int readByte() {
+            if (cursor >= bytes.length)
+                throw new ProtocolException("truncated message");
+            return bytes[cursor++] & 0xff;
+        }
+
+        long readVarInt() {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                final int b = readByte();
+                value |= (long) (b & 0x7f) << shift;
+                if ((b & 0x80) == 0)
+                    return value;
+            }
+            throw new ProtocolException("varint too long");
+        }
+
+        byte[] readBytes(final int length) {
+            if (length < 0 || length > bytes.length - cursor)
+                throw new ProtocolException("truncated message");
+            final byte[] result = Arrays.copyOfRange(bytes, cursor, cursor + length);
+            cursor += length;
+            return result;
+        }
+
+        byte[] readBytes() {
+            final long length = readVarInt();
+            if (length > bytes.length)
+                throw new ProtocolException("truncated message");
+            return readBytes((int) length);
+        }
+
+        void checkEnd() {
+            if (cursor != bytes.length)
+                throw new ProtocolException((bytes.length - cursor) + " trailing bytes");
+        }
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.util.radio;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Follows a growing log file, returning only the lines appended since the last poll instead of reading the whole file
+ * again.
+ *
+ * <p>The offset is where the first line not yet returned starts, so it can be saved and passed back in to resume
+ * after a restart. A line that is still being written is left for the next poll. If the file got shorter than the
+ * offset, it is taken to have been truncated or rotated and is read from the start.
+ */
+public final class LogTailer {
+    private final File file;
+    private final ByteBuffer buffer = ByteBuffer.allocate(8192);
+    private final ByteArrayOutputStream line = new ByteArrayOutputStream(256);
+    private long offset;
+
+    public LogTailer(final File file, final long offset) {
+        checkArgument(offset >= 0);
+        this.file = checkNotNull(file);
+        this.offset = offset;
+    }
+
+    /** @return complete lines appended since the last poll, without their line terminators */
+    public synchronized List<String> poll() throws IOException {
+        if (!file.exists())
+            return Collections.emptyList();
+        try (final RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            final FileChannel channel = raf.getChannel();
+            final long size = channel.size();
+            if (size < offset)
+                offset = 0;
+            if (size == offset)
+                return Collections.emptyList();
+            final List<String> lines = new ArrayList<>();
+            long position = offset;
+            line.reset();
+            while (position < size) {
+                buffer.clear();
+                final int read = channel.read(buffer, position);
+                if (read <= 0)
+                    break;
+                final byte[] bytes = buffer.array();
+                int start = 0;
+                for (int i = 0; i < read; i++) {
+                    if (bytes[i] == '\n') {
+                        line.write(bytes, start, i - start);
+                        lines.add(decode(line));
+                        line.reset();
+                        start = i + 1;
+                        offset = position + start;
+                    }
+                }
+                line.write(bytes, start, read - start);
+                position += read;
+            }
+            line.reset();
+            return lines;
+        }
+    }
+
+    public synchronized long getOffset() {
+        return offset;
+    }
+
+    private static String decode(final ByteArrayOutputStream line) {
+        final String decoded = new String(line.toByteArray(), StandardCharsets.UTF_8);
+        return decoded.endsWith("\r") ? decoded.substring(0, decoded.length() - 1) : decoded;
+    }
+}
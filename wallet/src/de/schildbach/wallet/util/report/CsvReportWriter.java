@@ -0,0 +1,115 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.util.report;
+
+import com.google.common.base.Joiner;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.utils.MonetaryFormat;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.Writer;
+import java.text.DateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Writes report rows as RFC 4180 CSV, with a header line.
+ */
+public class CsvReportWriter implements ReportWriter {
+    private static final String[] COLUMNS = { "date", "type", "value", "fee", "address", "memo", "confirmations",
+            "txid" };
+
+    private final Writer writer;
+    private final MonetaryFormat format;
+    private final DateFormat timeFormat = ReportRow.newTimeFormat();
+    private final Date date = new Date();
+    private final StringBuilder line = new StringBuilder(256);
+    private boolean started = false;
+
+    /**
+     * @param writer
+     *            should be buffered
+     */
+    public CsvReportWriter(final Writer writer, final MonetaryFormat format) {
+        this.writer = checkNotNull(writer);
+        this.format = checkNotNull(format);
+    }
+
+    private void start() throws IOException {
+        if (started)
+            return;
+        started = true;
+        writer.write(Joiner.on(',').join(COLUMNS));
+        writer.write("\r\n");
+    }
+
+    @Override
+    public void writeRow(final ReportRow row) throws IOException {
+        start();
+        date.setTime(row.time);
+        line.setLength(0);
+        line.append(timeFormat.format(date)).append(',');
+        line.append(row.type.name().toLowerCase(Locale.US)).append(',');
+        line.append(format.format(row.value)).append(',');
+        appendCoin(row.fee);
+        line.append(',');
+        appendField(row.address);
+        line.append(',');
+        appendField(row.memo);
+        line.append(',');
+        line.append(row.confirmations).append(',');
+        line.append(row.txId).append("\r\n");
+        writer.append(line);
+    }
+
+    private void appendCoin(@Nullable final Coin coin) {
+        if (coin != null)
+            line.append(format.format(coin));
+    }
+
+    private void appendField(@Nullable final String field) {
+        if (field == null)
+            return;
+        boolean quote = false;
+        for (int i = 0; i < field.length() && !quote; i++) {
+            final char c = field.charAt(i);
+            quote = c == ',' || c == '"' || c == '\r' || c == '\n';
+        }
+        if (!quote) {
+            line.append(field);
+            return;
+        }
+        line.append('"');
+        for (int i = 0; i < field.length(); i++) {
+            final char c = field.charAt(i);
+            if (c == '"')
+                line.append('"');
+            line.append(c);
+        }
+        line.append('"');
+    }
+
+    @Override
+    public void close() throws IOException {
+        start();
+        writer.close();
+    }
+}
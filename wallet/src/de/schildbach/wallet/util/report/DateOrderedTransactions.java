@@ -0,0 +1,95 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.util.report;
+
+import de.schildbach.wallet.data.TransactionIndex;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.wallet.Wallet;
+
+import javax.annotation.Nullable;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Iterates the transactions of a wallet oldest first, by walking a {@link TransactionIndex} and looking up each
+ * transaction only when it is reached. Nothing but the IDs and times is held for the whole range.
+ */
+public final class DateOrderedTransactions implements Iterator<Transaction> {
+    private final Wallet wallet;
+    private final TransactionIndex index;
+    private int position;
+    @Nullable
+    private Transaction next;
+
+    /**
+     * Walks an existing index, for example the one behind the transaction list. The index must not change during
+     * iteration.
+     */
+    public DateOrderedTransactions(final Wallet wallet, final TransactionIndex index) {
+        this.wallet = checkNotNull(wallet);
+        this.index = checkNotNull(index);
+        this.position = index.size();
+    }
+
+    /**
+     * Indexes the wallet transactions updated within the given range.
+     *
+     * @param from
+     *            inclusive lower bound, or {@code null} for no bound
+     * @param to
+     *            exclusive upper bound, or {@code null} for no bound
+     */
+    public static DateOrderedTransactions of(final Wallet wallet, @Nullable final Date from,
+            @Nullable final Date to) {
+        final Map<Sha256Hash, Long> times = new HashMap<>();
+        for (final Transaction tx : wallet.getTransactions(true)) {
+            final Date time = tx.getUpdateTime();
+            if ((from == null || !time.before(from)) && (to == null || time.before(to)))
+                times.put(tx.getTxId(), time.getTime());
+        }
+        final TransactionIndex index = new TransactionIndex();
+        index.reset(times);
+        return new DateOrderedTransactions(wallet, index);
+    }
+
+    public int size() {
+        return index.size();
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (next == null && position > 0)
+            next = wallet.getTransaction(index.get(--position)); // null if removed meanwhile
+        return next != null;
+    }
+
+    @Override
+    public Transaction next() {
+        if (!hasNext())
+            throw new NoSuchElementException();
+        final Transaction tx = next;
+        next = null;
+        return tx;
+    }
+}
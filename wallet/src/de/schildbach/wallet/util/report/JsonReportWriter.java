@@ -0,0 +1,82 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.util.report;
+
+import com.squareup.moshi.JsonWriter;
+import okio.Okio;
+import org.bitcoinj.utils.MonetaryFormat;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.text.DateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Writes report rows as a JSON document of the form {@code {"transactions":[{...},...]}}, streaming each row.
+ */
+public class JsonReportWriter implements ReportWriter {
+    private final JsonWriter writer;
+    private final MonetaryFormat format;
+    private final DateFormat timeFormat = ReportRow.newTimeFormat();
+    private final Date date = new Date();
+    private boolean started = false;
+
+    public JsonReportWriter(final OutputStream out, final MonetaryFormat format) {
+        this.writer = JsonWriter.of(Okio.buffer(Okio.sink(checkNotNull(out))));
+        this.format = checkNotNull(format);
+    }
+
+    private void start() throws IOException {
+        if (started)
+            return;
+        started = true;
+        writer.beginObject();
+        writer.name("transactions");
+        writer.beginArray();
+    }
+
+    @Override
+    public void writeRow(final ReportRow row) throws IOException {
+        start();
+        date.setTime(row.time);
+        writer.beginObject();
+        writer.name("txid").value(row.txId.toString());
+        writer.name("date").value(timeFormat.format(date));
+        writer.name("type").value(row.type.name().toLowerCase(Locale.US));
+        writer.name("value").value(format.format(row.value).toString());
+        if (row.fee != null)
+            writer.name("fee").value(format.format(row.fee).toString());
+        if (row.address != null)
+            writer.name("address").value(row.address);
+        if (row.memo != null)
+            writer.name("memo").value(row.memo);
+        writer.name("confirmations").value(row.confirmations);
+        writer.endObject();
+    }
+
+    @Override
+    public void close() throws IOException {
+        start();
+        writer.endArray();
+        writer.endObject();
+        writer.close();
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.util.report;
+
+import org.bitcoinj.utils.MonetaryFormat;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.text.DateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Writes report rows as a tabular A4 PDF, one page at a time via {@link StreamingPdfWriter}.
+ */
+public class PdfReportWriter implements ReportWriter {
+    private static final float MARGIN = 36;
+    private static final float FONT_SIZE = 8;
+    private static final float LINE_HEIGHT = 11;
+    private static final float[] COLUMN_X = { MARGIN, 122, 168, 240, 300, 462 };
+    private static final String[] COLUMNS = { "Date", "Type", "Value", "Fee", "Address", "Memo" };
+    private static final int MAX_ADDRESS_CHARS = 36;
+    private static final int MAX_MEMO_CHARS = 22;
+
+    private final StreamingPdfWriter pdf;
+    private final MonetaryFormat format;
+    private final String title;
+    private final DateFormat timeFormat = ReportRow.newTimeFormat();
+    private final Date date = new Date();
+    private boolean inPage = false;
+    private float y;
+
+    public PdfReportWriter(final OutputStream out, final MonetaryFormat format, final String title)
+            throws IOException {
+        this.pdf = new StreamingPdfWriter(out);
+        this.format = checkNotNull(format);
+        this.title = checkNotNull(title);
+    }
+
+    @Override
+    public void writeRow(final ReportRow row) throws IOException {
+        if (!inPage || y < MARGIN + LINE_HEIGHT)
+            newPage();
+        date.setTime(row.time);
+        final float[] x = COLUMN_X;
+        pdf.text(x[0], y, FONT_SIZE, false, timeFormat.format(date));
+        pdf.text(x[1], y, FONT_SIZE, false, row.type.name().toLowerCase(Locale.US));
+        pdf.text(x[2], y, FONT_SIZE, false, format.format(row.value));
+        if (row.fee != null)
+            pdf.text(x[3], y, FONT_SIZE, false, format.format(row.fee));
+        if (row.address != null)
+            pdf.text(x[4], y, FONT_SIZE, false, truncate(row.address, MAX_ADDRESS_CHARS));
+        if (row.memo != null)
+            pdf.text(x[5], y, FONT_SIZE, false, truncate(row.memo, MAX_MEMO_CHARS));
+        y -= LINE_HEIGHT;
+    }
+
+    private void newPage() throws IOException {
+        if (inPage)
+            pdf.endPage();
+        inPage = true;
+        pdf.beginPage(StreamingPdfWriter.A4_WIDTH, StreamingPdfWriter.A4_HEIGHT);
+        final float top = StreamingPdfWriter.A4_HEIGHT - MARGIN;
+        pdf.text(MARGIN, top, 12, true, title);
+        pdf.text(StreamingPdfWriter.A4_WIDTH - MARGIN - 40, top, FONT_SIZE, false,
+                "Page " + (pdf.getNumPages() + 1));
+        y = top - 2 * LINE_HEIGHT;
+        for (int i = 0; i < COLUMNS.length; i++)
+            pdf.text(COLUMN_X[i], y, FONT_SIZE, true, COLUMNS[i]);
+        pdf.line(MARGIN, y - 3, StreamingPdfWriter.A4_WIDTH - MARGIN, y - 3, 0.5f);
+        y -= LINE_HEIGHT + 2;
+    }
+
+    private static CharSequence truncate(final String s, final int maxChars) {
+        return s.length() <= maxChars ? s : s.substring(0, maxChars - 3) + "...";
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!inPage)
+            newPage();
+        pdf.close();
+    }
+}
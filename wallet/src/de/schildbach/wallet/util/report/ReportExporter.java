@@ -0,0 +1,78 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.util.report;
+
+import org.bitcoinj.core.Transaction;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Iterator;
+
+/**
+ * Pumps transactions through a classifier into a report writer, one row at a time. Meant to run on a background
+ * thread; interrupting that thread aborts the export.
+ */
+public final class ReportExporter {
+    private static final Logger log = LoggerFactory.getLogger(ReportExporter.class);
+
+    public static final class Result {
+        public final int rows;
+        public final int skipped;
+        public final long elapsedMs;
+
+        private Result(final int rows, final int skipped, final long elapsedMs) {
+            this.rows = rows;
+            this.skipped = skipped;
+            this.elapsedMs = elapsedMs;
+        }
+
+        @Override
+        public String toString() {
+            return rows + " rows, " + skipped + " skipped, took " + elapsedMs + " ms";
+        }
+    }
+
+    private ReportExporter() {
+    }
+
+    /**
+     * Writes all rows, but leaves closing the writer to the caller.
+     */
+    public static Result export(final Iterator<Transaction> transactions, final ReportRowClassifier classifier,
+            final ReportWriter writer) throws IOException {
+        final long start = System.currentTimeMillis();
+        int rows = 0;
+        int skipped = 0;
+        while (transactions.hasNext()) {
+            if (Thread.interrupted())
+                throw new InterruptedIOException("export aborted after " + rows + " rows");
+            final ReportRow row = classifier.classify(transactions.next());
+            if (row != null) {
+                writer.writeRow(row);
+                rows++;
+            } else {
+                skipped++;
+            }
+        }
+        final Result result = new Result(rows, skipped, System.currentTimeMillis() - start);
+        log.info("exported {}", result);
+        return result;
+    }
+}
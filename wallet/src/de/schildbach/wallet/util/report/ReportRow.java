@@ -0,0 +1,77 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.util.report;
+
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.Sha256Hash;
+
+import javax.annotation.Nullable;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.Locale;
+import java.util.TimeZone;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * One line of an accounting report, as produced by a {@link ReportRowClassifier} for a single transaction.
+ */
+public final class ReportRow {
+    public enum Type {
+        RECEIVED, SENT, INTERNAL
+    }
+
+    public final Sha256Hash txId;
+    public final long time;
+    public final Type type;
+    /** net effect on the wallet balance, negative for sent transactions and including the fee */
+    public final Coin value;
+    @Nullable
+    public final Coin fee;
+    /** counterparty address for sent and received transactions, own address for internal ones */
+    @Nullable
+    public final String address;
+    @Nullable
+    public final String memo;
+    public final int confirmations;
+
+    public ReportRow(final Sha256Hash txId, final long time, final Type type, final Coin value,
+            @Nullable final Coin fee, @Nullable final String address, @Nullable final String memo,
+            final int confirmations) {
+        this.txId = checkNotNull(txId);
+        this.time = time;
+        this.type = checkNotNull(type);
+        this.value = checkNotNull(value);
+        this.fee = fee;
+        this.address = address;
+        this.memo = memo;
+        this.confirmations = confirmations;
+    }
+
+    /** @return a new ISO 8601 formatter in UTC, as used by the report writers */
+    static DateFormat newTimeFormat() {
+        final DateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format;
+    }
+
+    @Override
+    public String toString() {
+        return type + " " + value.toFriendlyString() + " " + txId;
+    }
+}
@@ -0,0 +1,31 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.util.report;
+
+import org.bitcoinj.core.Transaction;
+
+import javax.annotation.Nullable;
+
+/**
+ * Turns a transaction into a report row.
+ */
+public interface ReportRowClassifier {
+    /** @return the row, or {@code null} if the transaction doesn't belong into the report */
+    @Nullable
+    ReportRow classify(Transaction tx);
+}
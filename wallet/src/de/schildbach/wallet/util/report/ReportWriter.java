@@ -0,0 +1,32 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.util.report;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Writes report rows to an output as they come, without holding on to them.
+ */
+public interface ReportWriter extends Closeable {
+    void writeRow(ReportRow row) throws IOException;
+
+    /** Completes the document, even if no rows were written, and closes the output. */
+    @Override
+    void close() throws IOException;
+}
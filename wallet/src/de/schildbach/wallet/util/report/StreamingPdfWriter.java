@@ -0,0 +1,240 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.util.report;
+
+import com.google.common.io.CountingOutputStream;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * Minimal PDF writer that writes each page to the output as soon as it is finished, so only the current page is held
+ * in memory. Supports text in the standard Helvetica fonts, lines and rectangles, which is all that reports and checks
+ * need. Apart from the page contents, only the object offsets for the cross-reference table are kept.
+ *
+ * <p>Coordinates are in points, with the origin in the lower left corner of the page.
+ */
+public class StreamingPdfWriter implements Closeable {
+    public static final float A4_WIDTH = 595;
+    public static final float A4_HEIGHT = 842;
+
+    private static final int CATALOG_ID = 1;
+    private static final int PAGES_ID = 2;
+    private static final int FONT_ID = 3;
+    private static final int BOLD_FONT_ID = 4;
+
+    private final CountingOutputStream out;
+    private long[] offsets = new long[64];
+    private int nextId = BOLD_FONT_ID + 1;
+    private int[] pageIds = new int[16];
+    private int numPages = 0;
+
+    private final StringBuilder content = new StringBuilder(8192);
+    private float pageWidth, pageHeight;
+    private boolean inPage = false;
+    private boolean closed = false;
+
+    /**
+     * @param out
+     *            should be buffered
+     */
+    public StreamingPdfWriter(final OutputStream out) throws IOException {
+        this.out = new CountingOutputStream(checkNotNull(out));
+        write("%PDF-1.4\n%\u00e2\u00e3\u00cf\u00d3\n");
+        writeObject(FONT_ID, "<< /Type /Font /Subtype /Type1 /BaseFont /Helvetica /Encoding /WinAnsiEncoding >>");
+        writeObject(BOLD_FONT_ID,
+                "<< /Type /Font /Subtype /Type1 /BaseFont /Helvetica-Bold /Encoding /WinAnsiEncoding >>");
+    }
+
+    public void beginPage(final float width, final float height) {
+        checkState(!inPage, "page already begun");
+        checkState(!closed);
+        inPage = true;
+        pageWidth = width;
+        pageHeight = height;
+        content.setLength(0);
+    }
+
+    public int getNumPages() {
+        return numPages;
+    }
+
+    /**
+     * Writes a line of text. The standard fonts aren't embedded and only cover the WinAnsi character set, which is
+     * Latin-1 plus a few typographic characters such as the euro sign and curly quotes. Any other character, for
+     * example Cyrillic or CJK in a memo, is written as {@code ?}.
+     */
+    public void text(final float x, final float y, final float size, final boolean bold, final CharSequence text) {
+        checkState(inPage);
+        content.append("BT /").append(bold ? "F2 " : "F1 ");
+        appendNumber(content, size);
+        content.append(" Tf ");
+        appendNumber(content, x);
+        content.append(' ');
+        appendNumber(content, y);
+        content.append(" Td (");
+        for (int i = 0; i < text.length(); i++) {
+            final char c = text.charAt(i);
+            if (c == '(' || c == ')' || c == '\\')
+                content.append('\\').append(c);
+            else
+                content.append(winAnsi(c));
+        }
+        content.append(") Tj ET\n");
+    }
+
+    /** characters at 0x80 to 0x9f in WinAnsiEncoding, with gaps where it has none */
+    private static final String WIN_ANSI_80 = "\u20ac?\u201a\u0192\u201e\u2026\u2020\u2021\u02c6\u2030\u0160\u2039"
+            + "\u0152?\u017d??\u2018\u2019\u201c\u201d\u2022\u2013\u2014\u02dc\u2122\u0161\u203a\u0153?\u017e\u0178";
+
+    private static char winAnsi(final char c) {
+        if (c >= 0x20 && c < 0x7f || c >= 0xa0 && c <= 0xff)
+            return c;
+        final int index = WIN_ANSI_80.indexOf(c);
+        return index >= 0 ? (char) (0x80 + index) : '?';
+    }
+
+    public void line(final float x1, final float y1, final float x2, final float y2, final float width) {
+        checkState(inPage);
+        appendNumber(content, width);
+        content.append(" w ");
+        appendNumber(content, x1);
+        content.append(' ');
+        appendNumber(content, y1);
+        content.append(" m ");
+        appendNumber(content, x2);
+        content.append(' ');
+        appendNumber(content, y2);
+        content.append(" l S\n");
+    }
+
+    public void rect(final float x, final float y, final float width, final float height, final float lineWidth) {
+        checkState(inPage);
+        appendNumber(content, lineWidth);
+        content.append(" w ");
+        appendNumber(content, x);
+        content.append(' ');
+        appendNumber(content, y);
+        content.append(' ');
+        appendNumber(content, width);
+        content.append(' ');
+        appendNumber(content, height);
+        content.append(" re S\n");
+    }
+
+    /** Writes the current page to the output. */
+    public void endPage() throws IOException {
+        checkState(inPage, "no page begun");
+        inPage = false;
+        final byte[] bytes = content.toString().getBytes(StandardCharsets.ISO_8859_1);
+        final int contentId = nextId++;
+        offset(contentId);
+        write(contentId + " 0 obj\n<< /Length " + bytes.length + " >>\nstream\n");
+        out.write(bytes);
+        write("\nendstream\nendobj\n");
+
+        final int pageId = nextId++;
+        final StringBuilder page = new StringBuilder("<< /Type /Page /Parent ").append(PAGES_ID)
+                .append(" 0 R /MediaBox [0 0 ");
+        appendNumber(page, pageWidth);
+        page.append(' ');
+        appendNumber(page, pageHeight);
+        page.append("] /Resources << /Font << /F1 ").append(FONT_ID).append(" 0 R /F2 ").append(BOLD_FONT_ID)
+                .append(" 0 R >> >> /Contents ").append(contentId).append(" 0 R >>");
+        writeObject(pageId, page);
+
+        if (numPages == pageIds.length)
+            pageIds = Arrays.copyOf(pageIds, numPages * 2);
+        pageIds[numPages++] = pageId;
+    }
+
+    /** Finishes an open page, writes the page tree and cross-reference table, and closes the output. */
+    @Override
+    public void close() throws IOException {
+        if (closed)
+            return;
+        if (inPage)
+            endPage();
+        if (numPages == 0) {
+            beginPage(A4_WIDTH, A4_HEIGHT);
+            endPage();
+        }
+        closed = true;
+
+        final StringBuilder pages = new StringBuilder("<< /Type /Pages /Kids [");
+        for (int i = 0; i < numPages; i++)
+            pages.append(i > 0 ? " " : "").append(pageIds[i]).append(" 0 R");
+        pages.append("] /Count ").append(numPages).append(" >>");
+        writeObject(PAGES_ID, pages);
+        writeObject(CATALOG_ID, "<< /Type /Catalog /Pages " + PAGES_ID + " 0 R >>");
+
+        final long xref = out.getCount();
+        final StringBuilder table = new StringBuilder("xref\n0 ").append(nextId).append("\n0000000000 65535 f \n");
+        for (int id = 1; id < nextId; id++) {
+            final String offset = Long.toString(offsets[id]);
+            for (int i = offset.length(); i < 10; i++)
+                table.append('0');
+            table.append(offset).append(" 00000 n \n");
+        }
+        table.append("trailer\n<< /Size ").append(nextId).append(" /Root ").append(CATALOG_ID)
+                .append(" 0 R >>\nstartxref\n").append(xref).append("\n%%EOF\n");
+        write(table);
+        out.close();
+    }
+
+    private void writeObject(final int id, final CharSequence dictionary) throws IOException {
+        offset(id);
+        write(id + " 0 obj\n");
+        write(dictionary);
+        write("\nendobj\n");
+    }
+
+    private void offset(final int id) {
+        if (id >= offsets.length)
+            offsets = Arrays.copyOf(offsets, Math.max(id + 1, offsets.length * 2));
+        offsets[id] = out.getCount();
+    }
+
+    private void write(final CharSequence s) throws IOException {
+        out.write(s.toString().getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    /** Appends a number with at most two decimals, avoiding {@link String#format} in the per-row path. */
+    private static void appendNumber(final StringBuilder builder, final float value) {
+        long hundredths = Math.round(value * 100.0);
+        if (hundredths < 0) {
+            builder.append('-');
+            hundredths = -hundredths;
+        }
+        builder.append(hundredths / 100);
+        final long fraction = hundredths % 100;
+        if (fraction != 0) {
+            builder.append('.');
+            if (fraction < 10)
+                builder.append('0');
+            builder.append(fraction % 10 == 0 ? fraction / 10 : fraction);
+        }
+    }
+}
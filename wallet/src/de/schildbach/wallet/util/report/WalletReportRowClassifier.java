@@ -0,0 +1,93 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.util.report;
+
+import org.bitcoinj.core.Address;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionConfidence;
+import org.bitcoinj.core.TransactionOutput;
+import org.bitcoinj.script.ScriptException;
+import org.bitcoinj.wallet.Wallet;
+
+import javax.annotation.Nullable;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Classifies transactions by their effect on a wallet: a transaction sending coins only to the wallet itself is
+ * {@link ReportRow.Type#INTERNAL}, otherwise the sign of the value decides. Transactions that don't change the balance
+ * and aren't internal are skipped. The fee is only reported where the wallet paid it, so never for received
+ * transactions.
+ */
+public class WalletReportRowClassifier implements ReportRowClassifier {
+    private final Wallet wallet;
+    private final NetworkParameters params;
+
+    public WalletReportRowClassifier(final Wallet wallet) {
+        this.wallet = checkNotNull(wallet);
+        this.params = wallet.getParams();
+    }
+
+    @Nullable
+    @Override
+    public ReportRow classify(final Transaction tx) {
+        final Coin value = tx.getValue(wallet);
+        final boolean sent = value.signum() < 0;
+        boolean allMine = true;
+        String address = null;
+        String ownAddress = null;
+        for (final TransactionOutput output : tx.getOutputs()) {
+            final boolean mine = output.isMine(wallet);
+            if (!mine)
+                allMine = false;
+            if (address == null && mine != sent)
+                address = addressOf(output);
+            if (ownAddress == null && mine)
+                ownAddress = addressOf(output);
+        }
+
+        final ReportRow.Type type;
+        if (sent && allMine) {
+            type = ReportRow.Type.INTERNAL;
+            address = ownAddress;
+        } else if (value.signum() == 0) {
+            return null;
+        } else {
+            type = sent ? ReportRow.Type.SENT : ReportRow.Type.RECEIVED;
+        }
+
+        final TransactionConfidence confidence = tx.getConfidence();
+        final int confirmations = confidence.getConfidenceType() == TransactionConfidence.ConfidenceType.BUILDING
+                ? confidence.getDepthInBlocks() : 0;
+        final Coin fee = type != ReportRow.Type.RECEIVED ? tx.getFee() : null;
+        return new ReportRow(tx.getTxId(), tx.getUpdateTime().getTime(), type, value, fee, address, tx.getMemo(),
+                confirmations);
+    }
+
+    @Nullable
+    private String addressOf(final TransactionOutput output) {
+        try {
+            final Address address = output.getScriptPubKey().getToAddress(params, true);
+            return address.toString();
+        } catch (final ScriptException x) {
+            return null;
+        }
+    }
+}
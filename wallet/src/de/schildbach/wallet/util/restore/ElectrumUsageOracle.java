@@ -0,0 +1,59 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.util.restore;
+
+import de.schildbach.wallet.service.electrum.ElectrumClient;
+import org.bitcoinj.core.BloomFilter;
+import org.bitcoinj.crypto.DeterministicKey;
+import org.bitcoinj.script.ScriptBuilder;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Tells which keys were used by asking an Electrum server for the history of their pay-to-pubkey-hash scripts, in
+ * batched queries. The bloom filter is not needed for this.
+ */
+public class ElectrumUsageOracle implements GapScanner.UsageOracle {
+    private final ElectrumClient client;
+
+    public ElectrumUsageOracle(final ElectrumClient client) {
+        this.client = checkNotNull(client);
+    }
+
+    @Override
+    public Set<Integer> findUsed(final List<DeterministicKey> keys, final BloomFilter filter) throws IOException {
+        final List<String> scriptHashes = new ArrayList<>(keys.size());
+        for (final DeterministicKey key : keys)
+            scriptHashes.add(ElectrumClient.scriptHash(ScriptBuilder.createP2PKHOutputScript(key)));
+        final Map<String, List<ElectrumClient.HistoryItem>> histories = client.getHistories(scriptHashes);
+        final Set<Integer> used = new HashSet<>();
+        for (int i = 0; i < scriptHashes.size(); i++) {
+            final List<ElectrumClient.HistoryItem> history = histories.get(scriptHashes.get(i));
+            if (history != null && !history.isEmpty())
+                used.add(i);
+        }
+        return used;
+    }
+}
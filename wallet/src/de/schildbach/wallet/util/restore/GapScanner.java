@@ -0,0 +1,157 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.util.restore;
+
+import org.bitcoinj.core.BloomFilter;
+import org.bitcoinj.crypto.DeterministicKey;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Finds how far each chain of an HD account was used, for restoring a wallet from its seed.
+ *
+ * <p>A chain is done once the gap limit of unused keys follows its last used key. Scanning goes in rounds: each round
+ * derives the next window of every unfinished chain at once via {@link ParallelKeyDeriver}, builds one bloom filter
+ * for all of them and asks the {@link UsageOracle} once. A chain with hits has its window doubled for the next round,
+ * up to a maximum, so deep merchant wallets need few rounds while fresh wallets stay at the gap limit.
+ */
+public class GapScanner {
+    public interface UsageOracle {
+        /**
+         * @param filter
+         *            matches all the keys, for oracles asking peers
+         * @return the indexes into {@code keys} of those that were used
+         */
+        Set<Integer> findUsed(List<DeterministicKey> keys, BloomFilter filter) throws IOException;
+    }
+
+    public static final class Result {
+        /** per chain, the number of keys up to and including the last used one */
+        public final int[] numUsed;
+        public final int keysDerived;
+        public final int rounds;
+        public final long deriveNanos;
+        public final long filterNanos;
+
+        private Result(final int[] numUsed, final int keysDerived, final int rounds, final long deriveNanos,
+                final long filterNanos) {
+            this.numUsed = numUsed;
+            this.keysDerived = keysDerived;
+            this.rounds = rounds;
+            this.deriveNanos = deriveNanos;
+            this.filterNanos = filterNanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "used %s, %d keys derived in %d rounds, derive %d ms, filters %d ms",
+                    Arrays.toString(numUsed), keysDerived, rounds, deriveNanos / 1000000, filterNanos / 1000000);
+        }
+    }
+
+    public static final double FALSE_POSITIVE_RATE = 0.0005;
+
+    private final ParallelKeyDeriver deriver;
+    private final UsageOracle oracle;
+    private final int gapLimit;
+    private final int maxWindow;
+    private final SecureRandom random = new SecureRandom();
+
+    private static final Logger log = LoggerFactory.getLogger(GapScanner.class);
+
+    public GapScanner(final ParallelKeyDeriver deriver, final UsageOracle oracle, final int gapLimit,
+            final int maxWindow) {
+        checkArgument(gapLimit > 0);
+        checkArgument(maxWindow >= gapLimit);
+        this.deriver = checkNotNull(deriver);
+        this.oracle = checkNotNull(oracle);
+        this.gapLimit = gapLimit;
+        this.maxWindow = maxWindow;
+    }
+
+    public Result scan(final int numChains) throws IOException {
+        final int[] numUsed = new int[numChains];
+        final int[] scanned = new int[numChains];
+        final int[] window = new int[numChains];
+        Arrays.fill(window, gapLimit);
+        int keysDerived = 0, rounds = 0;
+        long deriveNanos = 0, filterNanos = 0;
+
+        while (true) {
+            final List<DeterministicKey> keys = new ArrayList<>();
+            final int[] offsets = new int[numChains + 1];
+            final long deriveStart = System.nanoTime();
+            for (int chain = 0; chain < numChains; chain++) {
+                offsets[chain] = keys.size();
+                final int missing = numUsed[chain] + gapLimit - scanned[chain];
+                if (missing > 0)
+                    keys.addAll(deriver.derive(chain, scanned[chain], Math.max(missing, window[chain])));
+            }
+            offsets[numChains] = keys.size();
+            deriveNanos += System.nanoTime() - deriveStart;
+            if (keys.isEmpty())
+                break;
+
+            final long filterStart = System.nanoTime();
+            final BloomFilter filter = buildFilter(keys, FALSE_POSITIVE_RATE, random.nextLong());
+            filterNanos += System.nanoTime() - filterStart;
+            final Set<Integer> used = oracle.findUsed(keys, filter);
+            rounds++;
+            keysDerived += keys.size();
+
+            for (int chain = 0; chain < numChains; chain++) {
+                final int from = offsets[chain], to = offsets[chain + 1];
+                int lastUsed = -1;
+                for (final int index : used)
+                    if (index >= from && index < to)
+                        lastUsed = Math.max(lastUsed, index - from);
+                if (lastUsed >= 0) {
+                    numUsed[chain] = Math.max(numUsed[chain], scanned[chain] + lastUsed + 1);
+                    window[chain] = Math.min(window[chain] * 2, maxWindow);
+                }
+                scanned[chain] += to - from;
+            }
+        }
+        final Result result = new Result(numUsed, keysDerived, rounds, deriveNanos, filterNanos);
+        log.info("gap scan: {}", result);
+        return result;
+    }
+
+    /** @return one filter matching the public keys and their hashes, as needed for pay-to-pubkey(-hash) outputs */
+    public static BloomFilter buildFilter(final List<DeterministicKey> keys, final double falsePositiveRate,
+            final long tweak) {
+        final BloomFilter filter = new BloomFilter(Math.max(1, keys.size() * 2), falsePositiveRate, tweak,
+                BloomFilter.BloomUpdate.UPDATE_P2PUBKEY_ONLY);
+        for (final DeterministicKey key : keys) {
+            filter.insert(key.getPubKey());
+            filter.insert(key.getPubKeyHash());
+        }
+        return filter;
+    }
+}
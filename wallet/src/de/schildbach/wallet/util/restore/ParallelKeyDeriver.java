@@ -0,0 +1,106 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.util.restore;
+
+import org.bitcoinj.crypto.ChildNumber;
+import org.bitcoinj.crypto.DeterministicKey;
+import org.bitcoinj.crypto.HDKeyDerivation;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Derives the public keys of an HD account's chains, for example external and change addresses, in parallel.
+ *
+ * <p>The extended key of each chain is derived once and cached; every address key is then a single public child
+ * derivation from it, instead of walking the path from the root. Private keys are not needed to find out which
+ * addresses were used, so derivation is public only.
+ */
+public final class ParallelKeyDeriver {
+    private static final int CHUNK_SIZE = 128;
+
+    private final DeterministicKey accountKey;
+    private final DeterministicKey[] chainKeys;
+    private final ExecutorService executor;
+
+    /**
+     * @param accountKey
+     *            the account, for example {@code m/0'} or {@code m/44'/3'/0'}; a watching key is fine
+     * @param numChains
+     *            chains below the account, usually 2 for external and change
+     */
+    public ParallelKeyDeriver(final DeterministicKey accountKey, final int numChains, final ExecutorService executor) {
+        checkArgument(numChains > 0);
+        this.accountKey = accountKey.dropPrivateBytes().dropParent();
+        this.chainKeys = new DeterministicKey[numChains];
+        this.executor = checkNotNull(executor);
+    }
+
+    /** @return the cached extended key of a chain */
+    public synchronized DeterministicKey getChainKey(final int chain) {
+        if (chainKeys[chain] == null)
+            chainKeys[chain] = HDKeyDerivation.deriveChildKey(accountKey, new ChildNumber(chain, false));
+        return chainKeys[chain];
+    }
+
+    /** @return the keys {@code from} to {@code from + count - 1} of a chain */
+    public List<DeterministicKey> derive(final int chain, final int from, final int count) {
+        checkArgument(from >= 0 && count >= 0);
+        final DeterministicKey chainKey = getChainKey(chain);
+        final DeterministicKey[] keys = new DeterministicKey[count];
+        if (count <= CHUNK_SIZE) {
+            deriveRange(chainKey, from, keys, 0, count);
+            return Arrays.asList(keys);
+        }
+        final List<Future<Void>> futures = new ArrayList<>();
+        for (int offset = 0; offset < count; offset += CHUNK_SIZE) {
+            final int start = offset;
+            final int end = Math.min(offset + CHUNK_SIZE, count);
+            futures.add(executor.submit((Callable<Void>) () -> {
+                deriveRange(chainKey, from, keys, start, end);
+                return null;
+            }));
+        }
+        try {
+            for (final Future<Void> future : futures)
+                future.get();
+        } catch (final InterruptedException x) {
+            for (final Future<Void> future : futures)
+                future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(x);
+        } catch (final ExecutionException x) {
+            throw new RuntimeException(x.getCause());
+        }
+        return Arrays.asList(keys);
+    }
+
+    private static void deriveRange(final DeterministicKey chainKey, final int from, final DeterministicKey[] keys,
+            final int start, final int end) {
+        for (int i = start; i < end; i++)
+            keys[i] = HDKeyDerivation.deriveChildKey(chainKey, new ChildNumber(from + i, false));
+    }
+}
@@ -0,0 +1,252 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.util.scrypt;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.lambdaworks.crypto.PBKDF;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * scrypt in Java, byte for byte the same as {@link com.lambdaworks.crypto.SCrypt#scryptJ} but faster.
+ *
+ * <p>The block mix works on int words in arrays allocated once per derivation, where the reference implementation
+ * allocates on every Salsa20/8 call and converts bytes back and forth. The {@code p} independent mixes are spread
+ * over the available cores, as far as memory allows each of them its own {@code 128 * r * N} bytes.
+ */
+public final class JavaScryptProvider implements ScryptProvider {
+    private static ExecutorService executor;
+
+    private final int maxThreads;
+
+    public JavaScryptProvider() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    public JavaScryptProvider(final int maxThreads) {
+        checkArgument(maxThreads > 0);
+        this.maxThreads = maxThreads;
+    }
+
+    @Override
+    public byte[] scrypt(final byte[] passwd, final byte[] salt, final int N, final int r, final int p,
+            final int dkLen) throws GeneralSecurityException {
+        if (N < 2 || (N & (N - 1)) != 0)
+            throw new IllegalArgumentException("N must be a power of 2 greater than 1");
+        if (N > Integer.MAX_VALUE / 128 / r)
+            throw new IllegalArgumentException("Parameter N is too large");
+        if (r > Integer.MAX_VALUE / 128 / p)
+            throw new IllegalArgumentException("Parameter r is too large");
+
+        final Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(passwd, "HmacSHA256"));
+        final byte[] B = new byte[128 * r * p];
+        PBKDF.pbkdf2(mac, salt, 1, B, B.length);
+
+        final int numLanes = numLanes(N, r, p);
+        if (numLanes == 1) {
+            new Lane(B, N, r, p, 0, 1).run();
+        } else {
+            final ExecutorService executor = executor();
+            final List<Future<?>> futures = new ArrayList<>(numLanes - 1);
+            for (int lane = 1; lane < numLanes; lane++)
+                futures.add(executor.submit(new Lane(B, N, r, p, lane, numLanes)));
+            new Lane(B, N, r, p, 0, numLanes).run();
+            try {
+                for (final Future<?> future : futures)
+                    future.get();
+            } catch (final InterruptedException x) {
+                for (final Future<?> future : futures)
+                    future.cancel(true);
+                Thread.currentThread().interrupt();
+                throw new GeneralSecurityException("interrupted");
+            } catch (final ExecutionException x) {
+                final Throwable cause = x.getCause();
+                if (cause instanceof Error)
+                    throw (Error) cause;
+                throw new RuntimeException(cause);
+            }
+        }
+
+        final byte[] DK = new byte[dkLen];
+        PBKDF.pbkdf2(mac, B, 1, DK, dkLen);
+        return DK;
+    }
+
+    @Override
+    public String getName() {
+        return "Java";
+    }
+
+    private int numLanes(final int N, final int r, final int p) {
+        final long bytesPerLane = 128L * r * N;
+        final long memoryLanes = Math.max(1, Runtime.getRuntime().maxMemory() / 4 / bytesPerLane);
+        return (int) Math.min(Math.min(p, maxThreads), memoryLanes);
+    }
+
+    private static synchronized ExecutorService executor() {
+        if (executor == null)
+            executor = Executors.newCachedThreadPool(
+                    new ThreadFactoryBuilder().setNameFormat("scrypt-%d").setDaemon(true).build());
+        return executor;
+    }
+
+    /** Mixes every {@code step}-th block of {@code B}, starting at {@code first}, in place. */
+    private static final class Lane implements Runnable {
+        private final byte[] B;
+        private final int N;
+        private final int r;
+        private final int p;
+        private final int first;
+        private final int step;
+
+        Lane(final byte[] B, final int N, final int r, final int p, final int first, final int step) {
+            this.B = B;
+            this.N = N;
+            this.r = r;
+            this.p = p;
+            this.first = first;
+            this.step = step;
+        }
+
+        @Override
+        public void run() {
+            final int words = 32 * r;
+            final int[] V = new int[words * N];
+            int[] X = new int[words];
+            int[] Y = new int[words];
+            final int[] T = new int[16];
+            for (int block = first; block < p; block += step) {
+                final int offset = block * 128 * r;
+                for (int i = 0; i < words; i++)
+                    X[i] = decode(B, offset + i * 4);
+                for (int i = 0; i < N; i++) {
+                    System.arraycopy(X, 0, V, i * words, words);
+                    blockMix(X, Y, T, r);
+                    final int[] swap = X;
+                    X = Y;
+                    Y = swap;
+                }
+                final int last = (2 * r - 1) * 16;
+                for (int i = 0; i < N; i++) {
+                    final int j = (X[last] & (N - 1)) * words;
+                    for (int k = 0; k < words; k++)
+                        X[k] ^= V[j + k];
+                    blockMix(X, Y, T, r);
+                    final int[] swap = X;
+                    X = Y;
+                    Y = swap;
+                }
+                for (int i = 0; i < words; i++)
+                    encode(X[i], B, offset + i * 4);
+            }
+        }
+    }
+
+    private static void blockMix(final int[] in, final int[] out, final int[] T, final int r) {
+        System.arraycopy(in, (2 * r - 1) * 16, T, 0, 16);
+        for (int i = 0; i < 2 * r; i++) {
+            final int offset = i * 16;
+            for (int k = 0; k < 16; k++)
+                T[k] ^= in[offset + k];
+            salsa20_8(T);
+            System.arraycopy(T, 0, out, ((i & 1) == 0 ? i / 2 : r + i / 2) * 16, 16);
+        }
+    }
+
+    private static void salsa20_8(final int[] B) {
+        int x0 = B[0], x1 = B[1], x2 = B[2], x3 = B[3], x4 = B[4], x5 = B[5], x6 = B[6], x7 = B[7];
+        int x8 = B[8], x9 = B[9], x10 = B[10], x11 = B[11], x12 = B[12], x13 = B[13], x14 = B[14], x15 = B[15];
+        for (int i = 0; i < 8; i += 2) {
+            x4 ^= R(x0 + x12, 7);
+            x8 ^= R(x4 + x0, 9);
+            x12 ^= R(x8 + x4, 13);
+            x0 ^= R(x12 + x8, 18);
+            x9 ^= R(x5 + x1, 7);
+            x13 ^= R(x9 + x5, 9);
+            x1 ^= R(x13 + x9, 13);
+            x5 ^= R(x1 + x13, 18);
+            x14 ^= R(x10 + x6, 7);
+            x2 ^= R(x14 + x10, 9);
+            x6 ^= R(x2 + x14, 13);
+            x10 ^= R(x6 + x2, 18);
+            x3 ^= R(x15 + x11, 7);
+            x7 ^= R(x3 + x15, 9);
+            x11 ^= R(x7 + x3, 13);
+            x15 ^= R(x11 + x7, 18);
+            x1 ^= R(x0 + x3, 7);
+            x2 ^= R(x1 + x0, 9);
+            x3 ^= R(x2 + x1, 13);
+            x0 ^= R(x3 + x2, 18);
+            x6 ^= R(x5 + x4, 7);
+            x7 ^= R(x6 + x5, 9);
+            x4 ^= R(x7 + x6, 13);
+            x5 ^= R(x4 + x7, 18);
+            x11 ^= R(x10 + x9, 7);
+            x8 ^= R(x11 + x10, 9);
+            x9 ^= R(x8 + x11, 13);
+            x10 ^= R(x9 + x8, 18);
+            x12 ^= R(x15 + x14, 7);
+            x13 ^= R(x12 + x15, 9);
+            x14 ^= R(x13 + x12, 13);
+            x15 ^= R(x14 + x13, 18);
+        }
+        B[0] += x0;
+        B[1] += x1;
+        B[2] += x2;
+        B[3] += x3;
+        B[4] += x4;
+        B[5] += x5;
+        B[6] += x6;
+        B[7] += x7;
+        B[8] += x8;
+        B[9] += x9;
+        B[10] += x10;
+        B[11] += x11;
+        B[12] += x12;
+        B[13] += x13;
+        B[14] += x14;
+        B[15] += x15;
+    }
+
+    private static int R(final int a, final int b) {
+        return (a << b) | (a >>> (32 - b));
+    }
+
+    private static int decode(final byte[] bytes, final int offset) {
+        return (bytes[offset] & 0xff) | (bytes[offset + 1] & 0xff) << 8 | (bytes[offset + 2] & 0xff) << 16
+                | (bytes[offset + 3] & 0xff) << 24;
+    }
+
+    private static void encode(final int value, final byte[] bytes, final int offset) {
+        bytes[offset] = (byte) value;
+        bytes[offset + 1] = (byte) (value >>> 8);
+        bytes[offset + 2] = (byte) (value >>> 16);
+        bytes[offset + 3] = (byte) (value >>> 24);
+    }
+}
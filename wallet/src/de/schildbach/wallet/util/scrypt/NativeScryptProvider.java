@@ -0,0 +1,58 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.util.scrypt;
+
+import com.lambdaworks.crypto.SCrypt;
+
+import java.security.GeneralSecurityException;
+
+/**
+ * The C implementation from {@code wallet/cpp}, registered by {@code libscrypt} on
+ * {@link SCrypt#scryptN(byte[], byte[], int, int, int, int)} when the library is packaged.
+ */
+public final class NativeScryptProvider implements ScryptProvider {
+    private static final boolean AVAILABLE = probe();
+
+    public static boolean isAvailable() {
+        return AVAILABLE;
+    }
+
+    private static boolean probe() {
+        try {
+            // SCrypt's static initializer tries to load the library; calling the method tells if it did
+            SCrypt.scryptN(new byte[] { 1 }, new byte[] { 1 }, 2, 1, 1, 1);
+            return true;
+        } catch (final UnsatisfiedLinkError x) {
+            return false;
+        }
+    }
+
+    @Override
+    public byte[] scrypt(final byte[] passwd, final byte[] salt, final int N, final int r, final int p,
+            final int dkLen) throws GeneralSecurityException {
+        final byte[] dk = SCrypt.scryptN(passwd, salt, N, r, p, dkLen);
+        if (dk == null)
+            throw new GeneralSecurityException("native scrypt failed");
+        return dk;
+    }
+
+    @Override
+    public String getName() {
+        return "native";
+    }
+}
@@ -0,0 +1,30 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.util.scrypt;
+
+import java.security.GeneralSecurityException;
+
+/**
+ * scrypt key derivation, as in {@link com.lambdaworks.crypto.SCrypt#scrypt(byte[], byte[], int, int, int, int)}. All
+ * implementations produce the same output for the same input.
+ */
+public interface ScryptProvider {
+    byte[] scrypt(byte[] passwd, byte[] salt, int N, int r, int p, int dkLen) throws GeneralSecurityException;
+
+    String getName();
+}
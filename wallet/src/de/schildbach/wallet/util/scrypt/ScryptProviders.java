@@ -0,0 +1,41 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.util.scrypt;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Picks the scrypt implementation to use.
+ */
+public final class ScryptProviders {
+    private static final Logger log = LoggerFactory.getLogger(ScryptProviders.class);
+    private static ScryptProvider best;
+
+    private ScryptProviders() {
+    }
+
+    /** @return the native implementation if its library is loaded, the parallel Java implementation otherwise */
+    public static synchronized ScryptProvider best() {
+        if (best == null) {
+            best = NativeScryptProvider.isAvailable() ? new NativeScryptProvider() : new JavaScryptProvider();
+            log.info("using {} scrypt", best.getName());
+        }
+        return best;
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.util.signature;
+
+import org.bitcoinj.core.Sha256Hash;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+
+/**
+ * SHA-256 of content of any size, in constant memory: streams are read in fixed chunks, files are memory-mapped a
+ * window at a time so their bytes never pass through the Java heap.
+ */
+public final class ContentHasher {
+    public static final int CHUNK_SIZE = 256 * 1024;
+    public static final long MAP_WINDOW = 64L * 1024 * 1024;
+
+    private ContentHasher() {
+    }
+
+    public static Sha256Hash hash(final InputStream is) throws IOException {
+        final MessageDigest digest = Sha256Hash.newDigest();
+        final byte[] buffer = new byte[CHUNK_SIZE];
+        int read;
+        while ((read = is.read(buffer)) != -1)
+            digest.update(buffer, 0, read);
+        return Sha256Hash.wrap(digest.digest());
+    }
+
+    /** Hashes a channel from its current position to its end, mapping it window by window. */
+    public static Sha256Hash hash(final FileChannel channel) throws IOException {
+        final MessageDigest digest = Sha256Hash.newDigest();
+        final long size = channel.size();
+        for (long position = channel.position(); position < size; position += MAP_WINDOW) {
+            final MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, position,
+                    Math.min(MAP_WINDOW, size - position));
+            digest.update(window);
+        }
+        return Sha256Hash.wrap(digest.digest());
+    }
+
+    public static Sha256Hash hash(final File file) throws IOException {
+        try (final FileInputStream is = new FileInputStream(file)) {
+            return hash(is.getChannel());
+        }
+    }
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.util.signature;
+
+import org.bitcoinj.core.Sha256Hash;
+
+import java.io.IOException;
+
+/**
+ * Signed content, such as a file or a content URI. Size and modification time let the {@link DigestCache} tell when
+ * the content changed.
+ */
+public interface ContentSource {
+    /** @return what identifies the content, for example its URI */
+    String getKey();
+
+    /** @return the size in bytes, or -1 if unknown */
+    long getSize();
+
+    /** @return the last modification time, or 0 if unknown */
+    long getLastModified();
+
+    Sha256Hash hash() throws IOException;
+}
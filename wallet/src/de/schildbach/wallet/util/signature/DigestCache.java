@@ -0,0 +1,150 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.util.signature;
+
+import org.bitcoinj.core.Sha256Hash;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Remembers content digests by key, size and modification time, so unchanged content isn't hashed again. Content
+ * of unknown size or modification time is never cached.
+ */
+public class DigestCache {
+    private static final int FILE_MAGIC = 0x44474354; // "DGCT"
+    private static final int FILE_VERSION = 1;
+
+    private static final class Entry {
+        final long size;
+        final long lastModified;
+        final Sha256Hash digest;
+
+        Entry(final long size, final long lastModified, final Sha256Hash digest) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.digest = digest;
+        }
+    }
+
+    private final Map<String, Entry> entries;
+    private long hits = 0, misses = 0;
+
+    private static final Logger log = LoggerFactory.getLogger(DigestCache.class);
+
+    public DigestCache(final int maxEntries) {
+        checkArgument(maxEntries > 0);
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<String, Entry> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /** @return the digest of the content, from the cache if it didn't change */
+    public Sha256Hash digest(final ContentSource source) throws IOException {
+        // taken before hashing, so content changing meanwhile is hashed again next time
+        final long size = source.getSize();
+        final long lastModified = source.getLastModified();
+        final boolean cacheable = size >= 0 && lastModified > 0;
+        if (cacheable) {
+            synchronized (this) {
+                final Entry entry = entries.get(source.getKey());
+                if (entry != null && entry.size == size && entry.lastModified == lastModified) {
+                    hits++;
+                    return entry.digest;
+                }
+                misses++;
+            }
+        }
+        final Sha256Hash digest = source.hash();
+        if (cacheable) {
+            synchronized (this) {
+                entries.put(source.getKey(), new Entry(size, lastModified, digest));
+            }
+        }
+        return digest;
+    }
+
+    public synchronized void invalidate(final String key) {
+        entries.remove(key);
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized void write(final File file) throws IOException {
+        final File tempFile = new File(file.getParentFile(), file.getName() + ".tmp");
+        final FileOutputStream fos = new FileOutputStream(tempFile);
+        try (final DataOutputStream os = new DataOutputStream(new BufferedOutputStream(fos))) {
+            os.writeInt(FILE_MAGIC);
+            os.writeInt(FILE_VERSION);
+            os.writeInt(entries.size());
+            for (final Map.Entry<String, Entry> entry : entries.entrySet()) {
+                os.writeUTF(entry.getKey());
+                os.writeLong(entry.getValue().size);
+                os.writeLong(entry.getValue().lastModified);
+                os.write(entry.getValue().digest.getBytes());
+            }
+            os.flush();
+            fos.getFD().sync();
+        }
+        if (!tempFile.renameTo(file))
+            throw new IOException("cannot rename " + tempFile + " to " + file);
+    }
+
+    /** Adds the entries of a file written by {@link #write(File)}. A missing or unreadable file is ignored. */
+    public synchronized void read(final File file) {
+        try (final DataInputStream is = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (is.readInt() != FILE_MAGIC || is.readInt() != FILE_VERSION)
+                throw new IOException("unknown format");
+            final int size = is.readInt();
+            for (int i = 0; i < size; i++) {
+                final String key = is.readUTF();
+                final long contentSize = is.readLong();
+                final long lastModified = is.readLong();
+                final byte[] digest = new byte[Sha256Hash.LENGTH];
+                is.readFully(digest);
+                entries.put(key, new Entry(contentSize, lastModified, Sha256Hash.wrap(digest)));
+            }
+        } catch (final FileNotFoundException x) {
+            // nothing cached yet
+        } catch (final IOException | RuntimeException x) {
+            log.info("problem reading digest cache " + file + ", ignoring", x);
+        }
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.util.signature;
+
+import org.bitcoinj.core.Address;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.LegacyAddress;
+import org.bitcoinj.core.Sha256Hash;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.security.SignatureException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Verifies signatures over content: a signed message, as made by {@link ECKey#signMessage(String)}, of the content's
+ * SHA-256 in hex, by the key of an address.
+ *
+ * <p>Many signatures are verified in parallel on the given executor, which should be bounded, since hashing large
+ * content is disk bound anyway. Digests come from the {@link DigestCache} where content didn't change.
+ */
+public class SignatureBatchVerifier {
+    public static final class Item {
+        public final ContentSource content;
+        public final Address address;
+        public final String signature;
+
+        public Item(final ContentSource content, final Address address, final String signature) {
+            this.content = checkNotNull(content);
+            this.address = checkNotNull(address);
+            this.signature = checkNotNull(signature);
+        }
+    }
+
+    public enum Status {
+        VALID, INVALID, CONTENT_UNAVAILABLE
+    }
+
+    public static final class Result {
+        public final Item item;
+        public final Status status;
+        @Nullable
+        public final Sha256Hash digest;
+
+        private Result(final Item item, final Status status, @Nullable final Sha256Hash digest) {
+            this.item = item;
+            this.status = status;
+            this.digest = digest;
+        }
+
+        @Override
+        public String toString() {
+            return item.content.getKey() + ": " + status;
+        }
+    }
+
+    private final DigestCache digestCache;
+    private final ExecutorService executor;
+
+    public SignatureBatchVerifier(final DigestCache digestCache, final ExecutorService executor) {
+        this.digestCache = checkNotNull(digestCache);
+        this.executor = checkNotNull(executor);
+    }
+
+    public static String messageFor(final Sha256Hash digest) {
+        return digest.toString();
+    }
+
+    public Result verify(final Item item) {
+        final Sha256Hash digest;
+        try {
+            digest = digestCache.digest(item.content);
+        } catch (final IOException x) {
+            return new Result(item, Status.CONTENT_UNAVAILABLE, null);
+        }
+        try {
+            final ECKey key = ECKey.signedMessageToKey(messageFor(digest), item.signature);
+            final boolean valid = LegacyAddress.fromKey(item.address.getParameters(), key).equals(item.address);
+            return new Result(item, valid ? Status.VALID : Status.INVALID, digest);
+        } catch (final SignatureException | IllegalArgumentException x) {
+            return new Result(item, Status.INVALID, digest);
+        }
+    }
+
+    /** @return the results in the order of the items */
+    public List<Result> verifyAll(final List<Item> items) throws InterruptedException {
+        final List<Callable<Result>> tasks = new ArrayList<>(items.size());
+        for (final Item item : items)
+            tasks.add(() -> verify(item));
+        final List<Result> results = new ArrayList<>(items.size());
+        for (final Future<Result> future : executor.invokeAll(tasks)) {
+            try {
+                results.add(future.get());
+            } catch (final ExecutionException x) {
+                throw new RuntimeException(x.getCause());
+            }
+        }
+        return results;
+    }
+}
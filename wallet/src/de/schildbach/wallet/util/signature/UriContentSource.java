@@ -0,0 +1,111 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.util.signature;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.provider.DocumentsContract;
+import android.provider.OpenableColumns;
+import org.bitcoinj.core.Sha256Hash;
+
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Content behind a URI, for example a picked photo or video. If the provider hands out a seekable file descriptor,
+ * the content is memory-mapped, otherwise streamed.
+ */
+public class UriContentSource implements ContentSource {
+    private final ContentResolver contentResolver;
+    private final Uri uri;
+    private final long size;
+    private final long lastModified;
+
+    public UriContentSource(final ContentResolver contentResolver, final Uri uri) {
+        this.contentResolver = checkNotNull(contentResolver);
+        this.uri = checkNotNull(uri);
+        long size = -1, lastModified = 0;
+        try (final Cursor cursor = contentResolver.query(uri, null, null, null, null)) {
+            if (cursor != null && cursor.moveToFirst()) {
+                final int sizeIndex = cursor.getColumnIndex(OpenableColumns.SIZE);
+                if (sizeIndex >= 0 && !cursor.isNull(sizeIndex))
+                    size = cursor.getLong(sizeIndex);
+                final int lastModifiedIndex = cursor.getColumnIndex(DocumentsContract.Document.COLUMN_LAST_MODIFIED);
+                if (lastModifiedIndex >= 0 && !cursor.isNull(lastModifiedIndex))
+                    lastModified = cursor.getLong(lastModifiedIndex);
+            }
+        } catch (final RuntimeException x) {
+            // provider doesn't support queries; the content will be hashed every time
+        }
+        this.size = size;
+        this.lastModified = lastModified;
+    }
+
+    @Override
+    public String getKey() {
+        return uri.toString();
+    }
+
+    @Override
+    public long getSize() {
+        return size;
+    }
+
+    @Override
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    @Override
+    public Sha256Hash hash() throws IOException {
+        final ParcelFileDescriptor pfd;
+        try {
+            pfd = contentResolver.openFileDescriptor(uri, "r");
+        } catch (final FileNotFoundException x) {
+            return hashStream();
+        }
+        if (pfd == null)
+            return hashStream();
+        try {
+            if (pfd.getStatSize() < 0) // a pipe, cannot be mapped
+                return hashStream();
+            try (final FileInputStream is = new FileInputStream(pfd.getFileDescriptor())) {
+                final FileChannel channel = is.getChannel();
+                channel.position(0);
+                return ContentHasher.hash(channel);
+            }
+        } finally {
+            pfd.close();
+        }
+    }
+
+    private Sha256Hash hashStream() throws IOException {
+        try (final InputStream is = contentResolver.openInputStream(uri)) {
+            if (is == null)
+                throw new FileNotFoundException(uri.toString());
+            return ContentHasher.hash(is);
+        }
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.data;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+
+public class AddressBookSearchIndexTest {
+    /** The index table in memory, counting writes. */
+    private static class FakeSearchDao extends SearchDao {
+        final Map<String, String> rows = new HashMap<>();
+        int inserts = 0;
+        int deletes = 0;
+        int transactions = 0;
+
+        @Override
+        protected void insertAddressBookEntry(final AddressBookSearchEntry entry) {
+            rows.put(entry.address, entry.label);
+            inserts++;
+        }
+
+        @Override
+        public void deleteAddressBookEntry(final String address) {
+            rows.remove(address);
+            deletes++;
+        }
+
+        @Override
+        public void updateAddressBookEntries(final List<AddressBookSearchEntry> changed,
+                final List<String> removed) {
+            transactions++;
+            super.updateAddressBookEntries(changed, removed);
+        }
+
+        @Override
+        public List<AddressBookSearchEntry> getAddressBookEntries() {
+            final List<AddressBookSearchEntry> entries = new ArrayList<>();
+            for (final Map.Entry<String, String> row : rows.entrySet())
+                entries.add(new AddressBookSearchEntry(row.getKey(), row.getValue()));
+            return entries;
+        }
+
+        @Override
+        public List<AddressBookSearchEntry> searchAddressBook(final String query, final int limit) {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    @Test
+    public void writesOnlyChanges() {
+        final FakeSearchDao dao = new FakeSearchDao();
+        final Map<String, String> labels = new HashMap<>();
+        for (int i = 0; i < 1000; i++)
+            labels.put("D" + i, "label " + i);
+        assertEquals(1000, AddressBookSearchIndex.update(labels, dao));
+        assertEquals(labels, dao.rows);
+        assertEquals(1000, dao.inserts);
+
+        // as on every later open: nothing to do
+        dao.inserts = dao.deletes = dao.transactions = 0;
+        assertEquals(0, AddressBookSearchIndex.update(labels, dao));
+        assertEquals(0, dao.inserts + dao.deletes + dao.transactions);
+
+        // one renamed, one added, one removed, one label cleared
+        labels.put("D1", "renamed");
+        labels.put("Dnew", "new");
+        labels.remove("D2");
+        labels.put("D3", null);
+        assertEquals(4, AddressBookSearchIndex.update(labels, dao));
+        assertEquals(labels, dao.rows);
+        assertEquals(3, dao.inserts);
+        assertEquals(1, dao.transactions);
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.data;
+
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.utils.ContextPropagatingThreadFactory;
+import org.bitcoinj.utils.ExchangeRate;
+import org.bitcoinj.utils.Fiat;
+import org.bitcoinj.wallet.Wallet;
+import org.bitcoinj.wallet.Wallet.BalanceType;
+import org.bitcoinj.wallet.WalletTransaction;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+public class BalanceSnapshotTest {
+    private static final NetworkParameters PARAMS = UnitTestParams.get();
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Wallet wallet;
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        Context.propagate(new Context(PARAMS));
+        wallet = Wallet.createDeterministic(PARAMS, Script.ScriptType.P2PKH);
+        file = new File(folder.getRoot(), "balance-snapshot");
+    }
+
+    private void receive(final Coin value) {
+        final Transaction tx = new Transaction(PARAMS);
+        tx.addInput(Sha256Hash.of(value.toString().getBytes()), 0, new Script(new byte[0]));
+        tx.addOutput(value, wallet.freshReceiveAddress());
+        wallet.addWalletTransaction(new WalletTransaction(WalletTransaction.Pool.UNSPENT, tx));
+    }
+
+    @Test
+    public void roundTrip() throws IOException {
+        receive(Coin.COIN);
+        receive(Coin.CENT);
+        final ExchangeRate rate = new ExchangeRate(Fiat.parseFiat("USD", "0.12"));
+        final BalanceSnapshot snapshot = BalanceSnapshot.of(wallet, rate, 12345);
+        snapshot.write(file);
+        assertFalse(new File(folder.getRoot(), "balance-snapshot.tmp").exists());
+
+        final BalanceSnapshot read = BalanceSnapshot.read(file);
+        assertNotNull(read);
+        assertEquals(snapshot.walletHash, read.walletHash);
+        for (final BalanceType type : BalanceType.values())
+            assertEquals(wallet.getBalance(type), read.getBalance(type));
+        assertEquals(Coin.COIN.add(Coin.CENT), read.getBalance(BalanceType.ESTIMATED));
+        assertEquals(2, read.utxoCount);
+        assertNull(read.lastBlockHash);
+        assertEquals(rate.fiat, read.exchangeRate.fiat);
+        assertEquals(12345, read.createdAt);
+        assertTrue(read.matches(wallet));
+
+        receive(Coin.SATOSHI);
+        assertFalse(read.matches(wallet));
+    }
+
+    @Test
+    public void hashesWalletWithoutDeterministicChain() {
+        final Wallet keysOnly = Wallet.fromKeys(PARAMS, Collections.singletonList(new ECKey()));
+        final Sha256Hash hash = BalanceSnapshot.walletHashOf(keysOnly);
+        assertEquals(hash, BalanceSnapshot.walletHashOf(keysOnly));
+        keysOnly.importKey(new ECKey());
+        assertNotEquals(hash, BalanceSnapshot.walletHashOf(keysOnly));
+    }
+
+    /** Only runs with {@code -Pbenchmark}. */
+    @Test
+    public void readsFast() throws IOException {
+        assumeTrue(Boolean.getBoolean("benchmark"));
+        receive(Coin.COIN);
+        BalanceSnapshot.of(wallet, null, 0).write(file);
+        for (int i = 0; i < 100; i++)
+            assertNotNull(BalanceSnapshot.read(file));
+        final int reads = 1000;
+        final long start = System.nanoTime();
+        for (int i = 0; i < reads; i++)
+            BalanceSnapshot.read(file);
+        final double millisPerRead = (System.nanoTime() - start) / 1e6 / reads;
+        assertTrue(millisPerRead + " ms per read of " + file.length() + " bytes", millisPerRead < 10);
+    }
+
+    @Test
+    public void ignoresMissingAndCorruptFiles() throws IOException {
+        assertNull(BalanceSnapshot.read(file));
+        try (final FileOutputStream os = new FileOutputStream(file)) {
+            os.write(new byte[] { 0x42, 0x53, 0x4e, 0x50, 0, 0, 0, 1, 7 });
+        }
+        assertNull(BalanceSnapshot.read(file));
+    }
+
+    @Test
+    public void writerReplacesStaleSnapshot() throws Exception {
+        final Wallet other = Wallet.createDeterministic(PARAMS, Script.ScriptType.P2PKH);
+        BalanceSnapshot.of(other, null, 0).write(file);
+        receive(Coin.COIN);
+
+        final ScheduledExecutorService executor = Executors
+                .newSingleThreadScheduledExecutor(new ContextPropagatingThreadFactory("balance snapshot"));
+        final BalanceSnapshotWriter writer = new BalanceSnapshotWriter(file, executor);
+        writer.start(wallet);
+        executor.submit(() -> null).get(); // first write is immediate
+        BalanceSnapshot snapshot = BalanceSnapshot.read(file);
+        assertTrue(snapshot.matches(wallet));
+        assertEquals(Coin.COIN, snapshot.getBalance(BalanceType.ESTIMATED));
+
+        writer.setExchangeRate(new ExchangeRate(Fiat.parseFiat("EUR", "0.10")));
+        final long deadline = System.currentTimeMillis() + 5000;
+        do {
+            Thread.sleep(50);
+            snapshot = BalanceSnapshot.read(file);
+        } while (snapshot.exchangeRate == null && System.currentTimeMillis() < deadline);
+        assertEquals("EUR", snapshot.exchangeRate.fiat.currencyCode);
+        writer.stop();
+        executor.shutdown();
+    }
+}
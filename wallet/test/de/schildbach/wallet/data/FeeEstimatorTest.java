@@ -0,0 +1,134 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.data;
+
+import de.schildbach.wallet.ui.send.FeeCategory;
+import org.bitcoinj.core.Coin;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class FeeEstimatorTest {
+    private static final long T0 = 1_700_000_000_000L;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static Map<FeeCategory, Coin> floors(final long rate) {
+        final Map<FeeCategory, Coin> floors = new EnumMap<>(FeeCategory.class);
+        for (final FeeCategory category : FeeCategory.values())
+            floors.put(category, Coin.valueOf(rate));
+        return floors;
+    }
+
+    /** 1.5 MB at 5M sat/kB, 3 MB at 1M sat/kB and 20 MB at 200k sat/kB */
+    private static Map<Long, Long> mempool() {
+        final Map<Long, Long> histogram = new HashMap<>();
+        histogram.put(200000L, 20000000L);
+        histogram.put(5000000L, 1500000L);
+        histogram.put(1000000L, 3000000L);
+        return histogram;
+    }
+
+    @Test
+    public void floorsUntilHistogram() throws Exception {
+        final Map<FeeCategory, Coin> floors = FeeEstimator.readFloors(new ByteArrayInputStream(
+                ("# fee rates in satoshis per 1000 bytes of tx data\nECONOMIC=1000000\nNORMAL=1000000\n"
+                        + "PRIORITY=2000000\n").getBytes(StandardCharsets.UTF_8)));
+        final FeeEstimator estimator = new FeeEstimator(floors);
+        assertEquals(floors, estimator.getEstimates());
+        assertFalse(estimator.isLearned());
+        estimator.onMempoolHistogram(mempool(), T0);
+        assertTrue(estimator.isLearned());
+        // the mempool is cheaper than the floors, which are never undercut
+        assertEquals(floors, estimator.getEstimates());
+    }
+
+    @Test
+    public void estimatesFromMempoolDepth() {
+        final FeeEstimator estimator = new FeeEstimator(floors(1000));
+        final List<Map<FeeCategory, Coin>> changes = new ArrayList<>();
+        estimator.addListener(changes::add);
+        estimator.onMempoolHistogram(mempool(), T0);
+        final Map<FeeCategory, Coin> estimates = estimator.getEstimates();
+
+        assertEquals(200000, estimates.get(FeeCategory.ECONOMIC).value); // 20 blocks reach into the cheapest bin
+        assertEquals(200000, estimates.get(FeeCategory.NORMAL).value);
+        assertEquals(1000000, estimates.get(FeeCategory.PRIORITY).value); // 2 blocks are full at 1M sat/kB
+        assertEquals(Collections.singletonList(estimates), changes);
+
+        // a mempool that fits into the next block costs just the floors
+        estimator.onMempoolHistogram(Collections.singletonMap(5000000L, 10000L), T0);
+        assertEquals(floors(1000), estimator.getEstimates());
+        assertEquals(2, changes.size());
+    }
+
+    @Test
+    public void persistsAcrossRestarts() throws Exception {
+        final File file = new File(folder.getRoot(), "fees.bin");
+        final FeeEstimator estimator = new FeeEstimator(floors(1000));
+        estimator.onMempoolHistogram(mempool(), T0);
+        estimator.write(file);
+
+        final FeeEstimator restored = new FeeEstimator(floors(1000));
+        restored.read(file, T0 + 1000);
+        assertTrue(restored.isLearned());
+        assertEquals(estimator.getEstimates(), restored.getEstimates());
+
+        final FeeEstimator stale = new FeeEstimator(floors(1000));
+        stale.read(file, T0 + FeeEstimator.MAX_AGE_MS + 1);
+        assertFalse(stale.isLearned());
+        assertEquals(floors(1000), stale.getEstimates());
+
+        final FeeEstimator fresh = new FeeEstimator(floors(1000));
+        fresh.read(new File(folder.getRoot(), "missing.bin"), T0);
+        assertEquals(floors(1000), fresh.getEstimates());
+    }
+
+    @Test
+    public void raiseFeeSuggestions() {
+        final Map<FeeCategory, Coin> floors = floors(1000000);
+        floors.put(FeeCategory.PRIORITY, Coin.valueOf(4000000));
+        final FeeEstimator estimator = new FeeEstimator(floors);
+
+        // replacement must beat the old fee by the relay increment
+        assertEquals(Coin.valueOf(1000000), estimator.suggestReplacementFee(250, Coin.valueOf(500000),
+                FeeCategory.PRIORITY));
+        assertEquals(Coin.valueOf(1250000), estimator.suggestReplacementFee(250, Coin.valueOf(1000000),
+                FeeCategory.ECONOMIC));
+        // child pays for both
+        assertEquals(Coin.valueOf(4000000 * 400 / 1000 - 250000),
+                estimator.suggestChildFee(250, Coin.valueOf(250000), 150, FeeCategory.PRIORITY));
+        assertEquals(Coin.valueOf(150000), estimator.suggestChildFee(250, Coin.valueOf(10000000), 150,
+                FeeCategory.PRIORITY));
+    }
+}
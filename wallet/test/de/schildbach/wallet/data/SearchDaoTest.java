@@ -0,0 +1,34 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.data;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class SearchDaoTest {
+    @Test
+    public void prefixQuery() {
+        assertEquals("zeb*", SearchDao.prefixQuery("Zeb"));
+        assertEquals("zebra* cro*", SearchDao.prefixQuery("  zebra, \"cro"));
+        assertEquals("or* not*", SearchDao.prefixQuery("OR NOT"));
+        assertEquals("m\u00fcller*", SearchDao.prefixQuery("M\u00fcller"));
+        assertNull(SearchDao.prefixQuery(" *\"- "));
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.data;
+
+import de.schildbach.wallet.ui.TransactionPager;
+import org.bitcoinj.core.Sha256Hash;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+public class TransactionIndexTest {
+    private static Sha256Hash id(final int n) {
+        return Sha256Hash.of(ByteBuffer.allocate(4).putInt(n).array());
+    }
+
+    private static class RecordingListener implements TransactionIndex.Listener {
+        final List<String> events = new ArrayList<>();
+
+        @Override
+        public void onInserted(final int position) {
+            events.add("inserted " + position);
+        }
+
+        @Override
+        public void onRemoved(final int position) {
+            events.add("removed " + position);
+        }
+
+        @Override
+        public void onMoved(final int fromPosition, final int toPosition) {
+            events.add("moved " + fromPosition + " " + toPosition);
+        }
+
+        @Override
+        public void onChanged(final int position) {
+            events.add("changed " + position);
+        }
+
+        @Override
+        public void onReset() {
+            events.add("reset");
+        }
+    }
+
+    @Test
+    public void keepsNewestFirst() {
+        final TransactionIndex index = new TransactionIndex();
+        final RecordingListener listener = new RecordingListener();
+        index.addListener(listener);
+
+        final Map<Sha256Hash, Long> initial = new HashMap<>();
+        for (int i = 0; i < 100; i++)
+            initial.put(id(i), 1000L + i * 10);
+        index.reset(initial);
+        assertEquals(100, index.size());
+        assertEquals(id(99), index.get(0));
+        assertEquals(id(0), index.get(99));
+        assertEquals(49, index.indexOf(id(50)));
+
+        assertEquals(0, index.put(id(100), 5000));
+        assertEquals(2, index.put(id(101), 1985)); // between 99 and 98
+        assertEquals(2, index.put(id(101), 1985));
+        assertEquals(101, index.put(id(101), 0)); // now the oldest
+        assertEquals(100, index.remove(id(0)));
+        assertEquals(-1, index.remove(id(0)));
+        assertEquals(-1, index.indexOf(id(0)));
+        assertEquals(101, index.size());
+
+        assertEquals("[reset, inserted 0, inserted 2, changed 2, moved 2 101, removed 100]",
+                listener.events.toString());
+    }
+
+    @Test
+    public void pagerRemapsOnlyWhatChanged() {
+        final TransactionIndex index = new TransactionIndex();
+        final RecordingListener forward = new RecordingListener();
+        final TransactionPager<String> pager = new TransactionPager<>(index, Sha256Hash::toString, 20, 10, forward);
+        pager.attach();
+
+        final Map<Sha256Hash, Long> initial = new HashMap<>();
+        for (int i = 0; i < 1000; i++)
+            initial.put(id(i), (long) i);
+        index.reset(initial);
+
+        assertEquals(id(999).toString(), pager.getItem(0));
+        assertEquals(id(990).toString(), pager.getItem(9));
+        assertEquals(20, pager.getNumMapped()); // just the first page
+
+        index.put(id(995), 995); // confirmation
+        assertEquals(21, pager.getNumMapped());
+
+        index.put(id(1000), 1000); // new transaction
+        assertEquals(id(1000).toString(), pager.getItem(0));
+        assertEquals(id(999).toString(), pager.getItem(1));
+        assertTrue(pager.getNumMapped() <= 21 + 20);
+        assertEquals("[reset, changed 4, inserted 0]", forward.events.toString());
+    }
+
+    /**
+     * The cost of an update, a new transaction or a confirmation of a recent one, should not depend on the length of
+     * the history. Only runs with {@code -Pbenchmark}.
+     */
+    @Test
+    public void updateCostStaysFlat() {
+        assumeTrue(Boolean.getBoolean("benchmark"));
+        final int[] sizes = { 1000, 10000, 100000 };
+        final double[] nanosPerUpdate = new double[sizes.length];
+        for (int s = 0; s < sizes.length; s++) {
+            final int size = sizes[s];
+            final TransactionIndex index = new TransactionIndex();
+            final TransactionPager<String> pager = new TransactionPager<>(index, Sha256Hash::toString, 50, 20,
+                    new RecordingListener() {
+                        @Override
+                        public void onInserted(final int position) {
+                        }
+
+                        @Override
+                        public void onRemoved(final int position) {
+                        }
+
+                        @Override
+                        public void onChanged(final int position) {
+                        }
+                    });
+            pager.attach();
+            final Map<Sha256Hash, Long> initial = new HashMap<>();
+            for (int i = 0; i < size; i++)
+                initial.put(id(i), (long) i);
+            index.reset(initial);
+            pager.getItem(0);
+
+            final int updates = 20000;
+            final Sha256Hash[] newIds = new Sha256Hash[updates];
+            for (int i = 0; i < updates; i++)
+                newIds[i] = id(size + i);
+            long best = Long.MAX_VALUE;
+            for (int round = 0; round < 5; round++) {
+                final long start = System.nanoTime();
+                for (int i = 0; i < updates; i++) {
+                    if (i % 2 == 0)
+                        index.put(newIds[i], size + round * updates + i);
+                    else
+                        index.put(newIds[i - 1], size + round * updates + i - 1);
+                    pager.getItem(0);
+                }
+                best = Math.min(best, System.nanoTime() - start);
+                for (int i = 0; i < updates; i += 2)
+                    index.remove(newIds[i]);
+            }
+            nanosPerUpdate[s] = (double) best / updates;
+        }
+        assertTrue("cost grew from " + nanosPerUpdate[0] + " to " + nanosPerUpdate[2] + " ns",
+                nanosPerUpdate[2] < nanosPerUpdate[0] * 10);
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.exchangerate;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.MoreExecutors;
+import de.schildbach.wallet.service.http.HttpResponse;
+import de.schildbach.wallet.service.http.HttpServer;
+import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
+import okio.Buffer;
+import org.bitcoinj.utils.Fiat;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ExchangeRateCacheTest {
+    private static final String ETAG = "\"v1\"";
+
+    private byte[] fixture;
+    private volatile byte[] served;
+    private volatile String servedEtag;
+    private volatile boolean failing;
+    private final AtomicInteger fullResponses = new AtomicInteger();
+    private HttpServer server;
+    private HttpUrl url;
+
+    private final List<Map<String, Fiat>> writtenChanges = new ArrayList<>();
+    private final List<Set<String>> writtenRemovals = new ArrayList<>();
+    private final List<String> writtenEtags = new ArrayList<>();
+    private final ExchangeRateCache.Store store = (changed, removed, etag, lastModified) -> {
+        writtenChanges.add(changed);
+        writtenRemovals.add(removed);
+        writtenEtags.add(etag);
+    };
+
+    @Before
+    public void setUp() throws Exception {
+        try (final InputStream is = getClass().getResourceAsStream("coingecko.json")) {
+            fixture = ByteStreams.toByteArray(is);
+        }
+        served = fixture;
+        servedEtag = ETAG;
+        server = new HttpServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), (request, responder) -> {
+            if (failing) {
+                responder.respond(new HttpResponse(503, HttpResponse.JSON, ImmutableMap.<String, String> of(),
+                        new byte[0]));
+            } else if (servedEtag.equals(request.header("If-None-Match"))) {
+                responder.respond(new HttpResponse(304, HttpResponse.JSON, ImmutableMap.of("ETag", servedEtag),
+                        new byte[0]));
+            } else {
+                fullResponses.incrementAndGet();
+                responder.respond(new HttpResponse(200, HttpResponse.JSON, ImmutableMap.of("ETag", servedEtag),
+                        served));
+            }
+        }, 1, 4, 10000);
+        server.start();
+        url = HttpUrl.get("http://127.0.0.1:" + server.getPort() + "/api/v3/exchange_rates");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.close();
+    }
+
+    private ExchangeRateCache newCache(final long maxAgeMs) {
+        return new ExchangeRateCache(new OkHttpClient(), url, MoreExecutors.directExecutor(), store, maxAgeMs);
+    }
+
+    @Test
+    public void parsesFixtureStreaming() throws Exception {
+        final Map<String, Fiat> rates = ExchangeRateStreamParser.parse(new Buffer().write(fixture));
+        assertEquals(45, rates.size());
+        assertEquals(Fiat.parseFiat("USD", "9301.146"), rates.get("USD"));
+        assertFalse(rates.containsKey("ETH")); // crypto
+        assertFalse(rates.containsKey("XAU")); // commodity
+    }
+
+    @Test
+    public void conditionalRequestsAndChangedOnlyWrites() throws Exception {
+        final ExchangeRateCache cache = newCache(Long.MAX_VALUE);
+        assertTrue(cache.revalidate());
+        assertEquals(45, cache.getRates().size());
+        assertEquals(1, writtenChanges.size());
+        assertEquals(45, writtenChanges.get(0).size());
+
+        // unchanged feed: 304, nothing parsed, nothing written
+        final long bytesParsed = cache.getStats().bytesParsed.get();
+        assertFalse(cache.revalidate());
+        assertEquals(1, cache.getStats().notModified.get());
+        assertEquals(bytesParsed, cache.getStats().bytesParsed.get());
+        assertEquals(1, writtenChanges.size());
+
+        // one rate changes, one currency disappears: one write with just those
+        served = new String(fixture, StandardCharsets.UTF_8).replace("\"US Dollar\",\"unit\":\"$\",\"value\":9301.146",
+                "\"US Dollar\",\"unit\":\"$\",\"value\":9400.5")
+                .replace("\"chf\":{\"name\":\"Swiss Franc\",\"unit\":\"Fr.\",\"value\":8962.668,\"type\":\"fiat\"},",
+                        "")
+                .getBytes(StandardCharsets.UTF_8);
+        servedEtag = "\"v2\"";
+        assertTrue(cache.revalidate());
+        assertEquals(2, writtenChanges.size());
+        assertEquals(ImmutableMap.of("USD", Fiat.parseFiat("USD", "9400.5")), writtenChanges.get(1));
+        assertEquals(ImmutableMap.of("CHF", 0).keySet(), writtenRemovals.get(1));
+        assertEquals(45 + 2, cache.getStats().ratesWritten.get());
+        assertEquals(2, fullResponses.get());
+        assertEquals(ImmutableList.of(ETAG, "\"v2\""), writtenEtags);
+    }
+
+    @Test
+    public void persistedEtagSurvivesRestart() throws Exception {
+        final ExchangeRateCache cache = newCache(Long.MAX_VALUE);
+        cache.revalidate();
+
+        final ExchangeRateCache restarted = newCache(Long.MAX_VALUE);
+        restarted.init(cache.getRates(), writtenEtags.get(0), null);
+        assertFalse(restarted.revalidate());
+        assertEquals(1, restarted.getStats().notModified.get());
+        assertEquals(1, fullResponses.get());
+        assertEquals(45, restarted.getRates().size());
+    }
+
+    @Test
+    public void backsOffAfterFailure() throws Exception {
+        final ExchangeRateCache cache = newCache(60000);
+        cache.init(ImmutableMap.of("USD", Fiat.parseFiat("USD", "1")), null, null);
+        failing = true;
+
+        // the failed revalidation is logged, the stale rate is still served and further reads don't retry
+        assertEquals(Fiat.parseFiat("USD", "1"), cache.getRate("USD"));
+        assertEquals(1, cache.getStats().failures.get());
+        cache.getRates();
+        cache.getRates();
+        assertTrue(cache.isStale());
+        assertEquals(1, cache.getStats().requests.get());
+
+        // an explicit revalidation still goes through, and success ends the back-off
+        failing = false;
+        assertTrue(cache.revalidate());
+        assertFalse(cache.isStale());
+        assertEquals(Fiat.parseFiat("USD", "9301.146"), cache.getRate("USD"));
+    }
+
+    @Test
+    public void staleWhileRevalidate() throws Exception {
+        final ExchangeRateCache cache = newCache(60000);
+        cache.init(ImmutableMap.of("USD", Fiat.parseFiat("USD", "1")), null, null);
+        final List<Map<String, Fiat>> notified = new ArrayList<>();
+        cache.addListener(notified::add);
+        assertTrue(cache.isStale());
+
+        // with a direct executor the revalidation runs right away, but the caller got the stale rate
+        assertEquals(Fiat.parseFiat("USD", "1"), cache.getRate("USD"));
+        assertFalse(cache.isStale());
+        assertEquals(Fiat.parseFiat("USD", "9301.146"), cache.getRate("USD"));
+        assertEquals(1, notified.size());
+
+        // fresh: no further requests
+        cache.getRates();
+        cache.getRates();
+        assertEquals(1, cache.getStats().requests.get());
+    }
+}
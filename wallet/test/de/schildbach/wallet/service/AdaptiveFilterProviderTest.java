@@ -0,0 +1,267 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.service;
+
+import com.google.common.collect.ImmutableList;
+import org.bitcoinj.core.BloomFilter;
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.PeerFilterProvider;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.net.FilterMerger;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.script.ScriptBuilder;
+import org.bitcoinj.wallet.Wallet;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class AdaptiveFilterProviderTest {
+    private static final double FP_RATE = 0.0005;
+    private static final InetSocketAddress PEER_1 = InetSocketAddress.createUnresolved("peer1", 22556);
+    private static final InetSocketAddress PEER_2 = InetSocketAddress.createUnresolved("peer2", 22556);
+
+    private ScheduledExecutorService scheduler;
+
+    @Before
+    public void setUp() {
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+    }
+
+    @After
+    public void tearDown() {
+        scheduler.shutdownNow();
+    }
+
+    private static byte[] element(final int n) {
+        return Sha256Hash.of(ByteBuffer.allocate(4).putInt(n).array()).getBytes();
+    }
+
+    /** Stands in for the wallet: a growing list of keys and scripts. */
+    private static class FakeWallet implements PeerFilterProvider {
+        final List<byte[]> elements = new ArrayList<>();
+
+        synchronized void add(final int n) {
+            elements.add(element(n));
+        }
+
+        @Override
+        public long getEarliestKeyCreationTime() {
+            return 0;
+        }
+
+        @Override
+        public void beginBloomFilterCalculation() {
+        }
+
+        @Override
+        public synchronized int getBloomFilterElementCount() {
+            return elements.size();
+        }
+
+        @Override
+        public synchronized BloomFilter getBloomFilter(final int size, final double falsePositiveRate,
+                final long tweak) {
+            final BloomFilter filter = new BloomFilter(size, falsePositiveRate, tweak,
+                    BloomFilter.BloomUpdate.UPDATE_P2PUBKEY_ONLY);
+            for (final byte[] element : elements)
+                filter.insert(element);
+            return filter;
+        }
+
+        @Override
+        public boolean isRequiringUpdateAllBloomFilter() {
+            return false;
+        }
+
+        @Override
+        public void endBloomFilterCalculation() {
+        }
+    }
+
+    /** Stands in for the peer group, which recalculates the merged filter and sends it to peers if it changed. */
+    private static class FakePeerGroup implements AdaptiveFilterProvider.Refresher {
+        final FilterMerger merger = new FilterMerger(FP_RATE);
+        PeerFilterProvider provider;
+        int sends = 0;
+        int forcedSends = 0;
+        long bytesSent = 0;
+        BloomFilter lastSent;
+
+        @Override
+        public synchronized void refresh(final boolean force) {
+            final FilterMerger.Result result = merger.calculate(ImmutableList.of(provider));
+            if (result.changed || force) {
+                sends++;
+                if (force)
+                    forcedSends++;
+                bytesSent += result.filter.bitcoinSerialize().length;
+                lastSent = result.filter;
+            }
+        }
+    }
+
+    private AdaptiveFilterProvider newProvider(final FakeWallet wallet, final FakePeerGroup peerGroup,
+            final long batchDelayMs) {
+        final AdaptiveFilterProvider provider = new AdaptiveFilterProvider(wallet, peerGroup, scheduler,
+                AdaptiveFilterProvider.DEFAULT_HEADROOM, batchDelayMs, 0.001, 1000);
+        peerGroup.provider = provider;
+        return provider;
+    }
+
+    private void await(final AdaptiveFilterProvider provider, final int resends) throws Exception {
+        while (provider.getStats().resends < resends)
+            Thread.sleep(5);
+        scheduler.submit(() -> {
+        }).get(); // the flush that counted the resend has also refreshed
+    }
+
+    /**
+     * Adding 500 addresses one by one: the plain wallet provider makes the peer group resend the filter after every
+     * one, the adaptive provider sends them in one go.
+     */
+    @Test
+    public void batchesNewElements() throws Exception {
+        final FakeWallet plainWallet = new FakeWallet();
+        final FakePeerGroup plainGroup = new FakePeerGroup();
+        plainGroup.provider = plainWallet;
+
+        for (int i = 0; i < 1000; i++)
+            plainWallet.add(i);
+        plainGroup.refresh(false);
+        for (int i = 1000; i < 1500; i++) {
+            plainWallet.add(i);
+            plainGroup.refresh(false); // what the peer group does on every new key
+        }
+
+        final FakeWallet wallet = new FakeWallet();
+        final FakePeerGroup peerGroup = new FakePeerGroup();
+        final AdaptiveFilterProvider provider = newProvider(wallet, peerGroup, 1000);
+        for (int i = 0; i < 1000; i++)
+            wallet.add(i);
+        peerGroup.refresh(false);
+        for (int i = 1000; i < 1500; i++) {
+            wallet.add(i);
+            provider.onElementsChanged();
+            peerGroup.refresh(false);
+        }
+        await(provider, 1);
+
+        assertTrue(plainGroup.sends > 450); // unless a new element happens to hit only bits already set
+        assertEquals(2, peerGroup.sends);
+        assertTrue(peerGroup.bytesSent < plainGroup.bytesSent / 100);
+        for (int i = 0; i < 1500; i++)
+            assertTrue(peerGroup.lastSent.contains(element(i)));
+        assertEquals(1500, provider.getStats().capacity); // headroom was enough
+        assertEquals(0, provider.getStats().resizes);
+    }
+
+    @Test
+    public void noticesNewKeysAndScriptsOfAttachedWallet() throws Exception {
+        Context.propagate(new Context(UnitTestParams.get()));
+        final Wallet wallet = Wallet.createDeterministic(UnitTestParams.get(), Script.ScriptType.P2PKH);
+        final FakePeerGroup peerGroup = new FakePeerGroup();
+        final AdaptiveFilterProvider provider = new AdaptiveFilterProvider(wallet, peerGroup, scheduler,
+                AdaptiveFilterProvider.DEFAULT_HEADROOM, 0, 0.001, 1000);
+        peerGroup.provider = provider;
+        provider.attach(wallet);
+        peerGroup.refresh(false);
+
+        final ECKey key = new ECKey();
+        wallet.importKey(key);
+        await(provider, 1);
+        assertTrue(peerGroup.lastSent.contains(key.getPubKeyHash()));
+
+        final Script script = ScriptBuilder.createP2SHOutputScript(new byte[20]);
+        wallet.addWatchedScripts(ImmutableList.of(script));
+        await(provider, 2);
+        assertTrue(peerGroup.lastSent.contains(script.getPubKeyHash()));
+
+        final int changes = provider.getStats().changesReported;
+        provider.detach(wallet);
+        wallet.importKey(new ECKey());
+        assertEquals(changes, provider.getStats().changesReported);
+    }
+
+    @Test
+    public void resizesOnceOutgrown() throws Exception {
+        final FakeWallet wallet = new FakeWallet();
+        final FakePeerGroup peerGroup = new FakePeerGroup();
+        final AdaptiveFilterProvider provider = newProvider(wallet, peerGroup, 0);
+        for (int i = 0; i < 1000; i++)
+            wallet.add(i);
+        peerGroup.refresh(false);
+        final int initialBytes = peerGroup.lastSent.bitcoinSerialize().length;
+
+        for (int i = 1000; i < 1400; i++)
+            wallet.add(i);
+        provider.flush();
+        assertEquals(1500, provider.getStats().capacity);
+        assertEquals(initialBytes, peerGroup.lastSent.bitcoinSerialize().length);
+
+        for (int i = 1400; i < 1600; i++)
+            wallet.add(i);
+        provider.flush();
+        assertEquals(2400, provider.getStats().capacity);
+        assertTrue(peerGroup.lastSent.bitcoinSerialize().length > initialBytes);
+        assertEquals(1, provider.getStats().resizes);
+        for (int i = 0; i < 1600; i++)
+            assertTrue(peerGroup.lastSent.contains(element(i)));
+    }
+
+    @Test
+    public void resendsOnlyWhenFalsePositivesExceedTarget() {
+        final FakeWallet wallet = new FakeWallet();
+        wallet.add(0);
+        final FakePeerGroup peerGroup = new FakePeerGroup();
+        final AdaptiveFilterProvider provider = newProvider(wallet, peerGroup, 0);
+        peerGroup.refresh(false);
+
+        // 2000 transactions per block, one false positive each: rate 0.0005, below the target
+        for (int i = 0; i < 10; i++)
+            provider.onFilteredBlock(i % 2 == 0 ? PEER_1 : PEER_2, 2000, 2, 1, 10000);
+        assertEquals(0, peerGroup.forcedSends);
+
+        // peer-side updates made the filter match more and more
+        provider.onFilteredBlock(PEER_1, 2000, 12, 1, 50000);
+        assertFalse(provider.getStats().falsePositiveRate > 0.001); // 21 in 22000, still fine
+        assertEquals(0, peerGroup.forcedSends);
+        provider.onFilteredBlock(PEER_1, 2000, 40, 1, 50000);
+        assertEquals(1, peerGroup.forcedSends);
+        assertEquals(0, provider.getStats().falsePositiveRate, 0); // fresh filter, fresh sample
+
+        final AdaptiveFilterProvider.PeerStats peer1 = provider.getPeerStats().get(PEER_1);
+        assertEquals(7, peer1.blocks);
+        assertEquals(14000, peer1.transactions);
+        assertEquals(5 + 11 + 39, peer1.falsePositives);
+        assertEquals(150000, peer1.bytesReceived);
+        assertEquals(5, provider.getPeerStats().get(PEER_2).falsePositives);
+    }
+}
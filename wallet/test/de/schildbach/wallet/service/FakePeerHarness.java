@@ -0,0 +1,253 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.service;
+
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.GetHeadersMessage;
+import org.bitcoinj.core.HeadersMessage;
+import org.bitcoinj.core.Message;
+import org.bitcoinj.core.MessageSerializer;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Ping;
+import org.bitcoinj.core.Pong;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.VersionAck;
+import org.bitcoinj.core.VersionMessage;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Local fake peers speaking just enough of the wire protocol for a version/verack handshake, pings and header
+ * download. Each peer has a latency, applied before answering, and a drop rate, the chance that a connection is
+ * accepted but never answered, as a blackholed address would behave.
+ */
+public class FakePeerHarness implements Closeable {
+    public static final class FakePeer implements Runnable {
+        public final long latencyMs;
+        public final double dropRate;
+        private final ServerSocket serverSocket;
+        private final FakePeerHarness harness;
+        private final NetworkParameters params;
+        private final Random random;
+        private final List<Socket> sockets = new ArrayList<>();
+        private final AtomicInteger hangups = new AtomicInteger();
+
+        private FakePeer(final FakePeerHarness harness, final long latencyMs, final double dropRate,
+                final long seed) throws IOException {
+            this.harness = harness;
+            this.params = harness.params;
+            this.latencyMs = latencyMs;
+            this.dropRate = dropRate;
+            this.random = new Random(seed);
+            this.serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        }
+
+        public InetSocketAddress getAddress() {
+            return new InetSocketAddress(serverSocket.getInetAddress(), serverSocket.getLocalPort());
+        }
+
+        /** Number of connections the client closed after completing the handshake. */
+        public int getHangups() {
+            return hangups.get();
+        }
+
+        @Override
+        public void run() {
+            while (!serverSocket.isClosed()) {
+                try {
+                    final Socket socket = serverSocket.accept();
+                    synchronized (sockets) {
+                        sockets.add(socket);
+                    }
+                    final boolean drop = random.nextDouble() < dropRate;
+                    final Thread thread = new Thread(() -> serve(socket, drop), "fake peer " + getAddress());
+                    thread.setDaemon(true);
+                    thread.start();
+                } catch (final IOException x) {
+                    // closed
+                }
+            }
+        }
+
+        private void serve(final Socket socket, final boolean drop) {
+            boolean handshaken = false;
+            try {
+                final MessageSerializer serializer = params.getDefaultSerializer();
+                final InputStream is = socket.getInputStream();
+                final Message request = readMessage(serializer, is);
+                if (drop || !(request instanceof VersionMessage))
+                    return; // blackhole: keep the connection open, never answer
+                Thread.sleep(latencyMs);
+                final OutputStream os = socket.getOutputStream();
+                final VersionMessage version = new VersionMessage(params, 1000);
+                version.localServices = VersionMessage.NODE_NETWORK;
+                serializer.serialize(version, os);
+                serializer.serialize(new VersionAck(), os);
+                os.flush();
+                readMessage(serializer, is); // the client's verack
+                handshaken = true;
+                while (true) {
+                    final Message message = readMessage(serializer, is);
+                    final Message reply;
+                    if (message instanceof Ping)
+                        reply = new Pong(((Ping) message).getNonce());
+                    else if (message instanceof GetHeadersMessage)
+                        reply = headersAfter(((GetHeadersMessage) message).getLocator().getHashes());
+                    else
+                        continue;
+                    Thread.sleep(latencyMs);
+                    serializer.serialize(reply, os);
+                    os.flush();
+                }
+            } catch (final EOFException x) {
+                if (handshaken)
+                    hangups.incrementAndGet();
+            } catch (final IOException | InterruptedException x) {
+                // client gave up
+            }
+        }
+
+        /** @return the headers following the first locator hash that is known, or following genesis */
+        private HeadersMessage headersAfter(final List<Sha256Hash> locator) {
+            final List<Block> headers = harness.headers;
+            int from = 0;
+            for (final Sha256Hash hash : locator) {
+                final int index = indexOf(headers, hash);
+                if (index >= 0) {
+                    from = index + 1;
+                    break;
+                }
+            }
+            final int to = Math.min(from + HeadersMessage.MAX_HEADERS, headers.size());
+            return new HeadersMessage(params, headers.subList(Math.min(from, to), to));
+        }
+
+        private static int indexOf(final List<Block> headers, final Sha256Hash hash) {
+            for (int i = 0; i < headers.size(); i++)
+                if (headers.get(i).getHash().equals(hash))
+                    return i;
+            return -1;
+        }
+
+        private void close() throws IOException {
+            serverSocket.close();
+            synchronized (sockets) {
+                for (final Socket socket : sockets)
+                    socket.close();
+            }
+        }
+    }
+
+    private final NetworkParameters params;
+    private final List<FakePeer> peers = new ArrayList<>();
+    private volatile List<Block> headers = Collections.emptyList();
+
+    public FakePeerHarness(final NetworkParameters params) {
+        this.params = params;
+    }
+
+    public FakePeer addPeer(final long latencyMs, final double dropRate) throws IOException {
+        final FakePeer peer = new FakePeer(this, latencyMs, dropRate, peers.size());
+        peers.add(peer);
+        final Thread thread = new Thread(peer, "fake peer acceptor " + peer.getAddress());
+        thread.setDaemon(true);
+        thread.start();
+        return peer;
+    }
+
+    public List<FakePeer> getPeers() {
+        return peers;
+    }
+
+    /** Sets the header chain all peers serve, starting with genesis. */
+    public void serveHeaders(final List<Block> headers) {
+        this.headers = new ArrayList<>(headers);
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (final FakePeer peer : peers)
+            peer.close();
+    }
+
+    /**
+     * Blocking version/verack handshake, as a plain sequential dialer would do it.
+     *
+     * @return the round trip time in milliseconds, or -1 if the handshake didn't finish within the timeout
+     */
+    public static long handshake(final NetworkParameters params, final InetSocketAddress address,
+            final int timeoutMs) {
+        final long start = System.currentTimeMillis();
+        try (final Socket socket = new Socket()) {
+            socket.connect(address, timeoutMs);
+            socket.setSoTimeout(timeoutMs);
+            final MessageSerializer serializer = params.getDefaultSerializer();
+            final OutputStream os = socket.getOutputStream();
+            serializer.serialize(new VersionMessage(params, 0), os);
+            os.flush();
+            final InputStream is = socket.getInputStream();
+            boolean gotVersion = false, gotVerack = false;
+            while (!(gotVersion && gotVerack)) {
+                final Message m = readMessage(serializer, is);
+                gotVersion |= m instanceof VersionMessage;
+                gotVerack |= m instanceof VersionAck;
+            }
+            serializer.serialize(new VersionAck(), os);
+            return System.currentTimeMillis() - start;
+        } catch (final IOException x) {
+            return -1; // includes timeouts
+        }
+    }
+
+    static Message readMessage(final MessageSerializer serializer, final InputStream is) throws IOException {
+        final byte[] header = readFully(is, 4 + 12 + 4 + 4);
+        final int length = ByteBuffer.wrap(header, 16, 4).order(ByteOrder.LITTLE_ENDIAN).getInt();
+        final ByteArrayOutputStream message = new ByteArrayOutputStream(header.length + length);
+        message.write(header);
+        message.write(readFully(is, length));
+        return serializer.deserialize(ByteBuffer.wrap(message.toByteArray()));
+    }
+
+    private static byte[] readFully(final InputStream is, final int length) throws IOException {
+        final byte[] bytes = new byte[length];
+        int read = 0;
+        while (read < length) {
+            final int n = is.read(bytes, read, length - read);
+            if (n < 0)
+                throw new EOFException("end of stream");
+            read += n;
+        }
+        return bytes;
+    }
+}
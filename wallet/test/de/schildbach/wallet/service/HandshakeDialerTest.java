@@ -0,0 +1,180 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.service;
+
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.VersionMessage;
+import org.bitcoinj.params.UnitTestParams;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class HandshakeDialerTest {
+    private static final NetworkParameters PARAMS = UnitTestParams.get();
+    private static final long TIMEOUT_MS = 1000;
+
+    private static List<InetSocketAddress> addresses(final FakePeerHarness harness) {
+        final List<InetSocketAddress> addresses = new ArrayList<>();
+        for (final FakePeerHarness.FakePeer peer : harness.getPeers())
+            addresses.add(peer.getAddress());
+        return addresses;
+    }
+
+    @Test
+    public void blackholedPeersDoNotHoldUpConnect() throws Exception {
+        try (final FakePeerHarness harness = new FakePeerHarness(PARAMS)) {
+            for (int i = 0; i < 4; i++)
+                harness.addPeer(0, 1.0);
+            final InetSocketAddress fast = harness.addPeer(20, 0).getAddress();
+            final InetSocketAddress slow = harness.addPeer(200, 0).getAddress();
+
+            final PeerScoreTable scores = new PeerScoreTable();
+            final HandshakeDialer dialer = new HandshakeDialer(PARAMS, 6, 10, TIMEOUT_MS, scores);
+            final long start = System.currentTimeMillis();
+            final List<HandshakeDialer.Handshake> winners = dialer.dial(addresses(harness), 2, 0);
+            final long elapsed = System.currentTimeMillis() - start;
+
+            assertEquals(2, winners.size());
+            assertEquals(fast, winners.get(0).address);
+            assertEquals(slow, winners.get(1).address);
+            assertTrue(winners.get(0).rttMs <= winners.get(1).rttMs);
+            assertTrue("took " + elapsed + "ms", elapsed < TIMEOUT_MS);
+
+            final HandshakeDialer.Stats stats = dialer.getStats();
+            assertEquals(6, stats.attempts.get());
+            assertEquals(2, stats.wins.get());
+            assertEquals(0, stats.timeouts.get());
+            assertEquals(4, stats.cancelled.get());
+            assertTrue(scores.get(fast).getRttMs() >= 20);
+        }
+    }
+
+    @Test
+    public void cancelsLosers() throws Exception {
+        try (final FakePeerHarness harness = new FakePeerHarness(PARAMS)) {
+            harness.addPeer(300, 0);
+            harness.addPeer(300, 0);
+            final InetSocketAddress fast = harness.addPeer(0, 0).getAddress();
+
+            final HandshakeDialer dialer = new HandshakeDialer(PARAMS, 3, 0, TIMEOUT_MS, null);
+            final List<HandshakeDialer.Handshake> winners = dialer.dial(addresses(harness), 1, 0);
+
+            assertEquals(1, winners.size());
+            assertEquals(fast, winners.get(0).address);
+            assertEquals(2, dialer.getStats().cancelled.get());
+        }
+    }
+
+    @Test
+    public void hangsUpOnWinners() throws Exception {
+        try (final FakePeerHarness harness = new FakePeerHarness(PARAMS)) {
+            final FakePeerHarness.FakePeer slow = harness.addPeer(60, 0);
+            final FakePeerHarness.FakePeer fast = harness.addPeer(0, 0);
+
+            final HandshakeDialer dialer = new HandshakeDialer(PARAMS, 2, 0, TIMEOUT_MS, null);
+            final List<HandshakeDialer.Handshake> winners = dialer.dial(addresses(harness), 2, 0);
+
+            assertEquals(2, winners.size());
+            assertEquals(fast.getAddress(), winners.get(0).address);
+            assertEquals(slow.getAddress(), winners.get(1).address);
+            final long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+            while (fast.getHangups() + slow.getHangups() < 2 && System.currentTimeMillis() < deadline)
+                Thread.sleep(10);
+            assertEquals(1, fast.getHangups());
+            assertEquals(1, slow.getHangups());
+        }
+    }
+
+    @Test
+    public void timesOutAndRecordsFailures() throws Exception {
+        try (final FakePeerHarness harness = new FakePeerHarness(PARAMS)) {
+            harness.addPeer(0, 1.0);
+            harness.addPeer(0, 1.0);
+
+            final PeerScoreTable scores = new PeerScoreTable();
+            final HandshakeDialer dialer = new HandshakeDialer(PARAMS, 2, 0, 200, scores);
+            assertTrue(dialer.dial(addresses(harness), 1, 0).isEmpty());
+            assertEquals(2, dialer.getStats().timeouts.get());
+            for (final InetSocketAddress address : addresses(harness))
+                assertEquals(1.0, scores.get(address).getFailures(), 0.01);
+        }
+    }
+
+    @Test
+    public void rejectsBadChecksum() throws Exception {
+        final ByteArrayOutputStream version = new ByteArrayOutputStream();
+        PARAMS.getDefaultSerializer().serialize(new VersionMessage(PARAMS, 0), version);
+        final byte[] corrupted = version.toByteArray();
+        corrupted[20] ^= 1; // first checksum byte
+
+        try (final ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            final Thread peer = new Thread(() -> {
+                try (final Socket socket = server.accept()) {
+                    socket.getOutputStream().write(corrupted);
+                    socket.getInputStream().read(new byte[1024]);
+                } catch (final IOException x) {
+                    // dialer hung up
+                }
+            });
+            peer.start();
+            final PeerScoreTable scores = new PeerScoreTable();
+            final HandshakeDialer dialer = new HandshakeDialer(PARAMS, 1, 0, TIMEOUT_MS, scores);
+            final InetSocketAddress address = new InetSocketAddress(InetAddress.getLoopbackAddress(),
+                    server.getLocalPort());
+            assertTrue(dialer.dial(Collections.singletonList(address), 1, 0).isEmpty());
+            assertEquals(1, dialer.getStats().failures.get());
+            assertEquals(0, dialer.getStats().timeouts.get());
+            assertEquals(1.0, scores.get(address).getFailures(), 0.01);
+            peer.join();
+        }
+    }
+
+    @Test
+    public void lossyPeers() throws Exception {
+        try (final FakePeerHarness harness = new FakePeerHarness(PARAMS)) {
+            for (int i = 0; i < 12; i++)
+                harness.addPeer(5 * i, 0.5);
+
+            final HandshakeDialer dialer = new HandshakeDialer(PARAMS, 4, 20, 300, null);
+            final List<HandshakeDialer.Handshake> winners = dialer.dial(addresses(harness), 3, 0);
+            final Set<InetSocketAddress> distinct = new HashSet<>();
+            for (final HandshakeDialer.Handshake winner : winners) {
+                assertFalse(winner.peerVersion == null);
+                distinct.add(winner.address);
+            }
+            assertEquals(winners.size(), distinct.size());
+            final HandshakeDialer.Stats stats = dialer.getStats();
+            assertEquals(stats.attempts.get(),
+                    stats.wins.get() + stats.timeouts.get() + stats.failures.get() + stats.cancelled.get());
+        }
+    }
+}
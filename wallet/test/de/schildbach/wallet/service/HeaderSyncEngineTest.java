@@ -0,0 +1,320 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.service;
+
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.VerificationException;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.wallet.Wallet;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class HeaderSyncEngineTest {
+    private static final NetworkParameters PARAMS = UnitTestParams.get();
+    private static final int CHAIN_LENGTH = 5000;
+
+    private final List<Block> chain = new ArrayList<>();
+    private final List<Block> joined = new ArrayList<>();
+    private final List<Integer> joinedStartHeights = new ArrayList<>();
+    private int completeHeight = -1;
+    private int failAtHeight = -1;
+    private HeaderSyncStats stats;
+
+    private final HeaderSyncEngine.Listener listener = new HeaderSyncEngine.Listener() {
+        @Override
+        public void onHeadersJoined(final int startHeight, final List<Block> headers) {
+            assertEquals(joined.size(), startHeight); // continues the chain
+            if (startHeight < failAtHeight && startHeight + headers.size() >= failAtHeight) {
+                failAtHeight = -1;
+                throw new VerificationException("invalid header at " + failAtHeight);
+            }
+            joinedStartHeights.add(startHeight);
+            joined.addAll(headers);
+        }
+
+        @Override
+        public void onSyncComplete(final int height) {
+            completeHeight = height;
+        }
+    };
+
+    private class FakeSource implements HeaderSyncEngine.HeaderSource {
+        final String id;
+        final LinkedList<Sha256Hash[]> requests = new LinkedList<>();
+        boolean wrongChain = false;
+
+        FakeSource(final String id) {
+            this.id = id;
+        }
+
+        @Override
+        public String getId() {
+            return id;
+        }
+
+        @Override
+        public void requestHeaders(final Sha256Hash locator, final Sha256Hash stopHash) {
+            requests.add(new Sha256Hash[] { locator, stopHash });
+        }
+
+        boolean serve(final HeaderSyncEngine engine) {
+            final Sha256Hash[] request = requests.poll();
+            if (request == null)
+                return false;
+            int height = heightOf(request[0]) + 1;
+            final List<Block> headers = new ArrayList<>();
+            while (height < chain.size() && headers.size() < HeaderSyncEngine.MAX_HEADERS_PER_MESSAGE) {
+                final Block header = wrongChain && height == 3 ? chain.get(height + 1) : chain.get(height);
+                headers.add(header);
+                if (header.getHash().equals(request[1]))
+                    break;
+                height++;
+            }
+            engine.onHeaders(this, headers, headers.size() * Block.HEADER_SIZE);
+            return true;
+        }
+    }
+
+    @Before
+    public void setUp() {
+        Block previous = PARAMS.getGenesisBlock().cloneAsHeader();
+        chain.add(previous);
+        for (int i = 1; i < CHAIN_LENGTH; i++) {
+            final Block header = new Block(PARAMS, Block.BLOCK_VERSION_GENESIS, previous.getHash(),
+                    Sha256Hash.ZERO_HASH, previous.getTimeSeconds() + 60, Block.EASIEST_DIFFICULTY_TARGET, i,
+                    new LinkedList<Transaction>());
+            chain.add(header);
+            previous = header;
+        }
+        stats = new HeaderSyncStats();
+    }
+
+    private int heightOf(final Sha256Hash hash) {
+        for (int i = 0; i < chain.size(); i++)
+            if (chain.get(i).getHash().equals(hash))
+                return i;
+        throw new IllegalArgumentException(hash.toString());
+    }
+
+    private HeaderSyncEngine.Anchor anchor(final int height) {
+        return new HeaderSyncEngine.Anchor(height, chain.get(height).getHash(), chain.get(height).getTimeSeconds());
+    }
+
+    private HeaderSyncEngine newEngine(final int... checkpointHeights) {
+        return newBoundedEngine(HeaderSyncEngine.DEFAULT_MAX_BUFFERED_HEADERS, checkpointHeights);
+    }
+
+    private HeaderSyncEngine newBoundedEngine(final int maxBufferedHeaders, final int... checkpointHeights) {
+        final List<HeaderSyncEngine.Anchor> checkpoints = new ArrayList<>();
+        for (final int height : checkpointHeights)
+            checkpoints.add(anchor(height));
+        return new HeaderSyncEngine(anchor(0), checkpoints, Long.MAX_VALUE, maxBufferedHeaders,
+                HeaderSyncEngine.DEFAULT_STALL_TIMEOUT_MS, listener, stats);
+    }
+
+    private static void drive(final HeaderSyncEngine engine, final FakeSource... sources) {
+        boolean progress = true;
+        while (progress) {
+            progress = false;
+            for (final FakeSource source : sources)
+                progress |= source.serve(engine);
+        }
+    }
+
+    @Test
+    public void joinsSegmentsInOrder() {
+        final HeaderSyncEngine engine = newEngine(1000, 2500, 4999);
+        final FakeSource a = new FakeSource("a");
+        final FakeSource b = new FakeSource("b");
+        final FakeSource c = new FakeSource("c");
+        engine.addSource(a);
+        engine.addSource(b);
+        engine.addSource(c);
+        assertEquals(1, a.requests.size());
+        assertEquals(1, b.requests.size());
+        assertEquals(1, c.requests.size());
+
+        // serve the last segment first, nothing can be joined yet
+        c.serve(engine);
+        assertTrue(joined.isEmpty());
+
+        drive(engine, a, b, c);
+        assertTrue(engine.isComplete());
+        assertEquals(Arrays.asList(0, 1000, 2500, 4500), joinedStartHeights);
+        assertEquals(4999, joined.size());
+        for (int i = 0; i < joined.size(); i++)
+            assertEquals(chain.get(i + 1).getHash(), joined.get(i).getHash());
+        assertEquals(4999, completeHeight);
+        assertEquals(4999, stats.snapshot().headers);
+    }
+
+    @Test
+    public void rejectsSegmentThatDoesNotConnect() {
+        final HeaderSyncEngine engine = newEngine(1000, 2000);
+        final FakeSource bad = new FakeSource("bad");
+        bad.wrongChain = true;
+        final FakeSource good = new FakeSource("good");
+        engine.addSource(bad);
+        bad.serve(engine);
+        assertEquals(1, (int) stats.snapshot().rejectsPerPeer.get("bad"));
+
+        engine.removeSource(bad);
+        engine.addSource(good);
+        // continues after the last header that connected
+        assertEquals(chain.get(2).getHash(), good.requests.peek()[0]);
+        drive(engine, good);
+        assertTrue(engine.isComplete());
+        assertEquals(2000, joined.size());
+    }
+
+    @Test
+    public void reassignsStalledSegment() {
+        final HeaderSyncEngine engine = newEngine(1000);
+        final FakeSource stalled = new FakeSource("stalled");
+        final FakeSource other = new FakeSource("other");
+        engine.addSource(stalled);
+        engine.addSource(other);
+        assertTrue(other.requests.isEmpty());
+
+        engine.checkStalls(System.currentTimeMillis() + HeaderSyncEngine.DEFAULT_STALL_TIMEOUT_MS + 1);
+        assertEquals(1, (int) stats.snapshot().stallsPerPeer.get("stalled"));
+        assertEquals(1, other.requests.size());
+
+        // late reply from the stalled source is not consumed
+        stalled.requests.clear();
+        assertFalse(engine.onHeaders(stalled, chain.subList(1, 10), 0));
+
+        drive(engine, other);
+        assertTrue(engine.isComplete());
+        assertEquals(1000, joined.size());
+    }
+
+    @Test
+    public void completesRightAwayPastLastCheckpoint() {
+        final List<HeaderSyncEngine.Anchor> checkpoints = Arrays.asList(anchor(1000), anchor(2000));
+        final HeaderSyncEngine engine = new HeaderSyncEngine(anchor(2500), checkpoints, Long.MAX_VALUE,
+                HeaderSyncEngine.DEFAULT_MAX_BUFFERED_HEADERS, HeaderSyncEngine.DEFAULT_STALL_TIMEOUT_MS, listener,
+                stats);
+        assertEquals(0, engine.getNumSegments());
+        final FakeSource a = new FakeSource("a");
+        engine.addSource(a);
+        assertTrue(a.requests.isEmpty());
+        assertEquals(2500, completeHeight);
+    }
+
+    /** A wallet with keys from within the third segment needs filtered blocks from the second checkpoint on. */
+    @Test
+    public void stopsBeforeWalletKeyTime() {
+        final long keyTime = chain.get(3000).getTimeSeconds() + HeaderSyncEngine.FAST_CATCHUP_MARGIN_SECS;
+        final ECKey key = new ECKey();
+        key.setCreationTimeSeconds(keyTime);
+        final Wallet wallet = Wallet.fromKeys(PARAMS, Collections.singletonList(key));
+        final long fastCatchupTimeSecs = HeaderSyncEngine.fastCatchupTimeSecs(wallet);
+        assertEquals(chain.get(3000).getTimeSeconds(), fastCatchupTimeSecs);
+
+        final List<HeaderSyncEngine.Anchor> checkpoints = Arrays.asList(anchor(1000), anchor(2500), anchor(4999));
+        final HeaderSyncEngine engine = new HeaderSyncEngine(anchor(0), checkpoints, fastCatchupTimeSecs,
+                HeaderSyncEngine.DEFAULT_MAX_BUFFERED_HEADERS, HeaderSyncEngine.DEFAULT_STALL_TIMEOUT_MS, listener,
+                stats);
+        assertEquals(2, engine.getNumSegments());
+        final FakeSource a = new FakeSource("a");
+        final FakeSource b = new FakeSource("b");
+        engine.addSource(a);
+        engine.addSource(b);
+        drive(engine, a, b);
+        assertTrue(engine.isComplete());
+        assertEquals(2500, joined.size());
+        assertEquals(2500, completeHeight);
+        for (final Block header : joined)
+            assertTrue(header.getTimeSeconds() < keyTime);
+    }
+
+    @Test
+    public void customCheckpointsKeepBlockTime() throws Exception {
+        final String hash = chain.get(1000).getHashAsString();
+        final BufferedReader reader = new BufferedReader(new StringReader("# comment\n"
+                + "1600000000=1000:" + hash + ":1:" + hash + ":" + hash + ":1577836823:1a0745e0:0:Block\n"
+                + "1600000001=2000:" + hash + "\n"));
+        final List<HeaderSyncEngine.Anchor> anchors = CheckpointAnchors.readCustom(reader);
+        assertEquals(2, anchors.size());
+        assertEquals(1577836823L, anchors.get(0).time);
+        assertEquals(1600000001L, anchors.get(1).time);
+    }
+
+    @Test
+    public void boundsMemoryAndUsesAllSources() {
+        final int maxBuffered = 1000;
+        final HeaderSyncEngine engine = newBoundedEngine(maxBuffered, 500, 1000, 1500, 4999);
+        final FakeSource[] sources = new FakeSource[4];
+        for (int i = 0; i < sources.length; i++) {
+            sources[i] = new FakeSource("s" + i);
+            engine.addSource(sources[i]);
+            assertEquals(1, sources[i].requests.size());
+        }
+
+        // more than may be held of the last segment, so its source pauses
+        sources[3].serve(engine);
+        assertEquals(HeaderSyncEngine.MAX_HEADERS_PER_MESSAGE, engine.getBufferedHeaders());
+        assertTrue(sources[3].requests.isEmpty());
+
+        sources[1].serve(engine);
+        sources[2].serve(engine);
+        assertTrue(joined.isEmpty());
+        sources[0].serve(engine);
+        assertEquals(1500 + HeaderSyncEngine.MAX_HEADERS_PER_MESSAGE, joined.size());
+        assertEquals(0, engine.getBufferedHeaders());
+
+        drive(engine, sources);
+        assertTrue(engine.isComplete());
+        assertEquals(4999, joined.size());
+        assertEquals(4999, completeHeight);
+    }
+
+    @Test
+    public void refetchesHeadersTheListenerRejects() {
+        final HeaderSyncEngine engine = newEngine(1000, 4999);
+        final FakeSource a = new FakeSource("a");
+        final FakeSource b = new FakeSource("b");
+        failAtHeight = 1500;
+        engine.addSource(a);
+        engine.addSource(b);
+        drive(engine, a, b);
+        assertTrue(engine.isComplete());
+        assertEquals(4999, joined.size());
+        for (int i = 0; i < joined.size(); i++)
+            assertEquals(chain.get(i + 1).getHash(), joined.get(i).getHash());
+        assertEquals(1, (int) stats.snapshot().rejectsPerPeer.get("b"));
+        assertEquals(4999, completeHeight);
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.service;
+
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.store.BlockStoreException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.math.BigInteger;
+import java.util.LinkedList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+public class MappedHeaderStoreTest {
+    private static final NetworkParameters PARAMS = UnitTestParams.get();
+    private static final int CAPACITY = 100;
+
+    private File file;
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("headers", ".store");
+        file.delete();
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    private static StoredBlock next(final StoredBlock previous, final long nonce) {
+        final Block header = new Block(PARAMS, Block.BLOCK_VERSION_GENESIS, previous.getHeader().getHash(),
+                Sha256Hash.ZERO_HASH, previous.getHeader().getTimeSeconds() + 60, Block.EASIEST_DIFFICULTY_TARGET,
+                nonce, new LinkedList<Transaction>());
+        return previous.build(header);
+    }
+
+    @Test
+    public void lookupByHeightAndHash() throws Exception {
+        MappedHeaderStore store = new MappedHeaderStore(PARAMS, file, CAPACITY);
+        StoredBlock block = store.getChainHead();
+        assertEquals(0, block.getHeight());
+        for (int i = 1; i <= 250; i++) {
+            block = next(block, i);
+            store.put(block);
+            store.setChainHead(block);
+        }
+        store.close();
+
+        store = new MappedHeaderStore(PARAMS, file, CAPACITY);
+        assertEquals(250, store.getChainHeadHeight());
+        assertEquals(block.getHeader().getHash(), store.getChainHead().getHeader().getHash());
+        assertFalse(store.contains(150));
+        assertNull(store.getByHeight(150));
+        assertTrue(store.contains(151));
+
+        final StoredBlock stored = store.getByHeight(200);
+        assertEquals(200, stored.getHeight());
+        assertEquals(stored.getHeader().getHash(), store.getHash(200));
+        assertEquals(stored.getHeader().getPrevBlockHash(), store.getPrevHash(200));
+        assertEquals(stored.getHeader().getTimeSeconds(), store.getTimeSeconds(200));
+        assertEquals(stored.getHeader().getDifficultyTarget(), store.getDifficultyTarget(200));
+        assertEquals(stored, store.get(stored.getHeader().getHash()));
+        assertEquals(store.getByHeight(199), store.get(stored.getHeader().getPrevBlockHash()));
+        store.close();
+    }
+
+    @Test
+    public void reorgRestoresBestChain() throws Exception {
+        final MappedHeaderStore store = new MappedHeaderStore(PARAMS, file, CAPACITY);
+        final StoredBlock fork = store.getChainHead();
+        StoredBlock main = fork;
+        for (int i = 1; i <= 3; i++) {
+            main = next(main, i);
+            store.put(main);
+        }
+        store.setChainHead(main);
+        final Sha256Hash mainHash2 = store.getHash(2);
+
+        StoredBlock side = fork;
+        for (int i = 1; i <= 4; i++) {
+            side = next(side, 1000 + i);
+            store.put(side);
+        }
+        // the displaced main chain blocks are still found by hash
+        assertEquals(2, store.get(mainHash2).getHeight());
+
+        store.setChainHead(main);
+        assertEquals(mainHash2, store.getHash(2));
+
+        store.setChainHead(side);
+        assertEquals(4, store.getChainHeadHeight());
+        assertEquals(side.getHeader().getPrevBlockHash(), store.getHash(3));
+        store.close();
+    }
+
+    @Test
+    public void reorgToShorterChainHidesOldTip() throws Exception {
+        final MappedHeaderStore store = new MappedHeaderStore(PARAMS, file, CAPACITY);
+        final StoredBlock fork = store.getChainHead();
+        StoredBlock main = fork;
+        for (int i = 1; i <= 5; i++) {
+            main = next(main, i);
+            store.put(main);
+            store.setChainHead(main);
+        }
+
+        // a side chain of 3 blocks with more work, as if its difficulty were higher
+        StoredBlock side = fork;
+        for (int i = 1; i <= 3; i++) {
+            side = next(side, 1000 + i);
+            side = new StoredBlock(side.getHeader(), main.getChainWork().add(BigInteger.valueOf(i)), i);
+            store.put(side);
+        }
+        store.setChainHead(side);
+
+        assertEquals(3, store.getChainHeadHeight());
+        assertEquals(side.getHeader().getHash(), store.getHash(3));
+        assertFalse(store.contains(4));
+        assertNull(store.getByHeight(5));
+        assertNull(store.getHash(4));
+        assertEquals(-1, store.getTimeSeconds(5));
+        // the old tip is still found by hash, for a reorg back
+        assertEquals(main, store.get(main.getHeader().getHash()));
+
+        // extending the new chain takes over the slot
+        final StoredBlock next = next(side, 2000);
+        store.put(next);
+        store.setChainHead(next);
+        assertEquals(next.getHeader().getHash(), store.getHash(4));
+        store.close();
+    }
+
+    @Test
+    public void closesFileOnVersionMismatch() throws Exception {
+        new MappedHeaderStore(PARAMS, file, CAPACITY).close();
+        try (final RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(4);
+            raf.writeInt(99);
+        }
+        final File fds = new File("/proc/self/fd");
+        assumeTrue(fds.isDirectory());
+        final int openBefore = fds.list().length;
+        try {
+            new MappedHeaderStore(PARAMS, file, CAPACITY);
+            fail();
+        } catch (final BlockStoreException x) {
+            assertTrue(x.getMessage(), x.getMessage().startsWith("incompatible header store"));
+        }
+        assertEquals(openBefore, fds.list().length);
+    }
+}
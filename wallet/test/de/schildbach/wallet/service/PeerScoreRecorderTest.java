@@ -0,0 +1,78 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.service;
+
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Peer;
+import org.bitcoinj.core.PeerAddress;
+import org.bitcoinj.core.VersionMessage;
+import org.bitcoinj.params.UnitTestParams;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class PeerScoreRecorderTest {
+    private static final NetworkParameters PARAMS = UnitTestParams.get();
+    private static final InetSocketAddress ADDRESS = new InetSocketAddress("10.0.0.1", 22556);
+
+    private PeerScoreTable table;
+    private PeerScoreRecorder recorder;
+
+    @Before
+    public void setUp() {
+        Context.propagate(new Context(PARAMS));
+        table = new PeerScoreTable();
+        recorder = new PeerScoreRecorder(table);
+    }
+
+    private static Peer peer() {
+        return new Peer(PARAMS, new VersionMessage(PARAMS, 0), new PeerAddress(PARAMS, ADDRESS), null);
+    }
+
+    @Test
+    public void failedConnectCountsAsFailure() {
+        recorder.onPeerDisconnected(peer(), 0);
+        assertEquals(1.0, table.get(ADDRESS).getFailures(), 0.001);
+        assertEquals(0.0, table.get(ADDRESS).getSuccesses(), 0.001);
+    }
+
+    @Test
+    public void earlyDropCountsAsFailure() {
+        final Peer peer = peer();
+        recorder.onPeerConnected(peer, 1);
+        assertEquals(1.0, table.get(ADDRESS).getSuccesses(), 0.001);
+        assertEquals(-1, table.get(ADDRESS).getRttMs()); // until the pong arrives
+        recorder.onPeerDisconnected(peer, 0);
+        assertEquals(1.0, table.get(ADDRESS).getFailures(), 0.001);
+    }
+
+    @Test
+    public void recordsRoundTripTime() {
+        table.recordRtt(ADDRESS, 100); // unknown peer
+        assertNull(table.get(ADDRESS));
+        table.recordSuccess(ADDRESS, 1, -1, 0);
+        table.recordRtt(ADDRESS, 100);
+        assertEquals(100, table.get(ADDRESS).getRttMs());
+        assertEquals(1.0, table.get(ADDRESS).getSuccesses(), 0.001);
+    }
+}
@@ -0,0 +1,268 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.service;
+
+import com.google.common.util.concurrent.SettableFuture;
+import org.bitcoinj.core.Address;
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.BlockLocator;
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.GetHeadersMessage;
+import org.bitcoinj.core.HeadersMessage;
+import org.bitcoinj.core.LegacyAddress;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Peer;
+import org.bitcoinj.core.PeerAddress;
+import org.bitcoinj.core.PeerGroup;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.utils.Threading;
+import org.junit.Test;
+
+import java.io.File;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+public class PeerScoreTableTest {
+    private static final NetworkParameters PARAMS = UnitTestParams.get();
+    private static final long NOW = 1700000000000L;
+    private static final InetSocketAddress A = new InetSocketAddress("10.0.0.1", 22556);
+    private static final InetSocketAddress B = new InetSocketAddress("10.0.0.2", 22556);
+    private static final InetSocketAddress C = new InetSocketAddress("10.0.0.3", 22556);
+
+    @Test
+    public void ranksFastReliablePeersFirst() {
+        final PeerScoreTable table = new PeerScoreTable();
+        table.recordSuccess(A, 1, 800, NOW);
+        table.recordSuccess(B, 1, 50, NOW);
+        table.recordSeen(C, 1, NOW);
+        table.recordFailure(C, NOW);
+        table.recordFailure(C, NOW);
+        assertEquals(Arrays.asList(B, A, C), table.best(10, 0, NOW));
+        assertEquals(Arrays.asList(B), table.best(1, 0, NOW));
+        assertTrue(table.best(10, 4, NOW).isEmpty());
+    }
+
+    @Test
+    public void countsDecay() {
+        final PeerScoreTable table = new PeerScoreTable();
+        table.recordFailure(A, NOW);
+        table.recordFailure(A, NOW);
+        table.recordSuccess(A, 1, 100, NOW + PeerScoreTable.HALF_LIFE_MS);
+        assertEquals(1.0, table.get(A).getFailures(), 0.001);
+        assertEquals(1.0, table.get(A).getSuccesses(), 0.001);
+    }
+
+    @Test
+    public void expiresAndEvicts() {
+        final PeerScoreTable table = new PeerScoreTable(2);
+        table.recordSuccess(A, 1, 100, NOW);
+        table.recordSuccess(B, 1, 100, NOW);
+        table.recordFailure(C, NOW);
+        table.prune(NOW);
+        assertEquals(2, table.size());
+        assertNull(table.get(C));
+
+        table.prune(NOW + PeerScoreTable.EXPIRY_MS + 1);
+        assertEquals(0, table.size());
+    }
+
+    @Test
+    public void persists() throws Exception {
+        final File file = File.createTempFile("peers", ".table");
+        try {
+            final PeerScoreTable table = new PeerScoreTable();
+            table.recordSuccess(A, 5, 120, NOW);
+            table.recordFailure(B, NOW);
+            table.save(file, NOW);
+
+            final PeerScoreTable loaded = PeerScoreTable.load(file, PeerScoreTable.DEFAULT_MAX_ENTRIES, NOW);
+            assertEquals(2, loaded.size());
+            final PeerScoreTable.Entry entry = loaded.get(A);
+            assertNotNull(entry);
+            assertEquals(5, entry.getServices());
+            assertEquals(120, entry.getRttMs());
+            assertEquals(table.best(2, 0, NOW), loaded.best(2, 0, NOW));
+        } finally {
+            file.delete();
+        }
+    }
+
+    /**
+     * Dials one candidate after another, as the peer manager does, until the first handshake completes. Most
+     * candidates are blackholed, so a cold start in random order waits for several timeouts, while the table learned
+     * from the first session puts a responsive peer first. Counts the dials rather than timing them, so the outcome
+     * doesn't depend on the machine; {@link #warmStartBenchmark()} does the timing.
+     */
+    @Test
+    public void warmStartDialsResponsivePeerFirst() throws Exception {
+        final int timeoutMs = 300;
+        try (final FakePeerHarness harness = new FakePeerHarness(PARAMS)) {
+            for (int i = 0; i < 6; i++)
+                harness.addPeer(0, 1.0);
+            harness.addPeer(80, 0);
+            harness.addPeer(10, 0);
+            final List<InetSocketAddress> candidates = new ArrayList<>();
+            for (final FakePeerHarness.FakePeer peer : harness.getPeers())
+                candidates.add(peer.getAddress());
+            final List<InetSocketAddress> responsive = new ArrayList<>(candidates.subList(6, 8));
+
+            // first session, no knowledge
+            final PeerScoreTable table = new PeerScoreTable();
+            Collections.shuffle(candidates, new Random(1));
+            for (final InetSocketAddress candidate : candidates) {
+                final long rtt = FakePeerHarness.handshake(PARAMS, candidate, timeoutMs);
+                if (rtt >= 0)
+                    table.recordSuccess(candidate, 0, rtt, NOW);
+                else
+                    table.recordFailure(candidate, NOW);
+            }
+            final int coldDials = dialsToFirstPeer(candidates, timeoutMs);
+
+            // warm start
+            final List<InetSocketAddress> ranked = table.best(candidates.size(), 0, NOW);
+            assertTrue(responsive.contains(ranked.get(0)));
+            assertEquals(1, dialsToFirstPeer(ranked, timeoutMs));
+            assertTrue("cold start dialed " + coldDials, coldDials > 1);
+        }
+    }
+
+    /**
+     * Times a real peer group from start to the first connected peer and to the first headers message, once cold with
+     * the candidates in random order and once warm with the table a {@link PeerScoreRecorder} learned in a first
+     * session, handed over by {@link PeerScoreTable#addBestTo}. Only runs with {@code -Pbenchmark}.
+     */
+    @Test
+    public void warmStartBenchmark() throws Exception {
+        assumeTrue(Boolean.getBoolean("benchmark"));
+        Context.propagate(new Context(PARAMS));
+        final int timeoutMs = 300;
+        try (final FakePeerHarness harness = new FakePeerHarness(PARAMS)) {
+            harness.serveHeaders(headerChain(100));
+            for (int i = 0; i < 6; i++)
+                harness.addPeer(0, 1.0);
+            harness.addPeer(80, 0);
+            harness.addPeer(10, 0);
+            final List<InetSocketAddress> candidates = new ArrayList<>();
+            for (final FakePeerHarness.FakePeer peer : harness.getPeers())
+                candidates.add(peer.getAddress());
+            Collections.shuffle(candidates, new Random(1));
+
+            // first session, learning
+            final PeerScoreTable table = new PeerScoreTable();
+            final PeerScoreRecorder recorder = new PeerScoreRecorder(table);
+            final PeerGroup learning = peerGroup(timeoutMs);
+            recorder.attach(learning);
+            addInOrder(learning, candidates);
+            learning.setMaxConnections(candidates.size());
+            learning.start();
+            final long deadline = System.currentTimeMillis() + 10 * timeoutMs;
+            while (table.size() < candidates.size() && System.currentTimeMillis() < deadline)
+                Thread.sleep(20);
+            recorder.detach(learning);
+            learning.stop();
+            assertEquals(candidates.size(), table.size());
+
+            final PeerGroup cold = peerGroup(timeoutMs);
+            addInOrder(cold, candidates);
+            cold.setMaxConnections(1);
+            final long[] coldMs = timeToFirstPeerAndHeader(cold);
+
+            final PeerGroup warm = peerGroup(timeoutMs);
+            warm.setMaxConnections(1);
+            table.addBestTo(warm, PARAMS, candidates.size(), 0, System.currentTimeMillis());
+            final long[] warmMs = timeToFirstPeerAndHeader(warm);
+
+            final String timings = "first peer cold " + coldMs[0] + " ms, warm " + warmMs[0] + " ms; first header cold "
+                    + coldMs[1] + " ms, warm " + warmMs[1] + " ms";
+            assertTrue(timings, warmMs[0] < coldMs[0]);
+            assertTrue(timings, warmMs[1] < coldMs[1]);
+        }
+    }
+
+    private static PeerGroup peerGroup(final int timeoutMs) {
+        final PeerGroup peerGroup = new PeerGroup(PARAMS);
+        peerGroup.setConnectTimeoutMillis(timeoutMs);
+        return peerGroup;
+    }
+
+    /** Adds the candidates so that the peer group dials them in the given order, which raises its connection limit. */
+    private static void addInOrder(final PeerGroup peerGroup, final List<InetSocketAddress> candidates) {
+        for (int i = 0; i < candidates.size(); i++)
+            peerGroup.addAddress(new PeerAddress(PARAMS, candidates.get(i)), i);
+    }
+
+    /** @return milliseconds from start to the first connected peer and to its first headers message */
+    private static long[] timeToFirstPeerAndHeader(final PeerGroup peerGroup) throws Exception {
+        final SettableFuture<Peer> connected = SettableFuture.create();
+        final SettableFuture<HeadersMessage> headers = SettableFuture.create();
+        peerGroup.addConnectedEventListener(Threading.SAME_THREAD, (peer, peerCount) -> connected.set(peer));
+        peerGroup.addPreMessageReceivedEventListener(Threading.SAME_THREAD, (peer, message) -> {
+            if (!(message instanceof HeadersMessage))
+                return message;
+            headers.set((HeadersMessage) message);
+            return null;
+        });
+        final long start = System.currentTimeMillis();
+        try {
+            peerGroup.start();
+            final Peer peer = connected.get(10, TimeUnit.SECONDS);
+            final long firstPeerMs = System.currentTimeMillis() - start;
+            final BlockLocator locator = new BlockLocator().add(PARAMS.getGenesisBlock().getHash());
+            peer.sendMessage(new GetHeadersMessage(PARAMS, locator, Sha256Hash.ZERO_HASH));
+            assertEquals(100, headers.get(10, TimeUnit.SECONDS).getBlockHeaders().size());
+            return new long[] { firstPeerMs, System.currentTimeMillis() - start };
+        } finally {
+            peerGroup.stop();
+        }
+    }
+
+    /** @return the given number of headers following genesis */
+    private static List<Block> headerChain(final int count) {
+        final Address to = LegacyAddress.fromKey(PARAMS, new ECKey());
+        final List<Block> headers = new ArrayList<>(count);
+        Block block = PARAMS.getGenesisBlock();
+        for (int i = 0; i < count; i++) {
+            block = block.createNextBlock(to);
+            headers.add(block.cloneAsHeader());
+        }
+        return headers;
+    }
+
+    private static int dialsToFirstPeer(final List<InetSocketAddress> candidates, final int timeoutMs) {
+        int dials = 0;
+        for (final InetSocketAddress candidate : candidates) {
+            dials++;
+            if (FakePeerHarness.handshake(PARAMS, candidate, timeoutMs) >= 0)
+                break;
+        }
+        return dials;
+    }
+}
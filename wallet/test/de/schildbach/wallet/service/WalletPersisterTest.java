@@ -0,0 +1,171 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.service;
+
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.LegacyAddress;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.utils.ContextPropagatingThreadFactory;
+import org.bitcoinj.wallet.Wallet;
+import org.bitcoinj.wallet.WalletTransaction;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class WalletPersisterTest {
+    private static final NetworkParameters PARAMS = UnitTestParams.get();
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Wallet wallet;
+    private File walletFile, journalFile;
+    private ScheduledExecutorService executor;
+
+    @Before
+    public void setUp() {
+        Context.propagate(new Context(PARAMS));
+        wallet = Wallet.createDeterministic(PARAMS, Script.ScriptType.P2PKH);
+        walletFile = new File(folder.getRoot(), "wallet");
+        journalFile = new File(folder.getRoot(), "wallet-journal");
+        executor = Executors.newSingleThreadScheduledExecutor(new ContextPropagatingThreadFactory("persister"));
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    private Transaction fund(final Coin value) {
+        final Transaction tx = new Transaction(PARAMS);
+        tx.addInput(Sha256Hash.of(value.toString().getBytes()), 0, new Script(new byte[0]));
+        tx.addOutput(value, wallet.freshReceiveAddress());
+        wallet.addWalletTransaction(new WalletTransaction(WalletTransaction.Pool.UNSPENT, tx));
+        return tx;
+    }
+
+    private void drain() throws Exception {
+        executor.submit(() -> null).get();
+    }
+
+    @Test
+    public void coalescesChanges() throws Exception {
+        final WalletPersister persister = new WalletPersister(wallet, walletFile, journalFile, executor, 200,
+                new WalletPersistenceStats());
+        persister.start();
+        for (int i = 0; i < 1000; i++)
+            persister.onWalletChanged(wallet);
+        Thread.sleep(400);
+        drain();
+        WalletPersistenceStats.Snapshot stats = persister.getStats().snapshot();
+        assertEquals(1000, stats.changes);
+        assertEquals(2, stats.saves);
+
+        persister.stop();
+        stats = persister.getStats().snapshot();
+        assertEquals(3, stats.saves);
+        assertEquals(3, WalletPersister.generationOf(Wallet.loadFromFile(walletFile)));
+        assertTrue(stats.toString(), stats.bytesLastHour >= 3 * walletFile.length());
+    }
+
+    @Test
+    public void recoversPendingTransactionsAfterCrash() throws Exception {
+        final Transaction funding = fund(Coin.COIN);
+        final WalletPersister persister = new WalletPersister(wallet, walletFile, journalFile, executor,
+                TimeUnit.HOURS.toMillis(1), new WalletPersistenceStats());
+        assertEquals(0, persister.start());
+
+        final Transaction spend = new Transaction(PARAMS);
+        spend.addInput(funding.getOutput(0));
+        spend.addOutput(Coin.CENT.multiply(40), LegacyAddress.fromKey(PARAMS, new ECKey()));
+        spend.addOutput(Coin.CENT.multiply(59), wallet.freshReceiveAddress());
+        spend.setMemo("coffee");
+        wallet.commitTx(spend);
+        drain();
+        assertEquals(1, persister.getStats().snapshot().journalAppends);
+        final Coin balance = wallet.getBalance(Wallet.BalanceType.ESTIMATED);
+
+        // crash: the full save is still an hour away
+        executor.shutdownNow();
+        final Wallet loaded = Wallet.loadFromFile(walletFile);
+        assertEquals(Coin.COIN, loaded.getBalance(Wallet.BalanceType.ESTIMATED));
+
+        executor = Executors.newSingleThreadScheduledExecutor(new ContextPropagatingThreadFactory("persister"));
+        final WalletPersister recovering = new WalletPersister(loaded, walletFile, journalFile, executor,
+                TimeUnit.HOURS.toMillis(1), new WalletPersistenceStats());
+        assertEquals(1, recovering.start());
+        final Transaction recovered = loaded.getTransaction(spend.getTxId());
+        assertNotNull(recovered);
+        assertEquals("coffee", recovered.getMemo());
+        assertEquals(balance, loaded.getBalance(Wallet.BalanceType.ESTIMATED));
+        assertEquals(1, loaded.getPendingTransactions().size());
+
+        // the journal was folded into a full save
+        assertTrue(WalletJournal.read(journalFile, WalletPersister.generationOf(loaded)).isEmpty());
+        recovering.stop();
+    }
+
+    @Test
+    public void journalEndsAtTornEntry() throws Exception {
+        final WalletJournal journal = new WalletJournal(journalFile);
+        journal.reset(7);
+        journal.append(Arrays.asList(new WalletJournal.Entry(new byte[] { 1, 2, 3 }, 1, null),
+                new WalletJournal.Entry(new byte[] { 4, 5, 6 }, 2, "memo")));
+        journal.close();
+        assertEquals(2, WalletJournal.read(journalFile, 7).size());
+        assertTrue(WalletJournal.read(journalFile, 6).isEmpty());
+
+        try (final RandomAccessFile raf = new RandomAccessFile(journalFile, "rw")) {
+            raf.setLength(raf.length() - 3);
+        }
+        assertEquals(1, WalletJournal.read(journalFile, 7).size());
+    }
+
+    @Test
+    public void statsPercentiles() {
+        final WalletPersistenceStats stats = new WalletPersistenceStats();
+        final long now = TimeUnit.HOURS.toMillis(1000);
+        for (int i = 1; i <= 100; i++)
+            stats.onSave(1000, i, now - TimeUnit.MINUTES.toMillis(90) + i * TimeUnit.MINUTES.toMillis(1));
+        final WalletPersistenceStats.Snapshot snapshot = stats.snapshot(now);
+        assertEquals(51, snapshot.saveLatencyP50Ms);
+        assertEquals(91, snapshot.saveLatencyP90Ms);
+        assertEquals(100, snapshot.saveLatencyP99Ms);
+        assertEquals(60 * 1000, snapshot.bytesLastHour);
+        assertEquals(100 * 1000, snapshot.bytes);
+    }
+}
@@ -0,0 +1,286 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.service.broadcast;
+
+import androidx.lifecycle.LiveData;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.LegacyAddress;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.script.Script;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class BroadcastQueueTest {
+    private static final NetworkParameters PARAMS = UnitTestParams.get();
+    private static final long T0 = 1_700_000_000_000L;
+    private static final long INITIAL_DELAY = 1000;
+    private static final long MAX_DELAY = 60000;
+
+    private int txCounter = 0;
+    private FakeDao dao;
+    private List<FakeChannel> channels;
+    private BroadcastQueue queue;
+
+    /** Stands in for the Room table. */
+    private static class FakeDao implements BroadcastQueueDao {
+        final Map<String, QueuedBroadcast> rows = new LinkedHashMap<>();
+        int writes = 0;
+
+        @Override
+        public void insertOrUpdate(final QueuedBroadcast entry) {
+            final QueuedBroadcast copy = new QueuedBroadcast(entry.txId, entry.tx, entry.enqueuedAt);
+            copy.state = entry.state;
+            copy.attempts = entry.attempts;
+            copy.nextAttemptAt = entry.nextAttemptAt;
+            copy.sentTo = entry.sentTo;
+            copy.propagatedAt = entry.propagatedAt;
+            copy.lastError = entry.lastError;
+            rows.put(entry.txId, copy);
+            writes++;
+        }
+
+        @Override
+        public void delete(final String txId) {
+            rows.remove(txId);
+        }
+
+        @Override
+        public List<QueuedBroadcast> getAll() {
+            return new ArrayList<>(rows.values());
+        }
+
+        @Override
+        public LiveData<Integer> observeDepth() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    private static class FakeChannel implements BroadcastChannel {
+        final String name;
+        final boolean peer;
+        final List<Sha256Hash> sent = new ArrayList<>();
+        boolean failing = false;
+
+        FakeChannel(final String name, final boolean peer) {
+            this.name = name;
+            this.peer = peer;
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public boolean isPeer() {
+            return peer;
+        }
+
+        @Override
+        public void send(final Transaction tx) throws IOException {
+            if (failing)
+                throw new IOException("unreachable");
+            sent.add(tx.getTxId());
+        }
+    }
+
+    @Before
+    public void setUp() {
+        Context.propagate(new Context(PARAMS));
+        dao = new FakeDao();
+        channels = new ArrayList<>();
+        for (int i = 0; i < 6; i++)
+            channels.add(new FakeChannel("peer" + i, true));
+        channels.add(new FakeChannel("electrum", false));
+        queue = newQueue();
+        queue.load();
+    }
+
+    private BroadcastQueue newQueue() {
+        return new BroadcastQueue(dao, PARAMS, () -> Collections.<BroadcastChannel> unmodifiableList(channels),
+                INITIAL_DELAY, MAX_DELAY, 2);
+    }
+
+    private Transaction newTx() {
+        final Transaction tx = new Transaction(PARAMS);
+        tx.addInput(Sha256Hash.of(new byte[] { (byte) txCounter, (byte) (txCounter >> 8) }), 0,
+                new Script(new byte[0]));
+        tx.addOutput(Coin.COIN, LegacyAddress.fromKey(PARAMS, new ECKey()));
+        txCounter++;
+        return tx;
+    }
+
+    private int sends(final Sha256Hash txId) {
+        int n = 0;
+        for (final FakeChannel channel : channels)
+            for (final Sha256Hash sent : channel.sent)
+                if (sent.equals(txId))
+                    n++;
+        return n;
+    }
+
+    @Test
+    public void fansOutWithBackoff() {
+        final Transaction tx = newTx();
+        queue.enqueue(tx, T0);
+        queue.enqueue(tx, T0); // deduplicated
+        assertEquals(1, queue.getDepth());
+
+        assertEquals(T0 + INITIAL_DELAY, queue.processDue(T0));
+        assertEquals(3, sends(tx.getTxId())); // two peers and the backend
+        assertEquals(T0 + INITIAL_DELAY, queue.processDue(T0 + 500)); // nothing due
+
+        // every attempt waits twice as long and reaches two new peers
+        assertEquals(T0 + 3 * INITIAL_DELAY, queue.processDue(T0 + INITIAL_DELAY));
+        assertEquals(T0 + 7 * INITIAL_DELAY, queue.processDue(T0 + 3 * INITIAL_DELAY));
+        assertEquals(9, sends(tx.getTxId()));
+        for (final FakeChannel channel : channels.subList(0, 6))
+            assertEquals(channel.name, 1, channel.sent.size());
+
+        // all peers tried, start over with two of them
+        queue.processDue(T0 + 7 * INITIAL_DELAY);
+        assertEquals(12, sends(tx.getTxId()));
+        assertEquals(4, queue.get(tx.getTxId()).attempts);
+        assertEquals(T0 + 15 * INITIAL_DELAY, queue.get(tx.getTxId()).nextAttemptAt);
+    }
+
+    @Test
+    public void confirmsOnEchoFromOtherPeer() {
+        final Transaction tx = newTx();
+        final Sha256Hash txId = tx.getTxId();
+        queue.enqueue(tx, T0);
+        queue.processDue(T0);
+        assertEquals(1, channels.get(0).sent.size());
+
+        // echoes from peers we sent it to prove nothing
+        queue.onInv("peer0", txId, T0 + 100);
+        queue.onInv("peer1", txId, T0 + 100);
+        assertEquals(QueuedBroadcast.STATE_PENDING, queue.get(txId).state);
+
+        // a peer that requested it got it from us, and isn't sent it again
+        queue.onGetData("peer2", txId);
+        queue.onInv("peer2", txId, T0 + 200);
+        assertEquals(QueuedBroadcast.STATE_PENDING, queue.get(txId).state);
+        queue.processDue(T0 + INITIAL_DELAY);
+        assertEquals(0, channels.get(2).sent.size());
+        assertEquals(1, channels.get(3).sent.size());
+
+        queue.onInv("peer5", txId, T0 + 1500);
+        assertEquals(QueuedBroadcast.STATE_PROPAGATED, queue.get(txId).state);
+        assertEquals(T0 + 1500 + MAX_DELAY, queue.get(txId).nextAttemptAt);
+        assertEquals(1500, queue.getStats().propagationP50Ms);
+
+        // now only peers without it get it, and not the backend
+        final int backendSends = channels.get(6).sent.size();
+        queue.processDue(T0 + 1500 + MAX_DELAY);
+        assertEquals(backendSends, channels.get(6).sent.size());
+        assertEquals(0, channels.get(5).sent.size());
+
+        queue.onConfirmed(txId);
+        assertEquals(0, queue.getDepth());
+        assertTrue(dao.rows.isEmpty());
+        assertEquals(1, queue.getStats().confirmed);
+    }
+
+    @Test
+    public void survivesRestart() {
+        final Transaction tx = newTx();
+        queue.enqueue(tx, T0);
+        queue.processDue(T0);
+        queue.processDue(T0 + INITIAL_DELAY);
+        channels.get(6).failing = true;
+        queue.processDue(T0 + 3 * INITIAL_DELAY);
+        assertEquals("electrum: unreachable", dao.rows.get(tx.getTxId().toString()).lastError);
+
+        final BroadcastQueue restarted = newQueue();
+        restarted.load();
+        assertEquals(1, restarted.getDepth());
+        final QueuedBroadcast row = restarted.get(tx.getTxId());
+        assertEquals(3, row.attempts);
+        assertEquals("peer0 peer1 peer2 peer3 peer4 peer5", row.sentTo);
+
+        // the peers it was sent to before the restart still don't count as echoes
+        restarted.onInv("peer3", tx.getTxId(), T0 + 5000);
+        assertEquals(QueuedBroadcast.STATE_PENDING, restarted.get(tx.getTxId()).state);
+        channels.add(new FakeChannel("peer6", true));
+        restarted.onInv("peer6", tx.getTxId(), T0 + 6000);
+        assertEquals(QueuedBroadcast.STATE_PROPAGATED, restarted.get(tx.getTxId()).state);
+        assertEquals(6000, dao.rows.get(tx.getTxId().toString()).propagatedAt - T0);
+        assertNull(restarted.get(newTx().getTxId()));
+    }
+
+    @Test
+    public void startKeepsWhatIsInMemory() {
+        final Transaction tx = newTx();
+        queue.enqueue(tx, T0);
+        queue.processDue(T0);
+        dao.rows.clear(); // as if the writes hadn't made it yet
+        final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        try {
+            queue.start(scheduler);
+            assertEquals(1, queue.getDepth());
+            assertEquals(1, queue.get(tx.getTxId()).attempts);
+        } finally {
+            queue.stop();
+            scheduler.shutdownNow();
+        }
+    }
+
+    @Test
+    public void keepsWakingUpAfterFailure() throws Exception {
+        final AtomicInteger calls = new AtomicInteger();
+        final BroadcastQueue queue = new BroadcastQueue(dao, PARAMS, () -> {
+            if (calls.getAndIncrement() == 0)
+                throw new IllegalStateException("peer group not ready");
+            return Collections.<BroadcastChannel> unmodifiableList(channels);
+        }, 100, MAX_DELAY, 2);
+        final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        try {
+            queue.start(scheduler);
+            final Transaction tx = newTx();
+            queue.enqueue(tx, System.currentTimeMillis());
+            final long deadline = System.currentTimeMillis() + 5000;
+            while (sends(tx.getTxId()) == 0 && System.currentTimeMillis() < deadline)
+                Thread.sleep(10);
+            assertEquals(3, sends(tx.getTxId()));
+            assertEquals(2, calls.get());
+        } finally {
+            queue.stop();
+            scheduler.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,290 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.service.electrum;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.MoreExecutors;
+import de.schildbach.wallet.data.FeeEstimator;
+import de.schildbach.wallet.ui.send.FeeCategory;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.LegacyAddress;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.params.MainNetParams;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.script.ScriptBuilder;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.annotation.Nullable;
+import javax.net.SocketFactory;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+public class ElectrumClientTest {
+    private static final NetworkParameters PARAMS = UnitTestParams.get();
+    private static final long TIMEOUT_MS = 5000;
+
+    @Before
+    public void setUp() {
+        Context.propagate(new Context(PARAMS));
+    }
+
+    private static List<Script> scripts(final int num) {
+        final List<Script> scripts = new ArrayList<>(num);
+        for (int i = 0; i < num; i++)
+            scripts.add(ScriptBuilder.createOutputScript(LegacyAddress.fromKey(PARAMS, new ECKey())));
+        return scripts;
+    }
+
+    private static Sha256Hash txId(final int n) {
+        return Sha256Hash.of(ByteBuffer.allocate(4).putInt(n).array());
+    }
+
+    private static ElectrumClient newClient(final StubElectrumServer server, final int poolSize) {
+        return new ElectrumClient(ImmutableList.of(server.getAddress()), SocketFactory.getDefault(), poolSize,
+                TIMEOUT_MS);
+    }
+
+    /** Every 10th script was used, every 20th still holds 1000 satoshis, one of them unconfirmed. */
+    private static void fill(final StubElectrumServer server, final List<Script> scripts) {
+        for (int i = 0; i < scripts.size(); i += 10) {
+            final String scriptHash = ElectrumClient.scriptHash(scripts.get(i));
+            server.addHistory(scriptHash, txId(i), 50);
+            if (i % 20 == 0)
+                server.addUnspent(scriptHash, txId(i), 0, 1000, i == 0 ? 0 : 50);
+        }
+    }
+
+    @Test
+    public void scriptHashMatchesElectrum() {
+        // example from the Electrum protocol documentation
+        final Script script = ScriptBuilder.createOutputScript(
+                LegacyAddress.fromBase58(MainNetParams.get(), "1A1zP1eP5QGefi2DMPTfTL5SLmv7DivfNa"));
+        assertEquals("8b01df4e368ea28f8dc0423bcf7a4923e3a12d307c875e47a0cfbf90b5c39161",
+                ElectrumClient.scriptHash(script));
+    }
+
+    @Test
+    public void batchesOverThePool() throws Exception {
+        try (final StubElectrumServer server = new StubElectrumServer(0)) {
+            final List<Script> scripts = scripts(450);
+            fill(server, scripts);
+            final ElectrumClient client = newClient(server, 4);
+            final ElectrumQuickSync.Result result = new ElectrumQuickSync(client).scan(scripts);
+            assertEquals(45, result.usedScripts.size());
+            assertEquals(45, result.txIds.size());
+            assertEquals(22 * 1000, result.confirmed.value);
+            assertEquals(1000, result.unconfirmed.value);
+            // 5 batches of histories plus 1 of unspents, rather than 495 requests, after the version handshakes
+            assertEquals(4 + 6, server.linesReceived.get());
+            assertEquals(4 + 450 + 45, server.requestsReceived.get());
+            assertEquals(4, client.getNumConnections());
+            client.close();
+        }
+    }
+
+    @Test
+    public void errorResponse() throws Exception {
+        try (final StubElectrumServer server = new StubElectrumServer(0)) {
+            final ElectrumClient client = newClient(server, 1);
+            try {
+                client.call("server.nonsense");
+                fail();
+            } catch (final ElectrumException x) {
+                assertEquals(-32601, x.code);
+            }
+            assertEquals(100, client.subscribeHeaders());
+            client.close();
+        }
+    }
+
+    @Test
+    public void subscriptionsSurviveReconnect() throws Exception {
+        try (final StubElectrumServer server = new StubElectrumServer(0)) {
+            final List<Script> scripts = scripts(3);
+            final String used = ElectrumClient.scriptHash(scripts.get(0));
+            server.addHistory(used, txId(1), 10);
+            final ElectrumClient client = newClient(server, 2);
+            final LinkedBlockingQueue<String> events = new LinkedBlockingQueue<>();
+            client.addListener(new ElectrumClient.Listener() {
+                @Override
+                public void onScriptHashStatus(final String scriptHash, @Nullable final String status) {
+                    events.add(scriptHash + " " + status);
+                }
+
+                @Override
+                public void onNewHeader(final int height) {
+                    events.add("height " + height);
+                }
+            });
+            final List<String> hashes = new ArrayList<>();
+            for (final Script script : scripts)
+                hashes.add(ElectrumClient.scriptHash(script));
+            final Map<String, String> initial = client.subscribe(hashes);
+            assertEquals("status" + used, initial.get(used));
+            assertNull(initial.get(hashes.get(1)));
+            assertEquals(100, client.subscribeHeaders());
+
+            server.notifyStatus(hashes.get(2), "new");
+            assertEquals(hashes.get(2) + " new", events.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+
+            server.dropConnections();
+            while (client.getNumConnections() > 0)
+                Thread.sleep(10);
+            // missed while disconnected
+            server.setStatus(hashes.get(0), "changed");
+            server.height = 101;
+            client.getHistories(hashes.subList(0, 1)); // reconnects one slot
+            client.getHistories(hashes.subList(0, 1)); // and the other
+            final Set<String> renewed = new HashSet<>();
+            for (int i = 0; i < 2; i++)
+                renewed.add(events.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+            assertEquals(ImmutableSet.of(hashes.get(0) + " changed", "height 101"), renewed);
+
+            server.notifyStatus(hashes.get(1), "newer");
+            assertEquals(hashes.get(1) + " newer", events.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+            assertNull(events.poll(100, TimeUnit.MILLISECONDS)); // unchanged statuses are not repeated
+            client.close();
+        }
+    }
+
+    @Test
+    public void amountsStayExact() throws Exception {
+        try (final StubElectrumServer server = new StubElectrumServer(0)) {
+            final String scriptHash = ElectrumClient.scriptHash(scripts(1).get(0));
+            final long value = (1L << 53) + 1; // not representable as a double
+            server.addUnspent(scriptHash, txId(1), 0, value, 10);
+            final ElectrumClient client = newClient(server, 1);
+            assertEquals(value, client.listUnspent(ImmutableList.of(scriptHash)).get(scriptHash).get(0).value);
+            client.close();
+        }
+    }
+
+    @Test
+    public void pingsWhenIdle() throws Exception {
+        try (final StubElectrumServer server = new StubElectrumServer(0)) {
+            final ElectrumClient client = new ElectrumClient(ImmutableList.of(server.getAddress()),
+                    SocketFactory.getDefault(), 1, 200);
+            client.subscribeHeaders();
+            while (server.pingsReceived.get() < 2)
+                Thread.sleep(10);
+            assertEquals(1, client.getNumConnections());
+            client.close();
+        }
+    }
+
+    @Test
+    public void feedsFeeEstimatorFromMempool() throws Exception {
+        try (final StubElectrumServer server = new StubElectrumServer(0)) {
+            server.feeHistogram = ImmutableList.<Object> of(ImmutableList.of(5000.0, 1500000),
+                    ImmutableList.of(1000.0, 3000000), ImmutableList.of(0.5, 20000000));
+            final ElectrumClient client = newClient(server, 1);
+            final Map<Long, Long> histogram = client.getFeeHistogram();
+            assertEquals(ImmutableList.of(5000000L, 1000000L, 500L), ImmutableList.copyOf(histogram.keySet()));
+            assertEquals(20000000L, (long) histogram.get(500L));
+
+            final Map<FeeCategory, Coin> floors = new EnumMap<>(FeeCategory.class);
+            for (final FeeCategory category : FeeCategory.values())
+                floors.put(category, Coin.valueOf(1000));
+            final FeeEstimator estimator = new FeeEstimator(floors);
+            final ElectrumFeeFeed feed = new ElectrumFeeFeed(client, estimator, MoreExecutors.directExecutor());
+            feed.start();
+            assertTrue(estimator.isLearned());
+            assertEquals(Coin.valueOf(1000000), estimator.getFeeRate(FeeCategory.PRIORITY));
+
+            // the next block cleared the top of the mempool, what is left pays less than the floors
+            server.feeHistogram = ImmutableList.<Object> of(ImmutableList.of(0.5, 20000000));
+            feed.onNewHeader(101);
+            assertEquals(floors, estimator.getEstimates());
+            feed.stop();
+            client.close();
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void failsOnSilentServer() throws Exception {
+        try (final ServerSocket silent = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+            new ElectrumClient(ImmutableList.of((InetSocketAddress) silent.getLocalSocketAddress()),
+                    SocketFactory.getDefault(), 1, 200).call("server.ping");
+        }
+    }
+
+    /**
+     * Restore time against the number of addresses, with 2 ms per round trip: one request per address as the HTTP
+     * helpers do, against batched queries over a pool of 4 connections. Only runs with {@code -Pbenchmark}.
+     */
+    @Test
+    public void restoreBenchmark() throws Exception {
+        assumeTrue(Boolean.getBoolean("benchmark"));
+        try (final StubElectrumServer server = new StubElectrumServer(2)) {
+            final List<Script> scripts = scripts(2000);
+            fill(server, scripts);
+            final List<String> hashes = new ArrayList<>();
+            for (final Script script : scripts)
+                hashes.add(ElectrumClient.scriptHash(script));
+            for (final int num : new int[] { 100, 500, 2000 }) {
+                final ElectrumClient client = newClient(server, 4);
+                long start = System.nanoTime();
+                final ElectrumQuickSync.Result result = new ElectrumQuickSync(client).scan(scripts.subList(0, num));
+                final long batched = System.nanoTime() - start;
+                assertEquals(num / 10, result.usedScripts.size());
+
+                if (num <= 500) {
+                    start = System.nanoTime();
+                    for (final String hash : hashes.subList(0, num))
+                        client.call("blockchain.scripthash.get_history", hash);
+                    final long sequential = System.nanoTime() - start;
+                    assertTrue(num + " addresses: batched " + batched / 1000000 + " ms, one by one "
+                            + sequential / 1000000 + " ms", batched < sequential);
+                }
+                client.close();
+            }
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void failsWhenNoServerReachable() throws Exception {
+        final InetSocketAddress address;
+        try (final StubElectrumServer server = new StubElectrumServer(0)) {
+            address = server.getAddress();
+        }
+        new ElectrumClient(ImmutableList.of(address), SocketFactory.getDefault(), 1, 500).call("server.ping");
+    }
+}
@@ -0,0 +1,245 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.service.electrum;
+
+import com.squareup.moshi.JsonAdapter;
+import com.squareup.moshi.Moshi;
+import org.bitcoinj.core.Sha256Hash;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Minimal Electrum server for tests: canned histories and unspent outputs per script hash, subscriptions, a canned
+ * mempool fee histogram, and a fixed delay before each response line to stand in for network round trips.
+ */
+public class StubElectrumServer implements Closeable {
+    private static final JsonAdapter<Object> ADAPTER = new Moshi.Builder().build().adapter(Object.class);
+
+    private final ServerSocket serverSocket;
+    private final long latencyMs;
+    private final Map<String, List<Map<String, Object>>> histories = new ConcurrentHashMap<>();
+    private final Map<String, List<Map<String, Object>>> unspents = new ConcurrentHashMap<>();
+    private final Map<String, String> statuses = new ConcurrentHashMap<>();
+    private final List<Client> clients = new CopyOnWriteArrayList<>();
+    public final AtomicInteger linesReceived = new AtomicInteger();
+    public final AtomicInteger requestsReceived = new AtomicInteger();
+    public final AtomicInteger pingsReceived = new AtomicInteger();
+    public volatile int height = 100;
+    /** result of {@code mempool.get_fee_histogram}: pairs of fee rate per virtual byte and size */
+    public volatile List<Object> feeHistogram = new ArrayList<>();
+
+    private final class Client implements Runnable {
+        final Socket socket;
+        final OutputStream out;
+        final Set<String> subscribed = new HashSet<>();
+
+        Client(final Socket socket) throws IOException {
+            this.socket = socket;
+            this.out = socket.getOutputStream();
+        }
+
+        @Override
+        public void run() {
+            try (final BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8))) {
+                for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                    linesReceived.incrementAndGet();
+                    final Object request = ADAPTER.fromJson(line);
+                    final Object response;
+                    if (request instanceof List) {
+                        final List<Object> responses = new ArrayList<>();
+                        for (final Object item : (List<?>) request)
+                            responses.add(handle((Map<?, ?>) item));
+                        response = responses;
+                    } else {
+                        response = handle((Map<?, ?>) request);
+                    }
+                    if (latencyMs > 0)
+                        Thread.sleep(latencyMs);
+                    send(response);
+                }
+            } catch (final IOException | InterruptedException x) {
+                // client gone
+            } finally {
+                clients.remove(this);
+            }
+        }
+
+        synchronized void send(final Object message) throws IOException {
+            out.write((ADAPTER.toJson(message) + "\n").getBytes(StandardCharsets.UTF_8));
+            out.flush();
+        }
+
+        private Map<String, Object> handle(final Map<?, ?> request) {
+            requestsReceived.incrementAndGet();
+            final Map<String, Object> response = new LinkedHashMap<>();
+            response.put("jsonrpc", "2.0");
+            response.put("id", request.get("id"));
+            final String method = (String) request.get("method");
+            final List<?> params = (List<?>) request.get("params");
+            if ("server.version".equals(method)) {
+                final List<Object> version = new ArrayList<>();
+                version.add("stub 1.0");
+                version.add(params.get(1));
+                response.put("result", version);
+            } else if ("server.ping".equals(method)) {
+                pingsReceived.incrementAndGet();
+                response.put("result", null);
+            } else if ("blockchain.scripthash.get_history".equals(method)) {
+                response.put("result", orEmpty(histories.get((String) params.get(0))));
+            } else if ("blockchain.scripthash.listunspent".equals(method)) {
+                response.put("result", orEmpty(unspents.get((String) params.get(0))));
+            } else if ("blockchain.scripthash.subscribe".equals(method)) {
+                final String scriptHash = (String) params.get(0);
+                synchronized (this) {
+                    subscribed.add(scriptHash);
+                }
+                response.put("result", statuses.containsKey(scriptHash) ? statuses.get(scriptHash)
+                        : histories.containsKey(scriptHash) ? "status" + scriptHash : null);
+            } else if ("mempool.get_fee_histogram".equals(method)) {
+                response.put("result", feeHistogram);
+            } else if ("blockchain.headers.subscribe".equals(method)) {
+                final Map<String, Object> header = new HashMap<>();
+                header.put("height", height);
+                header.put("hex", "00");
+                response.put("result", header);
+            } else {
+                final Map<String, Object> error = new HashMap<>();
+                error.put("code", -32601);
+                error.put("message", "unknown method " + method);
+                response.put("error", error);
+            }
+            return response;
+        }
+    }
+
+    public StubElectrumServer(final long latencyMs) throws IOException {
+        this.latencyMs = latencyMs;
+        this.serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        final Thread acceptor = new Thread(() -> {
+            while (!serverSocket.isClosed()) {
+                try {
+                    final Client client = new Client(serverSocket.accept());
+                    clients.add(client);
+                    final Thread thread = new Thread(client, "stub-electrum-client");
+                    thread.setDaemon(true);
+                    thread.start();
+                } catch (final IOException x) {
+                    // closed
+                }
+            }
+        }, "stub-electrum-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    public InetSocketAddress getAddress() {
+        return (InetSocketAddress) serverSocket.getLocalSocketAddress();
+    }
+
+    public void addHistory(final String scriptHash, final Sha256Hash txId, final int height) {
+        final Map<String, Object> item = new LinkedHashMap<>();
+        item.put("height", height);
+        item.put("tx_hash", txId.toString());
+        add(histories, scriptHash, item);
+    }
+
+    public void addUnspent(final String scriptHash, final Sha256Hash txId, final int index, final long value,
+            final int height) {
+        final Map<String, Object> item = new LinkedHashMap<>();
+        item.put("tx_hash", txId.toString());
+        item.put("tx_pos", index);
+        item.put("value", value);
+        item.put("height", height);
+        add(unspents, scriptHash, item);
+    }
+
+    /** Changes the status returned on subscribing, without notifying anyone. */
+    public void setStatus(final String scriptHash, final String status) {
+        statuses.put(scriptHash, status);
+    }
+
+    /** Sends a status notification to every connection subscribed to the script hash. */
+    public void notifyStatus(final String scriptHash, final String status) throws IOException {
+        setStatus(scriptHash, status);
+        final Map<String, Object> notification = new LinkedHashMap<>();
+        notification.put("jsonrpc", "2.0");
+        notification.put("method", "blockchain.scripthash.subscribe");
+        final List<Object> params = new ArrayList<>();
+        params.add(scriptHash);
+        params.add(status);
+        notification.put("params", params);
+        for (final Client client : clients) {
+            final boolean subscribed;
+            synchronized (client) {
+                subscribed = client.subscribed.contains(scriptHash);
+            }
+            if (subscribed)
+                client.send(notification);
+        }
+    }
+
+    /** Drops all client connections, as a server restart would. */
+    public void dropConnections() throws IOException {
+        for (final Client client : clients)
+            client.socket.close();
+    }
+
+    public int getNumClients() {
+        return clients.size();
+    }
+
+    private static void add(final Map<String, List<Map<String, Object>>> map, final String key,
+            final Map<String, Object> item) {
+        List<Map<String, Object>> list = map.get(key);
+        if (list == null) {
+            list = new CopyOnWriteArrayList<>();
+            map.put(key, list);
+        }
+        list.add(item);
+    }
+
+    private static List<?> orEmpty(final List<?> list) {
+        return list != null ? list : new ArrayList<>();
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+        dropConnections();
+    }
+}
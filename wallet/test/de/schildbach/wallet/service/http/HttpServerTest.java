@@ -0,0 +1,306 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.service.http;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+public class HttpServerTest {
+    private ScheduledExecutorService scheduler;
+    private PaymentStatusNotifier notifier;
+    private CountDownLatch blocker;
+    private HttpServer server;
+
+    @Before
+    public void setUp() throws Exception {
+        scheduler = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("test-scheduler").setDaemon(true).build());
+        notifier = new PaymentStatusNotifier(scheduler, 100, 5000);
+        blocker = new CountDownLatch(0);
+        final HttpRouter router = new HttpRouter();
+        router.add("GET", "/ping",
+                (request, responder) -> responder.respond(HttpResponse.json(200, "{\"pong\":true}")));
+        router.add("POST", "/echo", (request, responder) -> responder.respond(HttpResponse.json(200, request.body)));
+        router.add("GET", "/block", (request, responder) -> {
+            blocker.await();
+            responder.respond(HttpResponse.text(200, "done"));
+        });
+        router.add("GET", "/status/*", notifier.longPollHandler("/status/*"));
+        router.add("GET", "/events/*", notifier.eventStreamHandler("/events/*"));
+        router.add("POST", "/batch", new BatchHandler(router, BatchHandler.DEFAULT_MAX_REQUESTS));
+        server = new HttpServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), router, 2, 4, 10000);
+        server.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        blocker.countDown();
+        server.close();
+        scheduler.shutdownNow();
+    }
+
+    private static final class Response {
+        final int status;
+        final String head;
+        final String body;
+
+        Response(final int status, final String head, final String body) {
+            this.status = status;
+            this.head = head;
+            this.body = body;
+        }
+    }
+
+    private static final class Client implements AutoCloseable {
+        final Socket socket;
+        final InputStream in;
+        final OutputStream out;
+
+        Client(final int port) throws IOException {
+            socket = new Socket(InetAddress.getLoopbackAddress(), port);
+            socket.setSoTimeout(5000);
+            socket.setTcpNoDelay(true);
+            in = socket.getInputStream();
+            out = socket.getOutputStream();
+        }
+
+        void send(final String method, final String path, final String body) throws IOException {
+            final byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+            out.write((method + " " + path + " HTTP/1.1\r\nHost: localhost\r\nContent-Length: " + bytes.length
+                    + "\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+            out.write(bytes);
+            out.flush();
+        }
+
+        Response read() throws IOException {
+            final String head = readHead();
+            final int status = Integer.parseInt(head.substring(9, 12));
+            int length = 0;
+            for (final String line : head.split("\r\n"))
+                if (line.toLowerCase().startsWith("content-length:"))
+                    length = Integer.parseInt(line.substring(15).trim());
+            final byte[] body = new byte[length];
+            int read = 0;
+            while (read < length) {
+                final int n = in.read(body, read, length - read);
+                if (n < 0)
+                    throw new IOException("eof");
+                read += n;
+            }
+            return new Response(status, head, new String(body, StandardCharsets.UTF_8));
+        }
+
+        Response request(final String method, final String path, final String body) throws IOException {
+            send(method, path, body);
+            return read();
+        }
+
+        String readHead() throws IOException {
+            final ByteArrayOutputStream head = new ByteArrayOutputStream();
+            int matched = 0;
+            while (matched < 4) {
+                final int b = in.read();
+                if (b < 0)
+                    throw new IOException("eof");
+                head.write(b);
+                matched = (b == '\r' && matched % 2 == 0) || (b == '\n' && matched % 2 == 1) ? matched + 1 : 0;
+            }
+            return new String(head.toByteArray(), StandardCharsets.ISO_8859_1);
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+
+    @Test
+    public void keepsConnectionsAliveAndPipelines() throws Exception {
+        try (final Client client = new Client(server.getPort())) {
+            for (int i = 0; i < 10; i++) {
+                final Response response = client.request("POST", "/echo", "{\"n\":" + i + "}");
+                assertEquals(200, response.status);
+                assertEquals("{\"n\":" + i + "}", response.body);
+            }
+            for (int i = 0; i < 5; i++)
+                client.send("GET", "/ping", "");
+            for (int i = 0; i < 5; i++)
+                assertEquals("{\"pong\":true}", client.read().body);
+            assertEquals(404, client.request("GET", "/nowhere", "").status);
+            assertEquals(405, client.request("POST", "/ping", "").status);
+        }
+        assertEquals(1, server.getStats().connections.get());
+        assertEquals(16, server.getStats().keepAliveRequests.get());
+    }
+
+    @Test
+    public void rejectsWhenQueueIsFull() throws Exception {
+        blocker = new CountDownLatch(1);
+        final List<Client> clients = new ArrayList<>();
+        try {
+            for (int i = 0; i < 6; i++) { // 2 workers, 4 queued
+                final Client client = new Client(server.getPort());
+                client.send("GET", "/block", "");
+                clients.add(client);
+            }
+            while (server.getStats().requests.get() < 6)
+                Thread.sleep(10);
+            try (final Client client = new Client(server.getPort())) {
+                assertEquals(503, client.request("GET", "/block", "").status);
+            }
+            blocker.countDown();
+            for (final Client client : clients)
+                assertEquals(200, client.read().status);
+            assertEquals(1, server.getStats().rejected.get());
+        } finally {
+            for (final Client client : clients)
+                client.close();
+        }
+    }
+
+    @Test
+    public void batch() throws Exception {
+        try (final Client client = new Client(server.getPort())) {
+            final Response response = client.request("POST", "/batch", "[{\"method\":\"GET\",\"path\":\"/ping\"},"
+                    + "{\"method\":\"POST\",\"path\":\"/echo\",\"body\":{\"a\":[1,2]}},{\"path\":\"/nowhere\"}]");
+            assertEquals(200, response.status);
+            assertEquals("[{\"status\":200,\"body\":{\"pong\":true}},{\"status\":200,\"body\":{\"a\":[1.0,2.0]}},"
+                    + "{\"status\":404,\"body\":\"Not Found\\n\"}]", response.body);
+            assertEquals(400, client.request("POST", "/batch", "{").status);
+        }
+    }
+
+    @Test
+    public void longPoll() throws Exception {
+        try (final Client client = new Client(server.getPort())) {
+            assertEquals(204, client.request("GET", "/status/addr1?timeout=50", "").status);
+
+            client.send("GET", "/status/addr1?timeout=5000", "");
+            while (notifier.getNumWaiting() == 0)
+                Thread.sleep(5);
+            final long version = notifier.publish("addr1", "{\"status\":\"pending\"}");
+            Response response = client.read();
+            assertEquals(200, response.status);
+            assertEquals("{\"status\":\"pending\"}", response.body);
+            assertTrue(response.head.contains(PaymentStatusNotifier.VERSION_HEADER + ": " + version));
+
+            // already newer status is returned right away
+            response = client.request("GET", "/status/addr1?since=" + (version - 1), "");
+            assertEquals(200, response.status);
+            assertEquals(204, client.request("GET", "/status/addr1?since=" + version + "&timeout=10", "").status);
+        }
+        assertEquals(0, notifier.getNumWaiting());
+    }
+
+    @Test
+    public void eventStream() throws Exception {
+        notifier.publish("addr2", "{\"confirmations\":0}");
+        try (final Client client = new Client(server.getPort())) {
+            client.send("GET", "/events/addr2", "");
+            final String head = client.readHead();
+            assertTrue(head, head.contains("text/event-stream"));
+            final BufferedReader reader = new BufferedReader(new InputStreamReader(client.in, StandardCharsets.UTF_8));
+            assertEquals("event: 1", reader.readLine());
+            assertEquals("data: {\"confirmations\":0}", reader.readLine());
+            assertEquals("", reader.readLine());
+            notifier.publish("other", "{}");
+            notifier.publish("addr2", "{\"confirmations\":1}");
+            assertEquals("event: 3", reader.readLine());
+            assertEquals("data: {\"confirmations\":1}", reader.readLine());
+        }
+    }
+
+    /**
+     * Load test: many keep-alive clients hammering a cheap endpoint, like terminals polling for payment status. Only
+     * runs with {@code -Pbenchmark}.
+     */
+    @Test
+    public void load() throws Exception {
+        assumeTrue(Boolean.getBoolean("benchmark"));
+        final int numClients = 16;
+        final int requestsPerClient = 1000;
+        server.close();
+        server = new HttpServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0),
+                (request, responder) -> responder.respond(HttpResponse.json(200, "{\"pong\":true}")), 4, numClients,
+                10000);
+        server.start();
+        final List<Long> latencies = Collections.synchronizedList(new ArrayList<Long>());
+        final AtomicInteger failures = new AtomicInteger();
+        final Thread[] threads = new Thread[numClients];
+        final long start = System.nanoTime();
+        for (int c = 0; c < numClients; c++) {
+            threads[c] = new Thread(() -> {
+                final long[] local = new long[requestsPerClient];
+                try (final Client client = new Client(server.getPort())) {
+                    for (int i = 0; i < requestsPerClient; i++) {
+                        final long t = System.nanoTime();
+                        final int status = client.request("GET", "/ping", "").status;
+                        local[i] = System.nanoTime() - t;
+                        if (status != 200)
+                            failures.incrementAndGet();
+                    }
+                } catch (final IOException x) {
+                    failures.incrementAndGet();
+                }
+                for (final long latency : local)
+                    latencies.add(latency);
+            });
+            threads[c].start();
+        }
+        for (final Thread thread : threads)
+            thread.join();
+        final long elapsed = System.nanoTime() - start;
+
+        final Long[] sorted = latencies.toArray(new Long[0]);
+        Arrays.sort(sorted);
+        final int total = numClients * requestsPerClient;
+        assertEquals(total, sorted.length);
+        assertEquals(0, failures.get());
+        assertEquals(numClients, server.getStats().connections.get());
+        assertEquals(total - numClients, server.getStats().keepAliveRequests.get());
+        final long p99 = sorted[sorted.length * 99 / 100];
+        assertTrue(String.format("%.0f requests/s, p50 %.2f ms, p99 %.2f ms", total * 1e9 / elapsed,
+                sorted[sorted.length / 2] / 1e6, p99 / 1e6), p99 < TimeUnit.MILLISECONDS.toNanos(100));
+    }
+}
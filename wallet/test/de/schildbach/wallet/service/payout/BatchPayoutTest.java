@@ -0,0 +1,309 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.service.payout;
+
+import androidx.lifecycle.LiveData;
+import de.schildbach.wallet.service.broadcast.BroadcastChannel;
+import de.schildbach.wallet.service.broadcast.BroadcastQueue;
+import de.schildbach.wallet.service.broadcast.BroadcastQueueDao;
+import de.schildbach.wallet.service.broadcast.QueuedBroadcast;
+import org.bitcoinj.core.Address;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.InsufficientMoneyException;
+import org.bitcoinj.core.LegacyAddress;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionInput;
+import org.bitcoinj.core.TransactionOutput;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.uri.BitcoinURI;
+import org.bitcoinj.wallet.SendRequest;
+import org.bitcoinj.wallet.Wallet;
+import org.bitcoinj.wallet.WalletTransaction;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+public class BatchPayoutTest {
+    private static final NetworkParameters PARAMS = UnitTestParams.get();
+    private static final Coin FEE_PER_KB = Coin.valueOf(100000);
+
+    private final Random random = new Random(42);
+    private ExecutorService executor;
+    private FakeDao dao;
+    private BroadcastQueue broadcastQueue;
+
+    /** Stands in for the Room table. */
+    private static class FakeDao implements BroadcastQueueDao {
+        final Map<String, QueuedBroadcast> rows = new HashMap<>();
+
+        @Override
+        public void insertOrUpdate(final QueuedBroadcast entry) {
+            rows.put(entry.txId, entry);
+        }
+
+        @Override
+        public void delete(final String txId) {
+            rows.remove(txId);
+        }
+
+        @Override
+        public List<QueuedBroadcast> getAll() {
+            return new ArrayList<>(rows.values());
+        }
+
+        @Override
+        public LiveData<Integer> observeDepth() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    @Before
+    public void setUp() {
+        Context.propagate(new Context(PARAMS));
+        executor = Executors.newSingleThreadExecutor();
+        dao = new FakeDao();
+        broadcastQueue = new BroadcastQueue(dao, PARAMS, Collections::<BroadcastChannel> emptyList,
+                BroadcastQueue.DEFAULT_INITIAL_DELAY_MS, BroadcastQueue.DEFAULT_MAX_DELAY_MS,
+                BroadcastQueue.DEFAULT_FAN_OUT);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    private Address address() {
+        final byte[] hash = new byte[20];
+        random.nextBytes(hash);
+        return LegacyAddress.fromPubKeyHash(PARAMS, hash);
+    }
+
+    private static Wallet fundedWallet(final int outputs, final Coin value) {
+        final Wallet wallet = Wallet.createDeterministic(PARAMS, Script.ScriptType.P2PKH);
+        for (int i = 0; i < outputs; i++) {
+            final Transaction tx = new Transaction(PARAMS);
+            tx.addInput(Sha256Hash.of(new byte[] { (byte) i, (byte) (i >> 8) }), 0, new Script(new byte[0]));
+            tx.addOutput(value, wallet.freshReceiveAddress());
+            tx.getConfidence().setAppearedAtChainHeight(1);
+            wallet.addWalletTransaction(new WalletTransaction(WalletTransaction.Pool.UNSPENT, tx));
+        }
+        return wallet;
+    }
+
+    private String csv(final int payees) {
+        final StringBuilder csv = new StringBuilder("address,amount,label\n");
+        for (int i = 0; i < payees; i++)
+            csv.append(address()).append(',').append("0.5").append(",payee ").append(i).append('\n');
+        return csv.toString();
+    }
+
+    @Test
+    public void parsesCsvAndUris() throws Exception {
+        final Address a = address(), b = address(), c = address();
+        final String list = "Address;Amount\n" //
+                + "# comment\n" //
+                + a + ";1.25\n" //
+                + "\n" //
+                + "\"" + b + "\",\"0.5\",\"Bob, Jr.\"\n" //
+                + BitcoinURI.convertToBitcoinURI(c, Coin.COIN, "Carol", null) + "\n";
+        final PayoutListParser.PayoutList parsed = new PayoutListParser(PARAMS).parse(new StringReader(list));
+        assertTrue(parsed.problems.toString(), parsed.isValid());
+        assertEquals(3, parsed.payees.size());
+        assertEquals(a, parsed.payees.get(0).address);
+        assertEquals(Coin.valueOf(125000000), parsed.payees.get(0).amount);
+        assertEquals(3, parsed.payees.get(0).line);
+        assertNull(parsed.payees.get(0).label);
+        assertEquals("Bob, Jr.", parsed.payees.get(1).label);
+        assertEquals(c, parsed.payees.get(2).address);
+        assertEquals("Carol", parsed.payees.get(2).label);
+        assertEquals(Coin.valueOf(275000000), parsed.total);
+    }
+
+    @Test
+    public void collectsAllProblems() throws Exception {
+        final Address a = address();
+        final String list = a + ",1\n" //
+                + "nonsense,1\n" //
+                + a + ",abc\n" //
+                + a + "\n" //
+                + a + ",-1\n" //
+                + a + ",0.00000001\n" //
+                + BitcoinURI.convertToBitcoinURI(a, null, null, null) + "\n" //
+                + a + ",2\n";
+        final PayoutListParser.PayoutList parsed = new PayoutListParser(PARAMS).parse(new StringReader(list));
+        assertFalse(parsed.isValid());
+        assertEquals(2, parsed.payees.size());
+        final List<Integer> lines = new ArrayList<>();
+        for (final PayoutListParser.Problem problem : parsed.problems)
+            lines.add(problem.line);
+        assertEquals(Arrays.asList(2, 3, 4, 5, 6, 7), lines);
+    }
+
+    @Test
+    public void paysInFewTransactions() throws Exception {
+        final Wallet wallet = fundedWallet(50, Coin.COIN.multiply(100));
+        final List<Payee> payees = new PayoutListParser(PARAMS).parse(new StringReader(csv(2500))).payees;
+        final BatchPayout payout = new BatchPayout(wallet, broadcastQueue, FEE_PER_KB, null, null);
+        assertEquals(2, payout.plan(payees).size());
+
+        final List<Integer> progress = new ArrayList<>();
+        final BatchPayout.Result result = payout.submit(executor, payees,
+                (paid, total, transactions) -> progress.add(paid)).get();
+        assertNull(result.failure);
+        assertEquals(2, result.transactions.size());
+        assertEquals(payout.getMaxOutputsPerTx(), (int) progress.get(0));
+        assertEquals(2500, (int) progress.get(1));
+        int outputs = 0;
+        for (final Transaction tx : result.transactions) {
+            assertTrue(tx.getMessageSize() <= BatchPayout.MAX_TX_SIZE);
+            for (final TransactionOutput output : tx.getOutputs())
+                if (!output.isMine(wallet))
+                    outputs++;
+        }
+        assertEquals(2500, outputs);
+        assertEquals(2, dao.rows.size());
+        assertEquals(Coin.COIN.multiply(5000).subtract(Coin.COIN.multiply(1250)).subtract(result.fee),
+                wallet.getBalance(Wallet.BalanceType.ESTIMATED));
+    }
+
+    @Test
+    public void splitsTransactionsThatGetTooLarge() throws Exception {
+        final Wallet wallet = fundedWallet(10, Coin.COIN.multiply(1000));
+        final List<Payee> payees = new PayoutListParser(PARAMS).parse(new StringReader(csv(3000))).payees;
+        final BatchPayout payout = new BatchPayout(wallet, broadcastQueue, FEE_PER_KB, null, null, 3000);
+        final BatchPayout.Result result = payout.pay(payees, null);
+        assertEquals(2, result.transactions.size());
+        assertTrue(result.unpaid.isEmpty());
+    }
+
+    @Test
+    public void stopsWhenFundsRunOut() throws Exception {
+        final Wallet wallet = fundedWallet(1, Coin.COIN.multiply(1000));
+        final List<Payee> payees = new PayoutListParser(PARAMS).parse(new StringReader(csv(2001))).payees;
+        try {
+            new BatchPayout(wallet, broadcastQueue, FEE_PER_KB, null, null).pay(payees, null);
+            fail();
+        } catch (final InsufficientMoneyException x) {
+            assertTrue(dao.rows.isEmpty()); // nothing paid
+        }
+
+        // enough for the payees, not for the fees of the last transaction
+        final Wallet tight = fundedWallet(1, Coin.COIN.multiply(2000).add(Coin.valueOf(1000)));
+        final List<Payee> more = new PayoutListParser(PARAMS).parse(new StringReader(csv(4000))).payees;
+        final BatchPayout.Result result = new BatchPayout(tight, broadcastQueue, FEE_PER_KB, null, null, 2000)
+                .pay(more, null);
+        assertNotNull(result.failure);
+        assertEquals(1, result.transactions.size());
+        assertEquals(2000, result.unpaid.size());
+    }
+
+    @Test
+    public void stopsWithResultWhenSinglePaymentTooLarge() throws Exception {
+        // many small coins: the second payee needs more inputs than fit into one transaction
+        final Wallet wallet = fundedWallet(3000, Coin.CENT);
+        final List<Payee> payees = new ArrayList<>();
+        payees.add(new Payee(1, address(), Coin.CENT.multiply(5), "small"));
+        payees.add(new Payee(2, address(), Coin.COIN.multiply(25), "large"));
+        payees.add(new Payee(3, address(), Coin.CENT, "after"));
+        final BatchPayout.Result result = new BatchPayout(wallet, broadcastQueue, FEE_PER_KB, null, null, 1)
+                .pay(payees, null);
+        assertTrue(String.valueOf(result.failure), result.failure instanceof Wallet.ExceededMaxTransactionSize);
+        assertEquals(1, result.transactions.size());
+        assertEquals(payees.subList(1, 3), result.unpaid);
+        assertEquals(1, dao.rows.size());
+    }
+
+    @Test
+    public void laterTransactionsSpendPendingChange() throws Exception {
+        // one coin only, so every transaction after the first has nothing but the pending change to spend
+        final Wallet wallet = fundedWallet(1, Coin.COIN.multiply(10000));
+        final List<Payee> payees = new PayoutListParser(PARAMS).parse(new StringReader(csv(2500))).payees;
+        final BatchPayout payout = new BatchPayout(wallet, broadcastQueue, FEE_PER_KB, null, null, 1000);
+        final BatchPayout.Result result = payout.pay(payees, null);
+        assertNull(result.failure);
+        assertTrue(result.unpaid.isEmpty());
+        assertEquals(3, result.transactions.size());
+        for (int i = 1; i < result.transactions.size(); i++) {
+            final Transaction previous = result.transactions.get(i - 1);
+            boolean spendsChange = false;
+            for (final TransactionInput input : result.transactions.get(i).getInputs())
+                spendsChange |= input.getOutpoint().getHash().equals(previous.getTxId());
+            assertTrue(spendsChange);
+        }
+        assertEquals(Coin.COIN.multiply(10000).subtract(Coin.COIN.multiply(1250)).subtract(result.fee),
+                wallet.getBalance(Wallet.BalanceType.ESTIMATED));
+    }
+
+    /**
+     * Parse, coin selection and signing for 1k and 10k payees, against a wallet of 500 coins. Only runs with
+     * {@code -Pbenchmark}.
+     */
+    @Test
+    public void benchmark() throws Exception {
+        assumeTrue(Boolean.getBoolean("benchmark"));
+        for (final int n : new int[] { 1000, 10000 }) {
+            final String csv = csv(n);
+            long start = System.nanoTime();
+            final PayoutListParser.PayoutList parsed = new PayoutListParser(PARAMS).parse(new StringReader(csv));
+            final long parseNanos = System.nanoTime() - start;
+            assertTrue(parsed.isValid());
+
+            final Wallet wallet = fundedWallet(500, Coin.COIN.multiply(100));
+            final BatchPayout payout = new BatchPayout(wallet, broadcastQueue, FEE_PER_KB, null, null);
+            start = System.nanoTime();
+            for (final List<Payee> batch : payout.plan(parsed.payees)) {
+                final Transaction tx = new Transaction(PARAMS);
+                for (final Payee payee : batch)
+                    tx.addOutput(payee.amount, payee.address);
+                final SendRequest request = SendRequest.forTx(tx);
+                request.feePerKb = FEE_PER_KB;
+                request.signInputs = false;
+                wallet.completeTx(request);
+            }
+            final long selectNanos = System.nanoTime() - start;
+            start = System.nanoTime();
+            final BatchPayout.Result result = payout.pay(parsed.payees, null);
+            final long payNanos = System.nanoTime() - start;
+            assertNull(String.format("%d payees: parse %d ms, coin selection %d ms, select+sign+queue %d ms, %s", n,
+                    parseNanos / 1000000, selectNanos / 1000000, payNanos / 1000000, result), result.failure);
+        }
+    }
+}
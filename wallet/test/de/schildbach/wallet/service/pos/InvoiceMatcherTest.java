@@ -0,0 +1,203 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.service.pos;
+
+import de.schildbach.wallet.service.http.HttpResponse;
+import de.schildbach.wallet.service.http.HttpServer;
+import org.bitcoinj.core.Address;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.LegacyAddress;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.script.Script;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+public class InvoiceMatcherTest {
+    private static final NetworkParameters PARAMS = UnitTestParams.get();
+    private static final long TICK_MS = 1000;
+    private static final long T0 = 1_700_000_000_000L;
+
+    private int txCounter = 0;
+
+    @Before
+    public void setUp() {
+        Context.propagate(new Context(PARAMS));
+    }
+
+    private Transaction pay(final Object... addressesAndValues) {
+        final Transaction tx = new Transaction(PARAMS);
+        tx.addInput(Sha256Hash.of(new byte[] { (byte) txCounter, (byte) (txCounter >> 8), (byte) (txCounter >> 16) }),
+                0, new Script(new byte[0]));
+        txCounter++;
+        for (int i = 0; i < addressesAndValues.length; i += 2)
+            tx.addOutput(Coin.valueOf((Long) addressesAndValues[i + 1]), (Address) addressesAndValues[i]);
+        return tx;
+    }
+
+    private static Address newAddress() {
+        return LegacyAddress.fromKey(PARAMS, new ECKey());
+    }
+
+    @Test
+    public void matchesAndSumsPartialPayments() {
+        final InvoiceMatcher matcher = new InvoiceMatcher(TICK_MS, 64, T0);
+        final Address a = newAddress(), b = newAddress(), stranger = newAddress();
+        matcher.add(new Invoice("a", a, Coin.valueOf(1000), T0, T0 + 60000));
+        matcher.add(new Invoice("b", b, Coin.valueOf(500), T0, T0 + 60000));
+
+        assertTrue(matcher.match(pay(stranger, 1000L)).isEmpty());
+
+        final Transaction first = pay(a, 400L, b, 600L, stranger, 1L);
+        final List<InvoiceMatcher.Match> matches = matcher.match(first);
+        assertEquals(2, matches.size());
+        assertEquals("a", matches.get(0).invoice.id);
+        assertFalse(matches.get(0).isPaid());
+        assertTrue(matches.get(1).isPaid());
+        assertNull(matcher.get("b")); // closed
+        assertEquals(Coin.valueOf(400), matcher.getReceived("a"));
+
+        // seen again, from a block after the mempool
+        assertTrue(matcher.match(first).isEmpty());
+        assertEquals(Coin.valueOf(400), matcher.getReceived("a"));
+
+        // two outputs to the same invoice in one transaction
+        final List<InvoiceMatcher.Match> rest = matcher.match(pay(a, 300L, a, 300L));
+        assertEquals(2, rest.size());
+        assertTrue(rest.get(1).isPaid());
+        assertEquals(Coin.valueOf(1000), rest.get(1).received);
+        assertEquals(0, matcher.size());
+
+        final InvoiceMatcherStats.Snapshot stats = matcher.getStats();
+        assertEquals(2, stats.paid);
+        assertEquals(4, stats.matchedOutputs);
+    }
+
+    @Test
+    public void expiresOnTime() {
+        final InvoiceMatcher matcher = new InvoiceMatcher(TICK_MS, 8, T0);
+        matcher.add(new Invoice("soon", newAddress(), Coin.COIN, T0, T0 + 2500));
+        matcher.add(new Invoice("later", newAddress(), Coin.COIN, T0, T0 + 20000)); // beyond one turn
+        final Invoice cancelled = new Invoice("cancelled", newAddress(), Coin.COIN, T0, T0 + 2000);
+        matcher.add(cancelled);
+        assertEquals(cancelled, matcher.remove("cancelled"));
+
+        assertTrue(matcher.expire(T0 + 2000).isEmpty());
+        assertEquals("soon", matcher.expire(T0 + 3000).get(0).id);
+        assertTrue(matcher.expire(T0 + 19000).isEmpty());
+        assertEquals(1, matcher.size());
+        assertEquals("later", matcher.expire(T0 + 60000).get(0).id); // jumping several turns
+        assertEquals(0, matcher.size());
+        assertEquals(2, matcher.getStats().expired);
+    }
+
+    @Test
+    public void wheelNeverFiresEarly() {
+        final ExpiryWheel<Long> wheel = new ExpiryWheel<>(100, 16, 0);
+        for (long deadline = 1; deadline < 10000; deadline += 37)
+            wheel.add(deadline, deadline);
+        final int total = wheel.size();
+        int fired = 0;
+        for (long now = 0; now <= 10000; now += 50) {
+            for (final long deadline : wheel.advance(now)) {
+                assertTrue(deadline <= now);
+                assertTrue(now - deadline < 200);
+                fired++;
+            }
+        }
+        assertEquals(total, fired);
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void metricsEndpoint() throws Exception {
+        final InvoiceMatcher matcher = new InvoiceMatcher(TICK_MS, 64, T0);
+        final Address address = newAddress();
+        matcher.add(new Invoice("x", address, Coin.COIN, T0, T0 + 60000));
+        matcher.match(pay(address, Coin.COIN.value));
+        final HttpResponse[] response = new HttpResponse[1];
+        new InvoiceMetricsHandler(matcher).handle(null, new HttpServer.Responder() {
+            @Override
+            public void respond(final HttpResponse r) {
+                response[0] = r;
+            }
+
+            @Override
+            public HttpServer.EventStream startEventStream() {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public boolean isOpen() {
+                return true;
+            }
+        });
+        final String json = new String(response[0].body, StandardCharsets.UTF_8);
+        assertTrue(json,
+                json.startsWith("{\"openInvoices\":0,\"added\":1,\"paid\":1,\"expired\":0,\"transactions\":1,"));
+    }
+
+    /**
+     * Matching cost per output should be the same with 10 or 100,000 open invoices. Only runs with
+     * {@code -Pbenchmark}.
+     */
+    @Test
+    public void matchCostStaysFlat() {
+        assumeTrue(Boolean.getBoolean("benchmark"));
+        final int[] sizes = { 10, 1000, 100000 };
+        final double[] nanosPerTx = new double[sizes.length];
+        final List<Transaction> txs = new ArrayList<>();
+        for (int i = 0; i < 2000; i++)
+            txs.add(pay(newAddress(), 1000L, newAddress(), 2000L));
+        for (int s = 0; s < sizes.length; s++) {
+            final InvoiceMatcher matcher = new InvoiceMatcher(TICK_MS, 3600, T0);
+            for (int i = 0; i < sizes[s]; i++) {
+                final byte[] hash = new byte[20];
+                hash[0] = (byte) i;
+                hash[1] = (byte) (i >> 8);
+                hash[2] = (byte) (i >> 16);
+                matcher.add(new Invoice("i" + i, LegacyAddress.fromPubKeyHash(PARAMS, hash), Coin.COIN, T0,
+                        T0 + 1000 * (i % 3600 + 1)));
+            }
+            long best = Long.MAX_VALUE;
+            for (int round = 0; round < 5; round++) {
+                final long start = System.nanoTime();
+                for (final Transaction tx : txs)
+                    matcher.match(tx);
+                best = Math.min(best, System.nanoTime() - start);
+            }
+            nanosPerTx[s] = (double) best / txs.size();
+        }
+        assertTrue("cost grew from " + nanosPerTx[0] + " to " + nanosPerTx[2] + " ns",
+                nanosPerTx[2] < nanosPerTx[0] * 10);
+    }
+}
@@ -0,0 +1,326 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.service.recurring;
+
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.InsufficientMoneyException;
+import org.bitcoinj.core.LegacyAddress;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.wallet.SendRequest;
+import org.bitcoinj.wallet.Wallet;
+import org.bitcoinj.wallet.WalletTransaction;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class RecurringPaymentSchedulerTest {
+    private static final NetworkParameters PARAMS = UnitTestParams.get();
+    private static final long T0 = 1_700_000_000_000L;
+    private static final long DAY = TimeUnit.DAYS.toMillis(1);
+    private static final long HOUR = TimeUnit.HOURS.toMillis(1);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static class FakeWakeup implements RecurringPaymentScheduler.Wakeup {
+        long at = Long.MAX_VALUE;
+        int sets = 0;
+
+        @Override
+        public void setAt(final long time) {
+            at = time;
+            sets++;
+        }
+
+        @Override
+        public void cancel() {
+            at = Long.MAX_VALUE;
+        }
+    }
+
+    private static class FakePayer implements RecurringPaymentScheduler.BatchPayer {
+        final List<List<ScheduledPayment>> batches = new ArrayList<>();
+        final List<Transaction> committed = new ArrayList<>();
+        boolean broke = false;
+        boolean crashing = false;
+        boolean refusing = false;
+        boolean queueFailing = false;
+        Runnable onCommit = null;
+        private List<ScheduledPayment> completed;
+
+        @Override
+        public Transaction complete(final List<ScheduledPayment> payments) throws InsufficientMoneyException {
+            if (crashing)
+                throw new IllegalStateException("wallet not ready");
+            if (broke)
+                throw new InsufficientMoneyException(Coin.COIN);
+            completed = payments;
+            final Transaction tx = new Transaction(PARAMS);
+            tx.addOutput(Coin.CENT, LegacyAddress.fromKey(PARAMS, new ECKey()));
+            return tx;
+        }
+
+        @Override
+        public boolean commit(final Transaction tx) {
+            if (onCommit != null)
+                onCommit.run();
+            if (refusing)
+                return false;
+            batches.add(completed);
+            committed.add(tx);
+            if (queueFailing)
+                throw new IllegalStateException("database full");
+            return true;
+        }
+    }
+
+    @Before
+    public void setUp() {
+        Context.propagate(new Context(PARAMS));
+    }
+
+    private static String address() {
+        return LegacyAddress.fromKey(PARAMS, new ECKey()).toString();
+    }
+
+    @Test
+    public void heapOrdersAndPersists() throws Exception {
+        final PaymentSchedule schedule = new PaymentSchedule();
+        for (int i = 0; i < 100; i++)
+            schedule.put(new ScheduledPayment(i, address(), Coin.CENT, T0 + (i * 37 % 100) * HOUR, DAY, "p" + i));
+        schedule.put(schedule.get(0).withNextDueAt(T0 + 1000 * DAY)); // replaced
+        schedule.remove(1);
+        assertEquals(99, schedule.size());
+
+        final File file = new File(folder.getRoot(), "schedule");
+        schedule.write(file);
+        final PaymentSchedule read = PaymentSchedule.read(file);
+        assertEquals(99, read.size());
+        long last = Long.MIN_VALUE;
+        for (final ScheduledPayment payment : read.pollDue(T0 + 99 * HOUR, 0)) {
+            assertTrue(payment.nextDueAt >= last);
+            last = payment.nextDueAt;
+        }
+        assertEquals(1, read.size());
+        assertEquals(0, read.peek().id);
+        assertNull(PaymentSchedule.read(new File(folder.getRoot(), "missing")));
+    }
+
+    @Test
+    public void skipsMissedPeriods() {
+        final ScheduledPayment payment = new ScheduledPayment(1, address(), Coin.CENT, T0, DAY, null);
+        assertEquals(T0 + DAY, payment.advancedPast(T0).nextDueAt);
+        assertEquals(T0 + 4 * DAY, payment.advancedPast(T0 + 3 * DAY + 5).nextDueAt);
+        assertEquals(T0, payment.advancedPast(T0 - 5).nextDueAt);
+    }
+
+    /**
+     * 30 days of 50 daily payments spread over 5 times of the day, plus weekly ones. Every wakeup has something to
+     * pay, and payments due close together share a transaction.
+     */
+    @Test
+    public void oneWakeupPerDueWindow() throws Exception {
+        final FakeWakeup wakeup = new FakeWakeup();
+        final FakePayer payer = new FakePayer();
+        final File file = new File(folder.getRoot(), "schedule");
+        final RecurringPaymentScheduler scheduler = new RecurringPaymentScheduler(new PaymentSchedule(), file, payer,
+                wakeup, 10 * 60 * 1000, HOUR);
+        for (int i = 0; i < 50; i++) // five clusters, a few minutes apart within each
+            scheduler.put(new ScheduledPayment(i, address(), Coin.CENT, T0 + (i % 5) * 4 * HOUR + (i / 5) * 30000,
+                    DAY, null));
+        for (int i = 50; i < 60; i++)
+            scheduler.put(new ScheduledPayment(i, address(), Coin.COIN, T0 + 2 * HOUR, 7 * DAY, null));
+        assertEquals(T0, wakeup.at);
+
+        while (wakeup.at < T0 + 30 * DAY)
+            scheduler.onWakeup(wakeup.at);
+
+        final RecurringPaymentScheduler.Stats stats = scheduler.getStats();
+        assertEquals(0, stats.emptyWakeups);
+        assertEquals(30 * 5 + 5, stats.wakeups); // 5 clusters a day, weekly ones on their own
+        assertEquals(stats.wakeups, stats.transactions);
+        assertEquals(30 * 50 + 5 * 10, stats.payments);
+        for (final List<ScheduledPayment> batch : payer.batches)
+            assertTrue(batch.size() == 10);
+
+        // the persisted schedule continues where this one left off
+        final PaymentSchedule read = PaymentSchedule.read(file);
+        assertEquals(60, read.size());
+        assertEquals(wakeup.at, read.peek().nextDueAt);
+    }
+
+    @Test
+    public void retriesAfterFailure() {
+        final FakeWakeup wakeup = new FakeWakeup();
+        final FakePayer payer = new FakePayer();
+        final RecurringPaymentScheduler scheduler = new RecurringPaymentScheduler(new PaymentSchedule(), null, payer,
+                wakeup, 0, HOUR);
+        scheduler.put(new ScheduledPayment(1, address(), Coin.CENT, T0, DAY, null));
+        payer.broke = true;
+        scheduler.onWakeup(T0);
+        assertEquals(T0 + HOUR, wakeup.at);
+        payer.broke = false;
+        scheduler.onWakeup(T0 + HOUR);
+        assertEquals(T0 + DAY, wakeup.at); // back on schedule
+        scheduler.onWakeup(T0 + HOUR + 5); // spurious
+        scheduler.remove(1);
+        assertEquals(Long.MAX_VALUE, wakeup.at);
+        assertEquals(1, scheduler.getStats().failures);
+        assertEquals(1, scheduler.getStats().emptyWakeups);
+    }
+
+    @Test
+    public void backsOffWhileFailing() {
+        final FakeWakeup wakeup = new FakeWakeup();
+        final FakePayer payer = new FakePayer();
+        final RecurringPaymentScheduler scheduler = new RecurringPaymentScheduler(new PaymentSchedule(), null, payer,
+                wakeup, 0, HOUR);
+        scheduler.put(new ScheduledPayment(1, address(), Coin.CENT, T0, 7 * DAY, null));
+        payer.broke = true;
+        long now = T0;
+        for (final long delay : new long[] { HOUR, 2 * HOUR, 4 * HOUR, 8 * HOUR, 16 * HOUR, DAY, DAY }) {
+            scheduler.onWakeup(now);
+            assertEquals(now + delay, wakeup.at);
+            now = wakeup.at;
+        }
+        payer.broke = false;
+        scheduler.onWakeup(now);
+        assertEquals(T0 + 7 * DAY, wakeup.at);
+        payer.broke = true;
+        scheduler.onWakeup(T0 + 7 * DAY);
+        assertEquals(T0 + 7 * DAY + HOUR, wakeup.at); // success starts over
+    }
+
+    @Test
+    public void keepsPaymentsWhenPayerThrows() {
+        final FakeWakeup wakeup = new FakeWakeup();
+        final FakePayer payer = new FakePayer();
+        final RecurringPaymentScheduler scheduler = new RecurringPaymentScheduler(new PaymentSchedule(), null, payer,
+                wakeup, 0, HOUR);
+        scheduler.put(new ScheduledPayment(1, address(), Coin.CENT, T0, DAY, null));
+        scheduler.put(new ScheduledPayment(2, address(), Coin.CENT, T0, DAY, null));
+        payer.crashing = true;
+        scheduler.onWakeup(T0);
+        assertEquals(2, scheduler.getStats().scheduled);
+        assertEquals(1, scheduler.getStats().failures);
+        assertEquals(T0 + HOUR, wakeup.at);
+        payer.crashing = false;
+        scheduler.onWakeup(T0 + HOUR);
+        assertEquals(1, payer.batches.size());
+        assertEquals(2, payer.batches.get(0).size());
+    }
+
+    @Test
+    public void persistsScheduleBeforeCommitting() throws Exception {
+        final FakeWakeup wakeup = new FakeWakeup();
+        final FakePayer payer = new FakePayer();
+        final File file = new File(folder.getRoot(), "schedule");
+        final RecurringPaymentScheduler scheduler = new RecurringPaymentScheduler(new PaymentSchedule(), file, payer,
+                wakeup, 0, HOUR);
+        scheduler.put(new ScheduledPayment(1, address(), Coin.CENT, T0, DAY, null));
+        final List<Long> persistedDueAt = new ArrayList<>();
+        payer.onCommit = () -> persistedDueAt.add(PaymentSchedule.read(file).peek().nextDueAt);
+        scheduler.onWakeup(T0);
+        assertEquals(Collections.singletonList(T0 + DAY), persistedDueAt);
+    }
+
+    @Test
+    public void countsAsPaidWhenFailingAfterCommit() throws Exception {
+        final FakeWakeup wakeup = new FakeWakeup();
+        final FakePayer payer = new FakePayer();
+        final File file = new File(folder.getRoot(), "schedule");
+        final RecurringPaymentScheduler scheduler = new RecurringPaymentScheduler(new PaymentSchedule(), file, payer,
+                wakeup, 0, HOUR);
+        scheduler.put(new ScheduledPayment(1, address(), Coin.CENT, T0, DAY, null));
+        payer.queueFailing = true;
+        scheduler.onWakeup(T0);
+        assertEquals(T0 + DAY, wakeup.at);
+        assertEquals(0, scheduler.getStats().failures);
+        assertEquals(T0 + DAY, PaymentSchedule.read(file).peek().nextDueAt);
+        scheduler.onWakeup(T0 + HOUR); // where a retry would have been
+        assertEquals(1, payer.committed.size());
+    }
+
+    @Test
+    public void retriesWhenWalletRefuses() throws Exception {
+        final FakeWakeup wakeup = new FakeWakeup();
+        final FakePayer payer = new FakePayer();
+        final File file = new File(folder.getRoot(), "schedule");
+        final RecurringPaymentScheduler scheduler = new RecurringPaymentScheduler(new PaymentSchedule(), file, payer,
+                wakeup, 0, HOUR);
+        scheduler.put(new ScheduledPayment(1, address(), Coin.CENT, T0, DAY, null));
+        payer.refusing = true;
+        scheduler.onWakeup(T0);
+        assertEquals(T0 + HOUR, wakeup.at);
+        assertEquals(1, scheduler.getStats().failures);
+        assertEquals(T0 + HOUR, PaymentSchedule.read(file).peek().nextDueAt);
+        payer.refusing = false;
+        scheduler.onWakeup(T0 + HOUR);
+        assertEquals(1, payer.committed.size());
+        assertEquals(T0 + DAY, wakeup.at);
+    }
+
+    /** Ten payments in one transaction against ten transactions. */
+    @Test
+    public void batchingSavesFees() throws Exception {
+        final Wallet wallet = Wallet.createDeterministic(PARAMS, Script.ScriptType.P2PKH);
+        for (int i = 0; i < 20; i++) {
+            final Transaction tx = new Transaction(PARAMS);
+            tx.addInput(Sha256Hash.of(new byte[] { (byte) i }), 0, new Script(new byte[0]));
+            tx.addOutput(Coin.COIN, wallet.freshReceiveAddress());
+            tx.getConfidence().setAppearedAtChainHeight(1);
+            wallet.addWalletTransaction(new WalletTransaction(WalletTransaction.Pool.UNSPENT, tx));
+        }
+        final Coin feePerKb = Coin.valueOf(1000000);
+        final List<ScheduledPayment> payments = new ArrayList<>();
+        for (int i = 0; i < 10; i++)
+            payments.add(new ScheduledPayment(i, address(), Coin.CENT.multiply(5), T0, DAY, null));
+
+        final SendRequest batched = SendRequest.forTx(WalletBatchPayer.buildTransaction(wallet, payments));
+        batched.feePerKb = feePerKb;
+        wallet.completeTx(batched);
+        Coin separateFees = Coin.ZERO;
+        for (final ScheduledPayment payment : payments) {
+            final SendRequest single = SendRequest.forTx(
+                    WalletBatchPayer.buildTransaction(wallet, Collections.singletonList(payment)));
+            single.feePerKb = feePerKb;
+            wallet.completeTx(single);
+            separateFees = separateFees.add(single.tx.getFee());
+        }
+        assertEquals(11, batched.tx.getOutputs().size()); // plus change
+        assertTrue("batched fee " + batched.tx.getFee().toFriendlyString() + ", separate fees "
+                + separateFees.toFriendlyString(), batched.tx.getFee().multiply(3).isLessThan(separateFees));
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.service.swap;
+
+import javax.annotation.Nullable;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * In-memory chain for swap tests: scripts get funded and spent at the current height, and every change is reported
+ * to the monitor like a status notification from an Electrum server would be.
+ */
+class SimulatedChain implements SwapChainBackend {
+    private static final class Output {
+        long value;
+        int height;
+        boolean spent;
+        byte[] preimage;
+    }
+
+    final String name;
+    private final SwapMonitor monitor;
+    private final Map<ByteBuffer, Output> outputs = new HashMap<>();
+    private int height;
+    private long time;
+    int queries = 0;
+    int scriptsQueried = 0;
+
+    SimulatedChain(final String name, final SwapMonitor monitor, final int height, final long time) {
+        this.name = name;
+        this.monitor = monitor;
+        this.height = height;
+        this.time = time;
+        monitor.addChain(name, this);
+        monitor.onNewTip(name, height, time);
+    }
+
+    int getHeight() {
+        return height;
+    }
+
+    void mine(final int blocks) {
+        height += blocks;
+        time += blocks * 60L;
+        monitor.onNewTip(name, height, time);
+    }
+
+    void fund(final HtlcScript script, final long value) {
+        final Output output = new Output();
+        output.value = value;
+        output.height = height + 1; // confirmed with the next block
+        outputs.put(ByteBuffer.wrap(script.scriptHash), output);
+        monitor.onScriptActivity(name, script.scriptHash);
+    }
+
+    void spend(final HtlcScript script, @Nullable final byte[] preimage) {
+        final Output output = outputs.get(ByteBuffer.wrap(script.scriptHash));
+        output.spent = true;
+        output.preimage = preimage;
+        monitor.onScriptActivity(name, script.scriptHash);
+    }
+
+    @Override
+    public synchronized List<ScriptStatus> getStatus(final List<byte[]> scriptHashes) {
+        queries++;
+        scriptsQueried += scriptHashes.size();
+        final List<ScriptStatus> statuses = new ArrayList<>(scriptHashes.size());
+        for (final byte[] scriptHash : scriptHashes) {
+            final Output output = outputs.get(ByteBuffer.wrap(scriptHash));
+            if (output == null)
+                statuses.add(ScriptStatus.UNFUNDED);
+            else
+                statuses.add(new ScriptStatus(output.value, Math.max(0, height - output.height + 1), output.spent,
+                        output.preimage));
+        }
+        return statuses;
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.service.swap;
+
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.script.ScriptBuilder;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+public class SwapMonitorTest {
+    private static final long T0 = 1_700_000_000L;
+    private static final byte[] RECIPIENT = new ECKey().getPubKeyHash();
+    private static final byte[] REFUND = new ECKey().getPubKeyHash();
+
+    private static byte[] secret(final int n) {
+        return ByteBuffer.allocate(32).putInt(n).array();
+    }
+
+    private static byte[] htlc(final int n, final long lockTime) {
+        return HtlcScript.build(Sha256Hash.hash(secret(n)), RECIPIENT, REFUND, lockTime);
+    }
+
+    @Test
+    public void parsesHtlcs() {
+        for (final long lockTime : new long[] { 5, 1000, 0x800000, T0 }) {
+            final HtlcScript script = HtlcScript.parse(htlc(1, lockTime));
+            assertEquals(lockTime, script.lockTime);
+            assertEquals(lockTime < HtlcScript.LOCKTIME_THRESHOLD, script.isLockTimeHeight());
+            assertArrayEquals(Sha256Hash.hash(secret(1)), script.secretHash);
+            assertArrayEquals(RECIPIENT, script.recipientHash);
+            assertArrayEquals(REFUND, script.refundHash);
+        }
+        try {
+            HtlcScript.parse(ScriptBuilder.createP2PKHOutputScript(RECIPIENT).getProgram());
+            fail();
+        } catch (final IllegalArgumentException x) {
+            // expected
+        }
+
+        final HtlcScriptCache cache = new HtlcScriptCache(2);
+        final byte[] script = htlc(2, 100);
+        assertEquals(cache.get(script), cache.get(script.clone()));
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    public void followsSwapsThroughTheirLifecycle() throws Exception {
+        final SwapMonitor monitor = new SwapMonitor(new HtlcScriptCache(100), 50, 3);
+        final List<String> events = new ArrayList<>();
+        monitor.addListener((swap, previous) -> events.add(swap.id + " " + previous + ">" + swap.getState()));
+        final SimulatedChain doge = new SimulatedChain("doge", monitor, 1000, T0);
+        final SimulatedChain ltc = new SimulatedChain("ltc", monitor, 2000, T0);
+
+        final SwapMonitor.Swap redeemed = monitor.add("redeemed", "doge", htlc(1, 1100), 1000,
+                SwapMonitor.State.AWAITING_FUNDING);
+        final SwapMonitor.Swap refunded = monitor.add("refunded", "ltc", htlc(2, T0 + 600), 500,
+                SwapMonitor.State.AWAITING_FUNDING);
+        monitor.add("abandoned", "doge", htlc(3, 1010), 1000, SwapMonitor.State.AWAITING_FUNDING);
+        monitor.poll("doge");
+        monitor.poll("ltc");
+        assertEquals(2, doge.scriptsQueried);
+        assertEquals(1, ltc.scriptsQueried);
+
+        doge.fund(redeemed.script, 999); // too little, keep waiting
+        monitor.poll("doge");
+        assertEquals(SwapMonitor.State.AWAITING_FUNDING, redeemed.getState());
+        doge.fund(redeemed.script, 1000);
+        ltc.fund(refunded.script, 500);
+        monitor.poll("doge");
+        monitor.poll("ltc");
+        assertEquals("[redeemed AWAITING_FUNDING>FUNDED, refunded AWAITING_FUNDING>FUNDED]", events.toString());
+
+        // confirmations are tracked until there are enough, then the swap is left alone
+        for (int i = 0; i < 5; i++) {
+            doge.mine(1);
+            monitor.poll("doge");
+        }
+        assertEquals(3, redeemed.getConfirmations()); // not looked at again after the third
+        final int queriedAfterConfirmations = doge.scriptsQueried;
+        doge.mine(1);
+        monitor.poll("doge");
+        assertEquals(queriedAfterConfirmations + 0, doge.scriptsQueried);
+
+        // the abandoned swap's lock time passed: looked at once more, nothing to do
+        doge.mine(10);
+        monitor.poll("doge");
+        assertEquals(queriedAfterConfirmations + 1, doge.scriptsQueried);
+
+        doge.spend(redeemed.script, secret(1));
+        monitor.poll("doge");
+        assertEquals(SwapMonitor.State.REDEEMED, redeemed.getState());
+        assertArrayEquals(secret(1), redeemed.getPreimage());
+        assertNull(monitor.get("redeemed"));
+
+        ltc.mine(10); // 600 seconds
+        assertEquals(SwapMonitor.State.REFUNDABLE, refunded.getState());
+        ltc.spend(refunded.script, null);
+        monitor.poll("ltc");
+        assertEquals(SwapMonitor.State.REFUNDED, refunded.getState());
+        assertEquals("[redeemed AWAITING_FUNDING>FUNDED, refunded AWAITING_FUNDING>FUNDED, redeemed FUNDED>REDEEMED, "
+                + "refunded FUNDED>REFUNDABLE, refunded REFUNDABLE>REFUNDED]", events.toString());
+        assertEquals(1, monitor.getStats().openSwaps);
+    }
+
+    /**
+     * With 10,000 open swaps and a few changing per block, the indexed monitor only looks at the ones that changed,
+     * while polling re-parses and queries every swap. Only runs with {@code -Pbenchmark}.
+     */
+    @Test
+    public void costFollowsChangesNotSwaps() throws Exception {
+        assumeTrue(Boolean.getBoolean("benchmark"));
+        final int numSwaps = 10000;
+        final int rounds = 20;
+        final int changesPerRound = 10;
+        final SwapMonitor monitor = new SwapMonitor(new HtlcScriptCache(numSwaps), 100, 1);
+        final SimulatedChain chain = new SimulatedChain("doge", monitor, 1000, T0);
+        final List<byte[]> scripts = new ArrayList<>();
+        for (int i = 0; i < numSwaps; i++) {
+            scripts.add(htlc(i, 100000 + i));
+            monitor.add("swap" + i, "doge", scripts.get(i), 1000, SwapMonitor.State.AWAITING_FUNDING);
+        }
+        monitor.poll("doge");
+        assertEquals(numSwaps / 100, chain.queries);
+
+        long start = System.nanoTime();
+        int queriedBefore = chain.scriptsQueried;
+        for (int round = 0; round < rounds; round++) {
+            for (int i = 0; i < changesPerRound; i++)
+                chain.fund(monitor.get("swap" + (round * changesPerRound + i)).script, 1000);
+            chain.mine(1);
+            monitor.poll("doge");
+        }
+        final double indexedMs = (System.nanoTime() - start) / 1e6;
+        final int indexedQueried = chain.scriptsQueried - queriedBefore;
+
+        // the old way: every tick, parse every swap's script and look it up on its own
+        start = System.nanoTime();
+        queriedBefore = chain.scriptsQueried;
+        for (int round = 0; round < rounds; round++) {
+            for (final byte[] script : scripts)
+                chain.getStatus(Collections.singletonList(HtlcScript.parse(script).scriptHash));
+            chain.mine(1);
+        }
+        final double pollingMs = (System.nanoTime() - start) / 1e6;
+        final int pollingQueried = chain.scriptsQueried - queriedBefore;
+
+        assertEquals(rounds * changesPerRound, monitor.getStats().transitions);
+        // each funded swap is looked up when funded, and again while it lacks confirmations
+        assertTrue("looked up " + indexedQueried, indexedQueried <= 2 * rounds * changesPerRound);
+        assertEquals(numSwaps * rounds, pollingQueried);
+        assertTrue(String.format("indexed %.1f ms, polling %.1f ms", indexedMs, pollingMs), indexedMs < pollingMs);
+    }
+}
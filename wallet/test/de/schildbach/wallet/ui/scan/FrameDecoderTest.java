@@ -0,0 +1,209 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.ui.scan;
+
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.zxing.Result;
+import com.google.zxing.common.BitMatrix;
+import de.schildbach.wallet.util.QrCache;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+public class FrameDecoderTest {
+    private static final int WIDTH = 640, HEIGHT = 480;
+    private static final String CONTENT = "dogecoin:nWDxPFpxt4cwEJXuxFCkHuoVNiSLdaKiHq?amount=42";
+
+    private final QrCache qrCache = new QrCache(8);
+    private final List<String> results = new ArrayList<>();
+    private final FrameDecoder.Listener listener = new FrameDecoder.Listener() {
+        @Override
+        public void onResult(final Result result) {
+            synchronized (results) {
+                results.add(result.getText());
+            }
+        }
+    };
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() {
+        executor = Executors.newSingleThreadExecutor();
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    /** Draws the code in NV21 at the given position, {@code scale} pixels per module, on a light background. */
+    private void draw(final byte[] frame, final String content, final int left, final int top, final int scale) {
+        Arrays.fill(frame, 0, WIDTH * HEIGHT, (byte) 200);
+        Arrays.fill(frame, WIDTH * HEIGHT, frame.length, (byte) 128);
+        final BitMatrix matrix = qrCache.matrix(content, 0);
+        for (int y = 0; y < matrix.getHeight() * scale; y++)
+            for (int x = 0; x < matrix.getWidth() * scale; x++)
+                if (matrix.get(x / scale, y / scale))
+                    frame[(top + y) * WIDTH + left + x] = (byte) 20;
+    }
+
+    @Test
+    public void decodesInCropAndFallsBackToFullFrame() throws Exception {
+        final FrameBufferPool pool = new FrameBufferPool(FrameBufferPool.nv21Size(WIDTH, HEIGHT), 2);
+        final FrameDecoder decoder = new FrameDecoder(MoreExecutors.directExecutor(), pool, listener, 0.6f);
+
+        final byte[] centered = pool.acquire();
+        draw(centered, CONTENT, WIDTH / 2 - 60, HEIGHT / 2 - 60, 2);
+        assertTrue(decoder.offer(centered, WIDTH, HEIGHT));
+
+        final byte[] corner = pool.acquire();
+        draw(corner, CONTENT, 10, 10, 2);
+        assertTrue(decoder.offer(corner, WIDTH, HEIGHT));
+
+        final byte[] empty = pool.acquire();
+        draw(empty, CONTENT, 10, 10, 0);
+        assertTrue(decoder.offer(empty, WIDTH, HEIGHT));
+
+        assertEquals(Arrays.asList(CONTENT, CONTENT), results);
+        final ScanStats.Snapshot stats = decoder.getStats();
+        assertEquals(3, stats.decoded);
+        assertEquals(1, stats.foundInCrop);
+        assertEquals(1, stats.foundInFullFrame);
+        assertEquals(1, pool.getAllocated()); // decoded inline, so each buffer came back before the next frame
+    }
+
+    @Test
+    public void dropsFramesWhileDecoding() throws Exception {
+        final FrameBufferPool pool = new FrameBufferPool(FrameBufferPool.nv21Size(WIDTH, HEIGHT), 3);
+        final List<Runnable> queued = new ArrayList<>();
+        final FrameDecoder decoder = new FrameDecoder(queued::add, pool, listener, 0.6f);
+
+        final byte[] first = pool.acquire();
+        draw(first, CONTENT, WIDTH / 2 - 60, HEIGHT / 2 - 60, 2);
+        assertTrue(decoder.offer(first, WIDTH, HEIGHT));
+        assertTrue(decoder.isBusy());
+        final byte[] second = pool.acquire();
+        assertFalse(decoder.offer(second, WIDTH, HEIGHT));
+        assertSame(second, pool.acquire()); // recycled right away
+        assertEquals(1, queued.size());
+
+        queued.get(0).run();
+        assertFalse(decoder.isBusy());
+        assertSame(first, pool.acquire());
+        assertEquals(1, decoder.getStats().dropped);
+        assertEquals(Arrays.asList(CONTENT), results);
+    }
+
+    @Test
+    public void emptyPoolSkipsFrames() {
+        final FrameBufferPool pool = new FrameBufferPool(16, 2);
+        final byte[] a = pool.acquire(), b = pool.acquire();
+        assertNull(pool.acquire());
+        pool.recycle(a);
+        assertSame(a, pool.acquire());
+        pool.recycle(b);
+        assertEquals(2, pool.getAllocated());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsForeignBuffer() {
+        new FrameBufferPool(16, 2).recycle(new byte[8]);
+    }
+
+    @Test
+    public void qrCacheReusesEncodedCodes() {
+        final BitMatrix matrix = qrCache.matrix(CONTENT, 0);
+        assertSame(matrix, qrCache.matrix(CONTENT, 0));
+        assertEquals(1, qrCache.getMisses());
+        assertEquals(1, qrCache.getHits());
+        final BitMatrix scaled = qrCache.matrix(CONTENT, 300);
+        assertEquals(300, scaled.getWidth());
+        for (int i = 0; i < 8; i++)
+            qrCache.matrix("dogecoin:invoice" + i, 0);
+        assertNotSame(matrix, qrCache.matrix(CONTENT, 0)); // evicted
+    }
+
+    /**
+     * Simulates a 30 fps camera feeding 4 buffers, for a code in the crop and one only found in the full frame, and
+     * measures the frame rate the decoder keeps up with and its decode latency. Also times encoding a code against
+     * getting it from the cache. Only runs with {@code -Pbenchmark}.
+     */
+    @Test
+    public void benchmark() throws Exception {
+        assumeTrue(Boolean.getBoolean("benchmark"));
+        for (final boolean inCrop : new boolean[] { true, false }) {
+            final FrameBufferPool pool = new FrameBufferPool(FrameBufferPool.nv21Size(WIDTH, HEIGHT), 4);
+            final FrameDecoder decoder = new FrameDecoder(executor, pool, listener, 0.6f);
+            final long frameIntervalNanos = TimeUnit.SECONDS.toNanos(1) / 30;
+            final long start = System.nanoTime();
+            int skipped = 0;
+            for (int i = 0; i < 90; i++) {
+                final byte[] frame = pool.acquire();
+                if (frame == null) {
+                    skipped++;
+                } else {
+                    if (inCrop)
+                        draw(frame, CONTENT, WIDTH / 2 - 60, HEIGHT / 2 - 60, 2);
+                    else
+                        draw(frame, CONTENT, 10, 10, 2);
+                    decoder.offer(frame, WIDTH, HEIGHT);
+                }
+                final long sleepNanos = start + (i + 1) * frameIntervalNanos - System.nanoTime();
+                if (sleepNanos > 0)
+                    TimeUnit.NANOSECONDS.sleep(sleepNanos);
+            }
+            final CountDownLatch drained = new CountDownLatch(1);
+            executor.execute(drained::countDown);
+            drained.await();
+            final ScanStats.Snapshot stats = decoder.getStats();
+            final String message = (inCrop ? "in crop: " : "full frame: ") + stats + ", " + skipped
+                    + " skipped for lack of buffers, " + pool.getAllocated() + " buffers allocated";
+            assertTrue(message, (inCrop ? stats.foundInCrop : stats.foundInFullFrame) > 0);
+            assertTrue(message, pool.getAllocated() <= 4);
+        }
+
+        final int rounds = 200;
+        long start = System.nanoTime();
+        for (int i = 0; i < rounds; i++)
+            new QrCache(1).matrix(CONTENT + i, 512);
+        final long encodeNanos = (System.nanoTime() - start) / rounds;
+        qrCache.matrix(CONTENT, 512);
+        start = System.nanoTime();
+        for (int i = 0; i < rounds; i++)
+            qrCache.matrix(CONTENT, 512);
+        final long cachedNanos = (System.nanoTime() - start) / rounds;
+        assertTrue("QR 512x512: encode " + encodeNanos / 1000 + " us, cached " + cachedNanos / 1000 + " us",
+                cachedNanos * 10 < encodeNanos);
+    }
+}
@@ -0,0 +1,229 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.util.coinselection;
+
+import com.google.common.collect.ImmutableList;
+import org.bitcoinj.core.Address;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.LegacyAddress;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionOutput;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.wallet.CoinSelection;
+import org.bitcoinj.wallet.DefaultCoinSelector;
+import org.bitcoinj.wallet.SendRequest;
+import org.bitcoinj.wallet.Wallet;
+import org.bitcoinj.wallet.WalletTransaction;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+public class CoinSelectionTest {
+    private static final NetworkParameters PARAMS = UnitTestParams.get();
+    private static final Coin FEE_PER_KB = Coin.valueOf(100000);
+
+    private Address own, excludedAddress;
+    private int txCounter = 0;
+
+    @Before
+    public void setUp() {
+        Context.propagate(new Context(PARAMS));
+        own = LegacyAddress.fromKey(PARAMS, new ECKey());
+        excludedAddress = LegacyAddress.fromKey(PARAMS, new ECKey());
+    }
+
+    private List<TransactionOutput> outputs(final Address to, final boolean confirmed, final long... values) {
+        final Transaction tx = new Transaction(PARAMS);
+        tx.addInput(Sha256Hash.of(new byte[] { (byte) txCounter, (byte) (txCounter >> 8), (byte) (txCounter >> 16) }),
+                0, new Script(new byte[0]));
+        txCounter++;
+        for (final long value : values)
+            tx.addOutput(Coin.valueOf(value), to);
+        if (confirmed)
+            tx.getConfidence().setAppearedAtChainHeight(1);
+        return tx.getOutputs();
+    }
+
+    private static long sum(final Iterable<TransactionOutput> outputs) {
+        long sum = 0;
+        for (final TransactionOutput output : outputs)
+            sum += output.getValue().value;
+        return sum;
+    }
+
+    @Test
+    public void findsChangelessSolution() {
+        final List<TransactionOutput> candidates = outputs(own, true, 5 * Coin.COIN.value, 4 * Coin.COIN.value,
+                3 * Coin.COIN.value, 2 * Coin.COIN.value, Coin.COIN.value / 3);
+        final BranchAndBoundCoinSelector selector = new BranchAndBoundCoinSelector(Coin.ZERO, ExcludedOutputs.NONE);
+        final BranchAndBoundCoinSelector.Selection selection = selector.selectDetailed(Coin.COIN.multiply(6),
+                candidates);
+        assertEquals(BranchAndBoundCoinSelector.Strategy.BRANCH_AND_BOUND, selection.strategy);
+        assertEquals(Coin.ZERO, selection.excess);
+        assertEquals(6 * Coin.COIN.value, sum(selection.outputs));
+        assertEquals(2, selection.outputs.size()); // 4 + 2, not 3 + 2 + ...
+    }
+
+    @Test
+    public void coversInputFees() {
+        final long inputFee = SpendableOutput.fee(FEE_PER_KB, SpendableOutput.INPUT_SIZE);
+        final List<TransactionOutput> candidates = outputs(own, true, Coin.COIN.value + inputFee,
+                Coin.COIN.value + inputFee, 7 * Coin.COIN.value);
+        final BranchAndBoundCoinSelector selector = new BranchAndBoundCoinSelector(FEE_PER_KB, ExcludedOutputs.NONE);
+        final BranchAndBoundCoinSelector.Selection selection = selector.selectDetailed(Coin.COIN.multiply(2),
+                candidates);
+        assertEquals(BranchAndBoundCoinSelector.Strategy.BRANCH_AND_BOUND, selection.strategy);
+        assertEquals(2, selection.outputs.size());
+        assertEquals(Coin.ZERO, selection.excess);
+    }
+
+    @Test
+    public void fallsBackToLargestFirst() {
+        final List<TransactionOutput> candidates = outputs(own, true, 10 * Coin.COIN.value, 7 * Coin.COIN.value,
+                Coin.CENT.value);
+        final BranchAndBoundCoinSelector selector = new BranchAndBoundCoinSelector(FEE_PER_KB, ExcludedOutputs.NONE);
+        final BranchAndBoundCoinSelector.Selection selection = selector.selectDetailed(Coin.COIN.multiply(3),
+                candidates);
+        assertEquals(BranchAndBoundCoinSelector.Strategy.LARGEST_FIRST, selection.strategy);
+        assertEquals(ImmutableList.of(candidates.get(0)), selection.outputs);
+
+        assertEquals(BranchAndBoundCoinSelector.Strategy.INSUFFICIENT,
+                selector.selectDetailed(Coin.COIN.multiply(20), candidates).strategy);
+    }
+
+    @Test
+    public void skipsExcludedAndUnconfirmedOutputs() {
+        final List<TransactionOutput> candidates = new ArrayList<>();
+        candidates.addAll(outputs(excludedAddress, true, 5 * Coin.COIN.value));
+        candidates.addAll(outputs(own, false, 5 * Coin.COIN.value));
+        candidates.addAll(outputs(own, true, 2 * Coin.COIN.value));
+        final ExcludedOutputs excluded = ExcludedOutputs.of(PARAMS,
+                ImmutableList.of(excludedAddress.toString(), "not an address"));
+        assertEquals(1, excluded.size());
+        final BranchAndBoundCoinSelector selector = new BranchAndBoundCoinSelector(FEE_PER_KB, excluded);
+        final CoinSelection selection = selector.select(Coin.COIN, candidates);
+        assertEquals(ImmutableList.of(candidates.get(2)), ImmutableList.copyOf(selection.gathered));
+        assertTrue(selector.select(Coin.COIN.multiply(3), candidates).gathered.isEmpty());
+    }
+
+    @Test
+    public void consolidatesDust() {
+        final long[] dust = new long[100];
+        for (int i = 0; i < dust.length; i++)
+            dust[i] = Coin.MILLICOIN.value + i;
+        final List<TransactionOutput> candidates = new ArrayList<>(outputs(own, true, dust));
+        candidates.addAll(outputs(own, true, 10 * Coin.COIN.value, 10));
+        final DustConsolidationSelector selector = new DustConsolidationSelector(Coin.CENT, FEE_PER_KB, 20, 50,
+                ExcludedOutputs.NONE);
+        final CoinSelection selection = selector.select(Coin.ZERO, candidates);
+        assertEquals(50, selection.gathered.size());
+        assertEquals(sum(candidates.subList(0, 50)), selection.valueGathered.value); // smallest first
+        assertTrue(selector.shouldConsolidate(candidates, FEE_PER_KB.div(2)));
+        assertFalse(selector.shouldConsolidate(candidates, FEE_PER_KB.multiply(2)));
+        assertFalse(selector.shouldConsolidate(candidates.subList(0, 10), FEE_PER_KB));
+    }
+
+    @Test
+    public void worksWithWallet() throws Exception {
+        final Wallet wallet = Wallet.createDeterministic(PARAMS, Script.ScriptType.P2PKH);
+        final Address address = wallet.freshReceiveAddress();
+        final long[] receipts = new long[300];
+        for (int i = 0; i < receipts.length; i++)
+            receipts[i] = Coin.CENT.value * (1 + i % 7);
+        final Transaction tx = outputs(address, true, receipts).get(0).getParentTransaction();
+        wallet.addWalletTransaction(new WalletTransaction(WalletTransaction.Pool.UNSPENT, tx));
+
+        final SendRequest send = SendRequest.to(LegacyAddress.fromKey(PARAMS, new ECKey()), Coin.CENT.multiply(20));
+        send.feePerKb = FEE_PER_KB;
+        send.coinSelector = new BranchAndBoundCoinSelector(FEE_PER_KB, ExcludedOutputs.NONE);
+        wallet.completeTx(send);
+        assertTrue(send.tx.getInputs().size() <= 4);
+
+        final DustConsolidationSelector consolidation = new DustConsolidationSelector(Coin.CENT.multiply(3),
+                FEE_PER_KB, 20, 50, ExcludedOutputs.NONE);
+        final SendRequest consolidate = consolidation.toSendRequest(wallet.freshReceiveAddress());
+        wallet.completeTx(consolidate);
+        assertEquals(50, consolidate.tx.getInputs().size());
+        assertEquals(1, consolidate.tx.getOutputs().size());
+    }
+
+    private List<TransactionOutput> syntheticUtxos(final int count, final Random random) {
+        final List<TransactionOutput> utxos = new ArrayList<>(count);
+        final int perTx = 100;
+        for (int i = 0; i < count; i += perTx) {
+            final long[] values = new long[Math.min(perTx, count - i)];
+            for (int j = 0; j < values.length; j++) {
+                if (random.nextInt(10) < 3)
+                    values[j] = Coin.COIN.value; // identical point-of-sale receipts
+                else
+                    values[j] = (long) Math.pow(10, 6 + random.nextDouble() * 4);
+            }
+            utxos.addAll(outputs(own, true, values));
+        }
+        return utxos;
+    }
+
+    /**
+     * Times branch-and-bound against the default selector on up to 100,000 outputs. A changeless selection it finds
+     * must leave less excess than the default selector's change, and even when it runs out of tries and falls back,
+     * it must stay well within a second. Only runs with {@code -Pbenchmark}.
+     */
+    @Test
+    public void benchmark() {
+        assumeTrue(Boolean.getBoolean("benchmark"));
+        final Random random = new Random(42);
+        for (final int count : new int[] { 1000, 10000, 100000 }) {
+            final List<TransactionOutput> utxos = syntheticUtxos(count, random);
+            final Coin target = Coin.valueOf(Coin.COIN.value * 37 + 12345);
+            final BranchAndBoundCoinSelector bnb = new BranchAndBoundCoinSelector(FEE_PER_KB, ExcludedOutputs.NONE);
+            final DefaultCoinSelector standard = new DefaultCoinSelector();
+
+            long bnbNanos = Long.MAX_VALUE, standardNanos = Long.MAX_VALUE;
+            BranchAndBoundCoinSelector.Selection selection = null;
+            CoinSelection standardSelection = null;
+            for (int round = 0; round < 5; round++) {
+                long start = System.nanoTime();
+                selection = bnb.selectDetailed(target, utxos);
+                bnbNanos = Math.min(bnbNanos, System.nanoTime() - start);
+                start = System.nanoTime();
+                standardSelection = standard.select(target, utxos);
+                standardNanos = Math.min(standardNanos, System.nanoTime() - start);
+            }
+            final String message = String.format("%d utxos: branch-and-bound %.2f ms (%s); default %.2f ms (%d inputs)",
+                    count, bnbNanos / 1e6, selection, standardNanos / 1e6, standardSelection.gathered.size());
+            assertTrue(message, selection.value.isGreaterThan(target));
+            if (selection.strategy == BranchAndBoundCoinSelector.Strategy.BRANCH_AND_BOUND)
+                assertTrue(message, selection.excess.isLessThan(standardSelection.valueGathered.subtract(target)));
+            assertTrue(message, bnbNanos < TimeUnit.SECONDS.toNanos(1));
+        }
+    }
+}
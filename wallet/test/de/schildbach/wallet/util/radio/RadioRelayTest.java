@@ -0,0 +1,463 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.util.radio;
+
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.LegacyAddress;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionInput;
+import org.bitcoinj.core.TransactionOutPoint;
+import org.bitcoinj.core.Utils;
+import org.bitcoinj.crypto.TransactionSignature;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.script.ScriptBuilder;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Relays transactions between two {@link ChunkedRelay}s over a simulated lossy link, and tails a log with
+ * {@link LogTailer}, each against the text payloads and full re-reads they replace.
+ */
+public class RadioRelayTest {
+    private static final NetworkParameters PARAMS = UnitTestParams.get();
+    private static final int MTU = 64;
+    private static final long STEP_MS = 100, TIMEOUT_MS = 1000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static Transaction p2pkhTransaction(final Random random, final int numInputs, final int numOutputs) {
+        final Transaction tx = new Transaction(PARAMS);
+        final List<ECKey> keys = new ArrayList<>();
+        for (int i = 0; i < numInputs; i++) {
+            final byte[] hash = new byte[32];
+            random.nextBytes(hash);
+            final ECKey key = new ECKey();
+            keys.add(key);
+            tx.addInput(new TransactionInput(PARAMS, tx, new byte[0],
+                    new TransactionOutPoint(PARAMS, random.nextInt(4), Sha256Hash.wrap(hash))));
+        }
+        for (int i = 0; i < numOutputs; i++)
+            tx.addOutput(Coin.valueOf(random.nextInt(1000) * Coin.COIN.value + random.nextInt(100000000)),
+                    LegacyAddress.fromKey(PARAMS, new ECKey()));
+        for (int i = 0; i < numInputs; i++) {
+            final ECKey key = keys.get(i);
+            final Script scriptPubKey = ScriptBuilder.createP2PKHOutputScript(key);
+            final TransactionSignature signature = tx.calculateSignature(i, key, scriptPubKey,
+                    Transaction.SigHash.ALL, false);
+            tx.getInput(i).setScriptSig(ScriptBuilder.createInputScript(signature, key));
+        }
+        return tx;
+    }
+
+    @Test
+    public void roundtripsP2PKH() {
+        final Random random = new Random(1);
+        for (int i = 0; i < 50; i++) {
+            final Transaction tx = p2pkhTransaction(random, 1 + random.nextInt(3), 1 + random.nextInt(3));
+            final Transaction decoded = CompactCodec.decodeTransaction(PARAMS, CompactCodec.encode(tx));
+            assertArrayEquals(tx.bitcoinSerialize(), decoded.bitcoinSerialize());
+            assertEquals(tx.getTxId(), decoded.getTxId());
+        }
+    }
+
+    @Test
+    public void roundtripsNonStandard() {
+        final Random random = new Random(2);
+        final Transaction tx = p2pkhTransaction(random, 2, 1);
+        tx.getInput(1).setScriptSig(new ScriptBuilder().data(new byte[] { 1, 2, 3 }).build());
+        tx.getInput(0).setSequenceNumber(0xfffffffdL);
+        tx.addOutput(Coin.ZERO, ScriptBuilder.createOpReturnScript("hello".getBytes(StandardCharsets.US_ASCII)));
+        tx.addOutput(Coin.valueOf(123456789), ScriptBuilder.createP2SHOutputScript(new byte[20]));
+        tx.addOutput(Coin.valueOf(1), new ECKey());
+        tx.setLockTime(1234567);
+        final byte[] encoded = CompactCodec.encode(tx);
+        assertEquals(CompactCodec.TYPE_TRANSACTION, CompactCodec.type(encoded));
+        assertArrayEquals(tx.bitcoinSerialize(), CompactCodec.decodeTransaction(PARAMS, encoded).bitcoinSerialize());
+    }
+
+    @Test
+    public void compressesAmounts() {
+        final long[] amounts = { 0, 1, 9, 10, 100000000, 123456789, 2100000000000000L, Long.MAX_VALUE / 10, 7 };
+        for (final long amount : amounts)
+            assertEquals(amount, CompactCodec.decompressAmount(CompactCodec.compressAmount(amount)));
+        final Random random = new Random(3);
+        for (int i = 0; i < 10000; i++) {
+            final long amount = random.nextLong() & 0xffffffffffffL;
+            assertEquals(amount, CompactCodec.decompressAmount(CompactCodec.compressAmount(amount)));
+        }
+        // 100 coins in one byte
+        assertEquals(1, varIntSize(CompactCodec.compressAmount(Coin.COIN.multiply(100).value)));
+    }
+
+    @Test
+    public void roundtripsStatus() {
+        final CompactCodec.Status status = new CompactCodec.Status(1760000000, 5400000, 8, 2,
+                Coin.COIN.multiply(4200));
+        final byte[] encoded = CompactCodec.encode(status);
+        assertEquals(CompactCodec.TYPE_STATUS, CompactCodec.type(encoded));
+        assertEquals(status, CompactCodec.decodeStatus(encoded));
+        assertTrue(encoded.length + " bytes compact", encoded.length < status.toString().length());
+    }
+
+    @Test
+    public void relaysOverLossyLink() {
+        final Random random = new Random(4);
+        final List<byte[]> sent = new ArrayList<>();
+        for (int i = 0; i < 20; i++)
+            sent.add(CompactCodec.encode(p2pkhTransaction(random, 1 + random.nextInt(4), 2)));
+        final Simulation simulation = new Simulation(random, 0.2, 0.05);
+        simulation.run(sent);
+        assertEquals(sent.size(), simulation.delivered.size());
+        assertTrue(simulation.failed.isEmpty());
+        for (int i = 0; i < sent.size(); i++)
+            assertArrayEquals(sent.get(i), simulation.received.get(i));
+        assertTrue(simulation.b.getFramesCorrupt() > 0);
+    }
+
+    @Test
+    public void givesUp() {
+        final Simulation simulation = new Simulation(new Random(5), 1.0, 0);
+        simulation.run(Collections.singletonList(new byte[200]));
+        assertEquals(1, simulation.failed.size());
+        assertEquals(0, simulation.a.getPendingCount());
+    }
+
+    @Test
+    public void restartedSenderIsNotMistakenForOld() {
+        final Queue<byte[]> toA = new ArrayDeque<>(), toB = new ArrayDeque<>();
+        final List<byte[]> received = new ArrayList<>();
+        final ChunkedRelay b = new ChunkedRelay(queueLink(toA), TIMEOUT_MS, 20, new ListenerAdapter() {
+            @Override
+            public void onMessage(final byte[] message) {
+                received.add(message);
+            }
+        }, 7);
+        final byte[] first = new byte[100], second = new byte[100], third = new byte[30];
+        Arrays.fill(second, (byte) 2);
+        Arrays.fill(third, (byte) 3);
+
+        final ChunkedRelay before = new ChunkedRelay(queueLink(toB), TIMEOUT_MS, 20, new ListenerAdapter(), 1);
+        assertEquals(0, before.send(first, 0));
+        exchange(before, toA, b, toB);
+        final ChunkedRelay restarted = new ChunkedRelay(queueLink(toB), TIMEOUT_MS, 20, new ListenerAdapter(), 2);
+        assertEquals(0, restarted.send(second, 0));
+        exchange(restarted, toA, b, toB);
+        assertEquals(0, restarted.getPendingCount());
+        // same session by chance, but the chunk count gives it away
+        final ChunkedRelay unlucky = new ChunkedRelay(queueLink(toB), TIMEOUT_MS, 20, new ListenerAdapter(), 2);
+        assertEquals(0, unlucky.send(third, 0));
+        exchange(unlucky, toA, b, toB);
+
+        assertEquals(3, received.size());
+        assertArrayEquals(first, received.get(0));
+        assertArrayEquals(second, received.get(1));
+        assertArrayEquals(third, received.get(2));
+    }
+
+    @Test
+    public void dropsAbandonedIncomingMessages() {
+        final Queue<byte[]> toA = new ArrayDeque<>(), toB = new ArrayDeque<>();
+        final ChunkedRelay a = new ChunkedRelay(queueLink(toB), TIMEOUT_MS, 20, new ListenerAdapter(), 1);
+        final ChunkedRelay b = new ChunkedRelay(queueLink(toA), TIMEOUT_MS, 20, new ListenerAdapter(), 2);
+        a.send(new byte[200], 0);
+        b.onFrame(toB.poll(), 0); // the sender goes away after the first chunk
+        assertEquals(1, b.getIncomingCount());
+        b.poll(TIMEOUT_MS * 20);
+        assertEquals(1, b.getIncomingCount());
+        b.poll(TIMEOUT_MS * 20 + 1);
+        assertEquals(0, b.getIncomingCount());
+    }
+
+    private static RadioLink queueLink(final Queue<byte[]> queue) {
+        return new RadioLink() {
+            @Override
+            public int getMtu() {
+                return MTU;
+            }
+
+            @Override
+            public void transmit(final byte[] frame) {
+                queue.add(frame);
+            }
+        };
+    }
+
+    /** Passes frames both ways over a lossless link until there are none left. */
+    private static void exchange(final ChunkedRelay a, final Queue<byte[]> toA, final ChunkedRelay b,
+            final Queue<byte[]> toB) {
+        while (!toA.isEmpty() || !toB.isEmpty()) {
+            if (!toB.isEmpty())
+                b.onFrame(toB.poll(), 0);
+            if (!toA.isEmpty())
+                a.onFrame(toA.poll(), 0);
+        }
+    }
+
+    /** Bytes on air per 1-in-2-out P2PKH transaction, compact and selective against hex text resent in full. */
+    @Test
+    public void bytesOnAir() {
+        final Random txRandom = new Random(6);
+        final List<Transaction> txs = new ArrayList<>();
+        for (int i = 0; i < 50; i++)
+            txs.add(p2pkhTransaction(txRandom, 1, 2));
+        final List<byte[]> compact = new ArrayList<>();
+        long rawBytes = 0, compactBytes = 0, textBytes = 0;
+        for (final Transaction tx : txs) {
+            compact.add(CompactCodec.encode(tx));
+            rawBytes += tx.bitcoinSerialize().length;
+            compactBytes += compact.get(compact.size() - 1).length;
+            textBytes += textPayload(tx).length;
+        }
+        assertTrue(String.format(Locale.US, "payload per tx: %d bytes raw, %d bytes compact, %d bytes text",
+                rawBytes / txs.size(), compactBytes / txs.size(), textBytes / txs.size()), compactBytes < rawBytes);
+
+        for (final double loss : new double[] { 0, 0.1, 0.2, 0.3 }) {
+            final Simulation simulation = new Simulation(new Random(7), loss, loss / 4);
+            simulation.run(compact);
+            assertEquals(txs.size(), simulation.delivered.size());
+            final long relayed = simulation.a.getBytesSent() + simulation.b.getBytesSent();
+
+            final Random random = new Random(7);
+            long text = 0;
+            for (final Transaction tx : txs)
+                text += sendTextWholeMessage(random, textPayload(tx), loss, loss / 4);
+            assertTrue(String.format(Locale.US,
+                    "loss %.0f%%: %d bytes on air per tx chunked compact, %d bytes text resent in full", loss * 100,
+                    relayed / txs.size(), text / txs.size()), relayed < text);
+        }
+    }
+
+    private static byte[] textPayload(final Transaction tx) {
+        return ("TX:" + Utils.HEX.encode(tx.bitcoinSerialize()) + "\n").getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /** The text link: frames without checksums, the whole message resent until it got through intact. */
+    private static long sendTextWholeMessage(final Random random, final byte[] payload, final double loss,
+            final double corruption) {
+        long bytes = 0;
+        while (true) {
+            boolean intact = true;
+            for (int from = 0; from < payload.length; from += MTU) {
+                bytes += Math.min(MTU, payload.length - from);
+                if (random.nextDouble() < loss || random.nextDouble() < corruption)
+                    intact = false;
+            }
+            if (intact)
+                return bytes;
+        }
+    }
+
+    private static int varIntSize(long value) {
+        int size = 1;
+        while ((value >>>= 7) != 0)
+            size++;
+        return size;
+    }
+
+    /** Two relays on a link that loses and corrupts frames, one frame in flight per step and direction. */
+    private static final class Simulation {
+        final Random random;
+        final double loss, corruption;
+        final Queue<byte[]> toA = new ArrayDeque<>(), toB = new ArrayDeque<>();
+        final List<Integer> delivered = new ArrayList<>(), failed = new ArrayList<>();
+        final List<byte[]> received = new ArrayList<>();
+        final ChunkedRelay a, b;
+
+        Simulation(final Random random, final double loss, final double corruption) {
+            this.random = random;
+            this.loss = loss;
+            this.corruption = corruption;
+            a = new ChunkedRelay(link(toB), TIMEOUT_MS, 20, new ListenerAdapter() {
+                @Override
+                public void onDelivered(final int messageId) {
+                    delivered.add(messageId);
+                }
+
+                @Override
+                public void onFailed(final int messageId) {
+                    failed.add(messageId);
+                }
+            });
+            b = new ChunkedRelay(link(toA), TIMEOUT_MS, 20, new ListenerAdapter() {
+                @Override
+                public void onMessage(final byte[] message) {
+                    received.add(message);
+                }
+            });
+        }
+
+        private RadioLink link(final Queue<byte[]> queue) {
+            return new RadioLink() {
+                @Override
+                public int getMtu() {
+                    return MTU;
+                }
+
+                @Override
+                public void transmit(final byte[] frame) {
+                    if (random.nextDouble() < loss)
+                        return;
+                    final byte[] copy = frame.clone();
+                    if (random.nextDouble() < corruption)
+                        copy[random.nextInt(copy.length)] ^= 1 << random.nextInt(8);
+                    queue.add(copy);
+                }
+            };
+        }
+
+        void run(final List<byte[]> messages) {
+            long now = 0;
+            for (final byte[] message : messages) {
+                a.send(message, now);
+                while (a.getPendingCount() > 0) {
+                    now += STEP_MS;
+                    if (!toB.isEmpty())
+                        b.onFrame(toB.poll(), now);
+                    if (!toA.isEmpty())
+                        a.onFrame(toA.poll(), now);
+                    a.poll(now);
+                }
+                toA.clear();
+                toB.clear();
+            }
+        }
+    }
+
+    private static class ListenerAdapter implements ChunkedRelay.Listener {
+        @Override
+        public void onMessage(final byte[] message) {
+        }
+
+        @Override
+        public void onDelivered(final int messageId) {
+        }
+
+        @Override
+        public void onFailed(final int messageId) {
+        }
+    }
+
+    @Test
+    public void tailsLog() throws IOException {
+        final File file = folder.newFile("radiodoge.log");
+        final LogTailer tailer = new LogTailer(file, 0);
+        assertTrue(tailer.poll().isEmpty());
+        append(file, "one\ntwo\r\nthr");
+        assertEquals(Arrays.asList("one", "two"), tailer.poll());
+        assertEquals(9, tailer.getOffset());
+        assertTrue(tailer.poll().isEmpty());
+        append(file, "ee\n");
+        assertEquals(Arrays.asList("three"), tailer.poll());
+
+        // resumes from a saved offset
+        append(file, "four\n");
+        assertEquals(Arrays.asList("four"), new LogTailer(file, tailer.getOffset()).poll());
+
+        // truncated
+        try (final OutputStream os = new FileOutputStream(file)) {
+            os.write("new\n".getBytes(StandardCharsets.UTF_8));
+        }
+        assertEquals(Arrays.asList("new"), new LogTailer(file, 100).poll());
+
+        assertTrue(new LogTailer(new File(folder.getRoot(), "missing"), 0).poll().isEmpty());
+    }
+
+    /**
+     * CPU time per poll of a 5 MB log that grew by a line, tailing against reading it all again. Only runs with
+     * {@code -Pbenchmark}.
+     */
+    @Test
+    public void benchmarkPoll() throws IOException {
+        assumeTrue(Boolean.getBoolean("benchmark"));
+        final File file = folder.newFile("big.log");
+        final StringBuilder block = new StringBuilder();
+        for (int i = 0; i < 50000; i++)
+            block.append("2026-10-16 12:00:00 INFO status height=").append(5400000 + i).append(" peers=8\n");
+        final byte[] blockBytes = block.toString().getBytes(StandardCharsets.UTF_8);
+        try (final OutputStream os = new FileOutputStream(file)) {
+            while (file.length() < 5_000_000)
+                os.write(blockBytes);
+        }
+        final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        final int polls = 50;
+
+        final LogTailer tailer = new LogTailer(file, file.length());
+        long start = threads.getCurrentThreadCpuTime();
+        for (int i = 0; i < polls; i++) {
+            append(file, "line " + i + "\n");
+            assertEquals(1, tailer.poll().size());
+        }
+        final long tailNanos = (threads.getCurrentThreadCpuTime() - start) / polls;
+
+        long seen = countLines(file);
+        start = threads.getCurrentThreadCpuTime();
+        for (int i = 0; i < polls; i++) {
+            append(file, "line " + i + "\n");
+            final long lines = countLines(file);
+            assertEquals(seen + 1, lines);
+            seen = lines;
+        }
+        final long rereadNanos = (threads.getCurrentThreadCpuTime() - start) / polls;
+        assertTrue(String.format(Locale.US, "CPU per poll of %d MB log: tail %d us, full re-read %d us",
+                file.length() / 1000000, tailNanos / 1000, rereadNanos / 1000), tailNanos * 10 < rereadNanos);
+    }
+
+    private static long countLines(final File file) throws IOException {
+        long lines = 0;
+        try (final BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            while (reader.readLine() != null)
+                lines++;
+        }
+        return lines;
+    }
+
+    private static void append(final File file, final String text) throws IOException {
+        try (final OutputStream os = new FileOutputStream(file, true)) {
+            os.write(text.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+}
@@ -0,0 +1,285 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.util.report;
+
+import com.google.common.io.ByteStreams;
+import org.bitcoinj.core.Address;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.LegacyAddress;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionInput;
+import org.bitcoinj.core.TransactionOutPoint;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.utils.MonetaryFormat;
+import org.bitcoinj.wallet.Wallet;
+import org.bitcoinj.wallet.WalletTransaction;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+public class ReportExportTest {
+    private static final NetworkParameters PARAMS = UnitTestParams.get();
+    private static final MonetaryFormat FORMAT = MonetaryFormat.BTC.noCode().minDecimals(2).repeatOptionalDecimals(1,
+            6);
+
+    private Wallet wallet;
+    private Address foreign;
+
+    @Before
+    public void setUp() {
+        Context.propagate(new Context(PARAMS));
+        wallet = Wallet.createDeterministic(PARAMS, Script.ScriptType.P2PKH);
+        foreign = LegacyAddress.fromKey(PARAMS, new ECKey());
+    }
+
+    private static Transaction fundingTransaction(final int n, final Coin value, final Address to, final long time) {
+        final Transaction tx = new Transaction(PARAMS);
+        tx.addInput(new TransactionInput(PARAMS, tx, new byte[0],
+                new TransactionOutPoint(PARAMS, 0, Sha256Hash.of(new byte[] { (byte) n, (byte) (n >> 8),
+                        (byte) (n >> 16) }))));
+        tx.addOutput(value, to);
+        tx.setUpdateTime(new Date(time));
+        return tx;
+    }
+
+    @Test
+    public void classifiesAndWritesInDateOrder() throws IOException {
+        final Transaction received = fundingTransaction(1, Coin.COIN, wallet.freshReceiveAddress(), 1000000);
+        final Transaction sent = new Transaction(PARAMS);
+        sent.addInput(received.getOutput(0));
+        sent.addOutput(Coin.CENT.multiply(30), foreign);
+        sent.addOutput(Coin.CENT.multiply(69), wallet.freshReceiveAddress());
+        sent.setUpdateTime(new Date(3000000));
+        sent.setMemo("rent, \"march\"");
+        final Transaction internal = new Transaction(PARAMS);
+        internal.addInput(sent.getOutput(1));
+        internal.addOutput(Coin.CENT.multiply(68), wallet.freshReceiveAddress());
+        internal.setUpdateTime(new Date(4000000));
+        final Transaction unrelated = fundingTransaction(2, Coin.COIN, foreign, 2000000);
+        wallet.addWalletTransaction(new WalletTransaction(WalletTransaction.Pool.SPENT, received));
+        wallet.addWalletTransaction(new WalletTransaction(WalletTransaction.Pool.SPENT, sent));
+        wallet.addWalletTransaction(new WalletTransaction(WalletTransaction.Pool.PENDING, internal));
+        wallet.addWalletTransaction(new WalletTransaction(WalletTransaction.Pool.PENDING, unrelated));
+
+        final StringWriter csv = new StringWriter();
+        final ReportExporter.Result result;
+        try (final ReportWriter writer = new CsvReportWriter(csv, FORMAT)) {
+            result = ReportExporter.export(DateOrderedTransactions.of(wallet, null, null),
+                    new WalletReportRowClassifier(wallet), writer);
+        }
+        assertEquals(3, result.rows);
+        assertEquals(1, result.skipped);
+        final String[] lines = csv.toString().split("\r\n");
+        assertEquals(4, lines.length);
+        assertEquals("date,type,value,fee,address,memo,confirmations,txid", lines[0]);
+        assertEquals("1970-01-01T00:16:40Z,received,1.00,,"
+                + received.getOutput(0).getScriptPubKey().getToAddress(PARAMS) + ",,0," + received.getTxId(),
+                lines[1]);
+        assertEquals("1970-01-01T00:50:00Z,sent,-0.31,0.01," + foreign + ",\"rent, \"\"march\"\"\",0,"
+                + sent.getTxId(), lines[2]);
+        assertTrue(lines[3], lines[3].startsWith("1970-01-01T01:06:40Z,internal,-0.01,0.01,"));
+
+        final Date from = new Date(2500000);
+        assertEquals(2, DateOrderedTransactions.of(wallet, from, null).size());
+        assertEquals(1, DateOrderedTransactions.of(wallet, from, new Date(4000000)).size());
+    }
+
+    @Test
+    public void noFeeOnReceivedRows() {
+        final Transaction funding = fundingTransaction(3, Coin.COIN, foreign, 1000000);
+        final Transaction received = new Transaction(PARAMS);
+        received.addInput(funding.getOutput(0));
+        received.addOutput(Coin.CENT.multiply(99), wallet.freshReceiveAddress());
+        assertEquals(Coin.CENT, received.getFee());
+        wallet.addWalletTransaction(new WalletTransaction(WalletTransaction.Pool.PENDING, received));
+
+        final ReportRow row = new WalletReportRowClassifier(wallet).classify(received);
+        assertEquals(ReportRow.Type.RECEIVED, row.type);
+        assertNull(row.fee);
+    }
+
+    @Test
+    public void writesJson() throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (final ReportWriter writer = new JsonReportWriter(out, FORMAT)) {
+            writer.writeRow(new ReportRow(Sha256Hash.ZERO_HASH, 0, ReportRow.Type.RECEIVED, Coin.COIN, null,
+                    "addr", "memo \"1\"", 6));
+        }
+        assertEquals("{\"transactions\":[{\"txid\":\"" + Sha256Hash.ZERO_HASH
+                + "\",\"date\":\"1970-01-01T00:00:00Z\",\"type\":\"received\",\"value\":\"1.00\","
+                + "\"address\":\"addr\",\"memo\":\"memo \\\"1\\\"\",\"confirmations\":6}]}",
+                new String(out.toByteArray(), StandardCharsets.UTF_8));
+
+        out.reset();
+        new JsonReportWriter(out, FORMAT).close();
+        assertEquals("{\"transactions\":[]}", new String(out.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void writesValidPdfPageByPage() throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (final ReportWriter writer = new PdfReportWriter(out, FORMAT, "Report (test)")) {
+            for (int i = 0; i < 150; i++) // 66 rows per page
+                writer.writeRow(new ReportRow(Sha256Hash.ZERO_HASH, i * 1000L, ReportRow.Type.SENT,
+                        Coin.CENT.negate(), Coin.MILLICOIN, foreign.toString(), "a rather long memo text " + i, 1));
+        }
+        final String pdf = new String(out.toByteArray(), StandardCharsets.ISO_8859_1);
+        assertTrue(pdf.startsWith("%PDF-1.4\n"));
+        assertTrue(pdf.endsWith("%%EOF\n"));
+        assertTrue(pdf.contains("(Report \\(test\\)) Tj"));
+        final int pages = count(pdf, "/Type /Page ");
+        assertEquals(3, pages);
+        assertTrue(pdf.contains("/Count 3"));
+
+        // every cross-reference entry must point at its object
+        final Matcher startxref = Pattern.compile("startxref\n(\\d+)\n").matcher(pdf);
+        assertTrue(startxref.find());
+        final int xref = Integer.parseInt(startxref.group(1));
+        assertTrue(pdf.startsWith("xref\n0 ", xref));
+        final Matcher entry = Pattern.compile("(\\d{10}) 00000 n \n").matcher(pdf);
+        entry.region(xref, pdf.length());
+        int id = 1;
+        while (entry.find())
+            assertTrue(pdf.startsWith((id++) + " 0 obj\n", Integer.parseInt(entry.group(1))));
+        assertEquals(4 + 2 * pages + 1, id);
+    }
+
+    @Test
+    public void pdfTextUsesWinAnsi() throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (final StreamingPdfWriter pdf = new StreamingPdfWriter(out)) {
+            pdf.beginPage(StreamingPdfWriter.A4_WIDTH, StreamingPdfWriter.A4_HEIGHT);
+            pdf.text(0, 0, 10, false, "\u20ac 5 \u2013 caf\u00e9 \u043c\u0438\u0440");
+            pdf.endPage();
+        }
+        assertTrue(new String(out.toByteArray(), StandardCharsets.ISO_8859_1)
+                .contains("(\u0080 5 \u0096 caf\u00e9 ???) Tj"));
+    }
+
+    @Test
+    public void emptyPdfHasOnePage() throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new PdfReportWriter(out, FORMAT, "Empty").close();
+        assertEquals(1, count(new String(out.toByteArray(), StandardCharsets.ISO_8859_1), "/Type /Page "));
+    }
+
+    private static int count(final String s, final String pattern) {
+        int count = 0;
+        for (int i = s.indexOf(pattern); i >= 0; i = s.indexOf(pattern, i + 1))
+            count++;
+        return count;
+    }
+
+    /** Creates wallet transactions on the fly, so the benchmark measures only what the export retains. */
+    private static class SyntheticTransactions implements Iterator<Transaction> {
+        private final int count;
+        private final Address own, foreign;
+        private int n = 0;
+
+        SyntheticTransactions(final int count, final Address own, final Address foreign) {
+            this.count = count;
+            this.own = own;
+            this.foreign = foreign;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return n < count;
+        }
+
+        @Override
+        public Transaction next() {
+            final Transaction tx = fundingTransaction(n, Coin.valueOf(100000 + n), own, n * 60000L);
+            if (n % 3 == 0)
+                tx.addOutput(Coin.CENT, foreign);
+            tx.setMemo(n % 10 == 0 ? "memo " + n : null);
+            n++;
+            return tx;
+        }
+    }
+
+    private interface WriterFactory {
+        ReportWriter create() throws IOException;
+    }
+
+    private void benchmark(final String name, final WriterFactory factory) throws IOException {
+        final int count = 100000;
+        final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        System.gc();
+        final long baseline = memory.getHeapMemoryUsage().getUsed();
+        final long[] peak = { 0 };
+        final ReportExporter.Result result;
+        try (final ReportWriter out = factory.create()) {
+            final ReportWriter sampling = new ReportWriter() {
+                int rows = 0;
+
+                @Override
+                public void writeRow(final ReportRow row) throws IOException {
+                    out.writeRow(row);
+                    if (++rows % 25000 == 0) {
+                        System.gc();
+                        peak[0] = Math.max(peak[0], memory.getHeapMemoryUsage().getUsed() - baseline);
+                    }
+                }
+
+                @Override
+                public void close() {
+                }
+            };
+            result = ReportExporter.export(new SyntheticTransactions(count, wallet.currentReceiveAddress(), foreign),
+                    new WalletReportRowClassifier(wallet), sampling);
+        }
+        assertEquals(count, result.rows);
+        assertTrue(String.format("%s: %d rows in %d ms, peak retained heap %d KB", name, result.rows,
+                result.elapsedMs, peak[0] / 1024), peak[0] < 16 * 1024 * 1024);
+    }
+
+    /**
+     * Exports 100,000 transactions into each format and checks that memory use stays flat. Only runs with
+     * {@code -Pbenchmark}.
+     */
+    @Test
+    public void benchmark100kTransactions() throws IOException {
+        assumeTrue(Boolean.getBoolean("benchmark"));
+        benchmark("csv", () -> new CsvReportWriter(new OutputStreamWriter(ByteStreams.nullOutputStream(),
+                StandardCharsets.UTF_8), FORMAT));
+        benchmark("json", () -> new JsonReportWriter(ByteStreams.nullOutputStream(), FORMAT));
+        benchmark("pdf", () -> new PdfReportWriter(ByteStreams.nullOutputStream(), FORMAT, "Benchmark"));
+    }
+}
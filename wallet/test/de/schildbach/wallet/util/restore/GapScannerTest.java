@@ -0,0 +1,192 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.util.restore;
+
+import com.google.common.collect.ImmutableList;
+import org.bitcoinj.core.BloomFilter;
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.crypto.ChildNumber;
+import org.bitcoinj.crypto.DeterministicKey;
+import org.bitcoinj.crypto.HDKeyDerivation;
+import org.bitcoinj.params.UnitTestParams;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+public class GapScannerTest {
+    private static final NetworkParameters PARAMS = UnitTestParams.get();
+    private static final List<ChildNumber> ACCOUNT_PATH = ImmutableList.of(new ChildNumber(44, true),
+            new ChildNumber(3, true), ChildNumber.ZERO_HARDENED);
+
+    private DeterministicKey master;
+    private DeterministicKey account;
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() {
+        Context.propagate(new Context(PARAMS));
+        master = HDKeyDerivation.createMasterPrivateKey(ByteBuffer.allocate(32).putInt(42).array());
+        account = master;
+        for (final ChildNumber child : ACCOUNT_PATH)
+            account = HDKeyDerivation.deriveChildKey(account, child);
+        executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    private DeterministicKey deriveFromRoot(final int chain, final int index) {
+        DeterministicKey key = master;
+        for (final ChildNumber child : ACCOUNT_PATH)
+            key = HDKeyDerivation.deriveChildKey(key, child);
+        key = HDKeyDerivation.deriveChildKey(key, new ChildNumber(chain, false));
+        return HDKeyDerivation.deriveChildKey(key, new ChildNumber(index, false));
+    }
+
+    private static class FakeOracle implements GapScanner.UsageOracle {
+        final Set<ByteBuffer> used = new HashSet<>();
+        int queries = 0;
+
+        void use(final DeterministicKey key) {
+            used.add(ByteBuffer.wrap(key.getPubKeyHash()));
+        }
+
+        @Override
+        public Set<Integer> findUsed(final List<DeterministicKey> keys, final BloomFilter filter) {
+            queries++;
+            final Set<Integer> result = new HashSet<>();
+            for (int i = 0; i < keys.size(); i++) {
+                final DeterministicKey key = keys.get(i);
+                assertTrue(filter.contains(key.getPubKey()));
+                assertTrue(filter.contains(key.getPubKeyHash()));
+                if (used.contains(ByteBuffer.wrap(key.getPubKeyHash())))
+                    result.add(i);
+            }
+            return result;
+        }
+    }
+
+    @Test
+    public void derivesSameKeysAsFullPath() {
+        final ParallelKeyDeriver deriver = new ParallelKeyDeriver(account, 2, executor);
+        final List<DeterministicKey> keys = deriver.derive(1, 500, 300);
+        assertEquals(300, keys.size());
+        for (final int i : new int[] { 0, 1, 127, 128, 299 })
+            assertArrayEquals(deriveFromRoot(1, 500 + i).getPubKey(), keys.get(i).getPubKey());
+        assertArrayEquals(deriveFromRoot(0, 7).getPubKey(), deriver.derive(0, 7, 1).get(0).getPubKey());
+    }
+
+    @Test
+    public void findsDeepUsageAcrossGaps() throws Exception {
+        final ParallelKeyDeriver deriver = new ParallelKeyDeriver(account, 2, executor);
+        final FakeOracle oracle = new FakeOracle();
+        final Random random = new Random(1);
+        final List<DeterministicKey> external = deriver.derive(0, 0, 3000);
+        for (int i = 0; i < 3000; i += 1 + random.nextInt(19)) // gaps always shorter than the limit
+            oracle.use(external.get(i));
+        oracle.use(external.get(2999));
+        for (final DeterministicKey key : deriver.derive(1, 0, 40))
+            oracle.use(key);
+        // far beyond the gap, must not be found
+        oracle.use(deriver.derive(0, 9000, 1).get(0));
+
+        final GapScanner.Result result = new GapScanner(deriver, oracle, 20, 1000).scan(2);
+        assertArrayEquals(result.toString(), new int[] { 3000, 40 }, result.numUsed);
+        assertEquals(result.rounds, oracle.queries);
+        assertTrue("too many rounds: " + result.rounds, result.rounds < 15);
+        assertTrue("too many keys: " + result.keysDerived, result.keysDerived < 3040 + 2 * 1000 + 40);
+    }
+
+    @Test
+    public void freshWalletTakesOneRound() throws Exception {
+        final ParallelKeyDeriver deriver = new ParallelKeyDeriver(account, 2, executor);
+        final GapScanner.Result result = new GapScanner(deriver, new FakeOracle(), 20, 1000).scan(2);
+        assertArrayEquals(new int[] { 0, 0 }, result.numUsed);
+        assertEquals(1, result.rounds);
+        assertEquals(40, result.keysDerived);
+    }
+
+    /**
+     * Derivation of 10k addresses: walking the path from the root for each address, against cached chain keys, both
+     * sequential and parallel. Only runs with {@code -Pbenchmark}.
+     */
+    @Test
+    public void deriveBenchmark() {
+        assumeTrue(Boolean.getBoolean("benchmark"));
+        final int count = 10000;
+        final int fromRootCount = 1000;
+        long start = System.nanoTime();
+        for (int i = 0; i < fromRootCount; i++)
+            deriveFromRoot(0, i);
+        final double fromRoot = (System.nanoTime() - start) / 1e6 * count / fromRootCount;
+
+        final DeterministicKey chainKey = new ParallelKeyDeriver(account, 2, executor).getChainKey(0);
+        start = System.nanoTime();
+        for (int i = 0; i < count; i++)
+            HDKeyDerivation.deriveChildKey(chainKey, new ChildNumber(i, false));
+        final double cached = (System.nanoTime() - start) / 1e6;
+
+        final ParallelKeyDeriver deriver = new ParallelKeyDeriver(account, 2, executor);
+        deriver.derive(1, 0, 1000); // warm up threads
+        start = System.nanoTime();
+        assertEquals(count, deriver.derive(0, 0, count).size());
+        final double parallel = (System.nanoTime() - start) / 1e6;
+
+        final int cores = Runtime.getRuntime().availableProcessors();
+        final String message = String.format("%d addresses: from root %.0f ms (extrapolated), cached %.0f ms, "
+                + "cached and parallel %.0f ms on %d cores", count, fromRoot, cached, parallel, cores);
+        assertTrue(message, cached < fromRoot);
+        if (cores > 1)
+            assertTrue(message, parallel < cached);
+    }
+
+    /** Builds the filter for 10k keys, which must stay well below a second. Only runs with {@code -Pbenchmark}. */
+    @Test
+    public void filterBuildBenchmark() {
+        assumeTrue(Boolean.getBoolean("benchmark"));
+        final List<DeterministicKey> keys = new ParallelKeyDeriver(account, 2, executor).derive(0, 0, 10000);
+        long best = Long.MAX_VALUE;
+        BloomFilter filter = null;
+        for (int round = 0; round < 5; round++) {
+            final long start = System.nanoTime();
+            filter = GapScanner.buildFilter(keys, GapScanner.FALSE_POSITIVE_RATE, round);
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        for (final DeterministicKey key : keys)
+            assertTrue(filter.contains(key.getPubKeyHash()));
+        assertTrue(String.format("bloom filter for %d keys: %.1f ms, %d bytes", keys.size(), best / 1e6,
+                filter.bitcoinSerialize().length), best < TimeUnit.SECONDS.toNanos(1));
+    }
+}
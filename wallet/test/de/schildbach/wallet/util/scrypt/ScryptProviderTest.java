@@ -0,0 +1,108 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.util.scrypt;
+
+import com.google.common.io.BaseEncoding;
+import com.lambdaworks.crypto.SCrypt;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+public class ScryptProviderTest {
+    private static final BaseEncoding HEX = BaseEncoding.base16().lowerCase();
+
+    private static byte[] bytes(final String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void rfc7914Vectors() throws Exception {
+        for (final ScryptProvider provider : new ScryptProvider[] { new JavaScryptProvider(1),
+                new JavaScryptProvider(4) }) {
+            assertArrayEquals(provider.getName(), HEX.decode("fdbabe1c9d3472007856e7190d01e9fe7c6ad7cbc8237830e7737663"
+                    + "4b3731622eaf30d92e22a3886ff109279d9830dac727afb94a83ee6d8360cbdfa2cc0640"),
+                    provider.scrypt(bytes("password"), bytes("NaCl"), 1024, 8, 16, 64));
+            assertArrayEquals(provider.getName(), HEX.decode("7023bdcb3afd7348461c06cd81fd38ebfda8fbba904f8e3ea9b543f6"
+                    + "545da1f2d5432955613f0fcf62d49705242a9af9e61e85dc0d651e40dfcf017b45575887"),
+                    provider.scrypt(bytes("pleaseletmein"), bytes("SodiumChloride"), 16384, 8, 1, 64));
+        }
+    }
+
+    @Test
+    public void sameAsReference() throws Exception {
+        final Random random = new Random(42);
+        final ScryptProvider provider = new JavaScryptProvider(3);
+        for (int i = 0; i < 30; i++) {
+            final byte[] passwd = new byte[1 + random.nextInt(40)];
+            final byte[] salt = new byte[random.nextInt(40)];
+            random.nextBytes(passwd);
+            random.nextBytes(salt);
+            final int N = 2 << random.nextInt(8);
+            final int r = 1 + random.nextInt(8);
+            final int p = 1 + random.nextInt(5);
+            final int dkLen = 1 + random.nextInt(100);
+            assertArrayEquals("N=" + N + " r=" + r + " p=" + p, SCrypt.scryptJ(passwd, salt, N, r, p, dkLen),
+                    provider.scrypt(passwd, salt, N, r, p, dkLen));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNotPowerOfTwo() throws Exception {
+        new JavaScryptProvider().scrypt(bytes("a"), bytes("b"), 1000, 8, 1, 32);
+    }
+
+    @Test
+    public void bestIsAvailable() throws Exception {
+        final ScryptProvider best = ScryptProviders.best();
+        assertArrayEquals(SCrypt.scryptJ(bytes("a"), bytes("b"), 16, 1, 1, 32),
+                best.scrypt(bytes("a"), bytes("b"), 16, 1, 1, 32));
+        assertNotNull(best.getName());
+    }
+
+    /**
+     * Compares with the reference Java implementation, at the parameters used for backups and at a higher {@code p}
+     * where lanes run in parallel. Only runs with {@code -Pbenchmark}.
+     */
+    @Test
+    public void benchmark() throws Exception {
+        assumeTrue(Boolean.getBoolean("benchmark"));
+        final int[][] params = { { 16384, 8, 1 }, { 4096, 8, 4 } };
+        final ScryptProvider provider = new JavaScryptProvider();
+        for (final int[] param : params) {
+            final int N = param[0], r = param[1], p = param[2];
+            long reference = Long.MAX_VALUE, ours = Long.MAX_VALUE;
+            for (int round = 0; round < 3; round++) {
+                long start = System.nanoTime();
+                final byte[] expected = SCrypt.scryptJ(bytes("password"), bytes("salt"), N, r, p, 32);
+                reference = Math.min(reference, System.nanoTime() - start);
+                start = System.nanoTime();
+                final byte[] actual = provider.scrypt(bytes("password"), bytes("salt"), N, r, p, 32);
+                ours = Math.min(ours, System.nanoTime() - start);
+                assertArrayEquals(expected, actual);
+            }
+            assertTrue(String.format("N=%d r=%d p=%d: reference %d ms, %s %d ms", N, r, p, reference / 1000000,
+                    provider.getName(), ours / 1000000), ours < reference * 3 / 2);
+        }
+    }
+}
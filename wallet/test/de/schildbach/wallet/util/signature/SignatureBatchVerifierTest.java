@@ -0,0 +1,296 @@
+/*
+ * Copyright the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.util.signature;
+
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+import org.bitcoinj.core.Address;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.LegacyAddress;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.params.UnitTestParams;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+public class SignatureBatchVerifierTest {
+    private static final NetworkParameters PARAMS = UnitTestParams.get();
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() {
+        executor = Executors.newFixedThreadPool(4);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    private File randomFile(final String name, final int size, final long seed) throws Exception {
+        final byte[] bytes = new byte[size];
+        new Random(seed).nextBytes(bytes);
+        final File file = folder.newFile(name);
+        try (final FileOutputStream os = new FileOutputStream(file)) {
+            os.write(bytes);
+        }
+        return file;
+    }
+
+    private static Sha256Hash referenceHash(final File file) throws Exception {
+        return Sha256Hash.wrap(Files.asByteSource(file).hash(Hashing.sha256()).asBytes());
+    }
+
+    @Test
+    public void hashesMatchReference() throws Exception {
+        for (final int size : new int[] { 0, 1, ContentHasher.CHUNK_SIZE - 1, ContentHasher.CHUNK_SIZE,
+                3 * ContentHasher.CHUNK_SIZE + 17 }) {
+            final File file = randomFile("content-" + size, size, size);
+            final Sha256Hash expected = referenceHash(file);
+            assertEquals("mapped " + size, expected, ContentHasher.hash(file));
+            try (final InputStream is = new FileInputStream(file)) {
+                assertEquals("streamed " + size, expected, ContentHasher.hash(is));
+            }
+        }
+        assertEquals(Sha256Hash.of(new byte[0]), ContentHasher.hash(new ByteArrayInputStream(new byte[0])));
+    }
+
+    @Test
+    public void hashesFromChannelPosition() throws Exception {
+        final File file = randomFile("content", 1000, 1);
+        try (final RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            raf.getChannel().position(400);
+            final byte[] tail = new byte[600];
+            raf.seek(400);
+            raf.readFully(tail);
+            raf.getChannel().position(400);
+            assertEquals(Sha256Hash.of(tail), ContentHasher.hash(raf.getChannel()));
+        }
+    }
+
+    @Test
+    public void cacheHitsUntilContentChanges() throws Exception {
+        final File file = randomFile("content", 10000, 2);
+        file.setLastModified(1500000000000L);
+        final DigestCache cache = new DigestCache(10);
+        final Sha256Hash digest = cache.digest(new FileContentSource(file));
+        assertEquals(digest, cache.digest(new FileContentSource(file)));
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+
+        try (final RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.write(0xff ^ raf.read());
+        }
+        file.setLastModified(1500000001000L);
+        assertEquals(referenceHash(file), cache.digest(new FileContentSource(file)));
+        assertEquals(2, cache.getMisses());
+    }
+
+    @Test
+    public void cacheNeverStoresUnknownModificationTime() throws Exception {
+        final DigestCache cache = new DigestCache(10);
+        final ContentSource source = new ContentSource() {
+            @Override
+            public String getKey() {
+                return "content://stream";
+            }
+
+            @Override
+            public long getSize() {
+                return -1;
+            }
+
+            @Override
+            public long getLastModified() {
+                return 0;
+            }
+
+            @Override
+            public Sha256Hash hash() {
+                return Sha256Hash.ZERO_HASH;
+            }
+        };
+        cache.digest(source);
+        cache.digest(source);
+        assertEquals(0, cache.getHits());
+    }
+
+    @Test
+    public void cacheEvictsAndPersists() throws Exception {
+        final DigestCache cache = new DigestCache(2);
+        final List<File> files = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            final File file = randomFile("content-" + i, 100, i);
+            file.setLastModified(1500000000000L);
+            files.add(file);
+            cache.digest(new FileContentSource(file));
+        }
+        final File cacheFile = new File(folder.getRoot(), "digests");
+        cache.write(cacheFile);
+
+        final DigestCache restored = new DigestCache(10);
+        restored.read(cacheFile);
+        for (final File file : files)
+            restored.digest(new FileContentSource(file));
+        assertEquals(2, restored.getHits()); // the eldest was evicted before writing
+        assertEquals(1, restored.getMisses());
+
+        final DigestCache empty = new DigestCache(10);
+        empty.read(new File(folder.getRoot(), "missing"));
+        empty.read(files.get(0)); // not a cache file
+        empty.digest(new FileContentSource(files.get(0)));
+        assertEquals(0, empty.getHits());
+    }
+
+    @Test
+    public void verifiesBatch() throws Exception {
+        final ECKey key = new ECKey();
+        final Address address = LegacyAddress.fromKey(PARAMS, key);
+        final Address otherAddress = LegacyAddress.fromKey(PARAMS, new ECKey());
+        final List<SignatureBatchVerifier.Item> items = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            final File file = randomFile("content-" + i, 5000, i);
+            final String signature = key.signMessage(SignatureBatchVerifier.messageFor(referenceHash(file)));
+            items.add(new SignatureBatchVerifier.Item(new FileContentSource(file), i == 3 ? otherAddress : address,
+                    i == 4 ? "garbage" : signature));
+        }
+        final File tampered = ((FileContentSource) items.get(5).content).getFile();
+        try (final FileOutputStream os = new FileOutputStream(tampered, true)) {
+            os.write(0);
+        }
+        final File deleted = ((FileContentSource) items.get(6).content).getFile();
+        deleted.delete();
+
+        final SignatureBatchVerifier verifier = new SignatureBatchVerifier(new DigestCache(100), executor);
+        final List<SignatureBatchVerifier.Result> results = verifier.verifyAll(items);
+        assertEquals(items.size(), results.size());
+        for (int i = 0; i < results.size(); i++) {
+            final SignatureBatchVerifier.Result result = results.get(i);
+            assertEquals(items.get(i), result.item);
+            if (i == 3 || i == 4 || i == 5) {
+                assertEquals("item " + i, SignatureBatchVerifier.Status.INVALID, result.status);
+            } else if (i == 6) {
+                assertEquals(SignatureBatchVerifier.Status.CONTENT_UNAVAILABLE, result.status);
+                assertNull(result.digest);
+            } else {
+                assertEquals("item " + i, SignatureBatchVerifier.Status.VALID, result.status);
+                assertNotNull(result.digest);
+            }
+        }
+    }
+
+    /**
+     * Hashing throughput from 1 MB to 2 GB, memory-mapped against streamed. The files were just written, so this
+     * mostly measures hashing rather than the disk. Heap use stays constant throughout. Writes about 2.3 GB, so only
+     * runs with {@code -Pbenchmark}.
+     */
+    @Test
+    public void benchmark() throws Exception {
+        assumeTrue(Boolean.getBoolean("benchmark"));
+        final long[] sizes = { 1L << 20, 16L << 20, 256L << 20, 2L << 30 };
+        final Runtime runtime = Runtime.getRuntime();
+        final byte[] block = new byte[1 << 20];
+        new Random(42).nextBytes(block);
+        for (final long size : sizes) {
+            final File file = folder.newFile("content-" + size);
+            try (final FileOutputStream os = new FileOutputStream(file)) {
+                for (long written = 0; written < size; written += block.length)
+                    os.write(block);
+            }
+            runtime.gc();
+            final long heapBefore = runtime.totalMemory() - runtime.freeMemory();
+            long start = System.nanoTime();
+            final Sha256Hash mapped = ContentHasher.hash(file);
+            final long mappedTime = System.nanoTime() - start;
+            final long heapAfter = runtime.totalMemory() - runtime.freeMemory();
+            start = System.nanoTime();
+            final Sha256Hash streamed;
+            try (final InputStream is = new FileInputStream(file)) {
+                streamed = ContentHasher.hash(is);
+            }
+            final long streamedTime = System.nanoTime() - start;
+            assertEquals(mapped, streamed);
+            assertTrue(String.format(Locale.US, "%d MB: mapped %.0f MB/s, streamed %.0f MB/s, heap delta %d kB",
+                    size >> 20, mbPerSecond(size, mappedTime), mbPerSecond(size, streamedTime),
+                    (heapAfter - heapBefore) / 1024), heapAfter - heapBefore < 16 << 20);
+            file.delete();
+        }
+
+        final List<SignatureBatchVerifier.Item> items = new ArrayList<>();
+        final ECKey key = new ECKey();
+        final Address address = LegacyAddress.fromKey(PARAMS, key);
+        for (int i = 0; i < 32; i++) {
+            final File file = randomFile("batch-" + i, 4 << 20, i);
+            items.add(new SignatureBatchVerifier.Item(new FileContentSource(file), address,
+                    key.signMessage(SignatureBatchVerifier.messageFor(referenceHash(file)))));
+        }
+        final ExecutorService single = Executors.newSingleThreadExecutor();
+        try {
+            long start = System.nanoTime();
+            new SignatureBatchVerifier(new DigestCache(100), single).verifyAll(items);
+            final long sequential = System.nanoTime() - start;
+            final DigestCache cache = new DigestCache(100);
+            final SignatureBatchVerifier verifier = new SignatureBatchVerifier(cache, executor);
+            start = System.nanoTime();
+            verifier.verifyAll(items);
+            final long parallel = System.nanoTime() - start;
+            start = System.nanoTime();
+            for (final SignatureBatchVerifier.Result result : verifier.verifyAll(items))
+                assertEquals(SignatureBatchVerifier.Status.VALID, result.status);
+            final long cached = System.nanoTime() - start;
+            final String timings = String.format(Locale.US,
+                    "verify 32 x 4 MB: sequential %d ms, 4 threads %d ms, cached %d ms, on %d cores",
+                    sequential / 1000000, parallel / 1000000, cached / 1000000, runtime.availableProcessors());
+            assertTrue(timings, cached < sequential / 2); // signatures are still checked
+            if (runtime.availableProcessors() > 1)
+                assertTrue(timings, parallel < sequential);
+        } finally {
+            single.shutdownNow();
+        }
+    }
+
+    private static double mbPerSecond(final long bytes, final long nanos) {
+        return (bytes / 1048576.0) / (nanos / 1e9);
+    }
+}